@@ -0,0 +1,185 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.collector.Collector.AggregateReader;
+import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.util.CappedDatabase;
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+
+// measures the latency of a single aggregate flush (AggregateDao.store()) as a function of the
+// number of transaction names, using file based h2 and capped databases so that disk syncs are
+// included in the measurement
+//
+// this uses the embedded storage classes directly (including their Guava and protobuf types), so
+// this needs to be run against an agent that was built with -Dglowroot.shade.skip
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class AggregateDaoBenchmark {
+
+    @Param({"100", "1000", "3000"})
+    private int transactionNameCount;
+
+    private File dbFile;
+    private File cappedFile;
+    private DataSource dataSource;
+    private CappedDatabase cappedDatabase;
+    private AggregateDao aggregateDao;
+
+    private long captureTime;
+
+    @Setup
+    public void setup() throws Exception {
+        dbFile = File.createTempFile("glowroot-benchmark-", ".h2.db");
+        // h2 creates the database file itself
+        if (!dbFile.delete()) {
+            throw new IOException("Could not delete file: " + dbFile.getAbsolutePath());
+        }
+        cappedFile = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        dataSource = new DataSource(dbFile);
+        cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
+        aggregateDao = new AggregateDao(dataSource,
+                ImmutableList.of(cappedDatabase, cappedDatabase, cappedDatabase, cappedDatabase),
+                createConfigRepository(), new TransactionTypeDao(dataSource),
+                new FullQueryTextDao(dataSource));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dataSource.close();
+        cappedDatabase.close();
+        if (!dbFile.delete()) {
+            throw new IOException("Could not delete file: " + dbFile.getAbsolutePath());
+        }
+        if (!cappedFile.delete()) {
+            throw new IOException("Could not delete file: " + cappedFile.getAbsolutePath());
+        }
+    }
+
+    @Benchmark
+    public void store() throws Exception {
+        captureTime += 60000;
+        aggregateDao.store(new FakeAggregateReader(captureTime, transactionNameCount));
+    }
+
+    // AggregateDao only needs the rollup configs and the advanced config
+    private static ConfigRepository createConfigRepository() {
+        final List<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
+                ImmutableRollupConfig.of(60000, 0), ImmutableRollupConfig.of(300000, 3600000),
+                ImmutableRollupConfig.of(1800000, 8 * 3600000),
+                ImmutableRollupConfig.of(14400000, 24 * 3600000));
+        return (ConfigRepository) Proxy.newProxyInstance(ConfigRepository.class.getClassLoader(),
+                new Class<?>[] {ConfigRepository.class}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getRollupConfigs")) {
+                            return rollupConfigs;
+                        }
+                        if (method.getName().equals("getAdvancedConfig")) {
+                            return AdvancedConfig.getDefaultInstance();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static Aggregate createAggregate(long transactionCount) {
+        Aggregate.Query query = Aggregate.Query.newBuilder()
+                .setSharedQueryTextIndex(0)
+                .setTotalDurationNanos(1000 * transactionCount)
+                .setExecutionCount(transactionCount)
+                .build();
+        ProfileNode profileNode = ProfileNode.newBuilder()
+                .setPackageNameIndex(0)
+                .setClassNameIndex(0)
+                .setMethodNameIndex(0)
+                .setFileNameIndex(0)
+                .setLineNumber(1)
+                .setSampleCount(transactionCount)
+                .build();
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(1000000 * transactionCount)
+                .setTransactionCount(transactionCount)
+                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                        .addOrderedRawValue(123)
+                        .addOrderedRawValue(456))
+                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                        .setType("SQL")
+                        .addQuery(query))
+                .setMainThreadProfile(Profile.newBuilder()
+                        .addPackageName("org.example")
+                        .addClassName("Example")
+                        .addMethodName("example")
+                        .addFileName("Example.java")
+                        .addNode(profileNode))
+                .build();
+    }
+
+    private static class FakeAggregateReader implements AggregateReader {
+
+        private final long captureTime;
+        private final int transactionNameCount;
+
+        private FakeAggregateReader(long captureTime, int transactionNameCount) {
+            this.captureTime = captureTime;
+            this.transactionNameCount = transactionNameCount;
+        }
+
+        @Override
+        public long captureTime() {
+            return captureTime;
+        }
+
+        @Override
+        public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+            List<String> sharedQueryTexts = ImmutableList.of("select * from example");
+            aggregateVisitor.visitOverallAggregate("Web", sharedQueryTexts,
+                    createAggregate(transactionNameCount));
+            for (int i = 0; i < transactionNameCount; i++) {
+                aggregateVisitor.visitTransactionAggregate("Web", "/example/" + i,
+                        ImmutableList.<String>of(), createAggregate(1));
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.microbenchmarks.support.TransactionTypeWorthy;
+
+// run with increasing thread counts (e.g. -t 1, -t 8, -t 32) to compare how the single aggregate
+// processing thread and the sharded aggregation pipeline scale
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class AggregatorBenchmark {
+
+    private static final AtomicInteger threadIndexes = new AtomicInteger();
+
+    @Param({"1", "16"})
+    private int transactionTypeCount;
+
+    private TransactionTypeWorthy transactionTypeWorthy;
+
+    private String transactionType;
+
+    @Setup
+    public void setup() {
+        transactionTypeWorthy = new TransactionTypeWorthy();
+        transactionType =
+                "Microbenchmark " + (threadIndexes.getAndIncrement() % transactionTypeCount);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.aggregate.shards=1")
+    public void unsharded() throws Exception {
+        transactionTypeWorthy.doSomethingTransactionTypeWorthy(transactionType);
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.aggregate.shards=8")
+    public void sharded() throws Exception {
+        transactionTypeWorthy.doSomethingTransactionTypeWorthy(transactionType);
+    }
+}
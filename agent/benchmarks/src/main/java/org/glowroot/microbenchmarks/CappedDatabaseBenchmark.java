@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import org.glowroot.agent.embedded.util.CappedDatabase;
+
+// compares stream reads (under the capped database lock) and memory-mapped reads, along with the
+// cost of writes while the capped database file is also memory-mapped
+//
+// CappedDatabase takes a Guava Ticker, so this needs to be run against an agent that was built
+// with -Dglowroot.shade.skip
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class CappedDatabaseBenchmark {
+
+    private static final int SIZE_KB = 10 * 1024;
+
+    @Param({"1024", "65536"})
+    private int blockSize;
+
+    private File file;
+    private CappedDatabase cappedDatabase;
+
+    private byte[] bytes;
+    private long[] cappedIds;
+    private int nextIndex;
+
+    @Setup
+    public void setup() throws IOException {
+        file = File.createTempFile("glowroot-benchmark-", ".capped.db");
+        cappedDatabase = new CappedDatabase(file, SIZE_KB, Ticker.systemTicker());
+        bytes = new byte[blockSize];
+        new Random(0).nextBytes(bytes);
+        // fill half of the capped database so that none of these blocks are rolled over
+        cappedIds = new long[SIZE_KB * 1024 / 2 / blockSize];
+        for (int i = 0; i < cappedIds.length; i++) {
+            cappedIds[i] = cappedDatabase.writeBytes(bytes, "benchmark");
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        cappedDatabase.close();
+        if (!file.delete()) {
+            throw new IOException("Could not delete file: " + file.getAbsolutePath());
+        }
+    }
+
+    @Benchmark
+    public long streamWrite() throws IOException {
+        return cappedDatabase.writeBytes(bytes, "benchmark");
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.cappedDatabase.memoryMappedReads=true")
+    public long mappedWrite() throws IOException {
+        return cappedDatabase.writeBytes(bytes, "benchmark");
+    }
+
+    @Benchmark
+    public byte /*@Nullable*/ [] streamRead() throws IOException {
+        return read();
+    }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.cappedDatabase.memoryMappedReads=true")
+    public byte /*@Nullable*/ [] mappedRead() throws IOException {
+        return read();
+    }
+
+    private byte /*@Nullable*/ [] read() throws IOException {
+        long cappedId = cappedIds[nextIndex++];
+        if (nextIndex == cappedIds.length) {
+            nextIndex = 0;
+        }
+        return cappedDatabase.readBytes(cappedId);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.MutableProfile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
+// simulates central merging many aggregate profiles (e.g. when viewing a week long time range)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class MutableProfileBenchmark {
+
+    @Param({"100", "1000"})
+    private int profileCount;
+
+    // number of distinct call sites at each depth, which is the fan out of the profile tree
+    @Param({"4", "64"})
+    private int frameCount;
+
+    private List<Profile> profiles;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        profiles = Lists.newArrayList();
+        for (int i = 0; i < profileCount; i++) {
+            MutableProfile profile = new MutableProfile();
+            for (int j = 0; j < 100; j++) {
+                List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+                for (int k = 0; k < 30; k++) {
+                    int frame = random.nextInt(frameCount);
+                    stackTraceElements.add(new StackTraceElement("org.example.pkg" + k + ".Class"
+                            + frame, "method" + frame, "Class" + frame + ".java", k * 10 + 1));
+                }
+                profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+            }
+            profiles.add(profile.toProto());
+        }
+    }
+
+    @Benchmark
+    public MutableProfile merge() {
+        MutableProfile mergedProfile = new MutableProfile();
+        for (Profile profile : profiles) {
+            mergedProfile.merge(profile);
+        }
+        return mergedProfile;
+    }
+}
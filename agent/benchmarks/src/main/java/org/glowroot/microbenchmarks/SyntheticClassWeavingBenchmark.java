@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// variant of WeavingBenchmark that measures the per-class weaving overhead for classes that no
+// advice applies to (which is the vast majority of classes loaded by any application), by defining
+// thousands of synthetic classes in a fresh class loader on each invocation
+//
+// compare execute() against executeWithoutPreCheck() to measure the benefit of the pre-check in
+// ClassAnalyzer.analyzeIfNoMatch() (the weaving cache does not apply here since the synthetic
+// class loader is not a URLClassLoader)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SyntheticClassWeavingBenchmark {
+
+    private static final int CLASS_COUNT = 5000;
+    private static final int METHOD_COUNT = 20;
+
+    private String[] classNames;
+    private byte[][] classBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        classNames = new String[CLASS_COUNT];
+        classBytes = new byte[CLASS_COUNT][];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String internalName = "org/glowroot/microbenchmarks/synthetic/Synthetic" + i;
+            classNames[i] = internalName.replace('/', '.');
+            classBytes[i] = generateClass(internalName);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void execute() {
+        SyntheticClassLoader loader = new SyntheticClassLoader();
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            loader.define(classNames[i], classBytes[i]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weaving.disablePreCheck=true")
+    public void executeWithoutPreCheck() {
+        execute();
+    }
+
+    // generates an abstract class (so that the methods do not need bytecode) extending
+    // java.lang.Object and implementing java.io.Serializable
+    private static byte[] generateClass(String internalName) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0); // minor version
+        out.writeShort(50); // major version (java 6)
+        // constant pool
+        out.writeShort(8 + METHOD_COUNT);
+        writeUtf8(out, internalName); // #1
+        writeClass(out, 1); // #2
+        writeUtf8(out, "java/lang/Object"); // #3
+        writeClass(out, 3); // #4
+        writeUtf8(out, "java/io/Serializable"); // #5
+        writeClass(out, 5); // #6
+        writeUtf8(out, "(Ljava/lang/String;I)Ljava/lang/Object;"); // #7
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            writeUtf8(out, "method" + i); // #8 + i
+        }
+        out.writeShort(0x0421); // ACC_PUBLIC | ACC_SUPER | ACC_ABSTRACT
+        out.writeShort(2); // this class
+        out.writeShort(4); // super class
+        out.writeShort(1); // interfaces count
+        out.writeShort(6);
+        out.writeShort(0); // fields count
+        out.writeShort(METHOD_COUNT);
+        for (int i = 0; i < METHOD_COUNT; i++) {
+            out.writeShort(0x0401); // ACC_PUBLIC | ACC_ABSTRACT
+            out.writeShort(8 + i); // name
+            out.writeShort(7); // descriptor
+            out.writeShort(0); // attributes count
+        }
+        out.writeShort(0); // attributes count
+        out.close();
+        return baos.toByteArray();
+    }
+
+    private static void writeUtf8(DataOutputStream out, String str) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(str);
+    }
+
+    private static void writeClass(DataOutputStream out, int nameIndex) throws IOException {
+        out.writeByte(7);
+        out.writeShort(nameIndex);
+    }
+
+    private static class SyntheticClassLoader extends ClassLoader {
+
+        private SyntheticClassLoader() {
+            super(SyntheticClassWeavingBenchmark.class.getClassLoader());
+        }
+
+        private Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.microbenchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.Lists;
+import com.ning.compress.lzf.LZFInputStream;
+import com.ning.compress.lzf.LZFOutputStream;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import org.glowroot.common.model.ColumnarTraceEntries;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// compares the prior format (one delimited protobuf message per entry, LZF compressed, which is how
+// the embedded collector stores entries in the capped database) and the columnar trace entries
+// format
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Thread)
+public class TraceEntriesEncodingBenchmark {
+
+    @Param({"1000", "50000"})
+    private int entryCount;
+
+    private List<Trace.Entry> entries;
+
+    private byte[] delimitedBytes;
+    private byte[] columnarBytes;
+
+    @Setup
+    public void setup() throws IOException {
+        entries = Lists.newArrayList();
+        long startOffsetNanos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            long durationNanos = 100000 + (i * 7919) % 50000;
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(1 + i % 3)
+                    .setStartOffsetNanos(startOffsetNanos)
+                    .setDurationNanos(durationNanos)
+                    .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                            .setSharedQueryTextIndex(i % 20)
+                            .setPrefix("jdbc execution: ")
+                            .setSuffix(" => " + (i % 5) + " rows"))
+                    .build());
+            startOffsetNanos += durationNanos + 20000;
+        }
+        delimitedBytes = encodeDelimited(entries);
+        columnarBytes = ColumnarTraceEntries.encode(entries);
+    }
+
+    @Benchmark
+    public byte[] encodeDelimited(EncodedSize encodedSize) throws IOException {
+        return encodedSize.record(encodeDelimited(entries));
+    }
+
+    @Benchmark
+    public byte[] encodeColumnar(EncodedSize encodedSize) throws IOException {
+        return encodedSize.record(ColumnarTraceEntries.encode(entries));
+    }
+
+    @Benchmark
+    public List<Trace.Entry> decodeDelimited() throws IOException {
+        LZFInputStream in = new LZFInputStream(new ByteArrayInputStream(delimitedBytes));
+        List<Trace.Entry> decoded = Lists.newArrayList();
+        Trace.Entry entry;
+        while ((entry = Trace.Entry.parseDelimitedFrom(in)) != null) {
+            decoded.add(entry);
+        }
+        in.close();
+        return decoded;
+    }
+
+    @Benchmark
+    public List<Trace.Entry> decodeColumnar() throws IOException {
+        return ColumnarTraceEntries.decode(columnarBytes);
+    }
+
+    private static byte[] encodeDelimited(List<Trace.Entry> entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        LZFOutputStream out = new LZFOutputStream(baos);
+        for (Trace.Entry entry : entries) {
+            entry.writeDelimitedTo(out);
+        }
+        out.close();
+        return baos.toByteArray();
+    }
+
+    // the encoded size per operation is encodedBytes / encodings (both are summed across
+    // iterations)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class EncodedSize {
+
+        public long encodedBytes;
+        public long encodings;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            encodedBytes = 0;
+            encodings = 0;
+        }
+
+        private byte[] record(byte[] bytes) {
+            encodedBytes += bytes.length;
+            encodings++;
+            return bytes;
+        }
+    }
+}
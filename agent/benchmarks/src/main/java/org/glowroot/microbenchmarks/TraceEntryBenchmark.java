@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OperationsPerInvocation;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -30,6 +31,7 @@ import org.openjdk.jmh.annotations.State;
 import org.glowroot.microbenchmarks.support.TraceEntryWorthy;
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with -prof gc to compare gc.alloc.rate.norm with and without recycled timers
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.NANOSECONDS)
 @State(Scope.Thread)
@@ -51,6 +53,13 @@ public class TraceEntryBenchmark extends TransactionWorthy {
         doSomethingTransactionWorthy();
     }
 
+    @Benchmark
+    @OperationsPerInvocation(2000)
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.recycleTimers=true")
+    public void executeWithRecycledTimers() throws Exception {
+        doSomethingTransactionWorthy();
+    }
+
     @Override
     public void doSomethingTransactionWorthy() throws Exception {
         switch (pointcutType) {
@@ -19,6 +19,7 @@ import java.util.concurrent.TimeUnit;
 
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
 import org.openjdk.jmh.annotations.Param;
@@ -28,6 +29,7 @@ import org.openjdk.jmh.annotations.State;
 
 import org.glowroot.microbenchmarks.support.TransactionWorthy;
 
+// run with -prof gc to compare gc.alloc.rate.norm with and without recycled timers
 @BenchmarkMode(Mode.AverageTime)
 @OutputTimeUnit(TimeUnit.MICROSECONDS)
 @State(Scope.Thread)
@@ -54,4 +56,10 @@ public class TransactionBenchmark {
                 break;
         }
     }
+
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.recycleTimers=true")
+    public void executeWithRecycledTimers() throws Exception {
+        execute();
+    }
 }
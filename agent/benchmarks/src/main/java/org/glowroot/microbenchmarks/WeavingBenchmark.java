@@ -28,6 +28,7 @@ import com.google.common.base.Splitter;
 import com.google.common.base.StandardSystemProperty;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Measurement;
 import org.openjdk.jmh.annotations.Mode;
 import org.openjdk.jmh.annotations.OutputTimeUnit;
@@ -37,6 +38,12 @@ import org.openjdk.jmh.annotations.State;
 import org.openjdk.jmh.annotations.TearDown;
 import org.openjdk.jmh.annotations.Warmup;
 
+// measures class loading time of the spring framework classes, which is dominated by weaving when
+// run with the agent attached
+//
+// the weaving cache (see WeavingCache) is populated by the first fork and used by subsequent
+// forks, so run with multiple forks (e.g. -f 3) and compare execute() against
+// executeWithoutWeavingCache() to measure the startup improvement from the weaving cache
 @BenchmarkMode(Mode.SingleShotTime)
 @Warmup(iterations = 0)
 @Measurement(iterations = 1)
@@ -87,6 +94,12 @@ public class WeavingBenchmark {
         }
     }
 
+    @Benchmark
+    @Fork(jvmArgsAppend = "-Dglowroot.internal.weaving.disableCache=true")
+    public void executeWithoutWeavingCache() throws ClassNotFoundException {
+        execute();
+    }
+
     private static List<String> getClassPath() {
         String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
         return Splitter.on(StandardSystemProperty.PATH_SEPARATOR.value()).splitToList(classPath);
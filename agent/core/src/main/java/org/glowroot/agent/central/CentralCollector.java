@@ -22,10 +22,15 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import io.grpc.stub.StreamObserver;
@@ -57,6 +62,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.LogMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamIndexedEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -66,6 +72,12 @@ public class CentralCollector implements Collector {
 
     private static final Logger logger = LoggerFactory.getLogger(CentralCollector.class);
 
+    // when enabled, partial traces (and the completed traces that follow them) only send the
+    // entries that were added or changed since the prior partial trace was sent, instead of
+    // re-sending the entire trace each time (requires a central collector that supports it)
+    private static final boolean INCREMENTAL_TRACE_STREAM =
+            Boolean.getBoolean("glowroot.internal.incrementalTraceStream");
+
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
@@ -78,6 +90,19 @@ public class CentralCollector implements Collector {
 
     private final SharedQueryTextLimiter sharedQueryTextLimiter = new SharedQueryTextLimiter();
 
+    // keyed by trace id, entries are added when a partial trace is sent and removed when the
+    // completed trace is sent (partially stored traces are always stored on completion)
+    //
+    // entries are also expired and bounded in number, since the completed trace is never sent if
+    // the agent is shut down before the transaction completes, and dropping an entry is always
+    // safe: the next partial trace is then sent from scratch, and the completed trace is sent in
+    // full
+    private final Cache<String, IncrementalTraceState> incrementalTraceStates =
+            CacheBuilder.newBuilder()
+                    .expireAfterAccess(1, TimeUnit.HOURS)
+                    .maximumSize(10000)
+                    .build();
+
     private volatile int nextAggregateDelayMillis;
 
     public CentralCollector(Map<String, String> properties, String collectorAddress,
@@ -182,6 +207,9 @@ public class CentralCollector implements Collector {
 
     @Override
     public void collectTrace(TraceReader traceReader) {
+        if (INCREMENTAL_TRACE_STREAM && collectTraceIncrementally(traceReader)) {
+            return;
+        }
         if (traceReader.partial()) {
             // do not retry partial transactions since they are live and reading from the trace
             // reader will not be idempotent, so could lead to confusing results
@@ -191,6 +219,32 @@ public class CentralCollector implements Collector {
         }
     }
 
+    private boolean collectTraceIncrementally(TraceReader traceReader) {
+        String traceId = traceReader.traceId();
+        if (traceReader.partial()) {
+            IncrementalTraceState incrementalTraceState =
+                    incrementalTraceStates.getIfPresent(traceId);
+            if (incrementalTraceState == null) {
+                incrementalTraceState = new IncrementalTraceState();
+                incrementalTraceStates.put(traceId, incrementalTraceState);
+            }
+            // do not retry partial transactions, see comment in collectTrace()
+            centralConnection.callOnce(
+                    new CollectTraceGrpcCall(traceReader, incrementalTraceState));
+            return true;
+        }
+        // completed transactions that were never partially stored are sent in full (which is the
+        // vast majority), since there is nothing on the central collector to append to
+        IncrementalTraceState incrementalTraceState =
+                incrementalTraceStates.asMap().remove(traceId);
+        if (incrementalTraceState == null) {
+            return false;
+        }
+        centralConnection
+                .callWithAFewRetries(new CollectTraceGrpcCall(traceReader, incrementalTraceState));
+        return true;
+    }
+
     @Override
     public void log(LogEvent logEvent) {
         if (centralConnection.suppressLogCollector()) {
@@ -310,15 +364,48 @@ public class CentralCollector implements Collector {
     private class CollectTraceGrpcCall extends GrpcCall<EmptyMessage> {
 
         private final TraceReader traceReader;
+        private final @Nullable IncrementalTraceState incrementalTraceState;
 
         private final List<String> fullTextSha1s = Lists.newArrayList();
 
+        private volatile IncrementalTraceState./*@Nullable*/ Pending pending;
+
         private CollectTraceGrpcCall(TraceReader traceReader) {
             this.traceReader = traceReader;
+            incrementalTraceState = null;
+        }
+
+        private CollectTraceGrpcCall(TraceReader traceReader,
+                IncrementalTraceState incrementalTraceState) {
+            this.traceReader = traceReader;
+            this.incrementalTraceState = incrementalTraceState;
         }
 
         @Override
         public void call(StreamObserver<EmptyMessage> responseObserver) {
+            // the send is only marked in progress here (instead of when the call is requested)
+            // since the call is never made when the central collector connection is closed, in
+            // failure or backlogged, in which case the send would never be marked complete
+            if (incrementalTraceState != null) {
+                if (incrementalTraceState.startSend()) {
+                    try {
+                        callIncremental(responseObserver, incrementalTraceState);
+                    } catch (RuntimeException e) {
+                        incrementalTraceState.onSendFailed();
+                        throw e;
+                    }
+                    return;
+                }
+                if (traceReader.partial()) {
+                    logger.debug("skipping partial trace since the prior partial trace is still"
+                            + " being sent: {}", traceReader.traceId());
+                    responseObserver.onCompleted();
+                    return;
+                }
+                // the last partial trace is still being sent, so the completed trace is sent in
+                // full since there is no committed state to send the changes against
+            }
+            pending = null;
             StreamObserver<TraceStreamMessage> requestObserver =
                     collectorServiceStub.collectTraceStream(responseObserver);
             requestObserver.onNext(TraceStreamMessage.newBuilder()
@@ -345,11 +432,67 @@ public class CentralCollector implements Collector {
             requestObserver.onCompleted();
         }
 
+        // the pending state is computed from the last successfully sent state each time, so this
+        // is safe to retry
+        private void callIncremental(final StreamObserver<EmptyMessage> responseObserver,
+                final IncrementalTraceState incrementalTraceState) {
+            StreamObserver<TraceStreamMessage> requestObserver = collectorServiceStub
+                    .collectTraceStream(new StreamObserver<EmptyMessage>() {
+                        @Override
+                        public void onNext(EmptyMessage value) {
+                            responseObserver.onNext(value);
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            incrementalTraceState.onSendFailed();
+                            responseObserver.onError(t);
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            responseObserver.onCompleted();
+                        }
+                    });
+            IncrementalTraceState.Pending pending = incrementalTraceState.newPending();
+            this.pending = pending;
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setStreamHeader(TraceStreamHeader.newBuilder()
+                            .setAgentId(agentId)
+                            .setTraceId(traceReader.traceId())
+                            .setUpdate(traceReader.update())
+                            .setIncremental(true)
+                            .setCaptureTime(traceReader.captureTime())
+                            .setSharedQueryTextStartIndex(pending.getSharedQueryTextStartIndex()))
+                    .build());
+            // need to clear in case this is a retry
+            fullTextSha1s.clear();
+            IncrementalTraceVisitor traceVisitor =
+                    new IncrementalTraceVisitor(requestObserver, fullTextSha1s, pending);
+            try {
+                traceReader.accept(traceVisitor);
+            } catch (Throwable t) {
+                logger.error(t.getMessage(), t);
+                requestObserver.onError(t);
+                return;
+            }
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setStreamCounts(TraceStreamCounts.newBuilder()
+                            .setSharedQueryTextCount(traceVisitor.sharedQueryTextCount)
+                            .setEntryCount(traceVisitor.entryCount))
+                    .build());
+            requestObserver.onCompleted();
+        }
+
         @Override
         public void doWithResponse(EmptyMessage response) {
             for (String fullTextSha1 : fullTextSha1s) {
                 sharedQueryTextLimiter.onSuccessfullySentToCentralCollector(fullTextSha1);
             }
+            IncrementalTraceState.Pending pending = this.pending;
+            if (incrementalTraceState != null && pending != null) {
+                incrementalTraceState.onSendSucceeded(pending);
+            }
         }
     }
 
@@ -419,4 +562,83 @@ public class CentralCollector implements Collector {
                     .build());
         }
     }
+
+    private class IncrementalTraceVisitor implements TraceVisitor {
+
+        private final StreamObserver<TraceStreamMessage> requestObserver;
+        private final List<String> fullTextSha1s;
+        private final IncrementalTraceState.Pending pending;
+
+        private int sharedQueryTextCount;
+        private int entryCount;
+
+        private IncrementalTraceVisitor(StreamObserver<TraceStreamMessage> requestObserver,
+                List<String> fullTextSha1s, IncrementalTraceState.Pending pending) {
+            this.requestObserver = requestObserver;
+            this.fullTextSha1s = fullTextSha1s;
+            this.pending = pending;
+        }
+
+        @Override
+        public int visitSharedQueryText(String sharedQueryText) {
+            Map<String, Integer> sharedQueryTextIndexes = pending.getSharedQueryTextIndexes();
+            Integer sharedQueryTextIndex = sharedQueryTextIndexes.get(sharedQueryText);
+            if (sharedQueryTextIndex != null) {
+                return sharedQueryTextIndex;
+            }
+            sharedQueryTextIndex = sharedQueryTextIndexes.size();
+            sharedQueryTextIndexes.put(sharedQueryText, sharedQueryTextIndex);
+            Trace.SharedQueryText traceSharedQueryText =
+                    sharedQueryTextLimiter.buildTraceSharedQueryText(sharedQueryText);
+            String fullTextSha1 = traceSharedQueryText.getFullTextSha1();
+            if (!fullTextSha1.isEmpty()) {
+                fullTextSha1s.add(fullTextSha1);
+            }
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setSharedQueryText(traceSharedQueryText)
+                    .build());
+            sharedQueryTextCount++;
+            return sharedQueryTextIndex;
+        }
+
+        @Override
+        public void visitEntry(Trace.Entry entry) {
+            int index = pending.addEntry(entry);
+            if (index == -1) {
+                // already sent and unchanged since
+                return;
+            }
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setIndexedEntry(TraceStreamIndexedEntry.newBuilder()
+                            .setIndex(index)
+                            .setEntry(entry))
+                    .build());
+            entryCount++;
+        }
+
+        @Override
+        public void visitMainThreadProfile(Profile profile) {
+            if (pending.mainThreadProfileChanged(profile)) {
+                requestObserver.onNext(TraceStreamMessage.newBuilder()
+                        .setMainThreadProfile(profile)
+                        .build());
+            }
+        }
+
+        @Override
+        public void visitAuxThreadProfile(Profile profile) {
+            if (pending.auxThreadProfileChanged(profile)) {
+                requestObserver.onNext(TraceStreamMessage.newBuilder()
+                        .setAuxThreadProfile(profile)
+                        .build());
+            }
+        }
+
+        @Override
+        public void visitHeader(Trace.Header header) {
+            requestObserver.onNext(TraceStreamMessage.newBuilder()
+                    .setHeader(header)
+                    .build());
+        }
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Maps;
+
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// tracks what has been successfully sent to the central collector for a trace that is sent
+// incrementally, so that subsequent sends of the same trace only need to include the entries (and
+// shared query texts) that were added or changed since then
+//
+// entries are visited in pre-order depth-first order, so the index of an entry is NOT stable
+// across sends (e.g. auxiliary thread entries can be inserted in the middle of the tree), instead
+// the entry at each index is compared to the entry that was sent at that index, and any index
+// whose entry differs (including entries that have only shifted position) is re-sent, overwriting
+// what the central collector stored at that index
+//
+// the comparison only uses the primitive fields of the entry (so nothing needs to be serialized or
+// hashed on each send): an entry is identified by its start offset and depth, and since entries
+// that were no longer active when they were sent cannot change anymore, only entries that were
+// still active need to be re-sent at the same index
+//
+// this relies on entries never being removed from a transaction, so that the number of entries
+// never decreases and every previously stored index is overwritten
+class IncrementalTraceState {
+
+    private static final int ACTIVE_FLAG = 1 << 31;
+
+    private final Object lock = new Object();
+
+    @GuardedBy("lock")
+    private Map<String, Integer> sharedQueryTextIndexes = Maps.newHashMap();
+    // these arrays are replaced (never modified) on commit so they can be safely read by a pending
+    // send outside of the lock
+    @GuardedBy("lock")
+    private long[] entryStartOffsets = new long[0];
+    // depth of each sent entry, with ACTIVE_FLAG set if the entry was still active when it was sent
+    @GuardedBy("lock")
+    private int[] entryDepths = new int[0];
+    @GuardedBy("lock")
+    private long mainThreadProfileSampleCount;
+    @GuardedBy("lock")
+    private long auxThreadProfileSampleCount;
+
+    @GuardedBy("lock")
+    private boolean sendInProgress;
+
+    // returns false if a prior send of this trace is still in progress, in which case sending
+    // another delta is skipped since it would be computed against the same committed state
+    boolean startSend() {
+        synchronized (lock) {
+            if (sendInProgress) {
+                return false;
+            }
+            sendInProgress = true;
+            return true;
+        }
+    }
+
+    Pending newPending() {
+        synchronized (lock) {
+            return new Pending(Maps.newHashMap(sharedQueryTextIndexes), entryStartOffsets,
+                    entryDepths, mainThreadProfileSampleCount, auxThreadProfileSampleCount);
+        }
+    }
+
+    void onSendSucceeded(Pending pending) {
+        synchronized (lock) {
+            sharedQueryTextIndexes = pending.sharedQueryTextIndexes;
+            entryStartOffsets = Arrays.copyOf(pending.entryStartOffsets, pending.entryCount);
+            entryDepths = Arrays.copyOf(pending.entryDepths, pending.entryCount);
+            mainThreadProfileSampleCount = pending.mainThreadProfileSampleCount;
+            auxThreadProfileSampleCount = pending.auxThreadProfileSampleCount;
+            sendInProgress = false;
+        }
+    }
+
+    void onSendFailed() {
+        synchronized (lock) {
+            sendInProgress = false;
+        }
+    }
+
+    static class Pending {
+
+        private final Map<String, Integer> sharedQueryTextIndexes;
+        private final int sharedQueryTextStartIndex;
+        private final long[] priorEntryStartOffsets;
+        private final int[] priorEntryDepths;
+        private final long priorMainThreadProfileSampleCount;
+        private final long priorAuxThreadProfileSampleCount;
+
+        private long[] entryStartOffsets;
+        private int[] entryDepths;
+        private int entryCount;
+        private long mainThreadProfileSampleCount;
+        private long auxThreadProfileSampleCount;
+
+        private Pending(Map<String, Integer> sharedQueryTextIndexes,
+                long[] priorEntryStartOffsets, int[] priorEntryDepths,
+                long priorMainThreadProfileSampleCount, long priorAuxThreadProfileSampleCount) {
+            this.sharedQueryTextIndexes = sharedQueryTextIndexes;
+            sharedQueryTextStartIndex = sharedQueryTextIndexes.size();
+            this.priorEntryStartOffsets = priorEntryStartOffsets;
+            this.priorEntryDepths = priorEntryDepths;
+            this.priorMainThreadProfileSampleCount = priorMainThreadProfileSampleCount;
+            this.priorAuxThreadProfileSampleCount = priorAuxThreadProfileSampleCount;
+            int initialCapacity = Math.max(priorEntryStartOffsets.length, 16);
+            entryStartOffsets = new long[initialCapacity];
+            entryDepths = new int[initialCapacity];
+            mainThreadProfileSampleCount = priorMainThreadProfileSampleCount;
+            auxThreadProfileSampleCount = priorAuxThreadProfileSampleCount;
+        }
+
+        int getSharedQueryTextStartIndex() {
+            return sharedQueryTextStartIndex;
+        }
+
+        Map<String, Integer> getSharedQueryTextIndexes() {
+            return sharedQueryTextIndexes;
+        }
+
+        // returns the index of the entry if it needs to be sent, otherwise returns -1
+        int addEntry(Trace.Entry entry) {
+            long startOffset = entry.getStartOffsetNanos();
+            int depth = entry.getDepth();
+            if (entry.getActive()) {
+                depth |= ACTIVE_FLAG;
+            }
+            int index = entryCount++;
+            if (index == entryStartOffsets.length) {
+                entryStartOffsets = Arrays.copyOf(entryStartOffsets, index * 2);
+                entryDepths = Arrays.copyOf(entryDepths, index * 2);
+            }
+            entryStartOffsets[index] = startOffset;
+            entryDepths[index] = depth;
+            if (index < priorEntryStartOffsets.length
+                    && priorEntryStartOffsets[index] == startOffset
+                    && priorEntryDepths[index] == depth && (depth & ACTIVE_FLAG) == 0) {
+                return -1;
+            }
+            return index;
+        }
+
+        boolean mainThreadProfileChanged(Profile profile) {
+            mainThreadProfileSampleCount = getSampleCount(profile);
+            return mainThreadProfileSampleCount != priorMainThreadProfileSampleCount;
+        }
+
+        boolean auxThreadProfileChanged(Profile profile) {
+            auxThreadProfileSampleCount = getSampleCount(profile);
+            return auxThreadProfileSampleCount != priorAuxThreadProfileSampleCount;
+        }
+
+        private static long getSampleCount(Profile profile) {
+            long sampleCount = 0;
+            for (ProfileNode node : profile.getNodeList()) {
+                if (node.getDepth() == 0) {
+                    sampleCount += node.getSampleCount();
+                }
+            }
+            return sampleCount;
+        }
+    }
+}
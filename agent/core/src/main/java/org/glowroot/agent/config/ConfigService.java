@@ -402,6 +402,11 @@ public class ConfigService {
                     .addMbeanAttributes(ImmutableMBeanAttribute.of("SystemCpuLoad", false));
         }
         defaultGaugeConfigs.add(operatingSystemMBean.build());
+        // the cost of capturing stack traces for profiling (see StackTraceCollectorStatsMXBean)
+        defaultGaugeConfigs.add(ImmutableGaugeConfig.builder()
+                .mbeanObjectName("org.glowroot:type=StackTraceCollector")
+                .addMbeanAttributes(ImmutableMBeanAttribute.of("TotalMillis", true))
+                .build());
         return ImmutableList.copyOf(defaultGaugeConfigs);
     }
 
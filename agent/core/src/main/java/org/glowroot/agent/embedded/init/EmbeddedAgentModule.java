@@ -136,7 +136,8 @@ class EmbeddedAgentModule {
                     CentralGlowrootAgentInit.createBackgroundExecutorSupplier();
 
             agentModule = new AgentModule(clock, null, pluginCache, configService,
-                    backgroundExecutorSupplier, collectorProxy, instrumentation, agentDir);
+                    backgroundExecutorSupplier, collectorProxy, instrumentation, agentDir,
+                    glowrootVersion);
 
             backgroundExecutor = backgroundExecutorSupplier.get();
 
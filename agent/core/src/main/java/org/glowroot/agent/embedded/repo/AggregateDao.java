@@ -16,24 +16,44 @@
 package org.glowroot.agent.embedded.repo;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLongArray;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import com.google.protobuf.Parser;
 import org.checkerframework.checker.tainting.qual.Untainted;
 import org.immutables.value.Value;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.collector.Collector.AggregateReader;
 import org.glowroot.agent.collector.Collector.AggregateVisitor;
+import org.glowroot.agent.embedded.repo.OpenRollupIntervals.OpenInterval;
 import org.glowroot.agent.embedded.repo.model.Stored;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource;
@@ -45,6 +65,7 @@ import org.glowroot.agent.embedded.util.RowMappers;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.common.config.ConfigDefaults;
 import org.glowroot.common.config.StorageConfig;
 import org.glowroot.common.live.ImmutableOverviewAggregate;
@@ -55,6 +76,7 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector;
@@ -71,18 +93,39 @@ import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.MutableAggregate;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.repo.util.ThreadStatsCreator;
+import org.glowroot.common.util.OnlyUsedByTests;
 import org.glowroot.common.util.Styles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
 public class AggregateDao implements AggregateRepository {
 
+    private static final Logger logger = LoggerFactory.getLogger(AggregateDao.class);
+
     private static final String AGENT_ID = "";
 
+    // the memory held by the open rollup intervals is proportional to the number of transaction
+    // names times the number of rollup levels, so this provides a way out if that is a problem
+    private static final boolean INCREMENTAL_ROLLUP_DISABLED =
+            Boolean.getBoolean("glowroot.internal.aggregate.disableIncrementalRollup");
+
+    // open rollup intervals with more merged aggregates than this (overall and transaction) are
+    // rolled up from the prior rollup level instead, see OpenRollupIntervals
+    private static final int MAX_INCREMENTAL_ROLLUP_AGGREGATES = Integer
+            .getInteger("glowroot.internal.aggregate.maxIncrementalRollupAggregates", 500);
+
+    // rolling up more than this many intervals at rollup level 1 (e.g. after the jvm was stopped
+    // over a weekend) is done in the background, spread across the rollup threads
+    private static final int CATCH_UP_INTERVAL_THRESHOLD = 12;
+
+    private static final int ROLLUP_THREADS =
+            Integer.getInteger("glowroot.internal.aggregate.rollupThreads", 2);
+
     private static final ImmutableList<Column> overallAggregatePointColumns =
             ImmutableList.<Column>of(
                     ImmutableColumn.of("transaction_type", ColumnType.VARCHAR),
@@ -148,6 +191,18 @@ public class AggregateDao implements AggregateRepository {
             ImmutableList.of("capture_time", "transaction_type", "transaction_name",
                     "total_duration_nanos", "transaction_count", "error_count");
 
+    // the columns read by StoredAggregate, in order
+    private static final @Untainted String ROLLUP_COLUMNS = "total_duration_nanos,"
+            + " transaction_count, error_count, async_transactions, queries_capped_id,"
+            + " service_calls_capped_id, main_thread_profile_capped_id,"
+            + " aux_thread_profile_capped_id, main_thread_root_timers, aux_thread_root_timers,"
+            + " async_root_timers,"
+            + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
+            + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
+            + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
+            + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
+            + " duration_nanos_histogram";
+
     private final DataSource dataSource;
     private final List<CappedDatabase> rollupCappedDatabases;
     private final ConfigRepository configRepository;
@@ -155,9 +210,19 @@ public class AggregateDao implements AggregateRepository {
     private final FullQueryTextDao fullQueryTextDao;
 
     private final AtomicLongArray lastRollupTimes;
+    // number of intervals remaining in the current rollup (indexed by rollup level)
+    private final AtomicIntegerArray pendingRollupIntervals;
+
+    private final @Nullable OpenRollupIntervals openRollupIntervals;
+
+    // threads are only started when there is a catch up, and are stopped again once idle
+    private final ExecutorService catchUpExecutor;
+    private final ExecutorService rollupExecutor;
 
     private final Object rollupLock = new Object();
 
+    private volatile boolean catchUpInProgress;
+
     AggregateDao(DataSource dataSource, List<CappedDatabase> rollupCappedDatabases,
             ConfigRepository configRepository, TransactionTypeDao transactionTypeDao,
             FullQueryTextDao fullQueryTextDao) throws Exception {
@@ -188,32 +253,64 @@ public class AggregateDao implements AggregateRepository {
                     + " from aggregate_tt_rollup_" + castUntainted(i));
         }
         this.lastRollupTimes = new AtomicLongArray(lastRollupTimes);
+        pendingRollupIntervals = new AtomicIntegerArray(rollupConfigs.size());
+
+        if (INCREMENTAL_ROLLUP_DISABLED) {
+            openRollupIntervals = null;
+        } else {
+            long lastPreExistingCaptureTime = dataSource.queryForLong(
+                    "select ifnull(max(capture_time), 0) from aggregate_tt_rollup_0");
+            openRollupIntervals = new OpenRollupIntervals(rollupConfigs,
+                    lastPreExistingCaptureTime, MAX_INCREMENTAL_ROLLUP_AGGREGATES);
+        }
+        catchUpExecutor = newIdleTimeoutExecutor(1, "Glowroot-Aggregate-Rollup-Catch-Up");
+        rollupExecutor = newIdleTimeoutExecutor(ROLLUP_THREADS, "Glowroot-Aggregate-Rollup-%d");
 
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
     public void store(AggregateReader aggregateReader) throws Exception {
         final long captureTime = aggregateReader.captureTime();
-        // intentionally not using batch update as that could cause memory spike while preparing a
-        // large batch
-        final CappedDatabase cappedDatabase = rollupCappedDatabases.get(0);
+        // the blocks are written to the capped database as each aggregate is visited (so the
+        // aggregates are not all retained in memory), but are synced to disk only once at the end,
+        // and then all of the rows are inserted in a single batched transaction
+        final CappedDatabase.Batch cappedBatch = rollupCappedDatabases.get(0).newBatch();
+        // overall and transaction aggregates are kept separate since each uses a different sql
+        // statement, and consecutive rows with the same sql statement are batched together
+        final List<AggregateInsert> overallAggregateInserts = Lists.newArrayList();
+        final List<AggregateInsert> transactionAggregateInserts = Lists.newArrayList();
+        final Set<String> transactionTypes = Sets.newHashSet();
         final List<TruncatedQueryText> truncatedQueryTexts = Lists.newArrayList();
-        aggregateReader.accept(new AggregateVisitor() {
+        final int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
+        final int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
+        final @Nullable OpenRollupIntervals openRollupIntervals = this.openRollupIntervals;
+        AggregateVisitor aggregateVisitor = new AggregateVisitor() {
             @Override
             public void visitOverallAggregate(String transactionType, List<String> sharedQueryTexts,
                     Aggregate overallAggregate) throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, null, captureTime,
-                        overallAggregate, truncatedQueryTexts, 0, cappedDatabase));
-                transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
+                overallAggregateInserts.add(new AggregateInsert(transactionType, null, captureTime,
+                        overallAggregate, truncatedQueryTexts, 0, cappedBatch));
+                transactionTypes.add(transactionType);
+                if (openRollupIntervals != null) {
+                    openRollupIntervals.mergeOverallAggregate(captureTime, transactionType,
+                            overallAggregate, truncatedQueryTexts, maxAggregateQueriesPerType,
+                            maxAggregateServiceCallsPerType);
+                }
             }
             @Override
             public void visitTransactionAggregate(String transactionType, String transactionName,
                     List<String> sharedQueryTexts, Aggregate transactionAggregate)
                     throws Exception {
                 addToTruncatedQueryTexts(sharedQueryTexts);
-                dataSource.update(new AggregateInsert(transactionType, transactionName, captureTime,
-                        transactionAggregate, truncatedQueryTexts, 0, cappedDatabase));
+                transactionAggregateInserts.add(new AggregateInsert(transactionType,
+                        transactionName, captureTime, transactionAggregate, truncatedQueryTexts,
+                        0, cappedBatch));
+                if (openRollupIntervals != null) {
+                    openRollupIntervals.mergeTransactionAggregate(captureTime, transactionType,
+                            transactionName, transactionAggregate, truncatedQueryTexts,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                }
             }
             private void addToTruncatedQueryTexts(List<String> sharedQueryTexts)
                     throws SQLException {
@@ -233,20 +330,23 @@ public class AggregateDao implements AggregateRepository {
                             .add(ImmutableTruncatedQueryText.of(truncatedText, fullTextSha1));
                 }
             }
-        });
-        synchronized (rollupLock) {
-            List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
-            for (int i = 1; i < rollupConfigs.size(); i++) {
-                RollupConfig rollupConfig = rollupConfigs.get(i);
-                long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime,
-                        rollupConfig.intervalMillis());
-                long lastRollupTime = lastRollupTimes.get(i);
-                if (safeRollupTime > lastRollupTime) {
-                    rollup(lastRollupTime, safeRollupTime, rollupConfig.intervalMillis(), i, i - 1);
-                    lastRollupTimes.set(i, safeRollupTime);
-                }
+        };
+        try {
+            aggregateReader.accept(aggregateVisitor);
+            cappedBatch.sync();
+            List<AggregateInsert> aggregateInserts = Lists.newArrayList(overallAggregateInserts);
+            aggregateInserts.addAll(transactionAggregateInserts);
+            dataSource.batchUpdateInTransaction(aggregateInserts);
+        } catch (Exception e) {
+            if (openRollupIntervals != null) {
+                openRollupIntervals.markIncomplete(captureTime);
             }
+            throw e;
+        }
+        for (String transactionType : transactionTypes) {
+            transactionTypeDao.updateLastCaptureTime(transactionType, captureTime);
         }
+        rollup(captureTime);
     }
 
     // query.from() is non-inclusive
@@ -328,7 +428,9 @@ public class AggregateDao implements AggregateRepository {
                             Strings.emptyToNull(toBeMergedQuery.getFullTextSha1()),
                             toBeMergedQuery.getTotalDurationNanos(),
                             toBeMergedQuery.getExecutionCount(), toBeMergedQuery.hasTotalRows(),
-                            toBeMergedQuery.getTotalRows().getValue());
+                            toBeMergedQuery.getTotalRows().getValue(),
+                            toBeMergedQuery.getRepeatedTransactionCount(),
+                            readDurationNanosHistogram(toBeMergedQuery));
                 }
             }
             collector.updateLastCaptureTime(captureTime);
@@ -422,18 +524,194 @@ public class AggregateDao implements AggregateRepository {
         dataSource.deleteBefore("aggregate_tn_rollup_" + castUntainted(rollupLevel), captureTime);
     }
 
-    private void rollup(long lastRollupTime, long curentRollupTime, long fixedIntervalMillis,
-            int toRollupLevel, int fromRollupLevel) throws Exception {
+    long getLastRollupTime(int rollupLevel) {
+        return lastRollupTimes.get(rollupLevel);
+    }
+
+    int getPendingRollupIntervals(int rollupLevel) {
+        return pendingRollupIntervals.get(rollupLevel);
+    }
+
+    boolean isCatchUpInProgress() {
+        return catchUpInProgress;
+    }
+
+    @OnlyUsedByTests
+    void close() throws InterruptedException {
+        // the catch up uses the rollup executor, so it needs to be terminated first
+        catchUpExecutor.shutdown();
+        if (!catchUpExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+        rollupExecutor.shutdown();
+        if (!rollupExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
+    }
+
+    private void rollup(final long captureTime) throws Exception {
+        if (catchUpInProgress) {
+            // the catch up only rolls up to its own safe rollup time, and the first store after it
+            // completes picks up from there
+            return;
+        }
+        synchronized (rollupLock) {
+            if (!isCatchUpNeeded(captureTime)) {
+                rollup(captureTime, false);
+                return;
+            }
+            catchUpInProgress = true;
+            catchUpExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (rollupLock) {
+                            rollup(captureTime, true);
+                        }
+                    } catch (Throwable t) {
+                        logger.error(t.getMessage(), t);
+                    } finally {
+                        catchUpInProgress = false;
+                    }
+                }
+            });
+        }
+    }
+
+    @GuardedBy("rollupLock")
+    private boolean isCatchUpNeeded(long captureTime) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        if (rollupConfigs.size() < 2) {
+            return false;
+        }
+        long intervalMillis = rollupConfigs.get(1).intervalMillis();
+        long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime, intervalMillis);
+        long lastRollupTime = lastRollupTimes.get(1);
+        if (safeRollupTime - lastRollupTime <= CATCH_UP_INTERVAL_THRESHOLD * intervalMillis) {
+            return false;
+        }
+        // the gap can be large without there being much to roll up, e.g. on the first rollup
+        List<Long> rollupTimes = dataSource.query(
+                new RollupTimeRowMapper(0, intervalMillis, lastRollupTime, safeRollupTime));
+        return rollupTimes.size() > CATCH_UP_INTERVAL_THRESHOLD;
+    }
+
+    @GuardedBy("rollupLock")
+    private void rollup(long captureTime, boolean parallel) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        // each rollup level is built from the prior rollup level, so the levels are rolled up in
+        // order, but the intervals within a level are independent of each other
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long intervalMillis = rollupConfigs.get(i).intervalMillis();
+            long safeRollupTime = RollupLevelService.getSafeRollupTime(captureTime, intervalMillis);
+            long lastRollupTime = lastRollupTimes.get(i);
+            if (safeRollupTime > lastRollupTime) {
+                Map<Long, OpenInterval> closedIntervals;
+                if (openRollupIntervals == null) {
+                    closedIntervals = ImmutableMap.of();
+                } else {
+                    closedIntervals = openRollupIntervals.close(i, safeRollupTime);
+                }
+                rollup(lastRollupTime, safeRollupTime, intervalMillis, i, i - 1, closedIntervals,
+                        parallel);
+                lastRollupTimes.set(i, safeRollupTime);
+            }
+        }
+    }
+
+    private void rollup(long lastRollupTime, long curentRollupTime, final long fixedIntervalMillis,
+            final int toRollupLevel, final int fromRollupLevel,
+            Map<Long, OpenInterval> closedIntervals, boolean parallel) throws Exception {
         List<Long> rollupTimes = dataSource.query(new RollupTimeRowMapper(fromRollupLevel,
                 fixedIntervalMillis, lastRollupTime, curentRollupTime));
-        for (Long rollupTime : rollupTimes) {
-            dataSource.query(new RollupOverallAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
-            dataSource.query(new RollupTransactionAggregates(rollupTime, fixedIntervalMillis,
-                    fromRollupLevel, toRollupLevel));
+        List<Callable</*@Nullable*/ Void>> tasks = Lists.newArrayList();
+        for (final Long rollupTime : rollupTimes) {
+            final OpenInterval closedInterval = closedIntervals.get(rollupTime);
+            tasks.add(new Callable</*@Nullable*/ Void>() {
+                @Override
+                public @Nullable Void call() throws Exception {
+                    if (closedInterval == null) {
+                        rollupFromPriorLevel(rollupTime, fixedIntervalMillis, fromRollupLevel,
+                                toRollupLevel);
+                    } else {
+                        storeClosedInterval(rollupTime, closedInterval, toRollupLevel);
+                    }
+                    pendingRollupIntervals.decrementAndGet(toRollupLevel);
+                    return null;
+                }
+            });
+        }
+        pendingRollupIntervals.set(toRollupLevel, tasks.size());
+        try {
+            if (parallel) {
+                for (Future</*@Nullable*/ Void> future : rollupExecutor.invokeAll(tasks)) {
+                    getUnchecked(future);
+                }
+            } else {
+                for (Callable</*@Nullable*/ Void> task : tasks) {
+                    task.call();
+                }
+            }
+        } finally {
+            pendingRollupIntervals.set(toRollupLevel, 0);
+        }
+    }
+
+    private void rollupFromPriorLevel(long rollupCaptureTime, long fixedIntervalMillis,
+            int fromRollupLevel, int toRollupLevel) throws Exception {
+        // the rows are read under the data source lock, and then the expensive part of reading
+        // the capped blocks and merging is done outside of the data source lock
+        List<StoredAggregate> overallAggregates = dataSource.query(new RollupAggregateQuery(
+                rollupCaptureTime, fixedIntervalMillis, fromRollupLevel, false));
+        List<StoredAggregate> transactionAggregates = dataSource.query(new RollupAggregateQuery(
+                rollupCaptureTime, fixedIntervalMillis, fromRollupLevel, true));
+        RollupWriter rollupWriter = new RollupWriter(rollupCaptureTime, toRollupLevel);
+        mergeAndAdd(overallAggregates, fromRollupLevel, rollupWriter);
+        mergeAndAdd(transactionAggregates, fromRollupLevel, rollupWriter);
+        rollupWriter.write();
+    }
+
+    // storedAggregates must be ordered by transaction type and transaction name
+    private void mergeAndAdd(List<StoredAggregate> storedAggregates, int fromRollupLevel,
+            RollupWriter rollupWriter) throws Exception {
+        int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
+        int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
+        StoredAggregate currKey = null;
+        MutableAggregate curr = null;
+        for (StoredAggregate storedAggregate : storedAggregates) {
+            if (currKey == null || curr == null
+                    || !storedAggregate.transactionType.equals(currKey.transactionType)
+                    || !Objects.equal(storedAggregate.transactionName, currKey.transactionName)) {
+                if (currKey != null && curr != null) {
+                    rollupWriter.add(currKey.transactionType, currKey.transactionName, curr);
+                }
+                currKey = storedAggregate;
+                curr = new MutableAggregate(maxAggregateQueriesPerType,
+                        maxAggregateServiceCallsPerType);
+            }
+            merge(curr, storedAggregate, fromRollupLevel);
+        }
+        if (currKey != null && curr != null) {
+            rollupWriter.add(currKey.transactionType, currKey.transactionName, curr);
         }
     }
 
+    private void storeClosedInterval(long rollupCaptureTime, OpenInterval closedInterval,
+            int rollupLevel) throws Exception {
+        RollupWriter rollupWriter = new RollupWriter(rollupCaptureTime, rollupLevel);
+        for (Entry<String, MutableAggregate> entry : closedInterval.getOverallAggregates()
+                .entrySet()) {
+            rollupWriter.add(entry.getKey(), null, entry.getValue());
+        }
+        for (Entry<String, Map<String, MutableAggregate>> outerEntry : closedInterval
+                .getTransactionAggregates().entrySet()) {
+            for (Entry<String, MutableAggregate> entry : outerEntry.getValue().entrySet()) {
+                rollupWriter.add(outerEntry.getKey(), entry.getKey(), entry.getValue());
+            }
+        }
+        rollupWriter.write();
+    }
+
     private void mergeProfilesInto(ProfileCollector collector, TransactionQuery query,
             @Untainted String cappedIdColumnName) throws Exception {
         // get list of capped ids first since that is done under the data source lock
@@ -452,29 +730,28 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private void merge(MutableAggregate mergedAggregate, ResultSet resultSet, int startColumnIndex,
+    private void merge(MutableAggregate mergedAggregate, StoredAggregate storedAggregate,
             int fromRollupLevel) throws Exception {
-        int i = startColumnIndex;
-        double totalDurationNanos = resultSet.getDouble(i++);
-        long transactionCount = resultSet.getLong(i++);
-        long errorCount = resultSet.getLong(i++);
-        boolean asyncTransactions = resultSet.getBoolean(i++);
-        Long queriesCappedId = RowMappers.getLong(resultSet, i++);
-        Long serviceCallsCappedId = RowMappers.getLong(resultSet, i++);
-        Long mainThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
-        Long auxThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
-        byte[] mainThreadRootTimers = resultSet.getBytes(i++);
-        byte[] auxThreadRootTimers = resultSet.getBytes(i++);
-        byte[] asyncTimers = resultSet.getBytes(i++);
-        Double mainThreadTotalCpuNanos = RowMappers.getDouble(resultSet, i++);
-        Double mainThreadTotalBlockedNanos = RowMappers.getDouble(resultSet, i++);
-        Double mainThreadTotalWaitedNanos = RowMappers.getDouble(resultSet, i++);
-        Double mainThreadTotalAllocatedBytes = RowMappers.getDouble(resultSet, i++);
-        Double auxThreadTotalCpuNanos = RowMappers.getDouble(resultSet, i++);
-        Double auxThreadTotalBlockedNanos = RowMappers.getDouble(resultSet, i++);
-        Double auxThreadTotalWaitedNanos = RowMappers.getDouble(resultSet, i++);
-        Double auxThreadTotalAllocatedBytes = RowMappers.getDouble(resultSet, i++);
-        byte[] durationNanosHistogram = checkNotNull(resultSet.getBytes(i++));
+        double totalDurationNanos = storedAggregate.totalDurationNanos;
+        long transactionCount = storedAggregate.transactionCount;
+        long errorCount = storedAggregate.errorCount;
+        boolean asyncTransactions = storedAggregate.asyncTransactions;
+        Long queriesCappedId = storedAggregate.queriesCappedId;
+        Long serviceCallsCappedId = storedAggregate.serviceCallsCappedId;
+        Long mainThreadProfileCappedId = storedAggregate.mainThreadProfileCappedId;
+        Long auxThreadProfileCappedId = storedAggregate.auxThreadProfileCappedId;
+        byte[] mainThreadRootTimers = storedAggregate.mainThreadRootTimers;
+        byte[] auxThreadRootTimers = storedAggregate.auxThreadRootTimers;
+        byte[] asyncTimers = storedAggregate.asyncTimers;
+        Double mainThreadTotalCpuNanos = storedAggregate.mainThreadTotalCpuNanos;
+        Double mainThreadTotalBlockedNanos = storedAggregate.mainThreadTotalBlockedNanos;
+        Double mainThreadTotalWaitedNanos = storedAggregate.mainThreadTotalWaitedNanos;
+        Double mainThreadTotalAllocatedBytes = storedAggregate.mainThreadTotalAllocatedBytes;
+        Double auxThreadTotalCpuNanos = storedAggregate.auxThreadTotalCpuNanos;
+        Double auxThreadTotalBlockedNanos = storedAggregate.auxThreadTotalBlockedNanos;
+        Double auxThreadTotalWaitedNanos = storedAggregate.auxThreadTotalWaitedNanos;
+        Double auxThreadTotalAllocatedBytes = storedAggregate.auxThreadTotalAllocatedBytes;
+        byte[] durationNanosHistogram = storedAggregate.durationNanosHistogram;
 
         mergedAggregate.addTotalDurationNanos(totalDurationNanos);
         mergedAggregate.addTransactionCount(transactionCount);
@@ -511,7 +788,9 @@ public class AggregateDao implements AggregateRepository {
                                 query.getTruncatedText(),
                                 Strings.emptyToNull(query.getFullTextSha1()),
                                 query.getTotalDurationNanos(), query.getExecutionCount(),
-                                query.hasTotalRows(), query.getTotalRows().getValue());
+                                query.hasTotalRows(), query.getTotalRows().getValue(),
+                                query.getRepeatedTransactionCount(),
+                                readDurationNanosHistogram(query));
                     }
                 }
             }
@@ -587,6 +866,32 @@ public class AggregateDao implements AggregateRepository {
         return i;
     }
 
+    private static void getUnchecked(Future</*@Nullable*/ Void> future) throws Exception {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            Throwables.propagateIfPossible(cause, Exception.class);
+            throw new Exception(cause);
+        }
+    }
+
+    private static ExecutorService newIdleTimeoutExecutor(int nThreads, String name) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(nThreads, nThreads, 60, SECONDS,
+                new LinkedBlockingQueue<Runnable>(), ThreadFactories.create(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static @Nullable LazyHistogram readDurationNanosHistogram(Stored.Query query)
+            throws InvalidProtocolBufferException {
+        ByteString bytes = query.getDurationNanosHistogram();
+        if (bytes.isEmpty()) {
+            return null;
+        }
+        return new LazyHistogram(Aggregate.Histogram.parseFrom(bytes));
+    }
+
     private static <T extends /*@NonNull*/ Object> List<T> readMessages(byte[] bytes,
             Parser<T> parser) throws InvalidProtocolBufferException {
         ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
@@ -975,149 +1280,50 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    private class RollupOverallAggregates implements JdbcQuery</*@Nullable*/ Void> {
+    private static class RollupAggregateQuery implements JdbcRowQuery<StoredAggregate> {
 
         private final long rollupCaptureTime;
         private final long fixedIntervalMillis;
         private final int fromRollupLevel;
-        private final int toRollupLevel;
-        private final ScratchBuffer scratchBuffer = new ScratchBuffer();
+        private final boolean transactionAggregates;
 
-        private RollupOverallAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
+        private RollupAggregateQuery(long rollupCaptureTime, long fixedIntervalMillis,
+                int fromRollupLevel, boolean transactionAggregates) {
             this.rollupCaptureTime = rollupCaptureTime;
             this.fixedIntervalMillis = fixedIntervalMillis;
             this.fromRollupLevel = fromRollupLevel;
-            this.toRollupLevel = toRollupLevel;
+            this.transactionAggregates = transactionAggregates;
         }
 
         @Override
         public @Untainted String getSql() {
-            return "select transaction_type, total_duration_nanos, transaction_count, error_count,"
-                    + " async_transactions, queries_capped_id, service_calls_capped_id,"
-                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id,"
-                    + " main_thread_root_timers, aux_thread_root_timers, async_root_timers,"
-                    + " main_thread_total_cpu_nanos, main_thread_total_blocked_nanos,"
-                    + " main_thread_total_waited_nanos, main_thread_total_allocated_bytes,"
-                    + " aux_thread_total_cpu_nanos, aux_thread_total_blocked_nanos,"
-                    + " aux_thread_total_waited_nanos, aux_thread_total_allocated_bytes,"
-                    + " duration_nanos_histogram from aggregate_tt_rollup_"
-                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
-                    + " and capture_time <= ? order by transaction_type";
-        }
-
-        @Override
-        public void bind(PreparedStatement preparedStatement) throws Exception {
-            preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
-            preparedStatement.setLong(2, rollupCaptureTime);
-        }
-
-        @Override
-        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
-            int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
-            int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
-            CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
-            MutableOverallAggregate curr = null;
-            while (resultSet.next()) {
-                String transactionType = checkNotNull(resultSet.getString(1));
-                if (curr == null || !transactionType.equals(curr.transactionType())) {
-                    if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                                rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                                cappedDatabase, scratchBuffer));
-                    }
-                    curr = ImmutableMutableOverallAggregate.of(transactionType,
-                            new MutableAggregate(maxAggregateQueriesPerType,
-                                    maxAggregateServiceCallsPerType));
-                }
-                merge(curr.aggregate(), resultSet, 2, fromRollupLevel);
+            if (transactionAggregates) {
+                return "select transaction_type, transaction_name, " + ROLLUP_COLUMNS
+                        + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
+                        + " where capture_time > ? and capture_time <= ? order by"
+                        + " transaction_type, transaction_name";
+            } else {
+                return "select transaction_type, " + ROLLUP_COLUMNS + " from aggregate_tt_rollup_"
+                        + castUntainted(fromRollupLevel) + " where capture_time > ?"
+                        + " and capture_time <= ? order by transaction_type";
             }
-            if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(), null,
-                        rollupCaptureTime, curr.aggregate(), toRollupLevel, cappedDatabase,
-                        scratchBuffer));
-            }
-            return null;
-        }
-
-        @Override
-        public @Nullable Void valueIfDataSourceClosed() {
-            return null;
-        }
-    }
-
-    private class RollupTransactionAggregates implements JdbcQuery</*@Nullable*/ Void> {
-
-        private final long rollupCaptureTime;
-        private final long fixedIntervalMillis;
-        private final int fromRollupLevel;
-        private final int toRollupLevel;
-
-        private RollupTransactionAggregates(long rollupCaptureTime, long fixedIntervalMillis,
-                int fromRollupLevel, int toRollupLevel) {
-            this.rollupCaptureTime = rollupCaptureTime;
-            this.fixedIntervalMillis = fixedIntervalMillis;
-            this.fromRollupLevel = fromRollupLevel;
-            this.toRollupLevel = toRollupLevel;
-        }
-
-        @Override
-        public @Untainted String getSql() {
-            return "select transaction_type, transaction_name, total_duration_nanos,"
-                    + " transaction_count, error_count, async_transactions, queries_capped_id,"
-                    + " service_calls_capped_id, main_thread_profile_capped_id,"
-                    + " aux_thread_profile_capped_id, main_thread_root_timers,"
-                    + " aux_thread_root_timers, async_root_timers, main_thread_total_cpu_nanos,"
-                    + " main_thread_total_blocked_nanos, main_thread_total_waited_nanos,"
-                    + " main_thread_total_allocated_bytes, aux_thread_total_cpu_nanos,"
-                    + " aux_thread_total_blocked_nanos, aux_thread_total_waited_nanos,"
-                    + " aux_thread_total_allocated_bytes, duration_nanos_histogram"
-                    + " from aggregate_tn_rollup_" + castUntainted(fromRollupLevel)
-                    + " where capture_time > ? and capture_time <= ? order by transaction_type,"
-                    + " transaction_name";
         }
 
         @Override
-        public void bind(PreparedStatement preparedStatement) throws Exception {
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
             preparedStatement.setLong(1, rollupCaptureTime - fixedIntervalMillis);
             preparedStatement.setLong(2, rollupCaptureTime);
         }
 
         @Override
-        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
-            int maxAggregateQueriesPerType = getMaxAggregateQueriesPerType();
-            int maxAggregateServiceCallsPerType = getMaxAggregateServiceCallsPerType();
-            CappedDatabase cappedDatabase = rollupCappedDatabases.get(toRollupLevel);
-            ScratchBuffer scratchBuffer = new ScratchBuffer();
-            MutableTransactionAggregate curr = null;
-            while (resultSet.next()) {
-                int i = 1;
-                String transactionType = checkNotNull(resultSet.getString(i++));
-                String transactionName = checkNotNull(resultSet.getString(i++));
-                if (curr == null || !transactionType.equals(curr.transactionType())
-                        || !transactionName.equals(curr.transactionName())) {
-                    if (curr != null) {
-                        dataSource.update(new AggregateInsert(curr.transactionType(),
-                                curr.transactionName(), rollupCaptureTime, curr.aggregate(),
-                                toRollupLevel, cappedDatabase, scratchBuffer));
-                    }
-                    curr = ImmutableMutableTransactionAggregate.of(transactionType, transactionName,
-                            new MutableAggregate(maxAggregateQueriesPerType,
-                                    maxAggregateServiceCallsPerType));
-                }
-                merge(curr.aggregate(), resultSet, i++, fromRollupLevel);
-            }
-            if (curr != null) {
-                dataSource.update(new AggregateInsert(curr.transactionType(),
-                        curr.transactionName(), rollupCaptureTime, curr.aggregate(), toRollupLevel,
-                        cappedDatabase, scratchBuffer));
+        public StoredAggregate mapRow(ResultSet resultSet) throws SQLException {
+            int i = 1;
+            String transactionType = checkNotNull(resultSet.getString(i++));
+            String transactionName = null;
+            if (transactionAggregates) {
+                transactionName = checkNotNull(resultSet.getString(i++));
             }
-            return null;
-        }
-
-        @Override
-        public @Nullable Void valueIfDataSourceClosed() {
-            return null;
+            return new StoredAggregate(transactionType, transactionName, resultSet, i);
         }
     }
 
@@ -1244,26 +1450,103 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
-    @Value.Immutable
-    @Styles.AllParameters
-    interface CappedId {
-        long captureTime();
-        long cappedId();
+    // a row read from the prior rollup level, before its capped blocks have been read
+    private static class StoredAggregate {
+
+        private final String transactionType;
+        private final @Nullable String transactionName;
+        private final double totalDurationNanos;
+        private final long transactionCount;
+        private final long errorCount;
+        private final boolean asyncTransactions;
+        private final @Nullable Long queriesCappedId;
+        private final @Nullable Long serviceCallsCappedId;
+        private final @Nullable Long mainThreadProfileCappedId;
+        private final @Nullable Long auxThreadProfileCappedId;
+        private final byte /*@Nullable*/[] mainThreadRootTimers;
+        private final byte /*@Nullable*/[] auxThreadRootTimers;
+        private final byte /*@Nullable*/[] asyncTimers;
+        private final @Nullable Double mainThreadTotalCpuNanos;
+        private final @Nullable Double mainThreadTotalBlockedNanos;
+        private final @Nullable Double mainThreadTotalWaitedNanos;
+        private final @Nullable Double mainThreadTotalAllocatedBytes;
+        private final @Nullable Double auxThreadTotalCpuNanos;
+        private final @Nullable Double auxThreadTotalBlockedNanos;
+        private final @Nullable Double auxThreadTotalWaitedNanos;
+        private final @Nullable Double auxThreadTotalAllocatedBytes;
+        private final byte[] durationNanosHistogram;
+
+        private StoredAggregate(String transactionType, @Nullable String transactionName,
+                ResultSet resultSet, int startColumnIndex) throws SQLException {
+            this.transactionType = transactionType;
+            this.transactionName = transactionName;
+            int i = startColumnIndex;
+            totalDurationNanos = resultSet.getDouble(i++);
+            transactionCount = resultSet.getLong(i++);
+            errorCount = resultSet.getLong(i++);
+            asyncTransactions = resultSet.getBoolean(i++);
+            queriesCappedId = RowMappers.getLong(resultSet, i++);
+            serviceCallsCappedId = RowMappers.getLong(resultSet, i++);
+            mainThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
+            auxThreadProfileCappedId = RowMappers.getLong(resultSet, i++);
+            mainThreadRootTimers = resultSet.getBytes(i++);
+            auxThreadRootTimers = resultSet.getBytes(i++);
+            asyncTimers = resultSet.getBytes(i++);
+            mainThreadTotalCpuNanos = RowMappers.getDouble(resultSet, i++);
+            mainThreadTotalBlockedNanos = RowMappers.getDouble(resultSet, i++);
+            mainThreadTotalWaitedNanos = RowMappers.getDouble(resultSet, i++);
+            mainThreadTotalAllocatedBytes = RowMappers.getDouble(resultSet, i++);
+            auxThreadTotalCpuNanos = RowMappers.getDouble(resultSet, i++);
+            auxThreadTotalBlockedNanos = RowMappers.getDouble(resultSet, i++);
+            auxThreadTotalWaitedNanos = RowMappers.getDouble(resultSet, i++);
+            auxThreadTotalAllocatedBytes = RowMappers.getDouble(resultSet, i++);
+            durationNanosHistogram = checkNotNull(resultSet.getBytes(i++));
+        }
     }
 
-    @Value.Immutable
-    @Styles.AllParameters
-    interface MutableOverallAggregate {
-        String transactionType();
-        MutableAggregate aggregate();
+    // collects the rolled up aggregates for a single rollup capture time, so that their capped
+    // blocks are synced to disk once, and their rows are inserted in a single batched transaction
+    private class RollupWriter {
+
+        private final long rollupCaptureTime;
+        private final int rollupLevel;
+        private final CappedDatabase.Batch cappedBatch;
+        private final ScratchBuffer scratchBuffer = new ScratchBuffer();
+        // overall and transaction aggregates are kept separate for batching (see store())
+        private final List<AggregateInsert> overallAggregateInserts = Lists.newArrayList();
+        private final List<AggregateInsert> transactionAggregateInserts = Lists.newArrayList();
+
+        private RollupWriter(long rollupCaptureTime, int rollupLevel) {
+            this.rollupCaptureTime = rollupCaptureTime;
+            this.rollupLevel = rollupLevel;
+            cappedBatch = rollupCappedDatabases.get(rollupLevel).newBatch();
+        }
+
+        private void add(String transactionType, @Nullable String transactionName,
+                MutableAggregate aggregate) throws IOException {
+            AggregateInsert aggregateInsert = new AggregateInsert(transactionType,
+                    transactionName, rollupCaptureTime, aggregate, rollupLevel, cappedBatch,
+                    scratchBuffer);
+            if (transactionName == null) {
+                overallAggregateInserts.add(aggregateInsert);
+            } else {
+                transactionAggregateInserts.add(aggregateInsert);
+            }
+        }
+
+        private void write() throws Exception {
+            cappedBatch.sync();
+            List<AggregateInsert> aggregateInserts = Lists.newArrayList(overallAggregateInserts);
+            aggregateInserts.addAll(transactionAggregateInserts);
+            dataSource.batchUpdateInTransaction(aggregateInserts);
+        }
     }
 
     @Value.Immutable
     @Styles.AllParameters
-    interface MutableTransactionAggregate {
-        String transactionType();
-        String transactionName();
-        MutableAggregate aggregate();
+    interface CappedId {
+        long captureTime();
+        long cappedId();
     }
 
     @Value.Immutable
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -36,6 +36,7 @@ import org.glowroot.agent.embedded.repo.model.Stored.QueriesByType;
 import org.glowroot.agent.embedded.util.CappedDatabase;
 import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
 import org.glowroot.agent.embedded.util.RowMappers;
+import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
@@ -76,9 +77,10 @@ class AggregateInsert implements JdbcUpdate {
 
     private final int rollupLevel;
 
+    // cappedBatch must be synced before this is executed
     AggregateInsert(String transactionType, @Nullable String transactionName,
             long captureTime, Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts,
-            int rollupLevel, CappedDatabase cappedDatabase) throws IOException {
+            int rollupLevel, CappedDatabase.Batch cappedBatch) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
@@ -88,19 +90,19 @@ class AggregateInsert implements JdbcUpdate {
         errorCount = aggregate.getErrorCount();
         asyncTransactions = aggregate.getAsyncTransactions();
 
-        queriesCappedId = writeQueries(cappedDatabase,
+        queriesCappedId = writeQueries(cappedBatch,
                 convertToStored(aggregate.getQueriesByTypeList(), truncatedQueryTexts));
         serviceCallsCappedId =
-                writeServiceCalls(cappedDatabase, aggregate.getServiceCallsByTypeList());
+                writeServiceCalls(cappedBatch, aggregate.getServiceCallsByTypeList());
         if (aggregate.hasMainThreadProfile()) {
             mainThreadProfileCappedId =
-                    writeProfile(cappedDatabase, aggregate.getMainThreadProfile());
+                    writeProfile(cappedBatch, aggregate.getMainThreadProfile());
         } else {
             mainThreadProfileCappedId = null;
         }
         if (aggregate.hasAuxThreadProfile()) {
             auxThreadProfileCappedId =
-                    writeProfile(cappedDatabase, aggregate.getAuxThreadProfile());
+                    writeProfile(cappedBatch, aggregate.getAuxThreadProfile());
         } else {
             auxThreadProfileCappedId = null;
         }
@@ -128,9 +130,10 @@ class AggregateInsert implements JdbcUpdate {
         durationNanosHistogramBytes = aggregate.getDurationNanosHistogram().toByteArray();
     }
 
+    // cappedBatch must be synced before this is executed
     AggregateInsert(String transactionType, @Nullable String transactionName,
             long captureTime, MutableAggregate aggregate, int rollupLevel,
-            CappedDatabase cappedDatabase, ScratchBuffer scratchBuffer) throws IOException {
+            CappedDatabase.Batch cappedBatch, ScratchBuffer scratchBuffer) throws IOException {
         this.transactionType = transactionType;
         this.transactionName = transactionName;
         this.captureTime = captureTime;
@@ -140,10 +143,11 @@ class AggregateInsert implements JdbcUpdate {
         errorCount = aggregate.getErrorCount();
         asyncTransactions = aggregate.isAsyncTransactions();
 
-        queriesCappedId = writeQueries(cappedDatabase, convertToStored(aggregate.getQueries()));
-        serviceCallsCappedId = writeServiceCalls(cappedDatabase, aggregate.getServiceCallsProto());
-        mainThreadProfileCappedId = writeProfile(cappedDatabase, aggregate.getMainThreadProfile());
-        auxThreadProfileCappedId = writeProfile(cappedDatabase, aggregate.getAuxThreadProfile());
+        queriesCappedId =
+                writeQueries(cappedBatch, convertToStored(aggregate.getQueries(), scratchBuffer));
+        serviceCallsCappedId = writeServiceCalls(cappedBatch, aggregate.getServiceCallsProto());
+        mainThreadProfileCappedId = writeProfile(cappedBatch, aggregate.getMainThreadProfile());
+        auxThreadProfileCappedId = writeProfile(cappedBatch, aggregate.getAuxThreadProfile());
         mainThreadRootTimers = toByteArray(aggregate.getMainThreadRootTimersProto());
         auxThreadRootTimers = toByteArray(aggregate.getAuxThreadRootTimersProto());
         asyncTimers = toByteArray(aggregate.getAsyncTimersProto());
@@ -246,12 +250,17 @@ class AggregateInsert implements JdbcUpdate {
                         .setTruncatedText(truncatedQueryText.truncatedText())
                         .setFullTextSha1(Strings.nullToEmpty(truncatedQueryText.fullTextSha1()))
                         .setTotalDurationNanos(loopQuery.getTotalDurationNanos())
-                        .setExecutionCount(loopQuery.getExecutionCount());
+                        .setExecutionCount(loopQuery.getExecutionCount())
+                        .setRepeatedTransactionCount(loopQuery.getRepeatedTransactionCount());
                 if (loopQuery.hasTotalRows()) {
                     storedQuery.setTotalRows(Stored.OptionalInt64.newBuilder()
                             .setValue(loopQuery.getTotalRows().getValue())
                             .build());
                 }
+                if (loopQuery.hasDurationNanosHistogram()) {
+                    storedQuery.setDurationNanosHistogram(
+                            loopQuery.getDurationNanosHistogram().toByteString());
+                }
                 storedQueryByType.addQuery(storedQuery.build());
             }
             storedQueries.add(storedQueryByType.build());
@@ -259,7 +268,8 @@ class AggregateInsert implements JdbcUpdate {
         return storedQueries;
     }
 
-    private static List<QueriesByType> convertToStored(@Nullable QueryCollector queries) {
+    private static List<QueriesByType> convertToStored(@Nullable QueryCollector queries,
+            ScratchBuffer scratchBuffer) {
         if (queries == null) {
             return ImmutableList.of();
         }
@@ -272,12 +282,18 @@ class AggregateInsert implements JdbcUpdate {
                         .setTruncatedText(query.getTruncatedText())
                         .setFullTextSha1(Strings.nullToEmpty(query.getFullTextSha1()))
                         .setTotalDurationNanos(query.getTotalDurationNanos())
-                        .setExecutionCount(query.getExecutionCount());
+                        .setExecutionCount(query.getExecutionCount())
+                        .setRepeatedTransactionCount(query.getRepeatedTransactionCount());
                 if (query.hasTotalRows()) {
                     storedQuery.setTotalRows(Stored.OptionalInt64.newBuilder()
                             .setValue(query.getTotalRows())
                             .build());
                 }
+                LazyHistogram durationNanosHistogram = query.getDurationNanosHistogram();
+                if (durationNanosHistogram != null) {
+                    storedQuery.setDurationNanosHistogram(
+                            durationNanosHistogram.toProto(scratchBuffer).toByteString());
+                }
                 storedQueryByType.addQuery(storedQuery.build());
             }
             storedQueries.add(storedQueryByType.build());
@@ -285,35 +301,35 @@ class AggregateInsert implements JdbcUpdate {
         return storedQueries;
     }
 
-    private static @Nullable Long writeQueries(CappedDatabase cappedDatabase,
+    private static @Nullable Long writeQueries(CappedDatabase.Batch cappedBatch,
             List<Stored.QueriesByType> queries) throws IOException {
         if (queries.isEmpty()) {
             return null;
         }
-        return cappedDatabase.writeMessages(queries, RollupCappedDatabaseStats.AGGREGATE_QUERIES);
+        return cappedBatch.writeMessages(queries, RollupCappedDatabaseStats.AGGREGATE_QUERIES);
     }
 
-    private static @Nullable Long writeServiceCalls(CappedDatabase cappedDatabase,
+    private static @Nullable Long writeServiceCalls(CappedDatabase.Batch cappedBatch,
             List<Aggregate.ServiceCallsByType> serviceCalls) throws IOException {
         if (serviceCalls.isEmpty()) {
             return null;
         }
-        return cappedDatabase.writeMessages(serviceCalls,
+        return cappedBatch.writeMessages(serviceCalls,
                 RollupCappedDatabaseStats.AGGREGATE_SERVICE_CALLS);
     }
 
-    private static @Nullable Long writeProfile(CappedDatabase cappedDatabase,
+    private static @Nullable Long writeProfile(CappedDatabase.Batch cappedBatch,
             @Nullable MutableProfile profile) throws IOException {
         if (profile == null) {
             return null;
         }
-        return cappedDatabase.writeMessage(profile.toProto(),
+        return cappedBatch.writeMessage(profile.toProto(),
                 RollupCappedDatabaseStats.AGGREGATE_PROFILES);
     }
 
-    private static @Nullable Long writeProfile(CappedDatabase cappedDatabase, Profile profile)
+    private static @Nullable Long writeProfile(CappedDatabase.Batch cappedBatch, Profile profile)
             throws IOException {
-        return cappedDatabase.writeMessage(profile, RollupCappedDatabaseStats.AGGREGATE_PROFILES);
+        return cappedBatch.writeMessage(profile, RollupCappedDatabaseStats.AGGREGATE_PROFILES);
     }
 
     private static byte /*@Nullable*/ [] toByteArray(List<? extends AbstractMessage> messages)
@@ -23,6 +23,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicLongArray;
 
+import javax.annotation.Nullable;
+
 import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -39,12 +41,16 @@ import org.glowroot.agent.embedded.util.ImmutableIndex;
 import org.glowroot.agent.embedded.util.Schemas.Column;
 import org.glowroot.agent.embedded.util.Schemas.ColumnType;
 import org.glowroot.agent.embedded.util.Schemas.Index;
+import org.glowroot.common.model.MutableGaugeValue;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.Gauges;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static org.glowroot.agent.util.Checkers.castUntainted;
 
@@ -59,6 +65,17 @@ public class GaugeValueDao implements GaugeValueRepository {
             // for counters, it is the interval of time that the (averaged) value represents
             ImmutableColumn.of("weight", ColumnType.BIGINT));
 
+    // min, max and sketch are computed over the non-rolled up values so that short spikes remain
+    // visible at the coarser rollup levels
+    private static final ImmutableList<Column> rolledUpColumns = ImmutableList.<Column>builder()
+            .addAll(columns)
+            .add(ImmutableColumn.of("min_value", ColumnType.DOUBLE))
+            .add(ImmutableColumn.of("max_value", ColumnType.DOUBLE))
+            .add(ImmutableColumn.of("sketch", ColumnType.VARBINARY)) // protobuf
+            .build();
+
+    private static final int ROLLUP_BATCH_SIZE = 1000;
+
     private final GaugeNameDao gaugeNameDao;
     private final DataSource dataSource;
     private final Clock clock;
@@ -75,8 +92,12 @@ public class GaugeValueDao implements GaugeValueRepository {
         this.clock = clock;
         this.rollupConfigs = ImmutableList.copyOf(RollupConfig.buildRollupConfigs());
 
+        for (int i = 1; i <= rollupConfigs.size(); i++) {
+            addRolledUpColumnsIfNotExists(dataSource, "gauge_value_rollup_" + castUntainted(i));
+        }
         for (int i = 0; i <= rollupConfigs.size(); i++) {
-            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i), columns);
+            dataSource.syncTable("gauge_value_rollup_" + castUntainted(i),
+                    i == 0 ? columns : rolledUpColumns);
             dataSource.syncIndexes("gauge_value_rollup_" + castUntainted(i),
                     ImmutableList.<Index>of(
                             ImmutableIndex.of(
@@ -101,6 +122,23 @@ public class GaugeValueDao implements GaugeValueRepository {
         // TODO initial rollup in case store is not called in a reasonable time
     }
 
+    // existing rows are left with null min, max and sketch, and are read as plain values
+    private static void addRolledUpColumnsIfNotExists(DataSource dataSource,
+            @Untainted String tableName) throws SQLException {
+        if (!dataSource.tableExists(tableName)) {
+            return;
+        }
+        if (!dataSource.columnExists(tableName, "min_value")) {
+            dataSource.execute("alter table " + tableName + " add column min_value double");
+        }
+        if (!dataSource.columnExists(tableName, "max_value")) {
+            dataSource.execute("alter table " + tableName + " add column max_value double");
+        }
+        if (!dataSource.columnExists(tableName, "sketch")) {
+            dataSource.execute("alter table " + tableName + " add column sketch varbinary");
+        }
+    }
+
     @Override
     public List<Gauge> getGauges(String agentRollupId) throws Exception {
         List<String> allGaugeNames = gaugeNameDao.readAllGaugeNames();
@@ -174,18 +212,13 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    // the sketches cannot be merged in sql, so this is done in a single pass over the rows of the
+    // prior level ordered by gauge and capture time, holding only the current accumulator and a
+    // bounded batch of completed rollups in memory
     private void rollup(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
             int toRollupLevel, int fromRollupLevel) throws Exception {
-        // need ".0" to force double result
-        String captureTimeSql = castUntainted(
-                "ceil(capture_time / " + fixedIntervalMillis + ".0) * " + fixedIntervalMillis);
-        dataSource.update("merge into gauge_value_rollup_" + castUntainted(toRollupLevel)
-                + " (gauge_id, capture_time, value, weight) key (gauge_id, capture_time)"
-                + " select gauge_id, " + captureTimeSql + " ceil_capture_time,"
-                + " sum(value * weight) / sum(weight), sum(weight) from gauge_value_rollup_"
-                + castUntainted(fromRollupLevel) + " gp where gp.capture_time > ?"
-                + " and gp.capture_time <= ? group by gp.gauge_id, ceil_capture_time",
-                lastRollupTime, safeRollupTime);
+        dataSource.query(new RollupQuery(lastRollupTime, safeRollupTime, fixedIntervalMillis,
+                toRollupLevel, fromRollupLevel));
     }
 
     private static AtomicLongArray initData(ImmutableList<RollupConfig> rollupConfigs,
@@ -237,6 +270,149 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
     }
 
+    private static class RolledUpGaugeValuesBinder implements JdbcUpdate {
+
+        private final int rollupLevel;
+        private final List<RolledUpGaugeValue> rollups;
+
+        private RolledUpGaugeValuesBinder(int rollupLevel, List<RolledUpGaugeValue> rollups) {
+            this.rollupLevel = rollupLevel;
+            this.rollups = rollups;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            return "merge into gauge_value_rollup_" + castUntainted(rollupLevel)
+                    + " (gauge_id, capture_time, value, weight, min_value, max_value, sketch)"
+                    + " key (gauge_id, capture_time) values (?, ?, ?, ?, ?, ?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            for (RolledUpGaugeValue rollup : rollups) {
+                MutableGaugeValue value = rollup.value;
+                int i = 1;
+                preparedStatement.setLong(i++, rollup.gaugeId);
+                preparedStatement.setLong(i++, rollup.captureTime);
+                preparedStatement.setDouble(i++, value.getValue());
+                preparedStatement.setLong(i++, value.getWeight());
+                preparedStatement.setDouble(i++, value.getMin());
+                preparedStatement.setDouble(i++, value.getMax());
+                preparedStatement.setBytes(i++, value.getSketch().toByteArray());
+                preparedStatement.addBatch();
+            }
+        }
+    }
+
+    private class RollupQuery implements JdbcQuery</*@Nullable*/ Void> {
+
+        private final long lastRollupTime;
+        private final long safeRollupTime;
+        private final long fixedIntervalMillis;
+        private final int toRollupLevel;
+        private final int fromRollupLevel;
+
+        private final List<RolledUpGaugeValue> pending = Lists.newArrayList();
+
+        private RollupQuery(long lastRollupTime, long safeRollupTime, long fixedIntervalMillis,
+                int toRollupLevel, int fromRollupLevel) {
+            this.lastRollupTime = lastRollupTime;
+            this.safeRollupTime = safeRollupTime;
+            this.fixedIntervalMillis = fixedIntervalMillis;
+            this.toRollupLevel = toRollupLevel;
+            this.fromRollupLevel = fromRollupLevel;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            String rolledUpColumnsSql =
+                    fromRollupLevel == 0 ? "" : ", min_value, max_value, sketch";
+            return "select gauge_id, capture_time, value, weight"
+                    + castUntainted(rolledUpColumnsSql) + " from gauge_value_rollup_"
+                    + castUntainted(fromRollupLevel) + " where capture_time > ?"
+                    + " and capture_time <= ? order by gauge_id, capture_time";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            int i = 1;
+            preparedStatement.setLong(i++, lastRollupTime);
+            preparedStatement.setLong(i++, safeRollupTime);
+        }
+
+        @Override
+        public @Nullable Void processResultSet(ResultSet resultSet) throws Exception {
+            RolledUpGaugeValue curr = null;
+            while (resultSet.next()) {
+                int i = 1;
+                long gaugeId = resultSet.getLong(i++);
+                long captureTime = resultSet.getLong(i++);
+                double value = resultSet.getDouble(i++);
+                long weight = resultSet.getLong(i++);
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime,
+                        fixedIntervalMillis);
+                if (curr == null || curr.gaugeId != gaugeId
+                        || curr.captureTime != rollupCaptureTime) {
+                    if (curr != null) {
+                        add(curr);
+                    }
+                    curr = new RolledUpGaugeValue(gaugeId, rollupCaptureTime);
+                }
+                if (fromRollupLevel == 0) {
+                    curr.value.addValue(value, weight);
+                    continue;
+                }
+                double min = resultSet.getDouble(i++);
+                double max = resultSet.getDouble(i++);
+                byte[] sketch = resultSet.getBytes(i++);
+                if (sketch == null) {
+                    // rolled up prior to min, max and sketch being tracked
+                    curr.value.addValue(value, weight);
+                } else {
+                    curr.value.merge(value, weight, min, max, Aggregate.Sketch.parseFrom(sketch));
+                }
+            }
+            if (curr != null) {
+                add(curr);
+            }
+            flush();
+            return null;
+        }
+
+        @Override
+        public @Nullable Void valueIfDataSourceClosed() {
+            return null;
+        }
+
+        private void add(RolledUpGaugeValue rollup) throws Exception {
+            pending.add(rollup);
+            if (pending.size() == ROLLUP_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() throws Exception {
+            if (!pending.isEmpty()) {
+                // this is called while the result set is still open, under the same (re-entrant)
+                // data source lock
+                dataSource.batchUpdate(new RolledUpGaugeValuesBinder(toRollupLevel, pending));
+                pending.clear();
+            }
+        }
+    }
+
+    private static class RolledUpGaugeValue {
+
+        private final long gaugeId;
+        private final long captureTime;
+        private final MutableGaugeValue value = new MutableGaugeValue();
+
+        private RolledUpGaugeValue(long gaugeId, long captureTime) {
+            this.gaugeId = gaugeId;
+            this.captureTime = captureTime;
+        }
+    }
+
     private static class LastRollupTimesQuery implements JdbcQuery<long/*@Nullable*/[]> {
 
         private final @Untainted String selectClause;
@@ -288,9 +464,11 @@ public class GaugeValueDao implements GaugeValueRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select capture_time, value, weight from gauge_value_rollup_"
-                    + castUntainted(rollupLevel) + " where gauge_id = ? and capture_time >= ?"
-                    + " and capture_time <= ? order by capture_time";
+            String rolledUpColumnsSql = rollupLevel == 0 ? "" : ", min_value, max_value, sketch";
+            return "select capture_time, value, weight" + castUntainted(rolledUpColumnsSql)
+                    + " from gauge_value_rollup_" + castUntainted(rollupLevel)
+                    + " where gauge_id = ? and capture_time >= ? and capture_time <= ?"
+                    + " order by capture_time";
         }
 
         @Override
@@ -302,13 +480,24 @@ public class GaugeValueDao implements GaugeValueRepository {
         }
 
         @Override
-        public GaugeValue mapRow(ResultSet resultSet) throws SQLException {
+        public GaugeValue mapRow(ResultSet resultSet) throws Exception {
             int i = 1;
-            return GaugeValue.newBuilder()
+            GaugeValue.Builder builder = GaugeValue.newBuilder()
                     .setCaptureTime(resultSet.getLong(i++))
                     .setValue(resultSet.getDouble(i++))
-                    .setWeight(resultSet.getLong(i++))
-                    .build();
+                    .setWeight(resultSet.getLong(i++));
+            if (rollupLevel > 0) {
+                double min = resultSet.getDouble(i++);
+                double max = resultSet.getDouble(i++);
+                byte[] sketch = resultSet.getBytes(i++);
+                // null when rolled up prior to min, max and sketch being tracked
+                if (sketch != null) {
+                    builder.setMin(OptionalDouble.newBuilder().setValue(min))
+                            .setMax(OptionalDouble.newBuilder().setValue(max))
+                            .setSketch(Aggregate.Sketch.parseFrom(sketch));
+                }
+            }
+            return builder.build();
         }
     }
 }
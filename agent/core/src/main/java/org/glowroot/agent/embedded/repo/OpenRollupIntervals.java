@@ -0,0 +1,258 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.agent.embedded.repo.AggregateDao.TruncatedQueryText;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.MutableAggregate;
+import org.glowroot.common.repo.util.RollupLevelService;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// in-memory rollups of the intervals (at each rollup level above 0) that have not been rolled up
+// yet, each level 0 aggregate is merged into these as it is stored, so that when an interval
+// closes it can be stored directly, instead of reading back and re-merging all of the rows (and
+// all of their capped query, service call and profile blocks) from the prior rollup level
+//
+// an interval can only be stored directly if every level 0 aggregate in it was merged, which is
+// not the case for intervals that started before this jvm, or that were open during a failed
+// store, and those intervals fall back to being rolled up from the prior rollup level
+//
+// the number of merged aggregates held by each open interval is capped (each merged aggregate can
+// hold a full profile), and an interval that exceeds the cap releases its merged aggregates and
+// also falls back to being rolled up from the prior rollup level
+class OpenRollupIntervals {
+
+    private final List<Long> intervalMillisByLevel;
+    private final int maxAggregatesPerInterval;
+
+    // the level 0 aggregates that were already stored before this jvm started
+    private final long lastPreExistingCaptureTime;
+
+    // indexed by rollup level (index 0 is not used)
+    @GuardedBy("this")
+    private final List<Map<Long, OpenInterval>> openIntervalsByLevel = Lists.newArrayList();
+
+    OpenRollupIntervals(List<RollupConfig> rollupConfigs, long lastPreExistingCaptureTime,
+            int maxAggregatesPerInterval) {
+        this.maxAggregatesPerInterval = maxAggregatesPerInterval;
+        intervalMillisByLevel = Lists.newArrayList();
+        for (RollupConfig rollupConfig : rollupConfigs) {
+            intervalMillisByLevel.add(rollupConfig.intervalMillis());
+            openIntervalsByLevel.add(Maps.<Long, OpenInterval>newHashMap());
+        }
+        this.lastPreExistingCaptureTime = lastPreExistingCaptureTime;
+    }
+
+    synchronized void mergeOverallAggregate(long captureTime, String transactionType,
+            Aggregate aggregate, List<TruncatedQueryText> truncatedQueryTexts,
+            int maxAggregateQueriesPerType, int maxAggregateServiceCallsPerType)
+            throws Exception {
+        for (int i = 1; i < openIntervalsByLevel.size(); i++) {
+            OpenInterval openInterval = getOrCreateOpenInterval(i, captureTime);
+            if (!openInterval.complete) {
+                continue;
+            }
+            MutableAggregate mergedAggregate = openInterval.overallAggregates.get(transactionType);
+            if (mergedAggregate == null) {
+                if (!openInterval.reserveAggregate()) {
+                    continue;
+                }
+                mergedAggregate = new MutableAggregate(maxAggregateQueriesPerType,
+                        maxAggregateServiceCallsPerType);
+                openInterval.overallAggregates.put(transactionType, mergedAggregate);
+            }
+            merge(mergedAggregate, aggregate, truncatedQueryTexts);
+        }
+    }
+
+    synchronized void mergeTransactionAggregate(long captureTime, String transactionType,
+            String transactionName, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts, int maxAggregateQueriesPerType,
+            int maxAggregateServiceCallsPerType) throws Exception {
+        for (int i = 1; i < openIntervalsByLevel.size(); i++) {
+            OpenInterval openInterval = getOrCreateOpenInterval(i, captureTime);
+            if (!openInterval.complete) {
+                continue;
+            }
+            Map<String, MutableAggregate> transactionAggregates =
+                    openInterval.transactionAggregates.get(transactionType);
+            MutableAggregate mergedAggregate = transactionAggregates == null ? null
+                    : transactionAggregates.get(transactionName);
+            if (mergedAggregate == null) {
+                if (!openInterval.reserveAggregate()) {
+                    continue;
+                }
+                if (transactionAggregates == null) {
+                    transactionAggregates = Maps.newHashMap();
+                    openInterval.transactionAggregates.put(transactionType,
+                            transactionAggregates);
+                }
+                mergedAggregate = new MutableAggregate(maxAggregateQueriesPerType,
+                        maxAggregateServiceCallsPerType);
+                transactionAggregates.put(transactionName, mergedAggregate);
+            }
+            merge(mergedAggregate, aggregate, truncatedQueryTexts);
+        }
+    }
+
+    // called when a store fails part way through, since the level 0 aggregates that were already
+    // merged into the open intervals may not be in the database
+    synchronized void markIncomplete(long captureTime) {
+        for (int i = 1; i < openIntervalsByLevel.size(); i++) {
+            getOrCreateOpenInterval(i, captureTime).markIncomplete();
+        }
+    }
+
+    // removes all of the open intervals at the rollup level up to and including safeRollupTime,
+    // and returns the ones that are complete (keyed by rollup capture time)
+    synchronized Map<Long, OpenInterval> close(int rollupLevel, long safeRollupTime) {
+        Map<Long, OpenInterval> closedIntervals = Maps.newHashMap();
+        Iterator<Entry<Long, OpenInterval>> i =
+                openIntervalsByLevel.get(rollupLevel).entrySet().iterator();
+        while (i.hasNext()) {
+            Entry<Long, OpenInterval> entry = i.next();
+            if (entry.getKey() <= safeRollupTime) {
+                if (entry.getValue().complete) {
+                    closedIntervals.put(entry.getKey(), entry.getValue());
+                }
+                i.remove();
+            }
+        }
+        return closedIntervals;
+    }
+
+    @GuardedBy("this")
+    private OpenInterval getOrCreateOpenInterval(int rollupLevel, long captureTime) {
+        long intervalMillis = intervalMillisByLevel.get(rollupLevel);
+        long rollupCaptureTime = RollupLevelService.getCeilRollupTime(captureTime, intervalMillis);
+        Map<Long, OpenInterval> openIntervals = openIntervalsByLevel.get(rollupLevel);
+        OpenInterval openInterval = openIntervals.get(rollupCaptureTime);
+        if (openInterval == null) {
+            openInterval = new OpenInterval(
+                    rollupCaptureTime - intervalMillis >= lastPreExistingCaptureTime,
+                    maxAggregatesPerInterval);
+            openIntervals.put(rollupCaptureTime, openInterval);
+        }
+        return openInterval;
+    }
+
+    // this mirrors AggregateDao.merge(), which merges the same values after they have been stored
+    private static void merge(MutableAggregate mergedAggregate, Aggregate aggregate,
+            List<TruncatedQueryText> truncatedQueryTexts) throws Exception {
+        mergedAggregate.addTotalDurationNanos(aggregate.getTotalDurationNanos());
+        mergedAggregate.addTransactionCount(aggregate.getTransactionCount());
+        mergedAggregate.addErrorCount(aggregate.getErrorCount());
+        mergedAggregate.addAsyncTransactions(aggregate.getAsyncTransactions());
+        mergedAggregate.mergeMainThreadRootTimers(aggregate.getMainThreadRootTimerList());
+        mergedAggregate.mergeAuxThreadRootTimers(aggregate.getAuxThreadRootTimerList());
+        mergedAggregate.mergeAsyncTimers(aggregate.getAsyncTimerList());
+        Aggregate.ThreadStats mainThreadStats = aggregate.getMainThreadStats();
+        mergedAggregate.addMainThreadTotalCpuNanos(mainThreadStats.hasTotalCpuNanos()
+                ? mainThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalBlockedNanos(mainThreadStats.hasTotalBlockedNanos()
+                ? mainThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalWaitedNanos(mainThreadStats.hasTotalWaitedNanos()
+                ? mainThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addMainThreadTotalAllocatedBytes(mainThreadStats.hasTotalAllocatedBytes()
+                ? mainThreadStats.getTotalAllocatedBytes().getValue() : null);
+        Aggregate.ThreadStats auxThreadStats = aggregate.getAuxThreadStats();
+        mergedAggregate.addAuxThreadTotalCpuNanos(auxThreadStats.hasTotalCpuNanos()
+                ? auxThreadStats.getTotalCpuNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalBlockedNanos(auxThreadStats.hasTotalBlockedNanos()
+                ? auxThreadStats.getTotalBlockedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalWaitedNanos(auxThreadStats.hasTotalWaitedNanos()
+                ? auxThreadStats.getTotalWaitedNanos().getValue() : null);
+        mergedAggregate.addAuxThreadTotalAllocatedBytes(auxThreadStats.hasTotalAllocatedBytes()
+                ? auxThreadStats.getTotalAllocatedBytes().getValue() : null);
+        mergedAggregate.mergeDurationNanosHistogram(aggregate.getDurationNanosHistogram());
+        for (Aggregate.QueriesByType queriesByType : aggregate.getQueriesByTypeList()) {
+            for (Aggregate.Query query : queriesByType.getQueryList()) {
+                TruncatedQueryText truncatedQueryText =
+                        truncatedQueryTexts.get(query.getSharedQueryTextIndex());
+                mergedAggregate.mergeQuery(queriesByType.getType(),
+                        truncatedQueryText.truncatedText(), truncatedQueryText.fullTextSha1(),
+                        query.getTotalDurationNanos(), query.getExecutionCount(),
+                        query.hasTotalRows(), query.getTotalRows().getValue(),
+                        query.getRepeatedTransactionCount(),
+                        query.hasDurationNanosHistogram()
+                                ? new LazyHistogram(query.getDurationNanosHistogram()) : null);
+            }
+        }
+        if (aggregate.getServiceCallsByTypeCount() > 0) {
+            mergedAggregate.mergeServiceCalls(aggregate.getServiceCallsByTypeList());
+        }
+        if (aggregate.hasMainThreadProfile()) {
+            mergedAggregate.mergeMainThreadProfile(aggregate.getMainThreadProfile());
+        }
+        if (aggregate.hasAuxThreadProfile()) {
+            mergedAggregate.mergeAuxThreadProfile(aggregate.getAuxThreadProfile());
+        }
+    }
+
+    static class OpenInterval {
+
+        // keyed by transaction type
+        private final Map<String, MutableAggregate> overallAggregates = Maps.newHashMap();
+        // keyed by transaction type, then by transaction name
+        private final Map<String, Map<String, MutableAggregate>> transactionAggregates =
+                Maps.newHashMap();
+
+        private boolean complete;
+        private int remainingAggregates;
+
+        private OpenInterval(boolean complete, int maxAggregates) {
+            this.complete = complete;
+            remainingAggregates = maxAggregates;
+        }
+
+        // returns false (and marks the interval incomplete) if the cap has been reached
+        private boolean reserveAggregate() {
+            if (remainingAggregates == 0) {
+                markIncomplete();
+                return false;
+            }
+            remainingAggregates--;
+            return true;
+        }
+
+        // the merged aggregates of an incomplete interval are never used, so they are released
+        // right away instead of being held until the interval closes
+        private void markIncomplete() {
+            complete = false;
+            overallAggregates.clear();
+            transactionAggregates.clear();
+        }
+
+        Map<String, MutableAggregate> getOverallAggregates() {
+            return overallAggregates;
+        }
+
+        Map<String, Map<String, MutableAggregate>> getTransactionAggregates() {
+            return transactionAggregates;
+        }
+    }
+}
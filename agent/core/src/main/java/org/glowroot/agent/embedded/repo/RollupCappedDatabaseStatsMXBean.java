@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,4 +22,9 @@ public interface RollupCappedDatabaseStatsMXBean {
     CappedDatabaseStats getAggregateQueries();
     CappedDatabaseStats getAggregateServiceCalls();
     CappedDatabaseStats getAggregateProfiles();
+
+    // rollup progress for this rollup level (these are always zero for rollup level 0)
+    long getLastRollupTime();
+    int getPendingRollupIntervals();
+    boolean isRollupCatchUpInProgress();
 }
@@ -113,8 +113,8 @@ public class SimpleRepoModule {
 
     public void registerMBeans(PlatformMBeanServerLifecycle platformMBeanServerLifecycle) {
         for (int i = 0; i < rollupCappedDatabases.size(); i++) {
-            platformMBeanServerLifecycle.lazyRegisterMBean(
-                    new RollupCappedDatabaseStats(rollupCappedDatabases.get(i)),
+            platformMBeanServerLifecycle.lazyRegisterMBean(new RollupCappedDatabaseStats(
+                    rollupCappedDatabases.get(i), aggregateDao, i),
                     "org.glowroot:type=RollupCappedDatabase" + i);
         }
         platformMBeanServerLifecycle.lazyRegisterMBean(
@@ -173,6 +173,7 @@ public class SimpleRepoModule {
         if (reaperRunnable != null) {
             reaperRunnable.cancel();
         }
+        aggregateDao.close();
         for (CappedDatabase cappedDatabase : rollupCappedDatabases) {
             cappedDatabase.close();
         }
@@ -56,6 +56,7 @@ import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TraceKind;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.ColumnarTraceEntries;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
@@ -89,7 +90,9 @@ public class TraceDao implements TraceRepository {
             ImmutableColumn.of("user", ColumnType.VARCHAR),
             ImmutableColumn.of("error_message", ColumnType.VARCHAR),
             ImmutableColumn.of("header", ColumnType.VARBINARY), // protobuf
+            // old format (one protobuf message per entry), still read for existing traces
             ImmutableColumn.of("entries_capped_id", ColumnType.BIGINT),
+            ImmutableColumn.of("columnar_entries_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("shared_query_texts_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("main_thread_profile_capped_id", ColumnType.BIGINT),
             ImmutableColumn.of("aux_thread_profile_capped_id", ColumnType.BIGINT));
@@ -152,6 +155,11 @@ public class TraceDao implements TraceRepository {
             dataSource.execute("alter table trace add column shared_query_texts_capped_id bigint");
             startupLogger.info("glowroot schema upgrade complete");
         }
+        if (dataSource.tableExists("trace")
+                && !dataSource.columnExists("trace", "columnar_entries_capped_id")) {
+            // existing traces keep their entries in the old (per-entry) format
+            dataSource.execute("alter table trace add column columnar_entries_capped_id bigint");
+        }
         dataSource.syncTable("trace", traceColumns);
         dataSource.syncIndexes("trace", traceIndexes);
         dataSource.syncTable("trace_attribute", traceAttributeColumns);
@@ -424,7 +432,7 @@ public class TraceDao implements TraceRepository {
 
         private final String traceId;
         private final Trace.Header header;
-        private final @Nullable Long entriesCappedId;
+        private final @Nullable Long columnarEntriesCappedId;
         private final @Nullable Long sharedQueryTextsCappedId;
         private final @Nullable Long mainThreadProfileId;
         private final @Nullable Long auxThreadProfileId;
@@ -436,9 +444,10 @@ public class TraceDao implements TraceRepository {
 
             List<Trace.Entry> entries = trace.getEntryList();
             if (entries.isEmpty()) {
-                entriesCappedId = null;
+                columnarEntriesCappedId = null;
             } else {
-                entriesCappedId = traceCappedDatabase.writeMessages(entries,
+                columnarEntriesCappedId = traceCappedDatabase.writeBytes(
+                        ColumnarTraceEntries.encode(entries),
                         TraceCappedDatabaseStats.TRACE_ENTRIES);
             }
             if (sharedQueryTexts.isEmpty()) {
@@ -465,9 +474,10 @@ public class TraceDao implements TraceRepository {
         public @Untainted String getSql() {
             return "merge into trace (id, partial, slow, error, start_time, capture_time,"
                     + " duration_nanos, transaction_type, transaction_name, headline, user,"
-                    + " error_message, header, entries_capped_id, shared_query_texts_capped_id,"
-                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id) key (id)"
-                    + " values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                    + " error_message, header, entries_capped_id, columnar_entries_capped_id,"
+                    + " shared_query_texts_capped_id, main_thread_profile_capped_id,"
+                    + " aux_thread_profile_capped_id) key (id) values (?, ?, ?, ?, ?, ?, ?, ?, ?,"
+                    + " ?, ?, ?, ?, ?, ?, ?, ?, ?)";
         }
 
         // minimal work inside this method as it is called with active connection
@@ -499,7 +509,10 @@ public class TraceDao implements TraceRepository {
                     .setUser("")
                     .build()
                     .toByteArray());
-            RowMappers.setLong(preparedStatement, i++, entriesCappedId);
+            // clear the old format in case this is an update to a partial trace stored by a prior
+            // version
+            preparedStatement.setNull(i++, Types.BIGINT);
+            RowMappers.setLong(preparedStatement, i++, columnarEntriesCappedId);
             RowMappers.setLong(preparedStatement, i++, sharedQueryTextsCappedId);
             RowMappers.setLong(preparedStatement, i++, mainThreadProfileId);
             RowMappers.setLong(preparedStatement, i++, auxThreadProfileId);
@@ -583,9 +596,9 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select headline, user, header, entries_capped_id,"
-                    + " main_thread_profile_capped_id, aux_thread_profile_capped_id from trace"
-                    + " where id = ?";
+            return "select headline, user, header, ifnull(columnar_entries_capped_id,"
+                    + " entries_capped_id), main_thread_profile_capped_id,"
+                    + " aux_thread_profile_capped_id from trace where id = ?";
         }
 
         @Override
@@ -636,7 +649,8 @@ public class TraceDao implements TraceRepository {
 
         @Override
         public @Untainted String getSql() {
-            return "select entries_capped_id, shared_query_texts_capped_id from trace where id = ?";
+            return "select columnar_entries_capped_id, entries_capped_id,"
+                    + " shared_query_texts_capped_id from trace where id = ?";
         }
 
         @Override
@@ -650,13 +664,21 @@ public class TraceDao implements TraceRepository {
                 return null;
             }
             int i = 1;
+            Long columnarEntriesCappedId = RowMappers.getLong(resultSet, i++);
             Long entriesCappedId = RowMappers.getLong(resultSet, i++);
             Long sharedQueryTextsCappedId = RowMappers.getLong(resultSet, i++);
-            if (entriesCappedId == null) {
+            List<Trace.Entry> entries;
+            if (columnarEntriesCappedId != null) {
+                byte[] bytes = traceCappedDatabase.readBytes(columnarEntriesCappedId);
+                if (bytes == null) {
+                    return null;
+                }
+                entries = ColumnarTraceEntries.decode(bytes);
+            } else if (entriesCappedId != null) {
+                entries = traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
+            } else {
                 return null;
             }
-            List<Trace.Entry> entries =
-                    traceCappedDatabase.readMessages(entriesCappedId, Trace.Entry.parser());
             if (entries.isEmpty()) {
                 return null;
             }
@@ -27,14 +27,17 @@ import java.io.Reader;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteSource;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharSource;
 import com.google.common.io.CountingOutputStream;
 import com.google.common.primitives.Longs;
@@ -53,6 +56,14 @@ public class CappedDatabase {
 
     private static final Logger logger = LoggerFactory.getLogger(CappedDatabase.class);
 
+    // when enabled, reads go through memory-mapped segments without taking the lock, so that
+    // reading trace entries and profiles does not block the writing of new traces
+    //
+    // this is not enabled by default since on Windows a file cannot be deleted while it is mapped,
+    // which prevents resizing the capped database until the mappings have been garbage collected
+    private static final boolean MEMORY_MAPPED_READS =
+            Boolean.getBoolean("glowroot.internal.cappedDatabase.memoryMappedReads");
+
     private final File file;
     private final Object lock = new Object();
     @GuardedBy("lock")
@@ -60,16 +71,27 @@ public class CappedDatabase {
     private final Thread shutdownHookThread;
     @GuardedBy("lock")
     private RandomAccessFile inFile;
+    // only non-null when using memory-mapped reads, replaced (under lock) after each resize
+    private volatile @Nullable CappedDatabaseMappedFile mappedFile;
     private volatile boolean closed = false;
 
     private final Ticker ticker;
     private final Map<String, CappedDatabaseStats> statsByType = Maps.newHashMap();
 
     public CappedDatabase(File file, int requestedSizeKb, Ticker ticker) throws IOException {
+        this(file, requestedSizeKb, ticker, MEMORY_MAPPED_READS);
+    }
+
+    @VisibleForTesting
+    CappedDatabase(File file, int requestedSizeKb, Ticker ticker, boolean memoryMappedReads)
+            throws IOException {
         this.file = file;
         this.ticker = ticker;
         out = new CappedDatabaseOutputStream(file, requestedSizeKb);
         inFile = new RandomAccessFile(file, "r");
+        if (memoryMappedReads) {
+            mappedFile = new CappedDatabaseMappedFile(file, out.getSizeKb());
+        }
         shutdownHookThread = new ShutdownHookThread();
         Runtime.getRuntime().addShutdownHook(shutdownHookThread);
     }
@@ -80,7 +102,7 @@ public class CappedDatabase {
             public void copyTo(OutputStream writer) throws IOException {
                 message.writeTo(writer);
             }
-        });
+        }, true);
     }
 
     public long writeMessages(final List<? extends AbstractMessage> messages, String type)
@@ -92,7 +114,22 @@ public class CappedDatabase {
                     message.writeDelimitedTo(writer);
                 }
             }
-        });
+        }, true);
+    }
+
+    // for data that is already encoded and compressed by the caller, so it is written as is
+    // (without LZF compression), and must be read back with readBytes()
+    public long writeBytes(final byte[] bytes, String type) throws IOException {
+        return write(type, new Copier() {
+            @Override
+            public void copyTo(OutputStream writer) throws IOException {
+                writer.write(bytes);
+            }
+        }, true, false);
+    }
+
+    public Batch newBatch() {
+        return new Batch();
     }
 
     public CappedDatabaseStats getStats(String type) {
@@ -110,10 +147,15 @@ public class CappedDatabase {
             public void copyTo(OutputStream out) throws IOException {
                 byteSource.copyTo(out);
             }
-        });
+        }, true);
     }
 
-    private long write(String type, Copier copier) throws IOException {
+    private long write(String type, Copier copier, boolean sync) throws IOException {
+        return write(type, copier, sync, true);
+    }
+
+    private long write(String type, Copier copier, boolean sync, boolean compress)
+            throws IOException {
         synchronized (lock) {
             if (closed) {
                 return -1;
@@ -123,7 +165,9 @@ public class CappedDatabase {
             NonClosingCountingOutputStream countingStreamAfterCompression =
                     new NonClosingCountingOutputStream(out);
             CountingOutputStream countingStreamBeforeCompression =
-                    new CountingOutputStream(new LZFOutputStream(countingStreamAfterCompression));
+                    new CountingOutputStream(compress
+                            ? new LZFOutputStream(countingStreamAfterCompression)
+                            : countingStreamAfterCompression);
             copier.copyTo(countingStreamBeforeCompression);
             countingStreamBeforeCompression.close();
             long endTick = ticker.read();
@@ -134,7 +178,7 @@ public class CappedDatabase {
             }
             stats.record(countingStreamBeforeCompression.getCount(),
                     countingStreamAfterCompression.getCount(), endTick - startTick);
-            return out.endBlock();
+            return sync ? out.endBlock() : out.endBlockWithoutSync();
         }
     }
 
@@ -217,6 +261,36 @@ public class CappedDatabase {
         return messages;
     }
 
+    public byte /*@Nullable*/ [] readBytes(long cappedId) throws IOException {
+        boolean overwritten;
+        boolean inTheFuture;
+        synchronized (lock) {
+            overwritten = out.isOverwritten(cappedId);
+            inTheFuture = cappedId >= out.getCurrIndex();
+        }
+        if (overwritten || inTheFuture) {
+            // see comment in readMessage() about inTheFuture
+            return null;
+        }
+        // it's important to wrap CappedBlockInputStream in a BufferedInputStream to prevent
+        // lots of small reads from the underlying RandomAccessFile
+        //
+        // not wrapped in LZFInputStream since writeBytes() does not compress
+        final int bufferSize = 32768;
+        InputStream input =
+                new BufferedInputStream(new CappedBlockInputStream(cappedId), bufferSize);
+        try {
+            return ByteStreams.toByteArray(input);
+        } catch (Exception e) {
+            if (!out.isOverwritten(cappedId)) {
+                logger.error(e.getMessage(), e);
+            }
+            return null;
+        } finally {
+            input.close();
+        }
+    }
+
     @OnlyUsedByTests
     CharSource read(long cappedId) {
         return new CappedBlockCharSource(cappedId);
@@ -240,8 +314,15 @@ public class CappedDatabase {
                 return;
             }
             inFile.close();
+            CappedDatabaseMappedFile mappedFile = this.mappedFile;
+            if (mappedFile != null) {
+                mappedFile.close();
+            }
             out.resize(newSizeKb);
             inFile = new RandomAccessFile(file, "r");
+            if (mappedFile != null) {
+                this.mappedFile = new CappedDatabaseMappedFile(file, out.getSizeKb());
+            }
         }
     }
 
@@ -251,10 +332,66 @@ public class CappedDatabase {
             closed = true;
             out.close();
             inFile.close();
+            closeMappedFile();
         }
         Runtime.getRuntime().removeShutdownHook(shutdownHookThread);
     }
 
+    @GuardedBy("lock")
+    private void closeMappedFile() throws IOException {
+        CappedDatabaseMappedFile mappedFile = this.mappedFile;
+        if (mappedFile != null) {
+            mappedFile.close();
+        }
+    }
+
+    // writes multiple blocks with a single fsync at the end, instead of one fsync per block, which
+    // matters on slow disks when writing many blocks at once (e.g. the aggregate flush)
+    //
+    // the capped ids returned by the batch must not be stored anywhere durable (e.g. in h2) until
+    // after sync() returns
+    public class Batch {
+
+        private boolean syncNeeded;
+
+        private Batch() {}
+
+        public long writeMessage(final AbstractMessage message, String type) throws IOException {
+            syncNeeded = true;
+            return write(type, new Copier() {
+                @Override
+                public void copyTo(OutputStream writer) throws IOException {
+                    message.writeTo(writer);
+                }
+            }, false);
+        }
+
+        public long writeMessages(final List<? extends AbstractMessage> messages, String type)
+                throws IOException {
+            syncNeeded = true;
+            return write(type, new Copier() {
+                @Override
+                public void copyTo(OutputStream writer) throws IOException {
+                    for (AbstractMessage message : messages) {
+                        message.writeDelimitedTo(writer);
+                    }
+                }
+            }, false);
+        }
+
+        public void sync() throws IOException {
+            if (!syncNeeded) {
+                return;
+            }
+            synchronized (lock) {
+                if (!closed) {
+                    out.sync();
+                }
+            }
+            syncNeeded = false;
+        }
+    }
+
     @OnlyUsedByTests
     private class CappedBlockCharSource extends CharSource {
 
@@ -277,6 +414,8 @@ public class CappedDatabase {
 
     private class CappedBlockInputStream extends InputStream {
 
+        private static final int RETRY_UNDER_LOCK = -2;
+
         private final long cappedId;
         private long blockLength = -1;
         private long blockIndex;
@@ -290,6 +429,13 @@ public class CappedDatabase {
             if (blockIndex == blockLength) {
                 return -1;
             }
+            CappedDatabaseMappedFile mappedFile = CappedDatabase.this.mappedFile;
+            if (mappedFile != null) {
+                int numRead = readMapped(mappedFile, bytes, off, len);
+                if (numRead != RETRY_UNDER_LOCK) {
+                    return numRead;
+                }
+            }
             synchronized (lock) {
                 if (out.isOverwritten(cappedId)) {
                     throw new CappedBlockRolledOverMidReadException("Block rolled over mid-read");
@@ -311,6 +457,59 @@ public class CappedDatabase {
             }
         }
 
+        // reads without the lock, and then validates that the bytes read were not overwritten
+        // or moved in the meantime
+        private int readMapped(CappedDatabaseMappedFile mappedFile, byte[] bytes, int off,
+                int len) {
+            int generation = out.getGeneration();
+            if ((generation & 1) == 1) {
+                // resize in progress
+                return RETRY_UNDER_LOCK;
+            }
+            long blockLength = this.blockLength;
+            try {
+                if (blockLength == -1) {
+                    long filePosition = out.convertToFilePosition(cappedId);
+                    blockLength = mappedFile.readLong(
+                            CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition);
+                }
+                long filePosition = out.convertToFilePosition(
+                        cappedId + CappedDatabaseOutputStream.BLOCK_HEADER_SKIP_BYTES + blockIndex);
+                long blockRemaining = blockLength - blockIndex;
+                long fileRemaining = out.getSizeKb() * 1024L - filePosition;
+                int numToRead = (int) Longs.min(len, blockRemaining, fileRemaining);
+                if (numToRead < 0) {
+                    // positions were computed from a torn read of the resize fields
+                    return RETRY_UNDER_LOCK;
+                }
+                mappedFile.read(CappedDatabaseOutputStream.HEADER_SKIP_BYTES + filePosition,
+                        bytes, off, numToRead);
+                if (out.getGeneration() != generation) {
+                    return RETRY_UNDER_LOCK;
+                }
+                if (out.isOverwrittenForReaders(cappedId)) {
+                    // this will be re-checked (exactly) under lock
+                    return RETRY_UNDER_LOCK;
+                }
+                this.blockLength = blockLength;
+                blockIndex += numToRead;
+                return numToRead;
+            } catch (IOException e) {
+                // e.g. the mapped file was closed by a concurrent resize
+                logger.debug(e.getMessage(), e);
+                return RETRY_UNDER_LOCK;
+            } catch (RuntimeException e) {
+                // e.g. index out of bounds from positions computed during a concurrent resize
+                logger.debug(e.getMessage(), e);
+                return RETRY_UNDER_LOCK;
+            } catch (InternalError e) {
+                // the jvm raises this (instead of crashing) on a fault accessing a mapped buffer,
+                // e.g. when the underlying file has been truncated
+                logger.debug(e.getMessage(), e);
+                return RETRY_UNDER_LOCK;
+            }
+        }
+
         @Override
         public int read(byte[] bytes) throws IOException {
             // this is never called since CappedBlockInputStream is always wrapped in a
@@ -336,6 +535,7 @@ public class CappedDatabase {
                 synchronized (lock) {
                     out.close();
                     inFile.close();
+                    closeMappedFile();
                 }
             } catch (IOException e) {
                 logger.warn(e.getMessage(), e);
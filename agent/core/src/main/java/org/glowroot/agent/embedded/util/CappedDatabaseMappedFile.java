@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// read-only view of the capped database file using memory-mapped segments
+//
+// readers do not take any lock, instead they must validate afterwards (using
+// CappedDatabaseOutputStream.getGeneration() and isOverwrittenForReaders()) that the bytes they
+// read were not concurrently overwritten or moved by a resize
+//
+// a new instance is created after each resize since the file is replaced during resize
+class CappedDatabaseMappedFile {
+
+    // segments are needed since a single MappedByteBuffer is limited to 2gb
+    private static final int SEGMENT_SIZE_BYTES = 64 * 1024 * 1024;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+
+    // segments are mapped lazily, and re-mapped if the file has grown since the segment was
+    // mapped (the capped database file grows until it wraps for the first time)
+    private final AtomicReferenceArray</*@Nullable*/ MappedByteBuffer> segments;
+
+    CappedDatabaseMappedFile(File file, int sizeKb) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        channel = this.file.getChannel();
+        long totalBytes = CappedDatabaseOutputStream.HEADER_SKIP_BYTES + sizeKb * 1024L;
+        segments = new AtomicReferenceArray<MappedByteBuffer>(
+                (int) ((totalBytes + SEGMENT_SIZE_BYTES - 1) / SEGMENT_SIZE_BYTES));
+    }
+
+    // filePosition is relative to the start of the file (including the header)
+    void read(long filePosition, byte[] bytes, int off, int len) throws IOException {
+        long position = filePosition;
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+            int segmentIndex = (int) (position / SEGMENT_SIZE_BYTES);
+            int segmentPosition = (int) (position % SEGMENT_SIZE_BYTES);
+            int numToRead = Math.min(remaining, SEGMENT_SIZE_BYTES - segmentPosition);
+            ByteBuffer segment = getSegment(segmentIndex, segmentPosition + numToRead);
+            // duplicate so that concurrent readers do not share buffer position
+            ByteBuffer buffer = segment.duplicate();
+            buffer.position(segmentPosition);
+            buffer.get(bytes, offset, numToRead);
+            position += numToRead;
+            offset += numToRead;
+            remaining -= numToRead;
+        }
+    }
+
+    long readLong(long filePosition) throws IOException {
+        byte[] bytes = new byte[8];
+        read(filePosition, bytes, 0, 8);
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+
+    void close() throws IOException {
+        // existing mappings remain valid after the channel is closed
+        file.close();
+    }
+
+    private MappedByteBuffer getSegment(int segmentIndex, int requiredLimit) throws IOException {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+        if (segment != null && segment.capacity() >= requiredLimit) {
+            return segment;
+        }
+        long segmentStart = (long) segmentIndex * SEGMENT_SIZE_BYTES;
+        long mapSize = Math.min(SEGMENT_SIZE_BYTES, channel.size() - segmentStart);
+        if (mapSize < requiredLimit) {
+            throw new IOException("Capped database file is smaller than expected");
+        }
+        segment = channel.map(MapMode.READ_ONLY, segmentStart, mapSize);
+        // ok if another reader races and maps the same segment, last one wins
+        segments.set(segmentIndex, segment);
+        return segment;
+    }
+}
@@ -20,8 +20,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 
-import org.glowroot.common.util.OnlyUsedByTests;
-
 // Needs to be externally synchronized around startBlock()/write()/endBlock().
 class CappedDatabaseOutputStream extends OutputStream {
 
@@ -37,11 +35,20 @@ class CappedDatabaseOutputStream extends OutputStream {
     // (btw it would take writing 2.9g per second for 100 years for currIndex to hit Long.MAX_VALUE)
     private long currIndex;
     // lastResizeBaseIndex is the smallest currIndex saved during the last resize
-    private long lastResizeBaseIndex;
+    // (volatile so it can be read by lock free readers)
+    private volatile long lastResizeBaseIndex;
     // sizeKb is volatile so it can be read outside of the external synchronization around
     // startBlock()/write()/endBlock()
     private volatile int sizeKb;
-    private long sizeBytes;
+    private volatile long sizeBytes;
+
+    // the index up to which bytes may have already been written to the file, this is published
+    // before the bytes are written so that lock free readers can check afterwards whether the bytes
+    // they read could have been overwritten in the meantime
+    private volatile long writeLimitIndex;
+    // incremented at the start and at the end of each resize, so it is odd while a resize is in
+    // progress, lock free readers use this to detect that file positions have moved
+    private volatile int generation;
 
     private long blockStartIndex;
     private long blockStartPosition;
@@ -66,6 +73,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             sizeBytes = sizeKb * 1024L;
             lastResizeBaseIndex = out.readLong();
         }
+        writeLimitIndex = currIndex;
     }
 
     void startBlock() {
@@ -82,9 +90,15 @@ class CappedDatabaseOutputStream extends OutputStream {
     }
 
     long endBlock() throws IOException {
+        long cappedId = endBlockWithoutSync();
+        out.getFD().sync();
+        return cappedId;
+    }
+
+    // sync() must be called before the returned capped id is stored anywhere durable
+    long endBlockWithoutSync() throws IOException {
         out.seek(HEADER_SKIP_BYTES + blockStartPosition);
         out.writeLong(currIndex - blockStartIndex - BLOCK_HEADER_SKIP_BYTES);
-        out.getFD().sync();
         return blockStartIndex;
     }
 
@@ -102,6 +116,18 @@ class CappedDatabaseOutputStream extends OutputStream {
         return currIndex;
     }
 
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    int getGeneration() {
+        return generation;
+    }
+
+    // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
+    // and is conservative, i.e. it will treat bytes that are about to be overwritten as already
+    // overwritten
+    boolean isOverwrittenForReaders(long cappedId) {
+        return cappedId < Math.max(lastResizeBaseIndex, writeLimitIndex - sizeBytes);
+    }
+
     // this is ok to read outside of external synchronization around startBlock()/write()/endBlock()
     int getSizeKb() {
         return sizeKb;
@@ -113,6 +139,15 @@ class CappedDatabaseOutputStream extends OutputStream {
 
     // perform resize in-place to avoid using extra disk space
     void resize(int newSizeKb) throws IOException {
+        generation++;
+        try {
+            resizeInternal(newSizeKb);
+        } finally {
+            generation++;
+        }
+    }
+
+    private void resizeInternal(int newSizeKb) throws IOException {
         if (performEasyResize(newSizeKb)) {
             return;
         }
@@ -172,6 +207,7 @@ class CappedDatabaseOutputStream extends OutputStream {
             throw new IOException(
                     "A single block cannot have more bytes than size of the capped database");
         }
+        writeLimitIndex = currIndex + len;
         long currPosition = (currIndex - lastResizeBaseIndex) % sizeBytes;
         out.seek(HEADER_SKIP_BYTES + currPosition);
         long remaining = sizeBytes - currPosition;
@@ -216,7 +252,6 @@ class CappedDatabaseOutputStream extends OutputStream {
         return false;
     }
 
-    @OnlyUsedByTests
     void sync() throws IOException {
         out.getFD().sync();
     }
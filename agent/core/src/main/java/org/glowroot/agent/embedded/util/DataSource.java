@@ -327,6 +327,50 @@ public class DataSource {
         }
     }
 
+    // executes the updates using jdbc batches (one batch per run of consecutive updates with the
+    // same sql) inside of a single transaction, which is much faster than executing each update
+    // separately in its own (auto commit) transaction when there are many updates
+    public void batchUpdateInTransaction(List<? extends JdbcUpdate> jdbcUpdates)
+            throws SQLException {
+        if (jdbcUpdates.isEmpty() || closed) {
+            return;
+        }
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement preparedStatement = null;
+                String currSql = null;
+                for (JdbcUpdate jdbcUpdate : jdbcUpdates) {
+                    @Untainted
+                    String sql = jdbcUpdate.getSql();
+                    if (preparedStatement == null || !sql.equals(currSql)) {
+                        if (preparedStatement != null) {
+                            preparedStatement.executeBatch();
+                        }
+                        preparedStatement = prepareStatement(sql, 0);
+                        currSql = sql;
+                    }
+                    jdbcUpdate.bind(preparedStatement);
+                    preparedStatement.addBatch();
+                }
+                if (preparedStatement != null) {
+                    preparedStatement.executeBatch();
+                }
+                connection.commit();
+            } catch (Throwable t) {
+                connection.rollback();
+                Throwables.propagateIfPossible(t, SQLException.class);
+                throw new SQLException(t);
+            } finally {
+                connection.setAutoCommit(true);
+            }
+            // don't need to close statement since they are all cached and used under lock
+        }
+    }
+
     public void deleteBefore(@Untainted String tableName, long captureTime) throws SQLException {
         // delete 100 at a time, which is both faster than deleting all at once, and doesn't
         // lock the single jdbc connection for one large chunk of time
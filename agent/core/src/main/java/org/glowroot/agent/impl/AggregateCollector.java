@@ -105,6 +105,41 @@ class AggregateCollector {
         durationNanosHistogram.add(totalDurationNanos);
     }
 
+    // merges another collector for the same transaction type and name (from another aggregation
+    // shard), this only reads from the other collector, which can still be in use
+    void merge(AggregateCollector collector) throws IOException {
+        totalDurationNanos += collector.totalDurationNanos;
+        transactionCount += collector.transactionCount;
+        errorCount += collector.errorCount;
+        if (collector.asyncTransactions) {
+            asyncTransactions = true;
+        }
+        mainThreadRootTimers.merge(collector.mainThreadRootTimers);
+        auxThreadRootTimers.merge(collector.auxThreadRootTimers);
+        asyncTimers.merge(collector.asyncTimers);
+        mainThreadStats.merge(collector.mainThreadStats);
+        auxThreadStats.merge(collector.auxThreadStats);
+        durationNanosHistogram.merge(collector.durationNanosHistogram);
+        if (collector.queries != null) {
+            getQueryCollector().merge(collector.queries);
+        }
+        if (collector.serviceCalls != null) {
+            getServiceCallCollector().mergeServiceCalls(collector.serviceCalls.toProto());
+        }
+        if (collector.mainThreadProfile != null) {
+            if (mainThreadProfile == null) {
+                mainThreadProfile = new MutableProfile();
+            }
+            mainThreadProfile.merge(collector.mainThreadProfile);
+        }
+        if (collector.auxThreadProfile != null) {
+            if (auxThreadProfile == null) {
+                auxThreadProfile = new MutableProfile();
+            }
+            auxThreadProfile.merge(collector.auxThreadProfile);
+        }
+    }
+
     RootTimerCollector getMainThreadRootTimers() {
         return mainThreadRootTimers;
     }
@@ -137,7 +172,7 @@ class AggregateCollector {
                     ? AdvancedConfig.OVERALL_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER
                     : AdvancedConfig.TRANSACTION_AGGREGATE_QUERIES_HARD_LIMIT_MULTIPLIER;
             queries = new QueryCollector(maxAggregateQueriesPerType,
-                    queriesHardLimitMultiplierWhileBuilding, false);
+                    queriesHardLimitMultiplierWhileBuilding);
         }
         return queries;
     }
@@ -277,6 +312,26 @@ class AggregateCollector {
             mergeRootTimer(rootTimer, rootMutableTimers);
         }
 
+        private void merge(RootTimerCollectorImpl collector) {
+            for (MutableAggregateTimer toBeMergedRootTimer : collector.rootMutableTimers) {
+                MutableAggregateTimer rootTimer = null;
+                for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
+                    if (toBeMergedRootTimer.getName().equals(rootMutableTimer.getName())
+                            && toBeMergedRootTimer.isExtended() == rootMutableTimer
+                                    .isExtended()) {
+                        rootTimer = rootMutableTimer;
+                        break;
+                    }
+                }
+                if (rootTimer == null) {
+                    rootTimer = MutableAggregateTimer.createRootTimer(
+                            toBeMergedRootTimer.getName(), toBeMergedRootTimer.isExtended());
+                    rootMutableTimers.add(rootTimer);
+                }
+                rootTimer.merge(toBeMergedRootTimer);
+            }
+        }
+
         private List<Aggregate.Timer> toProto() {
             List<Aggregate.Timer> rootTimers = Lists.newArrayList();
             for (MutableAggregateTimer rootMutableTimer : rootMutableTimers) {
@@ -323,6 +378,20 @@ class AggregateCollector {
             empty = false;
         }
 
+        private void merge(ThreadStatsCollectorImpl collector) {
+            if (collector.empty) {
+                return;
+            }
+            totalCpuNanos = NotAvailableAware.add(totalCpuNanos, collector.totalCpuNanos);
+            totalBlockedMillis =
+                    NotAvailableAware.add(totalBlockedMillis, collector.totalBlockedMillis);
+            totalWaitedMillis =
+                    NotAvailableAware.add(totalWaitedMillis, collector.totalWaitedMillis);
+            totalAllocatedBytes =
+                    NotAvailableAware.add(totalAllocatedBytes, collector.totalAllocatedBytes);
+            empty = false;
+        }
+
         private boolean isNA() {
             if (empty) {
                 return true;
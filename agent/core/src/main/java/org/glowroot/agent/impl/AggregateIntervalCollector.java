@@ -16,6 +16,7 @@
 package org.glowroot.agent.impl;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -75,6 +76,40 @@ public class AggregateIntervalCollector {
         this.clock = clock;
     }
 
+    // shards are striped by thread, so the same transaction type (and name) can be collected by
+    // multiple shards, and their collectors are merged (copied) into a new collector, which leaves
+    // the shard collectors untouched, so this is also safe to use for shards that are still active
+    static AggregateIntervalCollector mergeShards(
+            List<AggregateIntervalCollector> shardIntervalCollectors) throws IOException {
+        AggregateIntervalCollector first = shardIntervalCollectors.get(0);
+        AggregateIntervalCollector merged = new AggregateIntervalCollector(first.captureTime,
+                first.maxAggregateTransactionsPerTransactionType,
+                first.maxAggregateQueriesPerType, first.maxAggregateServiceCallsPerType,
+                first.clock);
+        synchronized (merged.lock) {
+            for (AggregateIntervalCollector shardIntervalCollector : shardIntervalCollectors) {
+                synchronized (shardIntervalCollector.lock) {
+                    for (Entry<String, IntervalTypeCollector> entry : shardIntervalCollector
+                            .typeCollectors.entrySet()) {
+                        merged.getTypeCollector(entry.getKey()).merge(entry.getValue());
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
+    private AggregateIntervalCollector(long captureTime,
+            int maxAggregateTransactionsPerTransactionType, int maxAggregateQueriesPerType,
+            int maxAggregateServiceCallsPerType, Clock clock) {
+        this.captureTime = captureTime;
+        this.maxAggregateTransactionsPerTransactionType =
+                maxAggregateTransactionsPerTransactionType;
+        this.maxAggregateQueriesPerType = maxAggregateQueriesPerType;
+        this.maxAggregateServiceCallsPerType = maxAggregateServiceCallsPerType;
+        this.clock = clock;
+    }
+
     public long getCaptureTime() {
         return captureTime;
     }
@@ -322,6 +357,28 @@ public class AggregateIntervalCollector {
             }
         }
 
+        private void merge(IntervalTypeCollector typeCollector) throws IOException {
+            overallAggregateCollector.merge(typeCollector.overallAggregateCollector);
+            for (Entry<String, AggregateCollector> entry : typeCollector.transactionAggregateCollectors
+                    .entrySet()) {
+                String transactionName = entry.getKey();
+                AggregateCollector transactionAggregateCollector =
+                        transactionAggregateCollectors.get(transactionName);
+                if (transactionAggregateCollector == null) {
+                    if (transactionAggregateCollectors
+                            .size() >= maxAggregateTransactionsPerTransactionType) {
+                        // still counted in the overall aggregate
+                        continue;
+                    }
+                    transactionAggregateCollector = new AggregateCollector(transactionName,
+                            maxAggregateQueriesPerType, maxAggregateServiceCallsPerType);
+                    transactionAggregateCollectors.put(transactionName,
+                            transactionAggregateCollector);
+                }
+                transactionAggregateCollector.merge(entry.getValue());
+            }
+        }
+
         private @Nullable String getFullQueryText(String fullQueryTextSha1) {
             String fullQueryText = overallAggregateCollector.getFullQueryText(fullQueryTextSha1);
             if (fullQueryText != null) {
@@ -15,15 +15,25 @@
  */
 package org.glowroot.agent.impl;
 
+import java.io.IOException;
 import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -46,6 +56,12 @@ public class Aggregator {
     // back pressure on aggregate flushing
     private static final int AGGREGATE_PENDING_LIMIT = 5;
 
+    // when greater than 1, transactions are striped by the completing thread across this many
+    // shards, each with its own lock free queue, processing thread and partial interval collector,
+    // and the shard interval collectors are merged when the interval is flushed
+    private static final int AGGREGATE_SHARDS =
+            Integer.getInteger("glowroot.internal.aggregate.shards", 1);
+
     private volatile AggregateIntervalCollector activeIntervalCollector;
     private final List<AggregateIntervalCollector> pendingIntervalCollectors =
             Lists.newCopyOnWriteArrayList();
@@ -69,25 +85,51 @@ public class Aggregator {
 
     private final RateLimitedLogger backPressureLogger = new RateLimitedLogger(Aggregator.class);
 
+    // empty unless running in sharded mode
+    private final ImmutableList<Shard> shards;
+
+    // shard interval collectors that have been completed by their shard but are waiting for the
+    // remaining shards to move past the same interval before being merged and flushed
+    private final Object shardFlushLock = new Object();
+    @GuardedBy("shardFlushLock")
+    private final List<AggregateIntervalCollector> completedShardIntervalCollectors =
+            Lists.newArrayList();
+    private final AtomicInteger pendingShardFlushes = new AtomicInteger();
+
     private volatile boolean closed;
 
     public Aggregator(Collector collector, ConfigService configService,
             long aggregateIntervalMillis, Clock clock) {
+        this(collector, configService, aggregateIntervalMillis, clock, AGGREGATE_SHARDS);
+    }
+
+    @VisibleForTesting
+    Aggregator(Collector collector, ConfigService configService, long aggregateIntervalMillis,
+            Clock clock, int shardCount) {
         this.collector = collector;
         this.configService = configService;
         this.clock = clock;
         this.aggregateIntervalMillis = aggregateIntervalMillis;
-        processingExecutor = Executors
-                .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Processing"));
         flushingExecutor = Executors
                 .newSingleThreadExecutor(ThreadFactories.create("Glowroot-Aggregate-Flushing"));
-        activeIntervalCollector =
-                new AggregateIntervalCollector(clock.currentTimeMillis(), aggregateIntervalMillis,
-                        configService.getAdvancedConfig()
-                                .maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
-        processingExecutor.execute(new TransactionProcessor());
+        activeIntervalCollector = createIntervalCollector(clock.currentTimeMillis());
+        if (shardCount > 1) {
+            processingExecutor = Executors.newFixedThreadPool(shardCount,
+                    ThreadFactories.create("Glowroot-Aggregate-Processing-%d"));
+            ImmutableList.Builder<Shard> shards = ImmutableList.builder();
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new Shard(activeIntervalCollector.getCaptureTime()));
+            }
+            this.shards = shards.build();
+            for (Shard shard : this.shards) {
+                processingExecutor.execute(shard);
+            }
+        } else {
+            processingExecutor = Executors.newSingleThreadExecutor(
+                    ThreadFactories.create("Glowroot-Aggregate-Processing"));
+            shards = ImmutableList.of();
+            processingExecutor.execute(new TransactionProcessor());
+        }
     }
 
     // from is non-inclusive
@@ -104,10 +146,19 @@ public class Aggregator {
     }
 
     public void clearInMemoryAggregate() {
-        activeIntervalCollector.clear();
+        if (shards.isEmpty()) {
+            activeIntervalCollector.clear();
+        } else {
+            for (Shard shard : shards) {
+                shard.activeIntervalCollector.clear();
+            }
+        }
     }
 
     long add(Transaction transaction) {
+        if (!shards.isEmpty()) {
+            return getShard().add(transaction);
+        }
         // this synchronized block is to ensure traces are placed into processing queue in the
         // order of captureTime (so that queue reader can assume if captureTime indicates time to
         // flush, then no new traces will come in with prior captureTime)
@@ -131,6 +182,9 @@ public class Aggregator {
     }
 
     private List<AggregateIntervalCollector> getOrderedAllIntervalCollectors() {
+        if (!shards.isEmpty()) {
+            return getOrderedAllShardIntervalCollectors();
+        }
         // grab active first then pending (and de-dup) to make sure one is not missed between states
         AggregateIntervalCollector activeIntervalCollector = this.activeIntervalCollector;
         List<AggregateIntervalCollector> intervalCollectors =
@@ -146,6 +200,111 @@ public class Aggregator {
         }
     }
 
+    private List<AggregateIntervalCollector> getOrderedAllShardIntervalCollectors() {
+        // grab active first then pending (and de-dup) to make sure one is not missed between states
+        Set<AggregateIntervalCollector> shardIntervalCollectors = Sets.newLinkedHashSet();
+        for (Shard shard : shards) {
+            shardIntervalCollectors.add(shard.activeIntervalCollector);
+        }
+        shardIntervalCollectors.addAll(pendingIntervalCollectors);
+        // the same transaction type can be collected by multiple shards, so the shard interval
+        // collectors are merged per capture time (this is only used by the live UI queries, so the
+        // cost of merging is not on the transaction path)
+        ListMultimap<Long, AggregateIntervalCollector> shardIntervalCollectorsByCaptureTime =
+                ArrayListMultimap.create();
+        for (AggregateIntervalCollector intervalCollector : shardIntervalCollectors) {
+            shardIntervalCollectorsByCaptureTime.put(intervalCollector.getCaptureTime(),
+                    intervalCollector);
+        }
+        List<AggregateIntervalCollector> intervalCollectors = Lists.newArrayList();
+        for (Long captureTime : Ordering.natural()
+                .sortedCopy(shardIntervalCollectorsByCaptureTime.keySet())) {
+            List<AggregateIntervalCollector> list =
+                    shardIntervalCollectorsByCaptureTime.get(captureTime);
+            if (list.size() == 1) {
+                intervalCollectors.add(list.get(0));
+                continue;
+            }
+            try {
+                intervalCollectors.add(AggregateIntervalCollector.mergeShards(list));
+            } catch (IOException e) {
+                logger.error(e.getMessage(), e);
+            }
+        }
+        return intervalCollectors;
+    }
+
+    private Shard getShard() {
+        // striping by thread (instead of by transaction type) spreads the load evenly even when
+        // most transactions share the same transaction type
+        long threadId = Thread.currentThread().getId();
+        return shards.get((int) (threadId % shards.size()));
+    }
+
+    private AggregateIntervalCollector createIntervalCollector(long currentTime) {
+        return new AggregateIntervalCollector(currentTime, aggregateIntervalMillis,
+                configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
+                configService.getAdvancedConfig().maxAggregateQueriesPerType(),
+                configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+    }
+
+    // called by a shard after it has moved on to a new interval
+    private void completeShardInterval(AggregateIntervalCollector shardIntervalCollector) {
+        pendingIntervalCollectors.add(shardIntervalCollector);
+        synchronized (shardFlushLock) {
+            completedShardIntervalCollectors.add(shardIntervalCollector);
+            long minActiveCaptureTime = Long.MAX_VALUE;
+            for (Shard shard : shards) {
+                minActiveCaptureTime = Math.min(minActiveCaptureTime,
+                        shard.activeIntervalCollector.getCaptureTime());
+            }
+            // an interval can only be flushed once every shard has moved past it
+            while (true) {
+                long captureTime = Long.MAX_VALUE;
+                for (AggregateIntervalCollector completed : completedShardIntervalCollectors) {
+                    captureTime = Math.min(captureTime, completed.getCaptureTime());
+                }
+                if (captureTime >= minActiveCaptureTime) {
+                    return;
+                }
+                List<AggregateIntervalCollector> intervalCollectors = Lists.newArrayList();
+                for (AggregateIntervalCollector completed : completedShardIntervalCollectors) {
+                    if (completed.getCaptureTime() == captureTime) {
+                        intervalCollectors.add(completed);
+                    }
+                }
+                completedShardIntervalCollectors.removeAll(intervalCollectors);
+                flushShardIntervalCollectors(intervalCollectors);
+            }
+        }
+    }
+
+    private void flushShardIntervalCollectors(
+            final List<AggregateIntervalCollector> shardIntervalCollectors) {
+        if (pendingShardFlushes.get() >= AGGREGATE_PENDING_LIMIT) {
+            logger.warn("not storing an aggregate because of an excessive backlog of {}"
+                    + " aggregates already waiting to be stored", AGGREGATE_PENDING_LIMIT);
+            pendingIntervalCollectors.removeAll(shardIntervalCollectors);
+            return;
+        }
+        pendingShardFlushes.incrementAndGet();
+        // flush in separate thread to avoid pending transactions from piling up quickly
+        flushingExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AggregateIntervalCollector.mergeShards(shardIntervalCollectors)
+                            .flush(collector);
+                } catch (Throwable t) {
+                    logger.error(t.getMessage(), t);
+                } finally {
+                    pendingIntervalCollectors.removeAll(shardIntervalCollectors);
+                    pendingShardFlushes.decrementAndGet();
+                }
+            }
+        });
+    }
+
     @OnlyUsedByTests
     public void close() throws InterruptedException {
         closed = true;
@@ -201,13 +360,10 @@ public class Aggregator {
             }
             if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(
-                        pendingTransaction.captureTime, aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                activeIntervalCollector = createIntervalCollector(pendingTransaction.captureTime);
             }
             activeIntervalCollector.add(transaction);
+            transaction.onAggregated();
         }
 
         private void maybeEndOfInterval() {
@@ -227,11 +383,7 @@ public class Aggregator {
                 // safe to flush, no other pending transactions can enter queue with later time
                 // (since the check above was done under same lock used to add to queue)
                 flushActiveIntervalCollector();
-                activeIntervalCollector = new AggregateIntervalCollector(currentTime,
-                        aggregateIntervalMillis,
-                        configService.getAdvancedConfig().maxAggregateTransactionsPerType(),
-                        configService.getAdvancedConfig().maxAggregateQueriesPerType(),
-                        configService.getAdvancedConfig().maxAggregateServiceCallsPerType(), clock);
+                activeIntervalCollector = createIntervalCollector(currentTime);
             }
         }
 
@@ -259,6 +411,79 @@ public class Aggregator {
         }
     }
 
+    private class Shard implements Runnable {
+
+        // lock free multi-producer single-consumer queue, since shards are independent there is no
+        // global ordering of capture times, so a transaction that races with the end of an
+        // interval can be aggregated into the following interval
+        private final Queue<PendingTransaction> queue =
+                new ConcurrentLinkedQueue<PendingTransaction>();
+        private final AtomicInteger queueLength = new AtomicInteger();
+
+        private volatile AggregateIntervalCollector activeIntervalCollector;
+
+        private Shard(long currentTime) {
+            activeIntervalCollector = createIntervalCollector(currentTime);
+        }
+
+        private long add(Transaction transaction) {
+            long captureTime = clock.currentTimeMillis();
+            if (queueLength.get() >= TRANSACTION_PENDING_LIMIT) {
+                backPressureLogger.warn("not aggregating a transaction because of an excessive"
+                        + " backlog of {} transactions already waiting to be aggregated",
+                        TRANSACTION_PENDING_LIMIT);
+                transaction.removeFromActiveTransactions();
+                return captureTime;
+            }
+            PendingTransaction pendingTransaction = new PendingTransaction(transaction);
+            pendingTransaction.captureTime = captureTime;
+            queueLength.incrementAndGet();
+            queue.offer(pendingTransaction);
+            return captureTime;
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                try {
+                    processOne();
+                } catch (Throwable e) {
+                    // log and continue processing
+                    logger.error(e.getMessage(), e);
+                }
+            }
+        }
+
+        private void processOne() throws InterruptedException {
+            PendingTransaction pendingTransaction = queue.poll();
+            if (pendingTransaction == null) {
+                long currentTime = clock.currentTimeMillis();
+                if (currentTime > activeIntervalCollector.getCaptureTime()) {
+                    endInterval(currentTime);
+                } else {
+                    Thread.sleep(1);
+                }
+                return;
+            }
+            queueLength.decrementAndGet();
+            Transaction transaction = checkNotNull(pendingTransaction.transaction);
+            transaction.removeFromActiveTransactions();
+            if (pendingTransaction.captureTime > activeIntervalCollector.getCaptureTime()) {
+                endInterval(pendingTransaction.captureTime);
+            }
+            activeIntervalCollector.add(transaction);
+            transaction.onAggregated();
+        }
+
+        private void endInterval(long currentTime) {
+            AggregateIntervalCollector completedIntervalCollector = activeIntervalCollector;
+            // new active interval collector must be visible before completing the prior one so
+            // that the flush check sees this shard as having moved past the prior interval
+            activeIntervalCollector = createIntervalCollector(currentTime);
+            completeShardInterval(completedIntervalCollector);
+        }
+    }
+
     private static class PendingTransaction {
 
         private final @Nullable Transaction transaction; // only null for head
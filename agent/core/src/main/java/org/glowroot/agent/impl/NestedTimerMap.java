@@ -15,6 +15,8 @@
  */
 package org.glowroot.agent.impl;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
 import org.glowroot.agent.model.TimerNameImpl;
@@ -57,6 +59,12 @@ class NestedTimerMap {
         putWithoutRehashCheck(key, value);
     }
 
+    // retains the current capacity, which is the point of clearing instead of creating a new map
+    void clear() {
+        Arrays.fill(table, null);
+        size = 0;
+    }
+
     private @Nullable TimerImpl getChained(TimerNameImpl key, Object value) {
         @Nullable
         Object[] chainedTable = (/*@Nullable*/ Object[]) value;
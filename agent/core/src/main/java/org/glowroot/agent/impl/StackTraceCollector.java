@@ -22,6 +22,7 @@ import java.util.Random;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
@@ -32,11 +33,17 @@ import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.common.util.OnlyUsedByTests;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 public class StackTraceCollector {
 
     private static final Logger logger = LoggerFactory.getLogger(StackTraceCollector.class);
 
+    // capturing stack traces requires a safepoint whose duration grows with the number of threads,
+    // so when there are more active threads than this, a random subset of them is captured
+    private static final int MAX_THREADS_PER_INTERVAL =
+            Integer.getInteger("glowroot.internal.stackTraceCollector.maxThreadsPerInterval", 1000);
+
     private final TransactionRegistry transactionRegistry;
     private final ConfigService configService;
     private final Random random;
@@ -44,6 +51,12 @@ public class StackTraceCollector {
     private final InternalRunnable runnable;
     private final Thread processingThread;
 
+    // these are only written by the processing thread
+    private volatile long totalNanos;
+    private volatile long threadInfoNanos;
+    private volatile long sampledThreadCount;
+    private volatile long skippedThreadCount;
+
     public StackTraceCollector(TransactionRegistry transactionRegistry,
             final ConfigService configService, Random random) {
         this.transactionRegistry = transactionRegistry;
@@ -79,20 +92,61 @@ public class StackTraceCollector {
         processingThread.join();
     }
 
+    // cumulative time spent by the processing thread capturing stack traces
+    long getTotalNanos() {
+        return totalNanos;
+    }
+
+    // cumulative time spent inside ThreadMXBean.getThreadInfo(), which is mostly the safepoint
+    long getThreadInfoNanos() {
+        return threadInfoNanos;
+    }
+
+    long getSampledThreadCount() {
+        return sampledThreadCount;
+    }
+
+    long getSkippedThreadCount() {
+        return skippedThreadCount;
+    }
+
     static void captureStackTraces(List<ThreadContextImpl> threadContexts,
             ConfigService configService) {
         if (threadContexts.isEmpty()) {
-            // critical not to call ThreadMXBean.getThreadInfo() with empty id list
-            // see https://bugs.openjdk.java.net/browse/JDK-8074368
             return;
         }
+        captureStackTraces(threadContexts, getThreadInfos(threadContexts), configService);
+    }
+
+    @VisibleForTesting
+    static <T> List<T> reservoirSample(List<T> list, int size, Random random) {
+        if (list.size() <= size) {
+            return list;
+        }
+        List<T> sample = Lists.newArrayList(list.subList(0, size));
+        for (int i = size; i < list.size(); i++) {
+            int j = random.nextInt(i + 1);
+            if (j < size) {
+                sample.set(j, list.get(i));
+            }
+        }
+        return sample;
+    }
+
+    // all stack traces are captured using a single call (and therefore a single safepoint)
+    private static ThreadInfo[] getThreadInfos(List<ThreadContextImpl> threadContexts) {
+        // critical not to call ThreadMXBean.getThreadInfo() with empty id list
+        // see https://bugs.openjdk.java.net/browse/JDK-8074368
+        checkState(!threadContexts.isEmpty());
         long[] threadIds = new long[threadContexts.size()];
         for (int i = 0; i < threadContexts.size(); i++) {
             threadIds[i] = threadContexts.get(i).getThreadId();
         }
-        @Nullable
-        ThreadInfo[] threadInfos =
-                ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+        return ManagementFactory.getThreadMXBean().getThreadInfo(threadIds, Integer.MAX_VALUE);
+    }
+
+    private static void captureStackTraces(List<ThreadContextImpl> threadContexts,
+            ThreadInfo[] threadInfos, ConfigService configService) {
         int limit = configService.getAdvancedConfig().maxStackTraceSamplesPerTransaction();
         for (int i = 0; i < threadContexts.size(); i++) {
             ThreadContextImpl threadContext = threadContexts.get(i);
@@ -142,6 +196,7 @@ public class StackTraceCollector {
         }
 
         private void runInternal() {
+            long startTick = System.nanoTime();
             List<Transaction> transactions =
                     ImmutableList.copyOf(transactionRegistry.getTransactions());
             if (transactions.isEmpty()) {
@@ -157,7 +212,20 @@ public class StackTraceCollector {
                 }
                 activeThreadContexts.addAll(transaction.getActiveAuxThreadContexts());
             }
-            captureStackTraces(activeThreadContexts, configService);
+            if (activeThreadContexts.size() > MAX_THREADS_PER_INTERVAL) {
+                skippedThreadCount += activeThreadContexts.size() - MAX_THREADS_PER_INTERVAL;
+                activeThreadContexts =
+                        reservoirSample(activeThreadContexts, MAX_THREADS_PER_INTERVAL, random);
+            }
+            if (!activeThreadContexts.isEmpty()) {
+                long threadInfoStartTick = System.nanoTime();
+                @Nullable
+                ThreadInfo[] threadInfos = getThreadInfos(activeThreadContexts);
+                threadInfoNanos += System.nanoTime() - threadInfoStartTick;
+                captureStackTraces(activeThreadContexts, threadInfos, configService);
+                sampledThreadCount += activeThreadContexts.size();
+            }
+            totalNanos += System.nanoTime() - startTick;
         }
     }
 }
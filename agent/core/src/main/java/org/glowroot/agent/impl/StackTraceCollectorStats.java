@@ -0,0 +1,45 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+public class StackTraceCollectorStats implements StackTraceCollectorStatsMXBean {
+
+    private final StackTraceCollector stackTraceCollector;
+
+    public StackTraceCollectorStats(StackTraceCollector stackTraceCollector) {
+        this.stackTraceCollector = stackTraceCollector;
+    }
+
+    @Override
+    public double getTotalMillis() {
+        return stackTraceCollector.getTotalNanos() / 1000000.0;
+    }
+
+    @Override
+    public double getThreadInfoMillis() {
+        return stackTraceCollector.getThreadInfoNanos() / 1000000.0;
+    }
+
+    @Override
+    public long getSampledThreadCount() {
+        return stackTraceCollector.getSampledThreadCount();
+    }
+
+    @Override
+    public long getSkippedThreadCount() {
+        return stackTraceCollector.getSkippedThreadCount();
+    }
+}
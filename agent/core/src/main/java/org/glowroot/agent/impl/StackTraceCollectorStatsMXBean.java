@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+// all attributes are cumulative since jvm startup (not per tick), so they should be configured as
+// counter gauges, which chart the average delta per second (TotalMillis is one of the default
+// gauges, see ConfigService.getDefaultGaugeConfigs())
+public interface StackTraceCollectorStatsMXBean {
+
+    // time spent capturing stack traces
+    double getTotalMillis();
+
+    // time spent inside ThreadMXBean.getThreadInfo(), which is approximately the safepoint cost
+    double getThreadInfoMillis();
+
+    long getSampledThreadCount();
+
+    // threads left out by the per interval cap
+    long getSkippedThreadCount();
+}
@@ -237,9 +237,7 @@ public class ThreadContextImpl implements ThreadContextPlus {
     void mergeQueriesInto(QueryCollector queries) {
         QueryData curr = headQueryData;
         while (curr != null) {
-            queries.mergeQuery(curr.getQueryType(), curr.getQueryText(),
-                    curr.getTotalDurationNanos(), curr.getExecutionCount(), curr.hasTotalRows(),
-                    curr.getTotalRows());
+            queries.mergeQuery(curr);
             curr = curr.getNextQueryData();
         }
     }
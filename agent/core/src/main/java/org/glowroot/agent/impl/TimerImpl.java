@@ -1,5 +1,5 @@
 /*
- * Copyright 2011-2016 the original author or authors.
+ * Copyright 2011-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -21,6 +21,7 @@ import java.util.List;
 import javax.annotation.Nullable;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
@@ -62,9 +63,16 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     private static final Ticker ticker = Tickers.getTicker();
 
-    private final ThreadContextImpl threadContext;
-    private final @Nullable TimerImpl parent;
-    private final TimerNameImpl timerName;
+    // when enabled, the timers of transactions that are not going to be stored as traces are
+    // recycled after aggregation (see Transaction.recycleTimersAfterAggregation()), unless they
+    // were pinned by an in-flight reader (see Transaction.pinTimers()), this is off by default
+    // since it is only safe if plugins never hold on to a timer past the end of its transaction
+    static final boolean RECYCLE_TIMERS = Boolean.getBoolean("glowroot.internal.recycleTimers");
+
+    // the fields below are only non-final so that timers can be recycled
+    private ThreadContextImpl threadContext;
+    private @Nullable TimerImpl parent;
+    private TimerNameImpl timerName;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalNanos;
@@ -81,19 +89,49 @@ public class TimerImpl implements Timer, CommonTimerImpl {
 
     // separate linked list for safe iterating by other threads (e.g. partial trace capture and
     // active trace viewer)
-    private @MonotonicNonNull TimerImpl headChild;
-    private final @Nullable TimerImpl nextSibling;
+    private @Nullable TimerImpl headChild;
+    private @Nullable TimerImpl nextSibling;
+
+    // only non-null when recycling timers
+    private final @Nullable TimerImplPool pool;
+    // used to link timers while they are in the pool
+    private @Nullable TimerImpl nextPooled;
 
     static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName) {
-        return new TimerImpl(threadContext, null, null, timerName);
+        return createRootTimer(threadContext, timerName,
+                RECYCLE_TIMERS ? TimerImplPool.get() : null);
+    }
+
+    @VisibleForTesting
+    static TimerImpl createRootTimer(ThreadContextImpl threadContext, TimerNameImpl timerName,
+            @Nullable TimerImplPool pool) {
+        return create(threadContext, null, null, timerName, pool);
+    }
+
+    // nested timers are always created by the same thread as their root timer, so they share the
+    // root timer's (per-thread) pool
+    private static TimerImpl create(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName,
+            @Nullable TimerImplPool pool) {
+        if (pool == null) {
+            return new TimerImpl(threadContext, parent, nextSibling, timerName, null);
+        }
+        TimerImpl timer = pool.acquire();
+        if (timer == null) {
+            return new TimerImpl(threadContext, parent, nextSibling, timerName, pool);
+        }
+        timer.reset(threadContext, parent, nextSibling, timerName);
+        return timer;
     }
 
     private TimerImpl(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
-            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName,
+            @Nullable TimerImplPool pool) {
         this.timerName = timerName;
         this.parent = parent;
         this.nextSibling = nextSibling;
         this.threadContext = threadContext;
+        this.pool = pool;
     }
 
     // safe to be called from another thread when transaction is still active transaction
@@ -279,6 +317,26 @@ public class TimerImpl implements Timer, CommonTimerImpl {
         return currentTimer.startNestedTimer(extendedTimer);
     }
 
+    // only called on root timers, and only after the transaction has completed and been aggregated
+    // and no in-flight reader has pinned the timers
+    void recycle() {
+        if (pool == null) {
+            return;
+        }
+        // link the whole tree via nextPooled so it can be released to the pool in one shot
+        TimerImpl tail = linkForRecycle(this);
+        pool.release(this, tail);
+    }
+
+    @Nullable
+    TimerImpl getNextPooled() {
+        return nextPooled;
+    }
+
+    void setNextPooled(@Nullable TimerImpl nextPooled) {
+        this.nextPooled = nextPooled;
+    }
+
     void start(long startTick) {
         this.startTick = startTick;
         selfNestingLevel++;
@@ -301,10 +359,39 @@ public class TimerImpl implements Timer, CommonTimerImpl {
             nestedTimer.start(nestedTimerStartTick);
             return nestedTimer;
         }
-        nestedTimer = new TimerImpl(threadContext, this, headChild, timerNameImpl);
+        nestedTimer = create(threadContext, this, headChild, timerNameImpl, pool);
         nestedTimer.start(nestedTimerStartTick);
         nestedTimers.put(timerNameImpl, nestedTimer);
         headChild = nestedTimer;
         return nestedTimer;
     }
+
+    private void reset(ThreadContextImpl threadContext, @Nullable TimerImpl parent,
+            @Nullable TimerImpl nextSibling, TimerNameImpl timerName) {
+        this.threadContext = threadContext;
+        this.parent = parent;
+        this.nextSibling = nextSibling;
+        this.timerName = timerName;
+        totalNanos = 0;
+        count = 0;
+        startTick = 0;
+        selfNestingLevel = 0;
+        headChild = null;
+        if (nestedTimers != null) {
+            // retain the (already sized) nested timer map
+            nestedTimers.clear();
+        }
+    }
+
+    // returns the tail of the linked timers
+    private static TimerImpl linkForRecycle(TimerImpl timer) {
+        TimerImpl tail = timer;
+        TimerImpl curr = timer.headChild;
+        while (curr != null) {
+            tail.nextPooled = curr;
+            tail = linkForRecycle(curr);
+            curr = curr.nextSibling;
+        }
+        return tail;
+    }
 }
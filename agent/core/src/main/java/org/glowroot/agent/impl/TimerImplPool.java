@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.annotation.Nullable;
+
+// per-thread pool of timers
+//
+// timers are acquired only by the owning (transaction) thread, but are released by the aggregation
+// thread after the transaction has been aggregated, so released timers are pushed onto a lock free
+// stack which the owning thread drains in one shot once its local free list is empty
+class TimerImplPool {
+
+    private static final ThreadLocal<TimerImplPool> pools = new ThreadLocal<TimerImplPool>() {
+        @Override
+        protected TimerImplPool initialValue() {
+            return new TimerImplPool();
+        }
+    };
+
+    // only accessed by the owning thread
+    private @Nullable TimerImpl localHead;
+
+    private final AtomicReference</*@Nullable*/ TimerImpl> releasedHead =
+            new AtomicReference</*@Nullable*/ TimerImpl>();
+
+    static TimerImplPool get() {
+        return pools.get();
+    }
+
+    // only called by the owning thread
+    @Nullable
+    TimerImpl acquire() {
+        TimerImpl timer = localHead;
+        if (timer == null) {
+            timer = releasedHead.getAndSet(null);
+            if (timer == null) {
+                return null;
+            }
+        }
+        localHead = timer.getNextPooled();
+        timer.setNextPooled(null);
+        return timer;
+    }
+
+    // head and tail must already be linked via nextPooled
+    void release(TimerImpl head, TimerImpl tail) {
+        while (true) {
+            TimerImpl currHead = releasedHead.get();
+            tail.setNextPooled(currHead);
+            if (releasedHead.compareAndSet(currHead, head)) {
+                return;
+            }
+        }
+    }
+}
@@ -102,6 +102,10 @@ public class Transaction {
 
     private static final Random random = new Random();
 
+    private static final int TIMERS_NOT_RECYCLED = 0;
+    private static final int TIMERS_PINNED = 1;
+    private static final int TIMERS_RECYCLED = 2;
+
     private volatile @Nullable String traceId;
 
     private final long startTime;
@@ -150,6 +154,15 @@ public class Transaction {
 
     private volatile boolean partiallyStored;
 
+    // not volatile, relies on the memory barrier of handing the transaction to the aggregator
+    private boolean recycleTimersAfterAggregation;
+
+    // transactions can still be reached after they have been aggregated by readers that picked
+    // them up while in-flight (e.g. active traces displayed in the UI and partial trace storage),
+    // so those readers pin the timers before walking them, and timers are only recycled if they
+    // were not pinned
+    private final AtomicInteger timerRecycleState = new AtomicInteger(TIMERS_NOT_RECYCLED);
+
     private long captureTime;
 
     // memory barrier is used to ensure memory visibility of entries and timers at key points,
@@ -407,6 +420,8 @@ public class Transaction {
 
     void mergeQueriesInto(QueryCollector queries) {
         memoryBarrierRead();
+        // so that executions across the main and auxiliary threads are counted together
+        queries.startTransaction();
         mainThreadContext.mergeQueriesInto(queries);
         synchronized (mainThreadContext) {
             if (auxThreadContexts != null) {
@@ -647,6 +662,46 @@ public class Transaction {
         checkNotNull(transactionEntry).remove();
     }
 
+    // this needs to be called before handing the transaction to the aggregator
+    void recycleTimersAfterAggregation() {
+        if (!TimerImpl.RECYCLE_TIMERS || async) {
+            return;
+        }
+        synchronized (mainThreadContext) {
+            // aux thread contexts can outlive the transaction
+            if (auxThreadContexts != null) {
+                return;
+            }
+        }
+        recycleTimersAfterAggregation = true;
+    }
+
+    // called by the aggregator after the transaction has been aggregated
+    void onAggregated() {
+        if (recycleTimersAfterAggregation) {
+            recycleTimersUnlessPinned();
+        }
+    }
+
+    @VisibleForTesting
+    boolean recycleTimersUnlessPinned() {
+        if (timerRecycleState.compareAndSet(TIMERS_NOT_RECYCLED, TIMERS_RECYCLED)) {
+            mainThreadContext.getRootTimer().recycle();
+            return true;
+        }
+        return false;
+    }
+
+    // must be called (and return true) before walking the timers of a transaction that was
+    // reached while in-flight, returns false if the timers have already been recycled, in which
+    // case the transaction has completed and is not going to be stored as a trace
+    public boolean pinTimers() {
+        if (timerRecycleState.compareAndSet(TIMERS_NOT_RECYCLED, TIMERS_PINNED)) {
+            return true;
+        }
+        return timerRecycleState.get() == TIMERS_PINNED;
+    }
+
     @Nullable
     ThreadContextImpl startAuxThreadContext(@Nullable TraceEntryImpl parentTraceEntry,
             @Nullable TraceEntryImpl parentThreadContextPriorEntry, TimerName auxTimerName,
@@ -110,9 +110,15 @@ public class TransactionCollector {
         // capture time is calculated by the aggregator because it depends on monotonically
         // increasing capture times so it can flush aggregates without concern for new data
         // arriving with a prior capture time
-        long captureTime = aggregator.add(transaction);
         final boolean slow = shouldStoreSlow(transaction);
-        if (!slow && !shouldStoreError(transaction)) {
+        boolean storeTrace = slow || shouldStoreError(transaction);
+        if (!storeTrace) {
+            // the timers are only recycled after aggregation if no in-flight reader has pinned
+            // them, see Transaction.pinTimers()
+            transaction.recycleTimersAfterAggregation();
+        }
+        long captureTime = aggregator.add(transaction);
+        if (!storeTrace) {
             return;
         }
         // limit doesn't apply to transactions that were already (partially) stored to make sure
@@ -148,6 +154,10 @@ public class TransactionCollector {
     // no need to throttle partial trace storage since throttling is handled upstream by using a
     // single thread executor in PartialTraceStorageWatcher
     public void storePartialTrace(Transaction transaction) {
+        if (!transaction.pinTimers()) {
+            // transaction has already completed and is not going to be stored
+            return;
+        }
         try {
             TraceReader traceReader = TraceCreator.createTraceReaderForPartial(transaction,
                     clock.currentTimeMillis(), ticker.read());
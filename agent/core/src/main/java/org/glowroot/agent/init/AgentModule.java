@@ -22,12 +22,16 @@ import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.jar.JarFile;
 
 import javax.annotation.Nullable;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.StandardSystemProperty;
 import com.google.common.base.Supplier;
 import com.google.common.base.Ticker;
 import com.google.common.collect.Lists;
@@ -45,6 +49,7 @@ import org.glowroot.agent.impl.GlowrootServiceImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl;
 import org.glowroot.agent.impl.ServiceRegistryImpl.ConfigServiceFactory;
 import org.glowroot.agent.impl.StackTraceCollector;
+import org.glowroot.agent.impl.StackTraceCollectorStats;
 import org.glowroot.agent.impl.TimerNameCache;
 import org.glowroot.agent.impl.TransactionCollector;
 import org.glowroot.agent.impl.TransactionRegistry;
@@ -56,6 +61,7 @@ import org.glowroot.agent.live.LiveTraceRepositoryImpl;
 import org.glowroot.agent.live.LiveWeavingServiceImpl;
 import org.glowroot.agent.util.LazyPlatformMBeanServer;
 import org.glowroot.agent.util.OptionalService;
+import org.glowroot.agent.util.ThreadFactories;
 import org.glowroot.agent.util.ThreadAllocatedBytes;
 import org.glowroot.agent.util.Tickers;
 import org.glowroot.agent.weaving.AdviceCache;
@@ -63,6 +69,7 @@ import org.glowroot.agent.weaving.AnalyzedWorld;
 import org.glowroot.agent.weaving.IsolatedWeavingClassLoader;
 import org.glowroot.agent.weaving.PreInitializeWeavingClasses;
 import org.glowroot.agent.weaving.Weaver;
+import org.glowroot.agent.weaving.WeavingCache;
 import org.glowroot.agent.weaving.WeavingClassFileTransformer;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
@@ -82,6 +89,14 @@ public class AgentModule {
     private static final long ROLLUP_0_INTERVAL_MILLIS =
             Long.getLong("glowroot.internal.rollup.0.intervalMillis", MINUTES.toMillis(1));
 
+    private static final boolean WEAVING_CACHE_DISABLED =
+            Boolean.getBoolean("glowroot.internal.weaving.disableCache");
+
+    // analyze the jar files on the class path in the background during startup, see
+    // AnalyzedWorld.prewarm()
+    private static final boolean WEAVING_PREWARM =
+            Boolean.getBoolean("glowroot.internal.weaving.prewarm");
+
     @OnlyUsedByTests
     public static final ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader> isolatedWeavingClassLoader =
             new ThreadLocal</*@Nullable*/ IsolatedWeavingClassLoader>();
@@ -112,7 +127,8 @@ public class AgentModule {
     public AgentModule(Clock clock, @Nullable Ticker nullableTicker, final PluginCache pluginCache,
             final ConfigService configService,
             Supplier<ScheduledExecutorService> backgroundExecutorSupplier, Collector collector,
-            @Nullable Instrumentation instrumentation, File agentDir) throws Exception {
+            @Nullable Instrumentation instrumentation, File agentDir, String glowrootVersion)
+            throws Exception {
 
         Ticker ticker = nullableTicker == null ? Tickers.getTicker() : nullableTicker;
         this.configService = configService;
@@ -129,9 +145,15 @@ public class AgentModule {
                 adviceCache.getShimTypes(), adviceCache.getMixinTypes());
         final TimerNameCache timerNameCache = new TimerNameCache();
 
+        WeavingCache weavingCache = null;
+        // instrumentation is null when debugging with LocalContainer
+        if (instrumentation != null && !WEAVING_CACHE_DISABLED) {
+            weavingCache = WeavingCache.create(new File(agentDir, "tmp/weaving-cache.bin"),
+                    glowrootVersion, adviceCache.getShimTypes(), adviceCache.getMixinTypes());
+        }
         Weaver weaver = new Weaver(adviceCache.getAdvisorsSupplier(), adviceCache.getShimTypes(),
-                adviceCache.getMixinTypes(), analyzedWorld, transactionRegistry, timerNameCache,
-                configService);
+                adviceCache.getMixinTypes(), analyzedWorld, weavingCache, transactionRegistry,
+                timerNameCache, configService);
 
         if (instrumentation == null) {
             // instrumentation is null when debugging with LocalContainer
@@ -151,6 +173,9 @@ public class AgentModule {
                 jvmRetransformClassesSupported = false;
             }
             logRunnableCallableClassWarningIfNeeded(instrumentation);
+            if (WEAVING_PREWARM) {
+                prewarmAnalyzedWorld(analyzedWorld);
+            }
         }
 
         // now that instrumentation is set up, it is safe to create scheduled executor
@@ -199,6 +224,8 @@ public class AgentModule {
         long gaugeCollectionIntervalMillis = configService.getGaugeCollectionIntervalMillis();
         gaugeCollector.scheduleWithFixedDelay(gaugeCollectionIntervalMillis, MILLISECONDS);
         stackTraceCollector = new StackTraceCollector(transactionRegistry, configService, random);
+        lazyPlatformMBeanServer.lazyRegisterMBean(new StackTraceCollectorStats(stackTraceCollector),
+                "org.glowroot:type=StackTraceCollector");
 
         immedateTraceStoreWatcher = new ImmediateTraceStoreWatcher(backgroundExecutor,
                 transactionRegistry, transactionCollector, configService, ticker);
@@ -295,6 +322,31 @@ public class AgentModule {
                 extraExplanation);
     }
 
+    private static void prewarmAnalyzedWorld(AnalyzedWorld analyzedWorld) {
+        List<File> jarFiles = Lists.newArrayList();
+        String classPath = StandardSystemProperty.JAVA_CLASS_PATH.value();
+        if (classPath != null) {
+            for (String path : Splitter.on(File.pathSeparatorChar).omitEmptyStrings()
+                    .split(classPath)) {
+                File file = new File(path);
+                if (path.endsWith(".jar") && file.isFile()) {
+                    jarFiles.add(file);
+                }
+            }
+        }
+        if (jarFiles.isEmpty()) {
+            return;
+        }
+        // leave the remaining processors to the application, which is starting up at the same time
+        int threadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(threadCount, jarFiles.size()),
+                ThreadFactories.create("Glowroot-Weaving-Prewarm-%d"));
+        analyzedWorld.prewarm(jarFiles, ClassLoader.getSystemClassLoader(), executor);
+        // the threads exit once the queued tasks complete
+        executor.shutdown();
+    }
+
     // now init plugins to give them a chance to do something in their static initializer
     // e.g. append their package to jboss.modules.system.pkgs
     private static void initPlugins(List<PluginDescriptor> pluginDescriptors) {
@@ -86,7 +86,8 @@ public class CentralGlowrootAgentInit implements GlowrootAgentInit {
                 createBackgroundExecutorSupplier();
 
         final AgentModule agentModule = new AgentModule(clock, ticker, pluginCache, configService,
-                backgroundExecutorSupplier, collectorProxy, instrumentation, agentDir);
+                backgroundExecutorSupplier, collectorProxy, instrumentation, agentDir,
+                glowrootVersion);
 
         final ScheduledExecutorService backgroundExecutor = backgroundExecutorSupplier.get();
 
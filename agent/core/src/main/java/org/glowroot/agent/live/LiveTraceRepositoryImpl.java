@@ -72,6 +72,10 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.pinTimers()) {
+                    // transaction has completed and is not going to be stored
+                    return null;
+                }
                 return createTraceHeader(transaction);
             }
         }
@@ -84,6 +88,10 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.pinTimers()) {
+                    // transaction has completed and is not going to be stored
+                    return null;
+                }
                 // FIXME stream to central, similar to collectTrace
                 CollectingEntryVisitor entryVisitor = new CollectingEntryVisitor();
                 transaction.accept(ticker.read(), entryVisitor);
@@ -128,6 +136,10 @@ public class LiveTraceRepositoryImpl implements LiveTraceRepository {
         for (Transaction transaction : Iterables.concat(transactionRegistry.getTransactions(),
                 transactionCollector.getPendingTransactions())) {
             if (transaction.getTraceId().equals(traceId)) {
+                if (!transaction.pinTimers()) {
+                    // transaction has completed and is not going to be stored
+                    return null;
+                }
                 // FIXME stream to central, similar to collectTrace
                 CollectingTraceVisitor traceVisitor = new CollectingTraceVisitor();
                 TraceReader traceReader = createTraceReader(transaction);
@@ -59,6 +59,16 @@ public class MutableAggregateTimer {
         timer.mergeChildTimersInto2(childTimers);
     }
 
+    // copies (does not retain references to) the given timer's child timers, since the given timer
+    // may still be updated after the merge
+    public void merge(MutableAggregateTimer timer) {
+        count += timer.count;
+        totalDurationNanos += timer.totalDurationNanos;
+        for (MutableAggregateTimer toBeMergedChildTimer : timer.childTimers) {
+            mergeChildTimer(toBeMergedChildTimer);
+        }
+    }
+
     public Aggregate.Timer toProto() {
         Aggregate.Timer.Builder builder = Aggregate.Timer.newBuilder()
                 .setName(name)
@@ -70,4 +80,18 @@ public class MutableAggregateTimer {
         }
         return builder.build();
     }
+
+    private void mergeChildTimer(MutableAggregateTimer toBeMergedChildTimer) {
+        for (MutableAggregateTimer childTimer : childTimers) {
+            if (toBeMergedChildTimer.name.equals(childTimer.name)
+                    && toBeMergedChildTimer.extended == childTimer.extended) {
+                childTimer.merge(toBeMergedChildTimer);
+                return;
+            }
+        }
+        MutableAggregateTimer childTimer = new MutableAggregateTimer(toBeMergedChildTimer.name,
+                toBeMergedChildTimer.extended, 0, 0, new ArrayList<MutableAggregateTimer>());
+        childTimer.merge(toBeMergedChildTimer);
+        childTimers.add(childTimer);
+    }
 }
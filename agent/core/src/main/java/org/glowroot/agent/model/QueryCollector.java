@@ -15,7 +15,7 @@
  */
 package org.glowroot.agent.model;
 
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -23,45 +23,72 @@ import java.util.Map.Entry;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Ordering;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Doubles;
-import org.immutables.value.Value;
 
 import org.glowroot.common.config.StorageConfig;
-import org.glowroot.common.util.Styles;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.common.model.LazyHistogram.ScratchBuffer;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
+import static com.google.common.base.Preconditions.checkNotNull;
 
 public class QueryCollector {
 
-    private static final Ordering<Entry<String, MutableQuery>> bySmallestTotalDuration =
-            new Ordering<Entry<String, MutableQuery>>() {
-                @Override
-                public int compare(Entry<String, MutableQuery> left,
-                        Entry<String, MutableQuery> right) {
-                    return Doubles.compare(left.getValue().getTotalDurationNanos(),
-                            right.getValue().getTotalDurationNanos());
-                }
-            };
+    // opt-in since it changes the query text that is displayed
+    private static final boolean NORMALIZE_IN_LISTS =
+            Boolean.getBoolean("glowroot.internal.query.normalizeInLists");
+
+    // number of queries per query type (the top queries by total duration) that are sent with a
+    // histogram of their individual execution durations, opt-in since recording the individual
+    // durations adds to the memory of each transaction
+    static final int HISTOGRAM_LIMIT =
+            Integer.getInteger("glowroot.internal.query.histogramLimit", 0);
+
+    // a query executed more than this many times (counting each batch as a single execution)
+    // within a single transaction is counted as repeated, which is a sign of N+1 queries
+    private static final int REPEATED_THRESHOLD =
+            Integer.getInteger("glowroot.internal.query.repeatedThreshold", 10);
+
+    // histograms are kept for more queries than are sent, so that the queries which move into the
+    // top queries late in the interval still have (mostly) recorded durations
+    private static final int HISTOGRAM_RETAINED_MULTIPLIER = 2;
 
     private static final int REMOVE_SMALLEST_N = 10;
 
-    // first key is query type, second key is query text
-    private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
+    // key is query type
+    private final Map<String, QueryTable> queries = Maps.newHashMap();
     private final int limit;
     private final int maxMultiplierWhileBuilding;
-    private final boolean traceLevel;
+    private final boolean normalizeInLists;
+    private final int histogramLimit;
 
-    private final Map<String, MinQuery> minQueryPerType = Maps.newHashMap();
+    // used to accumulate the executions of each query across the thread contexts of a single
+    // transaction, see startTransaction()
+    private int transactionId;
 
-    public QueryCollector(int limit, int maxMultiplierWhileBuilding, boolean traceLevel) {
+    public QueryCollector(int limit, int maxMultiplierWhileBuilding) {
+        this(limit, maxMultiplierWhileBuilding, NORMALIZE_IN_LISTS, HISTOGRAM_LIMIT);
+    }
+
+    @VisibleForTesting
+    QueryCollector(int limit, int maxMultiplierWhileBuilding, boolean normalizeInLists) {
+        this(limit, maxMultiplierWhileBuilding, normalizeInLists, HISTOGRAM_LIMIT);
+    }
+
+    @VisibleForTesting
+    public QueryCollector(int limit, int maxMultiplierWhileBuilding, boolean normalizeInLists,
+            int histogramLimit) {
         this.limit = limit;
         this.maxMultiplierWhileBuilding = maxMultiplierWhileBuilding;
-        this.traceLevel = traceLevel;
+        this.normalizeInLists = normalizeInLists;
+        this.histogramLimit = histogramLimit;
     }
 
     public List<Aggregate.QueriesByType> toAggregateProto(
@@ -70,67 +97,133 @@ public class QueryCollector {
             return ImmutableList.of();
         }
         List<Aggregate.QueriesByType> proto = Lists.newArrayList();
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            List<Aggregate.Query> queries =
-                    Lists.newArrayListWithCapacity(outerEntry.getValue().values().size());
-            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                queries.add(entry.getValue().toAggregateProto(entry.getKey(),
-                        sharedQueryTextCollector));
-            }
-            if (queries.size() > limit) {
-                orderAggregateQueries(queries);
-                queries = queries.subList(0, limit);
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
+        for (Entry<String, QueryTable> entry : queries.entrySet()) {
+            QueryTable table = entry.getValue();
+            List<Aggregate.Query> queries = Lists.newArrayListWithCapacity(table.size);
+            if (table.size > limit || histogramLimit > 0) {
+                // reverse order by total duration
+                Integer[] slots = table.getSlotsBySmallestTotalDuration();
+                for (int i = 0; i < Math.min(table.size, limit); i++) {
+                    int slot = slots[table.size - 1 - i];
+                    queries.add(table.toAggregateProto(slot, sharedQueryTextCollector,
+                            i < histogramLimit ? scratchBuffer : null));
+                }
+            } else {
+                for (int i = 0; i < table.size; i++) {
+                    queries.add(table.toAggregateProto(i, sharedQueryTextCollector, null));
+                }
             }
             proto.add(Aggregate.QueriesByType.newBuilder()
-                    .setType(outerEntry.getKey())
+                    .setType(entry.getKey())
                     .addAllQuery(queries)
                     .build());
         }
         return proto;
     }
 
+    // called before merging the queries of each transaction
+    public void startTransaction() {
+        transactionId++;
+    }
+
     public void mergeQuery(String queryType, String queryText, long totalDurationNanos,
             long executionCount, boolean hasTotalRows, long totalRows) {
-        Map<String, MutableQuery> queriesForType = queries.get(queryType);
-        if (queriesForType == null) {
-            queriesForType = Maps.newHashMap();
-            queries.put(queryType, queriesForType);
+        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, hasTotalRows,
+                totalRows, executionCount, null, 0);
+    }
+
+    public void mergeQuery(QueryData queryData) {
+        mergeQuery(queryData.getQueryType(), queryData.getQueryText(),
+                queryData.getTotalDurationNanos(), queryData.getExecutionCount(),
+                queryData.hasTotalRows(), queryData.getTotalRows(),
+                queryData.getRoundTripCount(), queryData.getRecordedDurationNanos(),
+                queryData.getRecordedDurationCount());
+    }
+
+    private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
+            long executionCount, boolean hasTotalRows, long totalRows, long roundTripCount,
+            long /*@Nullable*/ [] recordedDurationNanos, int recordedDurationCount) {
+        QueryTable table = queries.get(queryType);
+        if (table == null) {
+            table = new QueryTable(histogramLimit * HISTOGRAM_RETAINED_MULTIPLIER);
+            queries.put(queryType, table);
+        }
+        String normalizedQueryText =
+                normalizeInLists ? QueryTextNormalizer.collapseInLists(queryText) : queryText;
+        int slot = mergeQuery(table, normalizedQueryText, totalDurationNanos, executionCount,
+                hasTotalRows, totalRows);
+        if (slot == -1) {
+            return;
+        }
+        table.addRoundTrips(slot, transactionId, roundTripCount);
+        if (histogramLimit > 0) {
+            table.recordDurations(slot, totalDurationNanos, executionCount, roundTripCount,
+                    recordedDurationNanos, recordedDurationCount);
+        }
+    }
+
+    // used to merge the queries collected by the aggregation shards, the query texts are already
+    // normalized, and the repeated transaction counts are already complete since each transaction
+    // is aggregated by a single shard
+    public void merge(QueryCollector collector) {
+        for (Entry<String, QueryTable> entry : collector.queries.entrySet()) {
+            String queryType = entry.getKey();
+            QueryTable table = queries.get(queryType);
+            if (table == null) {
+                table = new QueryTable(histogramLimit * HISTOGRAM_RETAINED_MULTIPLIER);
+                queries.put(queryType, table);
+            }
+            QueryTable toBeMergedTable = entry.getValue();
+            for (int i = 0; i < toBeMergedTable.size; i++) {
+                int slot = mergeQuery(table, toBeMergedTable.queryTexts[i],
+                        toBeMergedTable.totalDurationNanos[i], toBeMergedTable.executionCounts[i],
+                        toBeMergedTable.hasTotalRows[i], toBeMergedTable.totalRows[i]);
+                if (slot == -1) {
+                    continue;
+                }
+                table.repeatedTransactionCounts[slot] +=
+                        toBeMergedTable.repeatedTransactionCounts[i];
+                LazyHistogram toBeMergedHistogram = toBeMergedTable.durationNanosHistograms[i];
+                if (toBeMergedHistogram != null) {
+                    table.mergeDurations(slot, toBeMergedTable.totalDurationNanos[i],
+                            toBeMergedTable.executionCounts[i], toBeMergedHistogram);
+                }
+            }
         }
-        mergeQuery(queryType, queryText, totalDurationNanos, executionCount, totalRows,
-                hasTotalRows, queriesForType);
     }
 
     public void mergeQueriesInto(org.glowroot.common.model.QueryCollector collector) {
-        for (Entry<String, Map<String, MutableQuery>> outerEntry : queries.entrySet()) {
-            for (Entry<String, MutableQuery> entry : outerEntry.getValue().entrySet()) {
-                String fullQueryText = entry.getKey();
+        for (Entry<String, QueryTable> entry : queries.entrySet()) {
+            QueryTable table = entry.getValue();
+            for (int i = 0; i < table.size; i++) {
+                String fullQueryText = table.queryTexts[i];
                 String truncatedQueryText;
                 String fullQueryTextSha1;
                 if (fullQueryText.length() > StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     truncatedQueryText =
                             fullQueryText.substring(0, StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE);
-                    fullQueryTextSha1 =
-                            Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString();
+                    fullQueryTextSha1 = table.getFullQueryTextSha1(i);
                 } else {
                     truncatedQueryText = fullQueryText;
                     fullQueryTextSha1 = null;
                 }
-                MutableQuery query = entry.getValue();
-                collector.mergeQuery(outerEntry.getKey(), truncatedQueryText, fullQueryTextSha1,
-                        query.getTotalDurationNanos(), query.getExecutionCount(),
-                        query.hasTotalRows(), query.getTotalRows());
+                collector.mergeQuery(entry.getKey(), truncatedQueryText, fullQueryTextSha1,
+                        table.totalDurationNanos[i], table.executionCounts[i],
+                        table.hasTotalRows[i], table.totalRows[i],
+                        table.repeatedTransactionCounts[i], table.durationNanosHistograms[i]);
             }
         }
     }
 
     public @Nullable String getFullQueryText(String fullQueryTextSha1) {
-        for (Entry<String, Map<String, MutableQuery>> entry : queries.entrySet()) {
-            for (String fullQueryText : entry.getValue().keySet()) {
+        for (QueryTable table : queries.values()) {
+            for (int i = 0; i < table.size; i++) {
+                String fullQueryText = table.queryTexts[i];
                 if (fullQueryText.length() <= StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE) {
                     continue;
                 }
-                String sha1 = Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString();
-                if (fullQueryTextSha1.equals(sha1)) {
+                if (fullQueryTextSha1.equals(table.getFullQueryTextSha1(i))) {
                     return fullQueryText;
                 }
             }
@@ -138,56 +231,361 @@ public class QueryCollector {
         return null;
     }
 
-    private void mergeQuery(String queryType, String queryText, long totalDurationNanos,
-            long executionCount, long totalRows, boolean hasTotalRows,
-            Map<String, MutableQuery> queriesForType) {
-        MutableQuery aggregateQuery = queriesForType.get(queryText);
+    // returns the slot, or -1 if the query was not retained
+    private int mergeQuery(QueryTable table, String queryText, long totalDurationNanos,
+            long executionCount, boolean hasTotalRows, long totalRows) {
+        long hash = QueryTable.hash(queryText);
+        int slot = table.getSlot(hash, queryText);
         boolean truncateAndRecalculateMinQuery = false;
-        if (aggregateQuery == null) {
+        if (slot == -1) {
             if (maxMultiplierWhileBuilding != 0
-                    && queriesForType.size() >= limit * maxMultiplierWhileBuilding) {
-                MinQuery minQuery = minQueryPerType.get(queryType);
-                if (minQuery != null && totalDurationNanos < minQuery.totalDurationNanos()) {
-                    return;
+                    && table.size >= limit * maxMultiplierWhileBuilding) {
+                if (table.hasMinTotalDurationNanos
+                        && totalDurationNanos < table.minTotalDurationNanos) {
+                    return -1;
                 }
                 truncateAndRecalculateMinQuery = true;
             }
-            aggregateQuery = new MutableQuery(traceLevel);
-            queriesForType.put(queryText, aggregateQuery);
+            slot = table.addSlot(hash, queryText);
+        }
+        table.totalDurationNanos[slot] += totalDurationNanos;
+        table.executionCounts[slot] += executionCount;
+        if (hasTotalRows) {
+            table.hasTotalRows[slot] = true;
+            table.totalRows[slot] += totalRows;
         }
-        aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
-        aggregateQuery.addToExecutionCount(executionCount);
-        aggregateQuery.addToTotalRows(hasTotalRows, totalRows);
         if (truncateAndRecalculateMinQuery) {
-            // TODO report checker framework issue that occurs without this suppression
-            @SuppressWarnings("assignment.type.incompatible")
-            List<Entry<String, MutableQuery>> sortedEntries =
-                    bySmallestTotalDuration.sortedCopy(queriesForType.entrySet());
             // remove smallest N (instead of just smallest 1) to avoid re-sort again so quickly
-            for (int i = 0; i < REMOVE_SMALLEST_N; i++) {
-                queriesForType.remove(sortedEntries.get(i).getKey());
-            }
-            MutableQuery lastQuery = sortedEntries.get(REMOVE_SMALLEST_N).getValue();
-            minQueryPerType.put(queryType,
-                    ImmutableMinQuery.of(lastQuery, lastQuery.getTotalDurationNanos()));
+            return table.removeSmallest(REMOVE_SMALLEST_N, slot);
         }
+        return slot;
     }
 
-    private static void orderAggregateQueries(List<Aggregate.Query> queries) {
-        // reverse sort by total
-        Collections.sort(queries, new Comparator<Aggregate.Query>() {
-            @Override
-            public int compare(Aggregate.Query left, Aggregate.Query right) {
-                return Doubles.compare(right.getTotalDurationNanos(), left.getTotalDurationNanos());
+    // the queries for a single query type, stored in parallel arrays (instead of a map of query
+    // text to mutable query object) to minimize the per-query memory overhead, since apps that
+    // generate many distinct query texts can make this one of the larger consumers of agent heap
+    //
+    // slots are dense (0 until size) and are looked up through an open addressing index keyed by a
+    // hash of the query text (see hash() below), with the query text itself used to verify the
+    // match
+    private static class QueryTable {
+
+        private static final int INITIAL_CAPACITY = 16;
+        private static final int EMPTY_BUCKET = -1;
+
+        // length is a power of 2 and is kept at least twice the size so that probes stay short
+        private int[] buckets = newBuckets(INITIAL_CAPACITY * 2);
+
+        private long[] hashes = new long[INITIAL_CAPACITY];
+        private String[] queryTexts = new String[INITIAL_CAPACITY];
+        // lazily calculated, and only for query texts over the aggregate query text truncate limit
+        private /*@Nullable*/ String[] fullQueryTextSha1s = new String[INITIAL_CAPACITY];
+        private double[] totalDurationNanos = new double[INITIAL_CAPACITY];
+        private long[] executionCounts = new long[INITIAL_CAPACITY];
+        private boolean[] hasTotalRows = new boolean[INITIAL_CAPACITY];
+        private long[] totalRows = new long[INITIAL_CAPACITY];
+        private long[] repeatedTransactionCounts = new long[INITIAL_CAPACITY];
+        // the transaction that transactionRoundTripCounts is currently accumulating for
+        private int[] transactionIds = new int[INITIAL_CAPACITY];
+        private long[] transactionRoundTripCounts = new long[INITIAL_CAPACITY];
+        // only used when per-query histograms are enabled, and only allocated for the slots with
+        // the largest total durations, see getOrCreateHistogram()
+        private /*@Nullable*/ LazyHistogram[] durationNanosHistograms =
+                new LazyHistogram[INITIAL_CAPACITY];
+        private int size;
+
+        private boolean hasMinTotalDurationNanos;
+        private double minTotalDurationNanos;
+
+        private final int histogramSlotLimit;
+        private int histogramCount;
+        // lower bound on the smallest total duration of the slots that have a histogram (it stays
+        // a lower bound since total durations only grow and slots are only removed)
+        private double minHistogramTotalDurationNanos;
+
+        private QueryTable(int histogramSlotLimit) {
+            this.histogramSlotLimit = histogramSlotLimit;
+        }
+
+        private int getSlot(long hash, String queryText) {
+            int mask = buckets.length - 1;
+            int bucket = (int) hash & mask;
+            while (true) {
+                int slot = buckets[bucket];
+                if (slot == EMPTY_BUCKET) {
+                    return -1;
+                }
+                if (hashes[slot] == hash) {
+                    String slotQueryText = queryTexts[slot];
+                    // distinct query texts can (rarely) have the same hash
+                    if (slotQueryText == queryText || slotQueryText.equals(queryText)) {
+                        return slot;
+                    }
+                }
+                bucket = (bucket + 1) & mask;
             }
-        });
-    }
+        }
+
+        private int addSlot(long hash, String queryText) {
+            if (size == queryTexts.length) {
+                grow(size * 2);
+            }
+            int slot = size++;
+            hashes[slot] = hash;
+            queryTexts[slot] = queryText;
+            fullQueryTextSha1s[slot] = null;
+            totalDurationNanos[slot] = 0;
+            executionCounts[slot] = 0;
+            hasTotalRows[slot] = false;
+            totalRows[slot] = 0;
+            repeatedTransactionCounts[slot] = 0;
+            transactionIds[slot] = -1;
+            transactionRoundTripCounts[slot] = 0;
+            durationNanosHistograms[slot] = null;
+            if (size * 2 > buckets.length) {
+                rebuildBuckets(buckets.length * 2);
+            } else {
+                addToBuckets(slot);
+            }
+            return slot;
+        }
+
+        private String getFullQueryTextSha1(int slot) {
+            String fullQueryTextSha1 = fullQueryTextSha1s[slot];
+            if (fullQueryTextSha1 == null) {
+                fullQueryTextSha1 =
+                        Hashing.sha1().hashString(queryTexts[slot], Charsets.UTF_8).toString();
+                fullQueryTextSha1s[slot] = fullQueryTextSha1;
+            }
+            return fullQueryTextSha1;
+        }
+
+        private void addRoundTrips(int slot, int transactionId, long roundTripCount) {
+            if (transactionIds[slot] != transactionId) {
+                transactionIds[slot] = transactionId;
+                transactionRoundTripCounts[slot] = 0;
+            }
+            long priorRoundTripCount = transactionRoundTripCounts[slot];
+            transactionRoundTripCounts[slot] += roundTripCount;
+            if (priorRoundTripCount <= REPEATED_THRESHOLD
+                    && transactionRoundTripCounts[slot] > REPEATED_THRESHOLD) {
+                repeatedTransactionCounts[slot]++;
+            }
+        }
+
+        private void recordDurations(int slot, long totalDurationNanos, long executionCount,
+                long roundTripCount, long /*@Nullable*/ [] recordedDurationNanos,
+                int recordedDurationCount) {
+            LazyHistogram histogram = getOrCreateHistogram(slot, totalDurationNanos,
+                    executionCount);
+            if (histogram == null) {
+                return;
+            }
+            long remainingDurationNanos = totalDurationNanos;
+            for (int i = 0; i < recordedDurationCount; i++) {
+                long durationNanos = checkNotNull(recordedDurationNanos)[i];
+                histogram.add(durationNanos);
+                remainingDurationNanos -= durationNanos;
+            }
+            long remainingCount = roundTripCount - recordedDurationCount;
+            if (remainingCount > 0) {
+                histogram.add(remainingDurationNanos / remainingCount, remainingCount);
+            }
+        }
+
+        private void mergeDurations(int slot, double totalDurationNanos, long executionCount,
+                LazyHistogram toBeMergedHistogram) {
+            LazyHistogram histogram = getOrCreateHistogram(slot, totalDurationNanos,
+                    executionCount);
+            if (histogram != null) {
+                histogram.merge(toBeMergedHistogram);
+            }
+        }
+
+        // only the top queries by total duration are sent with a histogram, so a histogram is only
+        // allocated for a slot once its total duration is among the largest histogramSlotLimit
+        // slots, in which case the histogram of the smallest of those is released
+        //
+        // the given total duration and execution count are the ones just merged into the slot, and
+        // any executions prior to those are added to a newly allocated histogram at their average
+        // duration
+        private @Nullable LazyHistogram getOrCreateHistogram(int slot,
+                double mergedTotalDurationNanos, long mergedExecutionCount) {
+            LazyHistogram histogram = durationNanosHistograms[slot];
+            if (histogram != null) {
+                return histogram;
+            }
+            if (histogramCount >= histogramSlotLimit) {
+                if (totalDurationNanos[slot] <= minHistogramTotalDurationNanos) {
+                    return null;
+                }
+                int minSlot = getSmallestHistogramSlot();
+                minHistogramTotalDurationNanos = totalDurationNanos[minSlot];
+                if (totalDurationNanos[slot] <= minHistogramTotalDurationNanos) {
+                    return null;
+                }
+                durationNanosHistograms[minSlot] = null;
+                histogramCount--;
+            }
+            histogram = LazyHistogram.createCompact();
+            long priorExecutionCount = executionCounts[slot] - mergedExecutionCount;
+            if (priorExecutionCount > 0) {
+                double priorTotalDurationNanos =
+                        totalDurationNanos[slot] - mergedTotalDurationNanos;
+                histogram.add((long) (priorTotalDurationNanos / priorExecutionCount),
+                        priorExecutionCount);
+            }
+            durationNanosHistograms[slot] = histogram;
+            histogramCount++;
+            return histogram;
+        }
+
+        private int getSmallestHistogramSlot() {
+            int minSlot = -1;
+            for (int i = 0; i < size; i++) {
+                if (durationNanosHistograms[i] != null && (minSlot == -1
+                        || totalDurationNanos[i] < totalDurationNanos[minSlot])) {
+                    minSlot = i;
+                }
+            }
+            return minSlot;
+        }
+
+        private Aggregate.Query toAggregateProto(int slot,
+                SharedQueryTextCollector sharedQueryTextCollector,
+                @Nullable ScratchBuffer histogramScratchBuffer) {
+            int sharedQueryTextIndex = sharedQueryTextCollector.getIndex(queryTexts[slot]);
+            Aggregate.Query.Builder builder = Aggregate.Query.newBuilder()
+                    .setSharedQueryTextIndex(sharedQueryTextIndex)
+                    .setTotalDurationNanos(totalDurationNanos[slot])
+                    .setExecutionCount(executionCounts[slot])
+                    .setRepeatedTransactionCount(repeatedTransactionCounts[slot]);
+            if (hasTotalRows[slot]) {
+                builder.setTotalRows(OptionalInt64.newBuilder().setValue(totalRows[slot]));
+            }
+            LazyHistogram histogram = durationNanosHistograms[slot];
+            if (histogramScratchBuffer != null && histogram != null) {
+                builder.setDurationNanosHistogram(histogram.toProto(histogramScratchBuffer));
+            }
+            return builder.build();
+        }
+
+        private Integer[] getSlotsBySmallestTotalDuration() {
+            Integer[] slotsBySmallestTotalDuration = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                slotsBySmallestTotalDuration[i] = i;
+            }
+            Arrays.sort(slotsBySmallestTotalDuration, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer left, Integer right) {
+                    return Doubles.compare(totalDurationNanos[left], totalDurationNanos[right]);
+                }
+            });
+            return slotsBySmallestTotalDuration;
+        }
+
+        // removes the n slots with the smallest total duration, and records the smallest total
+        // duration of the remaining slots as the minimum for new queries to be added
+        //
+        // returns the new location of the given slot, or -1 if it was removed
+        private int removeSmallest(int n, int slot) {
+            Integer[] slotsBySmallestTotalDuration = getSlotsBySmallestTotalDuration();
+            minTotalDurationNanos = totalDurationNanos[slotsBySmallestTotalDuration[n]];
+            hasMinTotalDurationNanos = true;
+            boolean[] remove = new boolean[size];
+            for (int i = 0; i < n; i++) {
+                remove[slotsBySmallestTotalDuration[i]] = true;
+            }
+            int newSlot = -1;
+            int to = 0;
+            for (int from = 0; from < size; from++) {
+                if (remove[from]) {
+                    if (durationNanosHistograms[from] != null) {
+                        histogramCount--;
+                    }
+                    continue;
+                }
+                if (from == slot) {
+                    newSlot = to;
+                }
+                if (to != from) {
+                    hashes[to] = hashes[from];
+                    queryTexts[to] = queryTexts[from];
+                    fullQueryTextSha1s[to] = fullQueryTextSha1s[from];
+                    totalDurationNanos[to] = totalDurationNanos[from];
+                    executionCounts[to] = executionCounts[from];
+                    hasTotalRows[to] = hasTotalRows[from];
+                    totalRows[to] = totalRows[from];
+                    repeatedTransactionCounts[to] = repeatedTransactionCounts[from];
+                    transactionIds[to] = transactionIds[from];
+                    transactionRoundTripCounts[to] = transactionRoundTripCounts[from];
+                    durationNanosHistograms[to] = durationNanosHistograms[from];
+                }
+                to++;
+            }
+            // release references to the removed query texts and histograms
+            Arrays.fill(queryTexts, to, size, null);
+            Arrays.fill(fullQueryTextSha1s, to, size, null);
+            Arrays.fill(durationNanosHistograms, to, size, null);
+            size = to;
+            rebuildBuckets(buckets.length);
+            return newSlot;
+        }
+
+        private void grow(int capacity) {
+            hashes = Arrays.copyOf(hashes, capacity);
+            queryTexts = Arrays.copyOf(queryTexts, capacity);
+            fullQueryTextSha1s = Arrays.copyOf(fullQueryTextSha1s, capacity);
+            totalDurationNanos = Arrays.copyOf(totalDurationNanos, capacity);
+            executionCounts = Arrays.copyOf(executionCounts, capacity);
+            hasTotalRows = Arrays.copyOf(hasTotalRows, capacity);
+            totalRows = Arrays.copyOf(totalRows, capacity);
+            repeatedTransactionCounts = Arrays.copyOf(repeatedTransactionCounts, capacity);
+            transactionIds = Arrays.copyOf(transactionIds, capacity);
+            transactionRoundTripCounts = Arrays.copyOf(transactionRoundTripCounts, capacity);
+            durationNanosHistograms = Arrays.copyOf(durationNanosHistograms, capacity);
+        }
+
+        private void rebuildBuckets(int bucketCount) {
+            buckets = newBuckets(bucketCount);
+            for (int slot = 0; slot < size; slot++) {
+                addToBuckets(slot);
+            }
+        }
 
-    @Value.Immutable
-    @Styles.AllParameters
-    interface MinQuery {
-        MutableQuery query();
-        double totalDurationNanos();
+        private void addToBuckets(int slot) {
+            int mask = buckets.length - 1;
+            int bucket = (int) hashes[slot] & mask;
+            while (buckets[bucket] != EMPTY_BUCKET) {
+                bucket = (bucket + 1) & mask;
+            }
+            buckets[bucket] = slot;
+        }
+
+        private static int[] newBuckets(int bucketCount) {
+            int[] buckets = new int[bucketCount];
+            Arrays.fill(buckets, EMPTY_BUCKET);
+            return buckets;
+        }
+
+        // String caches its hash code, so the hash is derived from the hash code and the length
+        // instead of re-hashing the (often long) query text on every merge
+        //
+        // this is stored in a long, but it has only about 32 bits of entropy (two query texts with
+        // the same String hash code and length always collide), which is fine since it is only used
+        // to pick the bucket and to skip most string comparisons, and matches are always verified
+        // by comparing the query text itself
+        private static long hash(String queryText) {
+            long hash = ((long) queryText.hashCode() << 32) | queryText.length();
+            // murmur3 64-bit finalizer, so that the low bits used for the bucket index depend on
+            // all of the input bits
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb53fe1a85a63L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
     }
 
     public static class SharedQueryTextCollector {
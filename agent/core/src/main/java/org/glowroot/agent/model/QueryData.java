@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,8 +15,12 @@
  */
 package org.glowroot.agent.model;
 
+import java.util.Arrays;
+
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
+
 // TODO update this comment that was copied from TimerImpl
 //
 // instances are updated by a single thread, but can be read by other threads
@@ -38,13 +42,23 @@ import javax.annotation.Nullable;
 // all timing data is in nanoseconds
 public class QueryData {
 
+    // individual durations are only recorded when per-query histograms are enabled
+    private static final boolean RECORD_DURATIONS = QueryCollector.HISTOGRAM_LIMIT > 0;
+
+    // bounds the memory per query per transaction, executions beyond this are merged into the
+    // histogram at their average duration
+    private static final int MAX_RECORDED_DURATIONS = 64;
+
     private final String queryType;
     private final String queryText;
     private final @Nullable QueryData nextQueryData;
+    private final boolean recordDurations;
 
     // nanosecond rollover (292 years) isn't a concern for total time on a single transaction
     private long totalDurationNanos;
     private long executionCount;
+    // unlike executionCount, batches are counted as a single round trip
+    private long roundTripCount;
 
     // this is needed to differentiate between queries that return no rows, and queries which don't
     // even have a concept of row (e.g. http client requests which are also tracked as queries)
@@ -53,11 +67,22 @@ public class QueryData {
 
     private long startTick;
     private int selfNestingLevel;
+    private boolean extended;
+
+    private long /*@Nullable*/ [] recordedDurationNanos;
+    private int recordedDurationCount;
 
     public QueryData(String queryType, String queryText, @Nullable QueryData nextQueryData) {
+        this(queryType, queryText, nextQueryData, RECORD_DURATIONS);
+    }
+
+    @VisibleForTesting
+    QueryData(String queryType, String queryText, @Nullable QueryData nextQueryData,
+            boolean recordDurations) {
         this.queryType = queryType;
         this.queryText = queryText;
         this.nextQueryData = nextQueryData;
+        this.recordDurations = recordDurations;
     }
 
     public String getQueryType() {
@@ -76,6 +101,7 @@ public class QueryData {
         if (selfNestingLevel++ == 0) {
             this.startTick = startTick;
             executionCount += batchSize;
+            roundTripCount++;
         }
     }
 
@@ -103,6 +129,21 @@ public class QueryData {
         return executionCount;
     }
 
+    // only called after transaction completion
+    long getRoundTripCount() {
+        return roundTripCount;
+    }
+
+    // only called after transaction completion
+    long /*@Nullable*/ [] getRecordedDurationNanos() {
+        return recordedDurationNanos;
+    }
+
+    // only called after transaction completion
+    int getRecordedDurationCount() {
+        return recordedDurationCount;
+    }
+
     // only called after transaction completion
     public boolean hasTotalRows() {
         return hasTotalRows;
@@ -116,10 +157,36 @@ public class QueryData {
     void extend(long startTick) {
         if (selfNestingLevel++ == 0) {
             this.startTick = startTick;
+            extended = true;
         }
     }
 
     private void endInternal(long endTick) {
-        totalDurationNanos += endTick - startTick;
+        long durationNanos = endTick - startTick;
+        totalDurationNanos += durationNanos;
+        if (recordDurations) {
+            recordDuration(durationNanos);
+        }
+        extended = false;
+    }
+
+    private void recordDuration(long durationNanos) {
+        if (extended) {
+            // e.g. iterating over the result set, which is part of the most recent execution
+            if (recordedDurationNanos != null && recordedDurationCount == roundTripCount) {
+                recordedDurationNanos[recordedDurationCount - 1] += durationNanos;
+            }
+            return;
+        }
+        if (recordedDurationCount == MAX_RECORDED_DURATIONS) {
+            return;
+        }
+        if (recordedDurationNanos == null) {
+            recordedDurationNanos = new long[4];
+        } else if (recordedDurationCount == recordedDurationNanos.length) {
+            recordedDurationNanos = Arrays.copyOf(recordedDurationNanos,
+                    Math.min(recordedDurationCount * 2, MAX_RECORDED_DURATIONS));
+        }
+        recordedDurationNanos[recordedDurationCount++] = durationNanos;
     }
 }
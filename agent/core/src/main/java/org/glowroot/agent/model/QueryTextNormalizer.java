@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+// ORMs commonly generate a distinct query text for each size of IN list, e.g.
+// "where id in (?, ?, ?)", which can blow up the number of distinct queries per type, so the
+// contents of IN lists that consist only of literals and bind parameters are collapsed to "..."
+//
+// this is a simple scanner (not a parser), it only needs to avoid matching inside of string
+// literals and to leave anything it does not understand (e.g. subqueries) unchanged
+class QueryTextNormalizer {
+
+    private QueryTextNormalizer() {}
+
+    static String collapseInLists(String queryText) {
+        int length = queryText.length();
+        StringBuilder sb = null;
+        int copiedUpTo = 0;
+        int i = 0;
+        while (i < length) {
+            char c = queryText.charAt(i);
+            if (c == '\'') {
+                i = skipQuoted(queryText, i);
+                if (i == -1) {
+                    // unterminated string literal
+                    break;
+                }
+                continue;
+            }
+            if ((c == 'i' || c == 'I') && i + 1 < length
+                    && (queryText.charAt(i + 1) == 'n' || queryText.charAt(i + 1) == 'N')
+                    && (i == 0 || !isIdentifierPart(queryText.charAt(i - 1)))) {
+                int openParen = skipWhitespace(queryText, i + 2);
+                if (openParen < length && queryText.charAt(openParen) == '(') {
+                    int closeParen = getEndOfLiteralList(queryText, openParen + 1);
+                    if (closeParen != -1) {
+                        if (sb == null) {
+                            sb = new StringBuilder(length);
+                        }
+                        sb.append(queryText, copiedUpTo, openParen + 1);
+                        sb.append("...");
+                        copiedUpTo = closeParen;
+                        i = closeParen + 1;
+                        continue;
+                    }
+                }
+            }
+            i++;
+        }
+        if (sb == null) {
+            return queryText;
+        }
+        sb.append(queryText, copiedUpTo, length);
+        return sb.toString();
+    }
+
+    // returns the index of the closing paren, or -1 if the list is not a list of literals
+    private static int getEndOfLiteralList(String queryText, int start) {
+        int i = skipWhitespace(queryText, start);
+        while (true) {
+            i = skipLiteral(queryText, i);
+            if (i == -1) {
+                return -1;
+            }
+            i = skipWhitespace(queryText, i);
+            if (i == queryText.length()) {
+                return -1;
+            }
+            char c = queryText.charAt(i);
+            if (c == ')') {
+                return i;
+            }
+            if (c != ',') {
+                return -1;
+            }
+            i = skipWhitespace(queryText, i + 1);
+        }
+    }
+
+    // returns the index following the literal, or -1 if there is not a literal at the index
+    private static int skipLiteral(String queryText, int start) {
+        int length = queryText.length();
+        if (start >= length) {
+            return -1;
+        }
+        char c = queryText.charAt(start);
+        if (c == '?') {
+            return start + 1;
+        }
+        if (c == '\'') {
+            return skipQuoted(queryText, start);
+        }
+        if (c == ':' || c == '$') {
+            // named or numbered bind parameter
+            int i = start + 1;
+            while (i < length && (Character.isLetterOrDigit(queryText.charAt(i))
+                    || queryText.charAt(i) == '_')) {
+                i++;
+            }
+            return i == start + 1 ? -1 : i;
+        }
+        int i = start;
+        if (c == '-' || c == '+') {
+            i++;
+        }
+        int digitsStart = i;
+        while (i < length && isNumberPart(queryText.charAt(i))) {
+            i++;
+        }
+        return i == digitsStart ? -1 : i;
+    }
+
+    // returns the index following the closing quote, or -1 if there is no closing quote
+    private static int skipQuoted(String queryText, int start) {
+        int length = queryText.length();
+        int i = start + 1;
+        while (i < length) {
+            if (queryText.charAt(i) == '\'') {
+                if (i + 1 < length && queryText.charAt(i + 1) == '\'') {
+                    // escaped quote
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(String queryText, int start) {
+        int i = start;
+        while (i < queryText.length() && Character.isWhitespace(queryText.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == '"';
+    }
+
+    private static boolean isNumberPart(char c) {
+        return (c >= '0' && c <= '9') || c == '.';
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nullable;
+
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.plugin.api.weaving.Pointcut;
+
+// index of the class level pointcut criteria (class name, class annotation and super type
+// restriction) of the advisors, so that each loaded class (the vast majority of which do not match
+// any advice) is only checked against the few advisors that it could possibly match, instead of
+// against every advice
+//
+// guava collections are intentionally not used here since this is on the weaving path (see
+// PreInitializeWeavingClasses)
+class AdviceIndex {
+
+    private static final int CONSTANT_UTF8 = 1;
+
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = ascii("RuntimeVisibleAnnotations");
+    private static final byte[] RUNTIME_INVISIBLE_ANNOTATIONS =
+            ascii("RuntimeInvisibleAnnotations");
+
+    // the advisors list only changes on re-weaving, so the index for the most recently used
+    // advisors list is retained and re-used
+    private static volatile @Nullable AdviceIndex latest;
+
+    private final List<Advice> advisors;
+
+    // values are positions in the advisors list, so that candidates are returned in their
+    // original order
+    private final Map<String, BitSet> byClassName = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> byClassAnnotation = new HashMap<String, BitSet>();
+    private final Map<String, BitSet> bySuperTypeRestriction = new HashMap<String, BitSet>();
+    // class name patterns, and pointcuts without any class level criteria
+    private final BitSet unindexed = new BitSet();
+
+    // class annotation descriptors (e.g. "Ljavax/ws/rs/Path;") as they appear in the constant
+    // pool, indexed by length so that constant pool entries can be checked without decoding them
+    private final byte[][][] classAnnotationDescsByLength;
+    // true if some class annotation can only be matched by decoding the class annotations, e.g.
+    // class annotation patterns
+    private final boolean hasUnindexedClassAnnotation;
+
+    private AdviceIndex(List<Advice> advisors) {
+        this.advisors = advisors;
+        List<byte[]> classAnnotationDescs = new ArrayList<byte[]>();
+        boolean hasUnindexedClassAnnotation = false;
+        int maxLength = -1;
+        for (int i = 0; i < advisors.size(); i++) {
+            Advice advice = advisors.get(i);
+            Pointcut pointcut = advice.pointcut();
+            String className = pointcut.className();
+            String classAnnotation = pointcut.classAnnotation();
+            String superTypeRestriction = pointcut.superTypeRestriction();
+            if (!classAnnotation.isEmpty()) {
+                byte[] desc = getDescIfAscii(classAnnotation);
+                if (advice.pointcutClassAnnotationPattern() != null || desc == null) {
+                    hasUnindexedClassAnnotation = true;
+                } else {
+                    classAnnotationDescs.add(desc);
+                    maxLength = Math.max(maxLength, desc.length);
+                }
+            }
+            if (advice.pointcutClassNamePattern() == null && !className.isEmpty()) {
+                add(byClassName, className, i);
+            } else if (advice.pointcutClassNamePattern() != null) {
+                unindexed.set(i);
+            } else if (advice.pointcutClassAnnotationPattern() == null
+                    && !classAnnotation.isEmpty()) {
+                add(byClassAnnotation, classAnnotation, i);
+            } else if (advice.pointcutClassAnnotationPattern() == null
+                    && advice.pointcutSuperTypeRestrictionPattern() == null
+                    && !superTypeRestriction.isEmpty()) {
+                add(bySuperTypeRestriction, superTypeRestriction, i);
+            } else {
+                unindexed.set(i);
+            }
+        }
+        List<List<byte[]>> descsByLength = new ArrayList<List<byte[]>>();
+        for (int i = 0; i <= maxLength; i++) {
+            descsByLength.add(new ArrayList<byte[]>());
+        }
+        for (byte[] desc : classAnnotationDescs) {
+            descsByLength.get(desc.length).add(desc);
+        }
+        classAnnotationDescsByLength = new byte[maxLength + 1][][];
+        for (int i = 0; i <= maxLength; i++) {
+            classAnnotationDescsByLength[i] = descsByLength.get(i).toArray(new byte[0][]);
+        }
+        this.hasUnindexedClassAnnotation = hasUnindexedClassAnnotation;
+    }
+
+    static AdviceIndex of(List<Advice> advisors) {
+        AdviceIndex adviceIndex = latest;
+        if (adviceIndex == null || adviceIndex.advisors != advisors) {
+            adviceIndex = new AdviceIndex(advisors);
+            latest = adviceIndex;
+        }
+        return adviceIndex;
+    }
+
+    // returns the advisors whose class level criteria the class may match (the caller still needs
+    // to check the returned advisors via AdviceMatcher)
+    List<Advice> getCandidateAdvisors(String className, List<String> classAnnotations,
+            Collection<String> superClassNames) {
+        BitSet candidates = (BitSet) unindexed.clone();
+        addAll(candidates, byClassName.get(className));
+        if (!byClassAnnotation.isEmpty()) {
+            for (String classAnnotation : classAnnotations) {
+                String annotation = classAnnotation.replace('/', '.').substring(1,
+                        classAnnotation.length() - 1);
+                addAll(candidates, byClassAnnotation.get(annotation));
+            }
+        }
+        if (!bySuperTypeRestriction.isEmpty()) {
+            for (String superClassName : superClassNames) {
+                addAll(candidates, bySuperTypeRestriction.get(superClassName));
+            }
+        }
+        if (candidates.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Advice> candidateAdvisors = new ArrayList<Advice>(candidates.cardinality());
+        for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1)) {
+            candidateAdvisors.add(advisors.get(i));
+        }
+        return candidateAdvisors;
+    }
+
+    // scans the constant pool (which ClassReader has already indexed, without parsing the rest of
+    // the class), returns false only if the class definitely has no annotation that any class
+    // annotation pointcut could match
+    boolean mayMatchClassAnnotation(ClassReader cr) {
+        if (classAnnotationDescsByLength.length == 0 && !hasUnindexedClassAnnotation) {
+            return false;
+        }
+        byte[] b = cr.b;
+        int itemCount = cr.getItemCount();
+        for (int i = 1; i < itemCount; i++) {
+            // offset is just past the tag byte, and is 0 for the unused entry following long and
+            // double constants
+            int offset = cr.getItem(i);
+            if (offset == 0 || b[offset - 1] != CONSTANT_UTF8) {
+                continue;
+            }
+            int length = cr.readUnsignedShort(offset);
+            int start = offset + 2;
+            if (hasUnindexedClassAnnotation
+                    && (equals(b, start, length, RUNTIME_VISIBLE_ANNOTATIONS)
+                            || equals(b, start, length, RUNTIME_INVISIBLE_ANNOTATIONS))) {
+                return true;
+            }
+            if (length < classAnnotationDescsByLength.length) {
+                for (byte[] desc : classAnnotationDescsByLength[length]) {
+                    if (equals(b, start, length, desc)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // cheap check (based only on the class itself and its direct super types) used to decide which
+    // classes are worth analyzing ahead of time, see AnalyzedWorld.prewarm()
+    //
+    // pointcuts without any class level criteria are ignored, since they would match every class
+    boolean mayMatchWithoutHierarchy(ClassReader cr) {
+        if (mayMatchClassAnnotation(cr)) {
+            return true;
+        }
+        List<String> names = new ArrayList<String>();
+        names.add(ClassNames.fromInternalName(cr.getClassName()));
+        String superName = cr.getSuperName();
+        if (superName != null) {
+            names.add(ClassNames.fromInternalName(superName));
+        }
+        for (String interfaceName : cr.getInterfaces()) {
+            names.add(ClassNames.fromInternalName(interfaceName));
+        }
+        for (String name : names) {
+            if (byClassName.containsKey(name) || bySuperTypeRestriction.containsKey(name)) {
+                return true;
+            }
+            for (int i = unindexed.nextSetBit(0); i >= 0; i = unindexed.nextSetBit(i + 1)) {
+                Advice advice = advisors.get(i);
+                Pattern classNamePattern = advice.pointcutClassNamePattern();
+                if (classNamePattern != null && classNamePattern.matcher(name).matches()) {
+                    return true;
+                }
+                Pattern superTypeRestrictionPattern =
+                        advice.pointcutSuperTypeRestrictionPattern();
+                if (superTypeRestrictionPattern != null
+                        && superTypeRestrictionPattern.matcher(name).matches()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void add(Map<String, BitSet> map, String key, int index) {
+        BitSet bitSet = map.get(key);
+        if (bitSet == null) {
+            bitSet = new BitSet();
+            map.put(key, bitSet);
+        }
+        bitSet.set(index);
+    }
+
+    private static void addAll(BitSet candidates, @Nullable BitSet bitSet) {
+        if (bitSet != null) {
+            candidates.or(bitSet);
+        }
+    }
+
+    private static boolean equals(byte[] b, int start, int length, byte[] bytes) {
+        if (length != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (b[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // returns null if the class name is not plain ascii, in which case its modified utf-8
+    // encoding is not simply its chars
+    private static byte /*@Nullable*/ [] getDescIfAscii(String className) {
+        String desc = 'L' + className.replace('.', '/') + ';';
+        for (int i = 0; i < desc.length(); i++) {
+            char c = desc.charAt(i);
+            if (c == 0 || c > 0x7f) {
+                return null;
+            }
+        }
+        return ascii(desc);
+    }
+
+    private static byte[] ascii(String str) {
+        byte[] bytes = new byte[str.length()];
+        for (int i = 0; i < str.length(); i++) {
+            bytes[i] = (byte) str.charAt(i);
+        }
+        return bytes;
+    }
+}
@@ -15,28 +15,37 @@
  */
 package org.glowroot.agent.weaving;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.net.URL;
 import java.security.CodeSource;
 import java.util.Collections;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 
 import javax.annotation.Nullable;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
 import com.google.common.primitives.Bytes;
 import org.immutables.value.Value;
@@ -49,6 +58,8 @@ import org.glowroot.agent.config.InstrumentationConfig;
 import org.glowroot.agent.weaving.ClassLoaders.LazyDefinedClass;
 import org.glowroot.common.util.Styles;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
 public class AnalyzedWorld {
 
     private static final Logger logger = LoggerFactory.getLogger(AnalyzedWorld.class);
@@ -86,6 +97,16 @@ public class AnalyzedWorld {
     private final ConcurrentMap<String, AnalyzedClass> bootstrapLoaderWorld =
             new ConcurrentHashMap<String, AnalyzedClass>();
 
+    // classes currently being analyzed, so that concurrent class loading threads that need to
+    // resolve the same (typically common) super types wait for the first thread's analysis instead
+    // of each reading and analyzing the same class (the memoized results are stored in the
+    // concurrent, and therefore lock-striped, maps above)
+    //
+    // entries are removed as soon as the analysis completes, so these strong references to class
+    // loaders are only short-lived
+    private final ConcurrentMap<InFlightKey, InFlightAnalysis> inFlightAnalyses =
+            new ConcurrentHashMap<InFlightKey, InFlightAnalysis>();
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
@@ -144,6 +165,28 @@ public class AnalyzedWorld {
         return getOrCreateAnalyzedClass(className, loader);
     }
 
+    // analyzes the classes in the given jar files in the background, ahead of them being loaded,
+    // so that resolving the super types of classes while they are being loaded finds them already
+    // analyzed, instead of having to read and analyze them on the class loading thread
+    //
+    // only classes that pass a cheap advice pre-check (see AdviceIndex.mayMatchWithoutHierarchy())
+    // are analyzed, since analyzing every class on the class path would retain an analyzed class
+    // for many classes that the application never loads
+    public void prewarm(List<File> jarFiles, final ClassLoader loader, ExecutorService executor) {
+        for (final File jarFile : jarFiles) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prewarm(jarFile, loader);
+                    } catch (Throwable t) {
+                        logger.error("error prewarming {}: {}", jarFile, t.getMessage(), t);
+                    }
+                }
+            });
+        }
+    }
+
     List<Advice> mergeInstrumentationAnnotations(List<Advice> advisors, byte[] classBytes,
             @Nullable ClassLoader loader, String className) {
         // TODO after removing deprecated @Instrument, change marker to
@@ -229,12 +272,40 @@ public class AnalyzedWorld {
                     return analyzedClass;
                 }
             }
-            analyzedClass = createAnalyzedClass(className, analyzedClassLoader);
-            analyzedClass = putAnalyzedClass(loaderAnalyzedClasses, analyzedClass);
+            analyzedClass = createAnalyzedClassOnce(className, analyzedClassLoader,
+                    loaderAnalyzedClasses);
         }
         return analyzedClass;
     }
 
+    private AnalyzedClass createAnalyzedClassOnce(String className, @Nullable ClassLoader loader,
+            ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses)
+            throws ClassNotFoundException, IOException {
+        InFlightKey key = new InFlightKey(loader, className);
+        InFlightAnalysis inFlightAnalysis = new InFlightAnalysis();
+        InFlightAnalysis existingInFlightAnalysis =
+                inFlightAnalyses.putIfAbsent(key, inFlightAnalysis);
+        if (existingInFlightAnalysis == null) {
+            try {
+                return putAnalyzedClass(loaderAnalyzedClasses,
+                        createAnalyzedClass(className, loader));
+            } finally {
+                inFlightAnalyses.remove(key);
+                inFlightAnalysis.latch.countDown();
+            }
+        }
+        if (existingInFlightAnalysis.thread != Thread.currentThread()
+                && existingInFlightAnalysis.await()) {
+            AnalyzedClass analyzedClass = loaderAnalyzedClasses.get(className);
+            if (analyzedClass != null) {
+                return analyzedClass;
+            }
+        }
+        // the other thread's analysis failed (in which case this will most likely fail the same
+        // way and throw the appropriate exception), or did not complete in time
+        return putAnalyzedClass(loaderAnalyzedClasses, createAnalyzedClass(className, loader));
+    }
+
     private AnalyzedClass putAnalyzedClass(
             ConcurrentMap<String, AnalyzedClass> loaderAnalyzedClasses,
             AnalyzedClass analyzedClass) {
@@ -247,6 +318,47 @@ public class AnalyzedWorld {
         return analyzedClass;
     }
 
+    private void prewarm(File jarFile, ClassLoader loader) throws IOException {
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors.get());
+        JarFile jar = new JarFile(jarFile);
+        try {
+            Enumeration<JarEntry> e = jar.entries();
+            while (e.hasMoreElements()) {
+                JarEntry jarEntry = e.nextElement();
+                String name = jarEntry.getName();
+                // skip META-INF/versions/..., module-info.class and package-info.class
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")
+                        || name.contains("-")) {
+                    continue;
+                }
+                byte[] classBytes;
+                InputStream in = jar.getInputStream(jarEntry);
+                try {
+                    classBytes = ByteStreams.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+                if (!adviceIndex.mayMatchWithoutHierarchy(new ClassReader(classBytes))) {
+                    continue;
+                }
+                String className = ClassNames
+                        .fromInternalName(name.substring(0, name.length() - ".class".length()));
+                try {
+                    // this reads the class via loader.getResource(), so the analyzed class is
+                    // based on the same bytes that the class loader will define (even if the
+                    // class is also present in an earlier jar file)
+                    getOrCreateAnalyzedClass(className, loader);
+                } catch (ClassNotFoundException f) {
+                    logger.debug(f.getMessage(), f);
+                } catch (IOException f) {
+                    logger.debug(f.getMessage(), f);
+                }
+            }
+        } finally {
+            jar.close();
+        }
+    }
+
     private List<Class<?>> getClassesWithReweavableAdvice(@Nullable ClassLoader loader,
             boolean remove) {
         List<Class<?>> classes = Lists.newArrayList();
@@ -320,8 +432,14 @@ public class AnalyzedWorld {
         byte[] bytes = Resources.toByteArray(url);
         List<Advice> advisors =
                 mergeInstrumentationAnnotations(this.advisors.get(), bytes, loader, className);
+        ClassReader cr = new ClassReader(bytes);
+        AnalyzedClass analyzedClass = ClassAnalyzer.analyzeIfNoMatch(cr, advisors, shimTypes,
+                mixinTypes, loader, this, null);
+        if (analyzedClass != null) {
+            return analyzedClass;
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(bytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        cr.accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         ClassAnalyzer classAnalyzer = new ClassAnalyzer(accv.getThinClass(), advisors, shimTypes,
                 mixinTypes, loader, this, null, bytes);
         classAnalyzer.analyzeMethods();
@@ -387,6 +505,12 @@ public class AnalyzedWorld {
         return analyzedClass;
     }
 
+    @VisibleForTesting
+    @Nullable
+    AnalyzedClass getAlreadyAnalyzedClass(String className, @Nullable ClassLoader loader) {
+        return getAnalyzedClasses(loader).get(className);
+    }
+
     private ConcurrentMap<String, AnalyzedClass> getAnalyzedClasses(@Nullable ClassLoader loader) {
         if (loader == null) {
             return bootstrapLoaderWorld;
@@ -550,6 +674,53 @@ public class AnalyzedWorld {
         return matchingAdvisors;
     }
 
+    // not using an immutables class for the key since it would compare loaders with equals()
+    private static class InFlightKey {
+
+        private final @Nullable ClassLoader loader;
+        private final String className;
+
+        private InFlightKey(@Nullable ClassLoader loader, String className) {
+            this.loader = loader;
+            this.className = className;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (!(obj instanceof InFlightKey)) {
+                return false;
+            }
+            InFlightKey that = (InFlightKey) obj;
+            return loader == that.loader && className.equals(that.className);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(loader) + className.hashCode();
+        }
+    }
+
+    private static class InFlightAnalysis {
+
+        // waiting is bounded, since the thread performing the analysis can be blocked (e.g. in
+        // createAnalyzedClassPlanB() loading a class) on a class loader lock that is held by the
+        // waiting thread, in which case the waiting thread gives up and analyzes the class itself
+        private static final long MAX_WAIT_MILLIS = 100;
+
+        private final Thread thread = Thread.currentThread();
+        private final CountDownLatch latch = new CountDownLatch(1);
+
+        private boolean await() {
+            try {
+                return latch.await(MAX_WAIT_MILLIS, MILLISECONDS);
+            } catch (InterruptedException e) {
+                // restore the interrupt status
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
     @Value.Immutable
     @Styles.AllParameters
     abstract static class ParseContext {
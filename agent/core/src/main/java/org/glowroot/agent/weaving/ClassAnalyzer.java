@@ -133,8 +133,10 @@ class ClassAnalyzer {
             superClassNames.add(analyzedClass.name());
         }
         this.superClassNames = ImmutableSet.copyOf(superClassNames);
+        List<Advice> candidateAdvisors = AdviceIndex.of(advisors)
+                .getCandidateAdvisors(className, thinClass.annotations(), superClassNames);
         adviceMatchers = AdviceMatcher.getAdviceMatchers(className, thinClass.annotations(),
-                superClassNames, advisors);
+                superClassNames, candidateAdvisors);
         if (intf) {
             shortCircuitBeforeAnalyzeMethods = adviceMatchers.isEmpty();
         } else {
@@ -145,6 +147,70 @@ class ClassAnalyzer {
         this.classBytes = classBytes;
     }
 
+    // cheap alternative to parsing the class with ThinClassVisitor and analyzing it with
+    // ClassAnalyzer, for the common case of a class that no advice, shim or mixin applies to
+    //
+    // only the class header, the constant pool and the method table are read (together with the
+    // already analyzed super types), and null is returned if the class may need to be analyzed
+    // (and possibly woven), in which case the caller needs to fall back to the full analysis
+    static @Nullable AnalyzedClass analyzeIfNoMatch(ClassReader cr, List<Advice> advisors,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes, @Nullable ClassLoader loader,
+            AnalyzedWorld analyzedWorld, @Nullable CodeSource codeSource) {
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors);
+        if (adviceIndex.mayMatchClassAnnotation(cr)) {
+            return null;
+        }
+        String className = ClassNames.fromInternalName(cr.getClassName());
+        if (!getMatchedShimTypes(shimTypes, className, ImmutableList.<AnalyzedClass>of(),
+                ImmutableList.<AnalyzedClass>of()).isEmpty()
+                || !getMatchedMixinTypes(mixinTypes, className, ImmutableList.<AnalyzedClass>of(),
+                        ImmutableList.<AnalyzedClass>of()).isEmpty()) {
+            return null;
+        }
+        int access = cr.getAccess();
+        String superClassName = ClassNames.fromInternalName(cr.getSuperName());
+        ImmutableList<String> interfaceNames =
+                ClassNames.fromInternalNames(Arrays.asList(cr.getInterfaces()));
+        ParseContext parseContext = ImmutableParseContext.of(className, codeSource);
+        List<AnalyzedClass> superAnalyzedClasses = Lists.newArrayList();
+        for (String interfaceName : interfaceNames) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(interfaceName, loader, parseContext));
+        }
+        if (!Modifier.isInterface(access)) {
+            superAnalyzedClasses.addAll(
+                    analyzedWorld.getAnalyzedHierarchy(superClassName, loader, parseContext));
+        }
+        Set<String> superClassNames = Sets.newHashSet();
+        superClassNames.add(className);
+        for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
+            // being more conservative than the full analysis here, since inherited shims and
+            // mixins are only applied if not already applied by a super class
+            if (!superAnalyzedClass.analyzedMethods().isEmpty()
+                    || !superAnalyzedClass.shimTypes().isEmpty()
+                    || !superAnalyzedClass.mixinTypes().isEmpty()) {
+                return null;
+            }
+            superClassNames.add(superAnalyzedClass.name());
+        }
+        // mayMatchClassAnnotation() returned false above, so there is no need to read the class
+        // annotations
+        List<String> classAnnotations = ImmutableList.of();
+        List<Advice> candidateAdvisors =
+                adviceIndex.getCandidateAdvisors(className, classAnnotations, superClassNames);
+        if (!AdviceMatcher.getAdviceMatchers(className, classAnnotations, superClassNames,
+                candidateAdvisors).isEmpty()) {
+            return null;
+        }
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(access)
+                .name(className)
+                .superName(superClassName)
+                .addAllInterfaceNames(interfaceNames)
+                .addAllPublicFinalMethods(readPublicFinalMethods(cr))
+                .build();
+    }
+
     void analyzeMethods() {
         methodAdvisors = Maps.newHashMap();
         bridgeTargetAdvisors = Maps.newHashMap();
@@ -470,6 +536,50 @@ class ClassAnalyzer {
         return ImmutableList.copyOf(matchedMixinTypes);
     }
 
+    // walks the fields and methods tables directly, skipping over attributes, which is much
+    // cheaper than ClassReader.accept()
+    private static List<PublicFinalMethod> readPublicFinalMethods(ClassReader cr) {
+        char[] buf = new char[cr.getMaxStringLength()];
+        // skip access flags, this class, super class and interfaces
+        int offset = cr.header + 6;
+        offset += 2 + 2 * cr.readUnsignedShort(offset);
+        // skip fields
+        int fieldCount = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < fieldCount; i++) {
+            offset = skipMember(cr, offset);
+        }
+        List<PublicFinalMethod> publicFinalMethods = Lists.newArrayList();
+        int methodCount = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < methodCount; i++) {
+            int access = cr.readUnsignedShort(offset);
+            if (Modifier.isFinal(access) && Modifier.isPublic(access)) {
+                ImmutablePublicFinalMethod.Builder builder = ImmutablePublicFinalMethod.builder()
+                        .name(cr.readUTF8(offset + 2, buf));
+                for (Type parameterType : Type.getArgumentTypes(cr.readUTF8(offset + 4, buf))) {
+                    builder.addParameterTypes(parameterType.getClassName());
+                }
+                publicFinalMethods.add(builder.build());
+            }
+            offset = skipMember(cr, offset);
+        }
+        return publicFinalMethods;
+    }
+
+    // skips over a field_info or method_info structure, returning the offset after it
+    private static int skipMember(ClassReader cr, int offset) {
+        // skip access flags, name and descriptor
+        offset += 6;
+        int attributeCount = cr.readUnsignedShort(offset);
+        offset += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            // skip attribute name, then the attribute length and contents
+            offset += 6 + cr.readInt(offset + 2);
+        }
+        return offset;
+    }
+
     private static boolean hasSuperAdvice(List<AnalyzedClass> superAnalyzedClasses) {
         for (AnalyzedClass superAnalyzedClass : superAnalyzedClasses) {
             if (!superAnalyzedClass.analyzedMethods().isEmpty()) {
@@ -49,6 +49,7 @@ import org.glowroot.agent.plugin.api.TimerName;
 import org.glowroot.agent.plugin.api.config.ConfigListener;
 import org.glowroot.agent.plugin.api.weaving.Pointcut;
 import org.glowroot.agent.weaving.AnalyzedWorld.ParseContext;
+import org.glowroot.agent.weaving.WeavingCache.CachedWeaving;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.objectweb.asm.Opcodes.ASM5;
@@ -60,10 +61,20 @@ public class Weaver {
     // useful for debugging java.lang.VerifyErrors
     private static final boolean VERIFY_WEAVING = Boolean.getBoolean("glowroot.weaving.verify");
 
+    // useful for measuring the benefit of the cheap pre-check for classes that no advice applies
+    // to, see ClassAnalyzer.analyzeIfNoMatch()
+    private static final boolean PRE_CHECK_DISABLED =
+            Boolean.getBoolean("glowroot.internal.weaving.disablePreCheck");
+
+    private static final String FELIX_BUNDLE_WIRING_IMPL =
+            "org/apache/felix/framework/BundleWiringImpl";
+    private static final String JBOSS_SERVER_IMPL = "org/jboss/system/server/ServerImpl";
+
     private final Supplier<List<Advice>> advisors;
     private final ImmutableList<ShimType> shimTypes;
     private final ImmutableList<MixinType> mixinTypes;
     private final AnalyzedWorld analyzedWorld;
+    private final @Nullable WeavingCache weavingCache;
     private final TransactionRegistry transactionRegistry;
     private final TimerName timerName;
 
@@ -71,12 +82,13 @@ public class Weaver {
 
     public Weaver(Supplier<List<Advice>> advisors, List<ShimType> shimTypes,
             List<MixinType> mixinTypes, AnalyzedWorld analyzedWorld,
-            TransactionRegistry transactionRegistry, TimerNameCache timerNameCache,
-            final ConfigService configService) {
+            @Nullable WeavingCache weavingCache, TransactionRegistry transactionRegistry,
+            TimerNameCache timerNameCache, final ConfigService configService) {
         this.advisors = advisors;
         this.shimTypes = ImmutableList.copyOf(shimTypes);
         this.mixinTypes = ImmutableList.copyOf(mixinTypes);
         this.analyzedWorld = analyzedWorld;
+        this.weavingCache = weavingCache;
         this.transactionRegistry = transactionRegistry;
         configService.addConfigListener(new ConfigListener() {
             @Override
@@ -121,19 +133,43 @@ public class Weaver {
 
     private byte/*@Nullable*/[] weaveUnderTimer(byte[] classBytes, String className,
             @Nullable CodeSource codeSource, @Nullable ClassLoader loader) {
-        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(this.advisors.get(),
+        List<Advice> baseAdvisors = this.advisors.get();
+        List<Advice> advisors = analyzedWorld.mergeInstrumentationAnnotations(baseAdvisors,
                 classBytes, loader, className);
+        // this only indexes the constant pool, the class is not parsed until accept() is called
+        ClassReader headerReader = new ClassReader(classBytes);
+        if (!PRE_CHECK_DISABLED && !isHackedClass(className)) {
+            AnalyzedClass analyzedClass = ClassAnalyzer.analyzeIfNoMatch(headerReader, advisors,
+                    shimTypes, mixinTypes, loader, analyzedWorld, codeSource);
+            if (analyzedClass != null) {
+                analyzedWorld.add(analyzedClass, loader);
+                return null;
+            }
+        }
+        String cacheKey = null;
+        // classes with @Instrumentation annotations are not cached since their advisors are
+        // generated (and defined in the class loader) as part of weaving
+        if (weavingCache != null && advisors == baseAdvisors && !isHackedClass(className)) {
+            cacheKey = weavingCache.getKey(classBytes, className, advisors, loader);
+            if (cacheKey != null) {
+                CachedWeaving cachedWeaving = weavingCache.get(cacheKey, advisors);
+                if (cachedWeaving != null) {
+                    analyzedWorld.add(cachedWeaving.getAnalyzedClass(), loader);
+                    return cachedWeaving.getWovenBytes();
+                }
+            }
+        }
         ThinClassVisitor accv = new ThinClassVisitor();
-        new ClassReader(classBytes).accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
+        headerReader.accept(accv, ClassReader.SKIP_FRAMES + ClassReader.SKIP_CODE);
         byte[] maybeProcessedBytes = null;
-        if (className.equals("org/apache/felix/framework/BundleWiringImpl")) {
+        if (className.equals(FELIX_BUNDLE_WIRING_IMPL)) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new FelixOsgiHackClassVisitor(cw);
             ClassReader cr = new ClassReader(classBytes);
             cr.accept(new JSRInlinerClassVisitor(cv), ClassReader.SKIP_FRAMES);
             maybeProcessedBytes = cw.toByteArray();
-        } else if (className.equals("org/jboss/system/server/ServerImpl")) {
+        } else if (className.equals(JBOSS_SERVER_IMPL)) {
             ClassWriter cw = new ComputeFramesClassWriter(ClassWriter.COMPUTE_FRAMES, analyzedWorld,
                     loader, codeSource, className);
             ClassVisitor cv = new JBoss4HackClassVisitor(cw);
@@ -145,7 +181,11 @@ public class Weaver {
                 mixinTypes, loader, analyzedWorld, codeSource, classBytes);
         classAnalyzer.analyzeMethods();
         if (!classAnalyzer.isWeavingRequired()) {
-            analyzedWorld.add(classAnalyzer.getAnalyzedClass(), loader);
+            AnalyzedClass analyzedClass = classAnalyzer.getAnalyzedClass();
+            analyzedWorld.add(analyzedClass, loader);
+            if (cacheKey != null) {
+                checkNotNull(weavingCache).put(cacheKey, analyzedClass, null);
+            }
             return maybeProcessedBytes;
         }
         // from http://www.oracle.com/technetwork/java/javase/compatibility-417013.html:
@@ -186,9 +226,17 @@ public class Weaver {
         if (VERIFY_WEAVING) {
             verify(transformedBytes, loader, classBytes, className);
         }
+        if (cacheKey != null && !cv.hasMetaHolder()) {
+            checkNotNull(weavingCache).put(cacheKey, classAnalyzer.getAnalyzedClass(),
+                    transformedBytes);
+        }
         return transformedBytes;
     }
 
+    private static boolean isHackedClass(String className) {
+        return className.equals(FELIX_BUNDLE_WIRING_IMPL) || className.equals(JBOSS_SERVER_IMPL);
+    }
+
     private static void verify(byte[] transformedBytes, @Nullable ClassLoader loader,
             byte[] originalBytes, String className) {
         String originalBytesVerifyError = verify(originalBytes, loader);
@@ -0,0 +1,730 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// on-disk cache of weaving results, so that classes which have not changed since a prior jvm start
+// skip ClassAnalyzer and WeavingClassVisitor (including stack map frame computation) entirely
+//
+// the weaving result of a class depends not only on its own bytes, but also on its super types
+// (e.g. inherited advice, shims and mixins) and on the types used to compute its stack map frames,
+// so the cache key also includes a fingerprint of the class path of the class loader (and of its
+// parents), and classes from class loaders whose class path cannot be fingerprinted (e.g. class
+// directories, or non-URLClassLoader class loaders) are not cached
+//
+// at jvm startup only the keys of the cache file are read (along with the offset of each entry in
+// the file), and the file is moved aside so that a new cache file can be written: each entry from
+// the prior jvm is read from disk when it is used and carried over to the new file, and new entries
+// are appended to the new file as classes are woven (the agent dir is locked, so there is only ever
+// a single jvm writing to it)
+//
+// this way entries that were not used by the prior jvm (e.g. for prior versions of classes and
+// class paths) are dropped at each jvm startup, and the new file is capped in size by no longer
+// appending to it once it is full
+//
+// classes whose weaving generated a meta holder (@BindClassMeta / @BindMethodMeta) are not cached,
+// since the meta holder is defined (or registered with BootstrapMetaHolders) as part of weaving
+public class WeavingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(WeavingCache.class);
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final long DEFAULT_MAX_FILE_SIZE = 8 * 1024 * 1024;
+
+    private final File file;
+    private final File priorFile;
+    private final long maxFileSize;
+    private final String glowrootVersion;
+    private final ImmutableList<ShimType> shimTypes;
+    private final ImmutableList<MixinType> mixinTypes;
+
+    private final String bootstrapLoaderFingerprint;
+    private final @Nullable ClassLoader systemLoader;
+
+    // offset in the cache file of each entry written by a prior jvm, each offset is removed once it
+    // is used, since a class is only woven once per class loader (except for re-weaving, in which
+    // case the advisors have changed anyways)
+    private final ConcurrentMap<String, Long> entryOffsets;
+
+    private final Object readLock = new Object();
+
+    // null if there are no entries from a prior jvm (or once the cache has been closed)
+    @GuardedBy("readLock")
+    private @Nullable RandomAccessFile in;
+
+    // weak keys to prevent retention of class loaders, empty string value means the class loader
+    // cannot be fingerprinted
+    private final Map<ClassLoader, String> loaderFingerprints =
+            Collections.synchronizedMap(new WeakHashMap<ClassLoader, String>());
+
+    // the advisors only change on instrumentation config updates, so their fingerprint (and lookup
+    // by advice type) is memoized
+    private volatile @Nullable AdvisorsInfo advisorsInfo;
+
+    @GuardedBy("this")
+    private @Nullable DataOutputStream out;
+    // starting with the size of the format version header
+    @GuardedBy("this")
+    private long fileSize = 4;
+    // the same class bytes can be woven in multiple class loaders with the same fingerprint (e.g.
+    // multiple webapps with the same libraries), and in that case the entry only needs to be
+    // written once
+    @GuardedBy("this")
+    private final Set<String> writtenKeys = Sets.newHashSet();
+
+    private WeavingCache(File file, File priorFile, long maxFileSize, String glowrootVersion,
+            List<ShimType> shimTypes, List<MixinType> mixinTypes,
+            ConcurrentMap<String, Long> entryOffsets, @Nullable RandomAccessFile in,
+            @Nullable DataOutputStream out) {
+        this.file = file;
+        this.priorFile = priorFile;
+        this.maxFileSize = maxFileSize;
+        this.glowrootVersion = glowrootVersion;
+        this.shimTypes = ImmutableList.copyOf(shimTypes);
+        this.mixinTypes = ImmutableList.copyOf(mixinTypes);
+        this.entryOffsets = entryOffsets;
+        this.in = in;
+        this.out = out;
+        bootstrapLoaderFingerprint = sha1("bootstrap", System.getProperty("java.home"),
+                System.getProperty("java.vm.version"), System.getProperty("java.runtime.version"),
+                System.getProperty("sun.boot.class.path"));
+        systemLoader = ClassLoader.getSystemClassLoader();
+    }
+
+    public static WeavingCache create(File file, String glowrootVersion, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes) {
+        return create(file, glowrootVersion, shimTypes, mixinTypes, DEFAULT_MAX_FILE_SIZE);
+    }
+
+    @VisibleForTesting
+    static WeavingCache create(File file, String glowrootVersion, List<ShimType> shimTypes,
+            List<MixinType> mixinTypes, long maxFileSize) {
+        File priorFile = new File(file.getPath() + ".prior");
+        ConcurrentMap<String, Long> entryOffsets = new ConcurrentHashMap<String, Long>();
+        RandomAccessFile in = null;
+        DataOutputStream out = null;
+        try {
+            deleteIfExists(priorFile);
+            if (file.exists()) {
+                // a partially written entry at the end of the file (if the jvm was killed in the
+                // middle of appending it) is simply not included in the entry offsets
+                if (readEntryOffsets(file, entryOffsets, maxFileSize) == -1
+                        || !file.renameTo(priorFile)) {
+                    entryOffsets.clear();
+                }
+                deleteIfExists(file);
+            }
+            out = createFile(file);
+            if (!entryOffsets.isEmpty()) {
+                in = new RandomAccessFile(priorFile, "r");
+            }
+        } catch (IOException e) {
+            logger.error("unable to open weaving cache, classes will be woven without the cache:"
+                    + " {}", e.getMessage(), e);
+            entryOffsets.clear();
+            if (out != null) {
+                closeQuietly(out);
+                out = null;
+            }
+        }
+        return new WeavingCache(file, priorFile, maxFileSize, glowrootVersion, shimTypes,
+                mixinTypes, entryOffsets, in, out);
+    }
+
+    // returns null if the class cannot be cached
+    @Nullable String getKey(byte[] classBytes, String className, List<Advice> advisors,
+            @Nullable ClassLoader loader) {
+        String loaderFingerprint = getLoaderFingerprint(loader);
+        if (loaderFingerprint == null) {
+            return null;
+        }
+        MessageDigest digest = newSha1Digest();
+        update(digest, glowrootVersion);
+        update(digest, getAdvisorsInfo(advisors).fingerprint);
+        update(digest, loaderFingerprint);
+        update(digest, className);
+        digest.update(classBytes);
+        return toHex(digest.digest());
+    }
+
+    @Nullable CachedWeaving get(String key, List<Advice> advisors) {
+        Long offset = entryOffsets.remove(key);
+        if (offset == null) {
+            return null;
+        }
+        try {
+            byte[] entry = readEntry(offset);
+            if (entry == null) {
+                return null;
+            }
+            CachedWeaving cachedWeaving = readCachedWeaving(entry, getAdvisorsInfo(advisors));
+            if (cachedWeaving != null) {
+                // carry the entry over to the new cache file
+                append(key, entry);
+            }
+            return cachedWeaving;
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    void put(String key, AnalyzedClass analyzedClass, byte /*@Nullable*/ [] wovenBytes) {
+        byte[] entry;
+        try {
+            entry = writeCachedWeaving(analyzedClass, wovenBytes);
+        } catch (IOException e) {
+            logger.error(e.getMessage(), e);
+            return;
+        }
+        append(key, entry);
+    }
+
+    private synchronized void append(String key, byte[] entry) {
+        if (out == null || writtenKeys.contains(key)) {
+            return;
+        }
+        // key is ascii hex
+        long entrySize = 2 + key.length() + 4 + entry.length;
+        if (fileSize + entrySize > maxFileSize) {
+            // the cache file is full, entries that are not written here are woven again (and
+            // offered to the cache again) at the next jvm startup, and since entries that are not
+            // used are dropped at each jvm startup, stale entries do not keep the file full
+            return;
+        }
+        try {
+            out.writeUTF(key);
+            out.writeInt(entry.length);
+            out.write(entry);
+            // flushing after each entry so that at most one (partial) entry is lost if the jvm is
+            // killed
+            out.flush();
+        } catch (IOException e) {
+            logger.error("unable to write to weaving cache, no further entries will be written:"
+                    + " {}", e.getMessage(), e);
+            closeQuietly(out);
+            out = null;
+            return;
+        }
+        fileSize += entrySize;
+        writtenKeys.add(key);
+    }
+
+    @VisibleForTesting
+    void close() throws IOException {
+        synchronized (readLock) {
+            closePriorFile();
+        }
+        synchronized (this) {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    @VisibleForTesting
+    File getFile() {
+        return file;
+    }
+
+    private byte /*@Nullable*/ [] readEntry(long offset) throws IOException {
+        synchronized (readLock) {
+            if (in == null) {
+                return null;
+            }
+            in.seek(offset);
+            byte[] entry = new byte[in.readInt()];
+            in.readFully(entry);
+            if (entryOffsets.isEmpty()) {
+                // no more entries to read
+                closePriorFile();
+            }
+            return entry;
+        }
+    }
+
+    @GuardedBy("readLock")
+    private void closePriorFile() throws IOException {
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+        deleteIfExists(priorFile);
+    }
+
+    private @Nullable String getLoaderFingerprint(@Nullable ClassLoader loader) {
+        if (loader == null) {
+            return bootstrapLoaderFingerprint;
+        }
+        String loaderFingerprint = loaderFingerprints.get(loader);
+        if (loaderFingerprint == null) {
+            loaderFingerprint = createLoaderFingerprint(loader);
+            loaderFingerprints.put(loader, loaderFingerprint);
+        }
+        return loaderFingerprint.isEmpty() ? null : loaderFingerprint;
+    }
+
+    // returns empty string if the class loader cannot be fingerprinted
+    private String createLoaderFingerprint(ClassLoader loader) {
+        String parentLoaderFingerprint = getLoaderFingerprint(loader.getParent());
+        if (parentLoaderFingerprint == null) {
+            return "";
+        }
+        List<String> parts = Lists.newArrayList();
+        parts.add(parentLoaderFingerprint);
+        if (loader instanceof URLClassLoader) {
+            for (URL url : ((URLClassLoader) loader).getURLs()) {
+                if (!addJarFingerprint(parts, url.toString(), getLocalFile(url))) {
+                    return "";
+                }
+            }
+        } else if (loader == systemLoader) {
+            // the system class loader is not a URLClassLoader in java 9+
+            String classPath = System.getProperty("java.class.path");
+            if (classPath == null) {
+                return "";
+            }
+            for (String path : classPath.split(File.pathSeparator)) {
+                if (!path.isEmpty() && !addJarFingerprint(parts, path, new File(path))) {
+                    return "";
+                }
+            }
+        } else if (isAncestorOfSystemLoader(loader)) {
+            // e.g. the platform class loader in java 9+, which only loads from the jdk itself
+            parts.add(loader.getClass().getName());
+        } else {
+            return "";
+        }
+        return sha1(parts.toArray(new String[parts.size()]));
+    }
+
+    private boolean isAncestorOfSystemLoader(ClassLoader loader) {
+        ClassLoader ancestor = systemLoader == null ? null : systemLoader.getParent();
+        while (ancestor != null) {
+            if (ancestor == loader) {
+                return true;
+            }
+            ancestor = ancestor.getParent();
+        }
+        return false;
+    }
+
+    private AdvisorsInfo getAdvisorsInfo(List<Advice> advisors) {
+        AdvisorsInfo advisorsInfo = this.advisorsInfo;
+        if (advisorsInfo == null || advisorsInfo.advisors != advisors) {
+            advisorsInfo = new AdvisorsInfo(advisors, shimTypes, mixinTypes);
+            this.advisorsInfo = advisorsInfo;
+        }
+        return advisorsInfo;
+    }
+
+    private byte[] writeCachedWeaving(AnalyzedClass analyzedClass,
+            byte /*@Nullable*/ [] wovenBytes) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeInt(analyzedClass.modifiers());
+        writeString(out, analyzedClass.name());
+        writeNullableString(out, analyzedClass.superName());
+        writeStrings(out, analyzedClass.interfaceNames());
+        out.writeInt(analyzedClass.analyzedMethods().size());
+        for (AnalyzedMethod analyzedMethod : analyzedClass.analyzedMethods()) {
+            writeString(out, analyzedMethod.name());
+            writeStrings(out, analyzedMethod.parameterTypes());
+            writeString(out, analyzedMethod.returnType());
+            out.writeInt(analyzedMethod.modifiers());
+            writeNullableString(out, analyzedMethod.signature());
+            writeStrings(out, analyzedMethod.exceptions());
+            writeAdvisors(out, analyzedMethod.advisors());
+            writeAdvisors(out, analyzedMethod.subTypeRestrictedAdvisors());
+        }
+        out.writeInt(analyzedClass.publicFinalMethods().size());
+        for (PublicFinalMethod publicFinalMethod : analyzedClass.publicFinalMethods()) {
+            writeString(out, publicFinalMethod.name());
+            writeStrings(out, publicFinalMethod.parameterTypes());
+        }
+        out.writeInt(analyzedClass.shimTypes().size());
+        for (ShimType shimType : analyzedClass.shimTypes()) {
+            writeString(out, shimType.iface().getInternalName());
+        }
+        out.writeInt(analyzedClass.mixinTypes().size());
+        for (MixinType mixinType : analyzedClass.mixinTypes()) {
+            out.writeInt(mixinTypes.indexOf(mixinType));
+        }
+        if (wovenBytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(wovenBytes.length);
+            out.write(wovenBytes);
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    // returns null if the entry references advisors, shim types or mixin types that no longer
+    // exist (which can only happen on a hash collision since these are part of the key)
+    private @Nullable CachedWeaving readCachedWeaving(byte[] entry, AdvisorsInfo advisorsInfo)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(entry));
+        ImmutableAnalyzedClass.Builder analyzedClass = ImmutableAnalyzedClass.builder()
+                .modifiers(in.readInt())
+                .name(readString(in))
+                .superName(readNullableString(in))
+                .addAllInterfaceNames(readStrings(in));
+        int analyzedMethodCount = in.readInt();
+        for (int i = 0; i < analyzedMethodCount; i++) {
+            ImmutableAnalyzedMethod.Builder analyzedMethod = ImmutableAnalyzedMethod.builder()
+                    .name(readString(in))
+                    .addAllParameterTypes(readStrings(in))
+                    .returnType(readString(in))
+                    .modifiers(in.readInt())
+                    .signature(readNullableString(in))
+                    .addAllExceptions(readStrings(in));
+            List<Advice> advisors = readAdvisors(in, advisorsInfo);
+            List<Advice> subTypeRestrictedAdvisors = readAdvisors(in, advisorsInfo);
+            if (advisors == null || subTypeRestrictedAdvisors == null) {
+                return null;
+            }
+            analyzedClass.addAnalyzedMethods(analyzedMethod.addAllAdvisors(advisors)
+                    .addAllSubTypeRestrictedAdvisors(subTypeRestrictedAdvisors)
+                    .build());
+        }
+        int publicFinalMethodCount = in.readInt();
+        for (int i = 0; i < publicFinalMethodCount; i++) {
+            analyzedClass.addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                    .name(readString(in))
+                    .addAllParameterTypes(readStrings(in))
+                    .build());
+        }
+        int shimTypeCount = in.readInt();
+        for (int i = 0; i < shimTypeCount; i++) {
+            ShimType shimType = advisorsInfo.shimTypesByInternalName.get(readString(in));
+            if (shimType == null) {
+                return null;
+            }
+            analyzedClass.addShimTypes(shimType);
+        }
+        int mixinTypeCount = in.readInt();
+        for (int i = 0; i < mixinTypeCount; i++) {
+            int index = in.readInt();
+            if (index < 0 || index >= mixinTypes.size()) {
+                return null;
+            }
+            analyzedClass.addMixinTypes(mixinTypes.get(index));
+        }
+        int wovenBytesLength = in.readInt();
+        byte[] wovenBytes = null;
+        if (wovenBytesLength != -1) {
+            wovenBytes = new byte[wovenBytesLength];
+            in.readFully(wovenBytes);
+        }
+        return new CachedWeaving(analyzedClass.build(), wovenBytes);
+    }
+
+    private static void writeAdvisors(DataOutputStream out, List<Advice> advisors)
+            throws IOException {
+        out.writeInt(advisors.size());
+        for (Advice advice : advisors) {
+            // each advice has its own (unique) advice type
+            writeString(out, advice.adviceType().getInternalName());
+        }
+    }
+
+    private static @Nullable List<Advice> readAdvisors(DataInputStream in,
+            AdvisorsInfo advisorsInfo) throws IOException {
+        int count = in.readInt();
+        List<Advice> advisors = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            Advice advice = advisorsInfo.advisorsByInternalName.get(readString(in));
+            if (advice == null) {
+                return null;
+            }
+            advisors.add(advice);
+        }
+        return advisors;
+    }
+
+    // returns the length of the valid part of the file, or -1 if the file is not a valid weaving
+    // cache file (e.g. from a prior format version)
+    private static long readEntryOffsets(File file, Map<String, Long> entryOffsets,
+            long maxFileSize) throws IOException {
+        DataInputStream in =
+                new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != FORMAT_VERSION) {
+                return -1;
+            }
+            long validLength = 4;
+            while (true) {
+                String key;
+                long offset;
+                try {
+                    key = in.readUTF();
+                    // key is ascii hex
+                    offset = validLength + 2 + key.length();
+                    int length = in.readInt();
+                    if (length < 0 || length > maxFileSize) {
+                        return validLength;
+                    }
+                    ByteStreams.skipFully(in, length);
+                    validLength = offset + 4 + length;
+                } catch (EOFException e) {
+                    return validLength;
+                }
+                entryOffsets.put(key, offset);
+            }
+        } catch (EOFException e) {
+            // header is incomplete
+            return -1;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void deleteIfExists(File file) {
+        if (file.exists() && !file.delete()) {
+            logger.warn("unable to delete weaving cache file: {}", file.getAbsolutePath());
+        }
+    }
+
+    private static DataOutputStream createFile(File file) throws IOException {
+        File parentFile = file.getParentFile();
+        if (parentFile != null && !parentFile.exists() && !parentFile.mkdirs()) {
+            throw new IOException("Could not create directory: " + parentFile.getAbsolutePath());
+        }
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(FORMAT_VERSION);
+        out.flush();
+        return out;
+    }
+
+    private static boolean addJarFingerprint(List<String> parts, String path,
+            @Nullable File file) {
+        // class directories cannot be fingerprinted without visiting every file in them
+        if (file == null || !file.isFile()) {
+            return false;
+        }
+        parts.add(path);
+        parts.add(Long.toString(file.length()));
+        parts.add(Long.toString(file.lastModified()));
+        return true;
+    }
+
+    private static @Nullable File getLocalFile(URL url) {
+        String protocol = url.getProtocol();
+        if (protocol.equals("file")) {
+            try {
+                return new File(url.toURI());
+            } catch (URISyntaxException e) {
+                logger.debug(e.getMessage(), e);
+                return new File(url.getPath());
+            } catch (IllegalArgumentException e) {
+                // e.g. file URL with an authority component
+                logger.debug(e.getMessage(), e);
+                return null;
+            }
+        }
+        if (protocol.equals("jar")) {
+            // e.g. jar:file:/path/to/app.jar!/BOOT-INF/lib/dependency.jar!/
+            String spec = url.getPath();
+            int index = spec.indexOf("!/");
+            if (index != -1) {
+                spec = spec.substring(0, index);
+            }
+            try {
+                return getLocalFile(new URL(spec));
+            } catch (MalformedURLException e) {
+                logger.debug(e.getMessage(), e);
+                return null;
+            }
+        }
+        return null;
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        // not using writeUTF() since it is limited to 64k (e.g. long generic signatures)
+        byte[] bytes = str.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null) {
+            writeString(out, str);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+            throws IOException {
+        out.writeInt(strings.size());
+        for (String str : strings) {
+            writeString(out, str);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? readString(in) : null;
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = Lists.newArrayListWithCapacity(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(readString(in));
+        }
+        return strings;
+    }
+
+    private static String sha1(/*@Nullable*/ String... parts) {
+        MessageDigest digest = newSha1Digest();
+        for (String part : parts) {
+            update(digest, String.valueOf(part));
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String str) {
+        digest.update(str.getBytes(Charsets.UTF_8));
+        // separator so that adjacent parts cannot run together
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newSha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hexChars = "0123456789abcdef".toCharArray();
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = hexChars[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = hexChars[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static void closeQuietly(DataOutputStream out) {
+        try {
+            out.close();
+        } catch (IOException e) {
+            logger.debug(e.getMessage(), e);
+        }
+    }
+
+    static class CachedWeaving {
+
+        private final AnalyzedClass analyzedClass;
+        private final byte /*@Nullable*/ [] wovenBytes;
+
+        private CachedWeaving(AnalyzedClass analyzedClass, byte /*@Nullable*/ [] wovenBytes) {
+            this.analyzedClass = analyzedClass;
+            this.wovenBytes = wovenBytes;
+        }
+
+        AnalyzedClass getAnalyzedClass() {
+            return analyzedClass;
+        }
+
+        // null if the class did not need to be woven
+        byte /*@Nullable*/ [] getWovenBytes() {
+            return wovenBytes;
+        }
+    }
+
+    private static class AdvisorsInfo {
+
+        private final List<Advice> advisors;
+        private final String fingerprint;
+        private final Map<String, Advice> advisorsByInternalName;
+        private final Map<String, ShimType> shimTypesByInternalName;
+
+        private AdvisorsInfo(List<Advice> advisors, List<ShimType> shimTypes,
+                List<MixinType> mixinTypes) {
+            this.advisors = advisors;
+            // advice toString() includes the pointcut and the advice method signatures, and is
+            // sorted since the order of (generated) advisors is not significant
+            List<String> parts = Lists.newArrayList();
+            advisorsByInternalName = Maps.newHashMap();
+            for (Advice advice : advisors) {
+                parts.add(advice.toString());
+                advisorsByInternalName.put(advice.adviceType().getInternalName(), advice);
+            }
+            Collections.sort(parts);
+            shimTypesByInternalName = Maps.newHashMap();
+            for (ShimType shimType : shimTypes) {
+                parts.add(shimType.toString());
+                shimTypesByInternalName.put(shimType.iface().getInternalName(), shimType);
+            }
+            for (MixinType mixinType : mixinTypes) {
+                parts.add(mixinType.toString());
+            }
+            fingerprint = sha1(parts.toArray(new String[parts.size()]));
+        }
+    }
+}
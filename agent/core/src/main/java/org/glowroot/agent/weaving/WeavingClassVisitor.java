@@ -211,6 +211,12 @@ class WeavingClassVisitor extends ClassVisitor {
         cw.visitEnd();
     }
 
+    // the meta holder is generated (or registered) as a side effect of weaving, so the woven bytes
+    // cannot be reused without it
+    boolean hasMetaHolder() {
+        return metaHolderInternalName != null;
+    }
+
     @RequiresNonNull("type")
     private void handleMetaHolders() {
         if (metaHolderInternalName != null) {
@@ -0,0 +1,211 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.central;
+
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import org.glowroot.agent.central.IncrementalTraceState.Pending;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile.ProfileNode;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class IncrementalTraceStateTest {
+
+    @Test
+    public void shouldSendAllEntriesOnFirstSend() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        // when
+        List<Integer> sentIndexes = send(state, ImmutableList.of(entry(0, 1, false),
+                entry(10, 2, true)));
+        // then
+        assertThat(sentIndexes).containsExactly(0, 1);
+    }
+
+    @Test
+    public void shouldOnlySendDeltaAfterPartialSend() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        send(state, ImmutableList.of(entry(0, 1, false), entry(10, 1, true)));
+        // when
+        List<Integer> sentIndexes = send(state, ImmutableList.of(entry(0, 1, false),
+                entry(10, 1, false), entry(20, 1, true)));
+        // then
+        // the first entry was already completed when it was sent, the second entry was still
+        // active when it was sent and the third entry is new
+        assertThat(sentIndexes).containsExactly(1, 2);
+    }
+
+    @Test
+    public void shouldResendEntriesThatShiftedPosition() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        send(state, ImmutableList.of(entry(0, 1, false), entry(20, 1, false)));
+        // when
+        // e.g. an auxiliary thread entry inserted in the middle of the tree
+        List<Integer> sentIndexes = send(state, ImmutableList.of(entry(0, 1, false),
+                entry(10, 2, false), entry(20, 1, false)));
+        // then
+        assertThat(sentIndexes).containsExactly(1, 2);
+    }
+
+    @Test
+    public void shouldResendAfterUndeliveredSend() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        send(state, ImmutableList.of(entry(0, 1, false)));
+        sendUndelivered(state, ImmutableList.of(entry(0, 1, false), entry(10, 1, false)));
+        // when
+        List<Integer> sentIndexes = send(state, ImmutableList.of(entry(0, 1, false),
+                entry(10, 1, false), entry(20, 1, false)));
+        // then
+        assertThat(sentIndexes).containsExactly(1, 2);
+    }
+
+    @Test
+    public void shouldResendSharedQueryTextsAfterUndeliveredSend() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        state.startSend();
+        Pending pending = state.newPending();
+        pending.getSharedQueryTextIndexes().put("select 1", 0);
+        state.onSendSucceeded(pending);
+        state.startSend();
+        pending = state.newPending();
+        pending.getSharedQueryTextIndexes().put("select 2", 1);
+        state.onSendFailed();
+        // when
+        state.startSend();
+        pending = state.newPending();
+        // then
+        assertThat(pending.getSharedQueryTextStartIndex()).isEqualTo(1);
+        assertThat(pending.getSharedQueryTextIndexes()).containsOnlyKeys("select 1");
+    }
+
+    @Test
+    public void shouldNotStartSendWhileSendInProgress() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        // when
+        boolean started1 = state.startSend();
+        boolean started2 = state.startSend();
+        state.onSendFailed();
+        boolean started3 = state.startSend();
+        // then
+        assertThat(started1).isTrue();
+        assertThat(started2).isFalse();
+        assertThat(started3).isTrue();
+    }
+
+    @Test
+    public void shouldOnlySendChangedProfile() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        state.startSend();
+        Pending pending = state.newPending();
+        assertThat(pending.mainThreadProfileChanged(profile(5))).isTrue();
+        state.onSendSucceeded(pending);
+        // when
+        state.startSend();
+        pending = state.newPending();
+        // then
+        assertThat(pending.mainThreadProfileChanged(profile(5))).isFalse();
+        assertThat(pending.mainThreadProfileChanged(profile(6))).isTrue();
+        assertThat(pending.auxThreadProfileChanged(profile(0))).isFalse();
+    }
+
+    @Test
+    public void shouldHaveAllEntriesInFinalCompleteTrace() {
+        // given
+        IncrementalTraceState state = new IncrementalTraceState();
+        Map<Integer, Trace.Entry> stored = Maps.newHashMap();
+        List<Trace.Entry> entries = Lists.newArrayList();
+        entries.add(entry(0, 1, true));
+        entries.add(entry(10, 2, true));
+        send(state, entries, stored);
+        entries.set(1, entry(10, 2, false));
+        entries.add(entry(30, 2, true));
+        sendUndelivered(state, entries);
+        entries.add(2, entry(20, 3, false));
+        entries.set(3, entry(30, 2, false));
+        send(state, entries, stored);
+        // when
+        entries.set(0, entry(0, 1, false));
+        entries.add(entry(40, 2, false));
+        send(state, entries, stored);
+        // then
+        assertThat(stored).hasSize(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            assertThat(stored.get(i)).isEqualTo(entries.get(i));
+        }
+    }
+
+    private static List<Integer> send(IncrementalTraceState state, List<Trace.Entry> entries) {
+        return send(state, entries, Maps.<Integer, Trace.Entry>newHashMap());
+    }
+
+    // simulates a send of the trace, storing the sent entries at their indexes (the same as the
+    // central collector does)
+    private static List<Integer> send(IncrementalTraceState state, List<Trace.Entry> entries,
+            Map<Integer, Trace.Entry> stored) {
+        assertThat(state.startSend()).isTrue();
+        Pending pending = state.newPending();
+        List<Integer> sentIndexes = Lists.newArrayList();
+        for (Trace.Entry entry : entries) {
+            int index = pending.addEntry(entry);
+            if (index != -1) {
+                sentIndexes.add(index);
+                stored.put(index, entry);
+            }
+        }
+        state.onSendSucceeded(pending);
+        return sentIndexes;
+    }
+
+    // simulates a send of the trace that is not delivered to the central collector
+    private static void sendUndelivered(IncrementalTraceState state, List<Trace.Entry> entries) {
+        assertThat(state.startSend()).isTrue();
+        Pending pending = state.newPending();
+        for (Trace.Entry entry : entries) {
+            pending.addEntry(entry);
+        }
+        state.onSendFailed();
+    }
+
+    private static Trace.Entry entry(long startOffsetNanos, int depth, boolean active) {
+        return Trace.Entry.newBuilder()
+                .setStartOffsetNanos(startOffsetNanos)
+                .setDepth(depth)
+                .setActive(active)
+                .build();
+    }
+
+    private static Profile profile(long sampleCount) {
+        return Profile.newBuilder()
+                .addNode(ProfileNode.newBuilder()
+                        .setDepth(0)
+                        .setSampleCount(sampleCount))
+                .build();
+    }
+}
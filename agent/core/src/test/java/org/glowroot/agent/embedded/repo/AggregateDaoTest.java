@@ -34,6 +34,8 @@ import org.glowroot.common.live.ImmutableTransactionQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverallQuery;
 import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.MutableQuery;
+import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
@@ -60,6 +62,7 @@ public class AggregateDaoTest {
     private DataSource dataSource;
     private File cappedFile;
     private CappedDatabase cappedDatabase;
+    private ConfigRepository configRepository;
     private AggregateDao aggregateDao;
 
     @Before
@@ -73,21 +76,19 @@ public class AggregateDaoTest {
         }
         cappedFile = File.createTempFile("glowroot-test-", ".capped.db");
         cappedDatabase = new CappedDatabase(cappedFile, 1000000, Ticker.systemTicker());
-        ConfigRepository configRepository = mock(ConfigRepository.class);
+        configRepository = mock(ConfigRepository.class);
         when(configRepository.getAdvancedConfig(AGENT_ID))
                 .thenReturn(AdvancedConfig.getDefaultInstance());
         ImmutableList<RollupConfig> rollupConfigs = ImmutableList.<RollupConfig>of(
                 ImmutableRollupConfig.of(1000, 0), ImmutableRollupConfig.of(15000, 3600000),
                 ImmutableRollupConfig.of(900000000, 8 * 3600000));
         when(configRepository.getRollupConfigs()).thenReturn(rollupConfigs);
-        aggregateDao = new AggregateDao(
-                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
-                        cappedDatabase, cappedDatabase),
-                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+        aggregateDao = createAggregateDao();
     }
 
     @After
     public void afterEachTest() throws Exception {
+        aggregateDao.close();
         dataSource.close();
         cappedDatabase.close();
         cappedFile.delete();
@@ -133,6 +134,93 @@ public class AggregateDaoTest {
         assertThat(queryResult.records().get(2).transactionCount()).isEqualTo(2);
     }
 
+    @Test
+    public void shouldRollUp() throws Exception {
+        // given
+        // the interval ending at 15000 is rolled up from the in-memory open interval
+        populateAggregates();
+        // a new instance (e.g. after jvm restart) has to roll up the interval ending at 30000 from
+        // the prior rollup level since it missed the level 0 aggregates captured at 20000
+        AggregateDao restartedAggregateDao = createAggregateDao();
+        restartedAggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return 40000;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", new ArrayList<String>(),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setErrorCount(0)
+                                .setTransactionCount(10)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .build());
+            }
+        });
+
+        // when
+        TransactionQuery overallQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        TransactionQuery transactionQuery = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .transactionName("seven")
+                .from(0)
+                .to(100000)
+                .rollupLevel(1)
+                .build();
+        List<OverviewAggregate> overallAggregates =
+                restartedAggregateDao.readOverviewAggregates(AGENT_ID, overallQuery);
+        List<OverviewAggregate> transactionAggregates =
+                restartedAggregateDao.readOverviewAggregates(AGENT_ID, transactionQuery);
+
+        // then
+        assertThat(overallAggregates).hasSize(2);
+        assertThat(overallAggregates.get(0).captureTime()).isEqualTo(15000);
+        assertThat(overallAggregates.get(0).totalDurationNanos()).isEqualTo(1000000);
+        assertThat(overallAggregates.get(0).transactionCount()).isEqualTo(10);
+        assertThat(overallAggregates.get(1).captureTime()).isEqualTo(30000);
+        assertThat(overallAggregates.get(1).totalDurationNanos()).isEqualTo(1000000);
+        assertThat(overallAggregates.get(1).transactionCount()).isEqualTo(10);
+        assertThat(transactionAggregates).hasSize(2);
+        assertThat(transactionAggregates.get(0).transactionCount()).isEqualTo(7);
+        assertThat(transactionAggregates.get(1).transactionCount()).isEqualTo(7);
+        assertThat(restartedAggregateDao.getLastRollupTime(1)).isEqualTo(30000);
+        assertThat(restartedAggregateDao.getPendingRollupIntervals(1)).isEqualTo(0);
+        restartedAggregateDao.close();
+    }
+
+    @Test
+    public void shouldReadQueriesWithRepeatedCountAndHistogram() throws Exception {
+        // given
+        storeQueries(10000);
+        // the interval ending at 15000 is rolled up from the in-memory open interval
+        storeQueries(20000);
+
+        // when
+        QueryCollector collector = readQueries(0);
+        QueryCollector rolledUpCollector = readQueries(1);
+
+        // then
+        MutableQuery query = collector.getSortedQueries().get("SQL").get(0);
+        assertThat(query.getTruncatedText()).isEqualTo("select 1");
+        assertThat(query.getExecutionCount()).isEqualTo(40);
+        assertThat(query.getRepeatedTransactionCount()).isEqualTo(6);
+        assertThat(query.getDurationNanosHistogram()).isNotNull();
+        assertThat(query.getDurationNanosHistogram().getValueAtPercentile(100))
+                .isBetween(1980000L, 2020000L);
+        MutableQuery rolledUpQuery = rolledUpCollector.getSortedQueries().get("SQL").get(0);
+        assertThat(rolledUpQuery.getExecutionCount()).isEqualTo(20);
+        assertThat(rolledUpQuery.getRepeatedTransactionCount()).isEqualTo(3);
+        assertThat(rolledUpQuery.getDurationNanosHistogram()).isNotNull();
+        assertThat(rolledUpQuery.getDurationNanosHistogram().getValueAtPercentile(0))
+                .isBetween(990000L, 1010000L);
+    }
+
     // also used by TransactionCommonServiceTest
     public void populateAggregates() throws Exception {
         aggregateDao.store(new AggregateReader() {
@@ -217,6 +305,55 @@ public class AggregateDaoTest {
         return aggregateDao;
     }
 
+    private AggregateDao createAggregateDao() throws Exception {
+        return new AggregateDao(
+                dataSource, ImmutableList.<CappedDatabase>of(cappedDatabase, cappedDatabase,
+                        cappedDatabase, cappedDatabase),
+                configRepository, mock(TransactionTypeDao.class), mock(FullQueryTextDao.class));
+    }
+
+    private void storeQueries(final long captureTime) throws Exception {
+        aggregateDao.store(new AggregateReader() {
+            @Override
+            public long captureTime() {
+                return captureTime;
+            }
+            @Override
+            public void accept(AggregateVisitor aggregateVisitor) throws Exception {
+                aggregateVisitor.visitOverallAggregate("a type", ImmutableList.of("select 1"),
+                        Aggregate.newBuilder()
+                                .setTotalDurationNanos(1000000)
+                                .setErrorCount(0)
+                                .setTransactionCount(10)
+                                .setDurationNanosHistogram(getFakeHistogram())
+                                .addQueriesByType(Aggregate.QueriesByType.newBuilder()
+                                        .setType("SQL")
+                                        .addQuery(Aggregate.Query.newBuilder()
+                                                .setSharedQueryTextIndex(0)
+                                                .setTotalDurationNanos(300000)
+                                                .setExecutionCount(20)
+                                                .setRepeatedTransactionCount(3)
+                                                .setDurationNanosHistogram(
+                                                        Aggregate.Histogram.newBuilder()
+                                                                .addOrderedRawValue(1000000)
+                                                                .addOrderedRawValue(2000000))))
+                                .build());
+            }
+        });
+    }
+
+    private QueryCollector readQueries(int rollupLevel) throws Exception {
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("a type")
+                .from(0)
+                .to(100000)
+                .rollupLevel(rollupLevel)
+                .build();
+        QueryCollector collector = new QueryCollector(100);
+        aggregateDao.mergeQueriesInto(AGENT_ID, query, collector);
+        return collector;
+    }
+
     private static Aggregate.Histogram getFakeHistogram() {
         return Aggregate.Histogram.newBuilder()
                 .addOrderedRawValue(123)
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.util.DataSource;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class GaugeValueDaoTest {
+
+    private static final String GAUGE_NAME = "java.lang:type=Memory:HeapMemoryUsage.used";
+
+    private DataSource dataSource;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        dataSource = new DataSource();
+        for (int i = 0; i <= 4; i++) {
+            if (dataSource.tableExists("gauge_value_rollup_" + i)) {
+                dataSource.execute("drop table gauge_value_rollup_" + i);
+            }
+        }
+    }
+
+    @After
+    public void afterEachTest() throws Exception {
+        dataSource.close();
+    }
+
+    @Test
+    public void shouldKeepRolledUpValuesWhenUpgradingFromPriorSchema() throws Exception {
+        // given
+        GaugeNameDao gaugeNameDao = new GaugeNameDao(dataSource);
+        long gaugeId = gaugeNameDao.updateLastCaptureTime(GAUGE_NAME, 60000);
+        // schema prior to min, max and sketch being tracked
+        dataSource.execute("create table gauge_value_rollup_1 (gauge_id bigint, capture_time"
+                + " bigint, value double, weight bigint)");
+        dataSource.update("insert into gauge_value_rollup_1 (gauge_id, capture_time, value,"
+                + " weight) values (?, ?, ?, ?)", gaugeId, 60000L, 10.0, 4L);
+
+        // when
+        GaugeValueDao gaugeValueDao = new GaugeValueDao(dataSource, gaugeNameDao,
+                mock(Clock.class));
+
+        // then
+        List<GaugeValue> gaugeValues = gaugeValueDao.readGaugeValues("", GAUGE_NAME, 0, 60000, 1);
+        assertThat(gaugeValues).hasSize(1);
+        GaugeValue gaugeValue = gaugeValues.get(0);
+        assertThat(gaugeValue.getValue()).isEqualTo(10);
+        assertThat(gaugeValue.getWeight()).isEqualTo(4);
+        assertThat(gaugeValue.hasMin()).isFalse();
+        assertThat(gaugeValue.hasSketch()).isFalse();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.repo;
+
+import java.util.Map;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import org.glowroot.agent.embedded.repo.AggregateDao.TruncatedQueryText;
+import org.glowroot.agent.embedded.repo.OpenRollupIntervals.OpenInterval;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableRollupConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OpenRollupIntervalsTest {
+
+    private static final ImmutableList<RollupConfig> ROLLUP_CONFIGS =
+            ImmutableList.<RollupConfig>of(ImmutableRollupConfig.of(1000, 0),
+                    ImmutableRollupConfig.of(15000, 3600000));
+
+    @Test
+    public void shouldCloseCompleteInterval() throws Exception {
+        // given
+        OpenRollupIntervals openRollupIntervals = new OpenRollupIntervals(ROLLUP_CONFIGS, 0, 2);
+        openRollupIntervals.mergeOverallAggregate(1000, "Web", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        openRollupIntervals.mergeTransactionAggregate(2000, "Web", "a", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        // when
+        Map<Long, OpenInterval> closedIntervals = openRollupIntervals.close(1, 15000);
+        // then
+        assertThat(closedIntervals).hasSize(1);
+        OpenInterval closedInterval = closedIntervals.get(15000L);
+        assertThat(closedInterval.getOverallAggregates()).hasSize(1);
+        assertThat(closedInterval.getTransactionAggregates().get("Web")).hasSize(1);
+    }
+
+    @Test
+    public void shouldNotCloseIntervalThatExceededCap() throws Exception {
+        // given
+        OpenRollupIntervals openRollupIntervals = new OpenRollupIntervals(ROLLUP_CONFIGS, 0, 2);
+        openRollupIntervals.mergeOverallAggregate(1000, "Web", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        openRollupIntervals.mergeTransactionAggregate(2000, "Web", "a", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        openRollupIntervals.mergeTransactionAggregate(3000, "Web", "b", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        // when
+        Map<Long, OpenInterval> closedIntervals = openRollupIntervals.close(1, 15000);
+        // then
+        assertThat(closedIntervals).isEmpty();
+    }
+
+    @Test
+    public void shouldNotCloseIncompleteInterval() throws Exception {
+        // given
+        OpenRollupIntervals openRollupIntervals = new OpenRollupIntervals(ROLLUP_CONFIGS, 0, 2);
+        openRollupIntervals.mergeOverallAggregate(1000, "Web", createAggregate(),
+                ImmutableList.<TruncatedQueryText>of(), 100, 100);
+        openRollupIntervals.markIncomplete(2000);
+        // when
+        Map<Long, OpenInterval> closedIntervals = openRollupIntervals.close(1, 15000);
+        // then
+        assertThat(closedIntervals).isEmpty();
+    }
+
+    private static Aggregate createAggregate() {
+        return Aggregate.newBuilder()
+                .setTotalDurationNanos(1000000)
+                .setTransactionCount(1)
+                .build();
+    }
+}
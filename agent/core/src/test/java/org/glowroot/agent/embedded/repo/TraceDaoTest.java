@@ -97,6 +97,34 @@ public class TraceDaoTest {
         assertThat(header2.getUser()).isEqualTo(header.getUser());
     }
 
+    @Test
+    public void shouldKeepTracesWhenUpgradingFromPerEntryFormat() throws Exception {
+        // given
+        Trace.Header header = TraceTestData.createTraceHeader();
+        traceDao.store(TraceTestData.createTraceReader(header));
+        // revert to the schema prior to the columnar entries format
+        dataSource.execute("alter table trace drop column columnar_entries_capped_id");
+
+        // when
+        traceDao = new TraceDao(dataSource, cappedDatabase, mock(TransactionTypeDao.class),
+                mock(FullQueryTextDao.class), mock(TraceAttributeNameDao.class));
+
+        // then
+        assertThat(dataSource.columnExists("trace", "columnar_entries_capped_id")).isTrue();
+        TraceQuery query = ImmutableTraceQuery.builder()
+                .transactionType("unit test")
+                .from(0)
+                .to(100)
+                .build();
+        TracePointFilter filter = ImmutableTracePointFilter.builder().build();
+        Result<TracePoint> queryResult = traceDao.readSlowPoints(AGENT_ROLLUP, query, filter, 1);
+        assertThat(queryResult.records()).hasSize(1);
+        Trace.Header header2 = traceDao
+                .readHeaderPlus(AGENT_ROLLUP, AGENT_ID, queryResult.records().get(0).traceId())
+                .header();
+        assertThat(header2.getDurationNanos()).isEqualTo(header.getDurationNanos());
+    }
+
     @Test
     public void shouldReadTraceWithAttributeQualifier() throws Exception {
         // given
@@ -18,10 +18,12 @@ package org.glowroot.agent.embedded.util;
 import java.io.File;
 import java.io.IOException;
 import java.io.Reader;
+import java.util.List;
 import java.util.Random;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteSource;
 import org.junit.After;
 import org.junit.Before;
@@ -29,6 +31,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import org.glowroot.wire.api.model.Proto.OptionalInt64;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class CappedDatabaseTest {
@@ -42,7 +46,11 @@ public class CappedDatabaseTest {
     @Before
     public void onBefore() throws IOException {
         tempFile = File.createTempFile("glowroot-test-", ".capped.db");
-        cappedDatabase = new CappedDatabase(tempFile, 1, Ticker.systemTicker());
+        cappedDatabase = createCappedDatabase(tempFile);
+    }
+
+    CappedDatabase createCappedDatabase(File file) throws IOException {
+        return new CappedDatabase(file, 1, Ticker.systemTicker(), false);
     }
 
     @After
@@ -63,6 +71,16 @@ public class CappedDatabaseTest {
         assertThat(text2).isEqualTo(text);
     }
 
+    @Test
+    public void shouldWriteBytes() throws Exception {
+        // given
+        byte[] bytes = new byte[] {0, 1, 2, -1, -2};
+        // when
+        long cappedId = cappedDatabase.writeBytes(bytes, "test");
+        // then
+        assertThat(cappedDatabase.readBytes(cappedId)).isEqualTo(bytes);
+    }
+
     @Test
     public void shouldReadOneByteAtATime() throws Exception {
         // given
@@ -157,4 +175,26 @@ public class CappedDatabaseTest {
         assertThat(exceptionClassName).isEqualTo("org.glowroot.agent.embedded.util.CappedDatabase"
                 + "$CappedBlockRolledOverMidReadException");
     }
+
+    @Test
+    public void shouldWriteBatch() throws Exception {
+        // given
+        CappedDatabase.Batch batch = cappedDatabase.newBatch();
+        long cappedId1 = batch.writeMessage(OptionalInt64.newBuilder().setValue(1).build(), "test");
+        long cappedId2 = batch.writeMessages(ImmutableList.of(
+                OptionalInt64.newBuilder().setValue(2).build(),
+                OptionalInt64.newBuilder().setValue(3).build()), "test");
+
+        // when
+        batch.sync();
+
+        // then
+        OptionalInt64 message = cappedDatabase.readMessage(cappedId1, OptionalInt64.parser());
+        assertThat(message.getValue()).isEqualTo(1);
+        List<OptionalInt64> messages =
+                cappedDatabase.readMessages(cappedId2, OptionalInt64.parser());
+        assertThat(messages).hasSize(2);
+        assertThat(messages.get(0).getValue()).isEqualTo(2);
+        assertThat(messages.get(1).getValue()).isEqualTo(3);
+    }
 }
@@ -15,11 +15,19 @@
  */
 package org.glowroot.agent.embedded.util;
 
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
+import javax.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+import org.checkerframework.checker.tainting.qual.Untainted;
 import org.junit.Test;
 import org.slf4j.Logger;
 
+import org.glowroot.agent.embedded.util.DataSource.JdbcUpdate;
+
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -93,4 +101,66 @@ public class DataSourceTest {
                 "'aaa', NULL, 99");
         verifyNoMoreInteractions(logger);
     }
+
+    @Test
+    public void testBatchUpdateInTransaction() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint primary key, name varchar)");
+        // when
+        dataSource.batchUpdateInTransaction(ImmutableList.of(new TestInsert(1, "a"),
+                new TestInsert(2, "b"), new TestInsert(3, null)));
+        // then
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(3);
+        dataSource.close();
+    }
+
+    @Test
+    public void testBatchUpdateInTransactionRollback() throws Exception {
+        // given
+        DataSource dataSource = new DataSource();
+        dataSource.execute("create table test (id bigint primary key, name varchar)");
+        // when
+        SQLException exception = null;
+        try {
+            dataSource.batchUpdateInTransaction(ImmutableList.of(new TestInsert(1, "a"),
+                    new TestInsert(1, "b")));
+        } catch (SQLException e) {
+            exception = e;
+        }
+        // then
+        assertThat(exception).isNotNull();
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(0);
+        // and auto commit is restored
+        dataSource.update("insert into test (id, name) values (?, ?)", 1, "a");
+        assertThat(dataSource.queryForLong("select count(*) from test")).isEqualTo(1);
+        dataSource.close();
+    }
+
+    private static class TestInsert implements JdbcUpdate {
+
+        private final long id;
+        private final @Nullable String name;
+
+        private TestInsert(long id, @Nullable String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        @Override
+        public @Untainted String getSql() {
+            if (name == null) {
+                return "insert into test (id) values (?)";
+            }
+            return "insert into test (id, name) values (?, ?)";
+        }
+
+        @Override
+        public void bind(PreparedStatement preparedStatement) throws SQLException {
+            preparedStatement.setLong(1, id);
+            if (name != null) {
+                preparedStatement.setString(2, name);
+            }
+        }
+    }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.embedded.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Ticker;
+import com.google.common.io.ByteSource;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedCappedDatabaseTest extends CappedDatabaseTest {
+
+    @Override
+    CappedDatabase createCappedDatabase(File file) throws IOException {
+        return new CappedDatabase(file, 1, Ticker.systemTicker(), true);
+    }
+
+    @Test
+    public void shouldReadWhileWriting() throws Exception {
+        // given
+        File file = File.createTempFile("glowroot-test-", ".capped.db");
+        final CappedDatabase cappedDatabase =
+                new CappedDatabase(file, 1000, Ticker.systemTicker(), true);
+        String text = "0123456789";
+        long cappedId =
+                cappedDatabase.write(ByteSource.wrap(text.getBytes(Charsets.UTF_8)), "test");
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // stay well under the capped size so the first block is never overwritten
+                    for (int i = 0; i < 1000 && !done.get(); i++) {
+                        cappedDatabase.write(
+                                ByteSource.wrap(("abc" + i).getBytes(Charsets.UTF_8)), "test");
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        // when
+        writer.start();
+        try {
+            // then
+            for (int i = 0; i < 1000; i++) {
+                assertThat(cappedDatabase.read(cappedId).read()).isEqualTo(text);
+            }
+        } finally {
+            done.set(true);
+            writer.join();
+            cappedDatabase.close();
+            file.delete();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package org.glowroot.agent.impl;
 import java.io.File;
 import java.util.List;
 
+import com.google.common.collect.ImmutableList;
 import org.junit.Test;
 
 import org.glowroot.agent.collector.Collector;
@@ -73,6 +74,62 @@ public class AggregatorTest {
         aggregator.close();
     }
 
+    @Test
+    public void shouldFlushWithTraceWhenSharded() throws InterruptedException {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        Aggregator aggregator =
+                new Aggregator(aggregateCollector, configService, 1000, Clock.systemClock(), 4);
+
+        // when
+        int count = 0;
+        long firstCaptureTime = aggregator.add(buildTransaction());
+        long aggregateCaptureTime = (long) Math.ceil(firstCaptureTime / 1000.0) * 1000;
+        while (true) {
+            long captureTime = aggregator.add(buildTransaction());
+            count++;
+            if (captureTime > aggregateCaptureTime) {
+                break;
+            }
+            Thread.sleep(1);
+        }
+
+        // then
+        // aggregation is done in a separate thread, so give it a little time to complete
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < 5000) {
+            if (aggregateCollector.getTotalDurationNanos() > 0) {
+                break;
+            }
+        }
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(count * 123 * 1000000.0);
+        aggregator.close();
+    }
+
+    @Test
+    public void shouldMergeSameTransactionTypeAcrossShards() throws Exception {
+        // given
+        MockCollector aggregateCollector = new MockCollector();
+        AggregateIntervalCollector shard1 =
+                new AggregateIntervalCollector(0, 1000, 500, 500, 500, Clock.systemClock());
+        AggregateIntervalCollector shard2 =
+                new AggregateIntervalCollector(0, 1000, 500, 500, 500, Clock.systemClock());
+        shard1.add(buildTransaction());
+        shard2.add(buildTransaction());
+        shard2.add(buildTransaction());
+
+        // when
+        AggregateIntervalCollector.mergeShards(ImmutableList.of(shard1, shard2))
+                .flush(aggregateCollector);
+
+        // then
+        assertThat(aggregateCollector.getOverallAggregateCount()).isEqualTo(1);
+        assertThat(aggregateCollector.getTotalDurationNanos()).isEqualTo(3 * 123 * 1000000.0);
+    }
+
     private static Transaction buildTransaction() {
         Transaction transaction = mock(Transaction.class);
         TimerImpl mainThreadRootTimer = mock(TimerImpl.class);
@@ -89,11 +146,16 @@ public class AggregatorTest {
 
         // volatile needed for visibility from other thread
         private volatile double totalDurationNanos;
+        private volatile int overallAggregateCount;
 
         private double getTotalDurationNanos() {
             return totalDurationNanos;
         }
 
+        private int getOverallAggregateCount() {
+            return overallAggregateCount;
+        }
+
         @Override
         public void init(File glowrootDir, File agentDir, Environment environment,
                 AgentConfig agentConfig, AgentConfigUpdater agentConfigUpdater) {}
@@ -104,6 +166,7 @@ public class AggregatorTest {
                 @Override
                 public void visitOverallAggregate(String transactionType,
                         List<String> sharedQueryTexts, Aggregate overallAggregate) {
+                    overallAggregateCount++;
                     // only capture first non-zero value
                     if (totalDurationNanos == 0) {
                         totalDurationNanos = overallAggregate.getTotalDurationNanos();
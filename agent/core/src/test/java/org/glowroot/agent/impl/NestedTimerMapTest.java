@@ -46,4 +46,28 @@ public class NestedTimerMapTest {
             assertThat(map.get(entry.getKey())).isEqualTo(entry.getValue());
         }
     }
+
+    @Test
+    public void testClear() {
+        // given
+        NestedTimerMap map = new NestedTimerMap();
+        Map<TimerNameImpl, TimerImpl> uniqueTimers = Maps.newHashMap();
+        for (int i = 0; i < 100; i++) {
+            uniqueTimers.put(ImmutableTimerNameImpl.of("timer-" + i, false), mock(TimerImpl.class));
+        }
+        for (Entry<TimerNameImpl, TimerImpl> entry : uniqueTimers.entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        // when
+        map.clear();
+        // then
+        for (TimerNameImpl timerName : uniqueTimers.keySet()) {
+            assertThat(map.get(timerName)).isNull();
+        }
+        // and map is still usable after clearing
+        TimerNameImpl timerName = ImmutableTimerNameImpl.of("timer-after-clear", false);
+        TimerImpl timer = mock(TimerImpl.class);
+        map.put(timerName, timer);
+        assertThat(map.get(timerName)).isEqualTo(timer);
+    }
 }
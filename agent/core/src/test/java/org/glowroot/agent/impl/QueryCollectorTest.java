@@ -17,10 +17,15 @@ package org.glowroot.agent.impl;
 
 import java.util.List;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
 import org.junit.Test;
 
 import org.glowroot.agent.model.QueryCollector;
 import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.common.config.StorageConfig;
+import org.glowroot.common.model.LazyHistogram;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -30,7 +35,7 @@ public class QueryCollectorTest {
     @Test
     public void testAddInAscendingOrder() {
         // given
-        QueryCollector queries = new QueryCollector(100, 2, false);
+        QueryCollector queries = new QueryCollector(100, 2);
         for (int i = 1; i <= 300; i++) {
             queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
         }
@@ -48,7 +53,7 @@ public class QueryCollectorTest {
     @Test
     public void testAddInDescendingOrder() {
         // given
-        QueryCollector queries = new QueryCollector(100, 2, false);
+        QueryCollector queries = new QueryCollector(100, 2);
         for (int i = 300; i > 0; i--) {
             queries.mergeQuery("SQL", Integer.toString(i), i, 1, true, 1);
         }
@@ -62,4 +67,82 @@ public class QueryCollectorTest {
         assertThat(queriesByType.getQueryList().get(0).getTotalDurationNanos()).isEqualTo(300);
         assertThat(queriesByType.getQueryList().get(99).getTotalDurationNanos()).isEqualTo(201);
     }
+
+    @Test
+    public void testRepeatedTransactionCount() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2);
+        // executions are accumulated across the thread contexts of a single transaction
+        queries.startTransaction();
+        queries.mergeQuery("SQL", "select", 5, 5, false, 0);
+        queries.mergeQuery("SQL", "select", 6, 6, false, 0);
+        queries.mergeQuery("SQL", "select", 1, 1, false, 0);
+        queries.startTransaction();
+        queries.mergeQuery("SQL", "select", 10, 10, false, 0);
+        queries.startTransaction();
+        queries.mergeQuery("SQL", "select", 20, 20, false, 0);
+        // when
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        Aggregate.Query query = queriesByTypeList.get(0).getQuery(0);
+        assertThat(query.getExecutionCount()).isEqualTo(42);
+        assertThat(query.getRepeatedTransactionCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void testDurationHistogramOnlyForTopQueries() {
+        // given
+        // histograms are sent for the top query, and retained for the top two queries
+        QueryCollector queries = new QueryCollector(100, 2, false, 1);
+        queries.mergeQuery("SQL", "a", 1000000, 1, false, 0);
+        queries.mergeQuery("SQL", "b", 500000, 1, false, 0);
+        // not retained, since it is smaller than both of the above
+        queries.mergeQuery("SQL", "c", 100000, 10, false, 0);
+        // retained now, releasing the histogram for "b"
+        queries.mergeQuery("SQL", "c", 2000000, 10, false, 0);
+        // when
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        List<Aggregate.Query> queryList = queriesByTypeList.get(0).getQueryList();
+        assertThat(queryList).hasSize(3);
+        assertThat(queryList.get(0).getTotalDurationNanos()).isEqualTo(2100000);
+        assertThat(queryList.get(0).hasDurationNanosHistogram()).isTrue();
+        assertThat(queryList.get(1).hasDurationNanosHistogram()).isFalse();
+        assertThat(queryList.get(2).hasDurationNanosHistogram()).isFalse();
+        // the executions prior to the histogram being allocated are recorded at their average
+        LazyHistogram histogram =
+                new LazyHistogram(queryList.get(0).getDurationNanosHistogram());
+        assertThat(histogram.getValueAtPercentile(25)).isBetween(9900L, 10100L);
+        assertThat(histogram.getValueAtPercentile(75)).isBetween(198000L, 202000L);
+    }
+
+    @Test
+    public void testNoDurationHistogramWhenDisabled() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, false, 0);
+        queries.mergeQuery("SQL", "a", 1000000, 1, false, 0);
+        // when
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(new SharedQueryTextCollector());
+        // then
+        Aggregate.Query query = queriesByTypeList.get(0).getQuery(0);
+        assertThat(query.hasDurationNanosHistogram()).isFalse();
+    }
+
+    @Test
+    public void testFullQueryText() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2);
+        String fullQueryText = Strings.repeat("x", StorageConfig.AGGREGATE_QUERY_TEXT_TRUNCATE + 1);
+        queries.mergeQuery("SQL", fullQueryText, 1, 1, false, 0);
+        queries.mergeQuery("SQL", "short", 1, 1, false, 0);
+        // when
+        String fullQueryTextSha1 =
+                Hashing.sha1().hashString(fullQueryText, Charsets.UTF_8).toString();
+        // then
+        assertThat(queries.getFullQueryText(fullQueryTextSha1)).isEqualTo(fullQueryText);
+        assertThat(queries.getFullQueryText("0000")).isNull();
+    }
 }
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import java.lang.management.ThreadInfo;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.config.ImmutableAdvancedConfig;
+import org.glowroot.agent.config.ImmutableTransactionConfig;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class StackTraceCollectorTest {
+
+    @Test
+    public void shouldNotSampleWhenUnderLimit() {
+        // given
+        List<Integer> list = Lists.newArrayList(1, 2, 3);
+        // when
+        List<Integer> sample = StackTraceCollector.reservoirSample(list, 3, new Random());
+        // then
+        assertThat(sample).containsExactly(1, 2, 3);
+    }
+
+    @Test
+    public void shouldSampleWhenOverLimit() {
+        // given
+        List<Integer> list = Lists.newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            list.add(i);
+        }
+        // when
+        List<Integer> sample = StackTraceCollector.reservoirSample(list, 10, new Random());
+        // then
+        assertThat(sample).hasSize(10);
+        assertThat(ImmutableSet.copyOf(sample)).hasSize(10);
+        assertThat(list).containsAll(sample);
+    }
+
+    @Test
+    public void shouldSampleUniformly() {
+        // given
+        List<Integer> list = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            list.add(i);
+        }
+        Random random = new Random(0);
+        int[] counts = new int[10];
+        // when
+        for (int i = 0; i < 10000; i++) {
+            for (int value : StackTraceCollector.reservoirSample(list, 5, random)) {
+                counts[value]++;
+            }
+        }
+        // then
+        for (int count : counts) {
+            // expected is 5000
+            assertThat(count).isBetween(4500, 5500);
+        }
+    }
+
+    @Test
+    public void shouldCaptureOncePerInterval() throws Exception {
+        // given
+        AtomicInteger captureCount = new AtomicInteger();
+        TransactionRegistry transactionRegistry = createTransactionRegistry(captureCount);
+        ConfigService configService = createConfigService(20);
+        // when
+        Stopwatch stopwatch = Stopwatch.createStarted();
+        StackTraceCollector stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, new Random());
+        Thread.sleep(1000);
+        stackTraceCollector.close();
+        long elapsedMillis = stopwatch.elapsed(MILLISECONDS);
+        // then
+        // the capture within each interval is at a random offset, so captures in adjacent
+        // intervals can be closer together than the interval, but there is never more than one
+        // capture per interval
+        assertThat(captureCount.get()).isLessThanOrEqualTo((int) (elapsedMillis / 20) + 1);
+        // expected is 50, but allow for slow test environments
+        assertThat(captureCount.get()).isGreaterThanOrEqualTo(10);
+    }
+
+    @Test
+    public void shouldNotCaptureWhenProfilingIsDisabled() throws Exception {
+        // given
+        AtomicInteger captureCount = new AtomicInteger();
+        TransactionRegistry transactionRegistry = createTransactionRegistry(captureCount);
+        ConfigService configService = createConfigService(0);
+        // when
+        StackTraceCollector stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, new Random());
+        Thread.sleep(200);
+        stackTraceCollector.close();
+        // then
+        assertThat(captureCount.get()).isZero();
+        assertThat(stackTraceCollector.getTotalNanos()).isZero();
+        assertThat(stackTraceCollector.getSampledThreadCount()).isZero();
+    }
+
+    @Test
+    public void shouldAccountForCost() throws Exception {
+        // given
+        AtomicInteger captureCount = new AtomicInteger();
+        TransactionRegistry transactionRegistry = createTransactionRegistry(captureCount);
+        ConfigService configService = createConfigService(10);
+        // when
+        StackTraceCollector stackTraceCollector =
+                new StackTraceCollector(transactionRegistry, configService, new Random());
+        Thread.sleep(200);
+        stackTraceCollector.close();
+        // then
+        assertThat(captureCount.get()).isGreaterThan(0);
+        // one (main) thread context is sampled per capture
+        assertThat(stackTraceCollector.getSampledThreadCount()).isEqualTo(captureCount.get());
+        assertThat(stackTraceCollector.getSkippedThreadCount()).isZero();
+        assertThat(stackTraceCollector.getThreadInfoNanos()).isGreaterThan(0);
+        assertThat(stackTraceCollector.getTotalNanos())
+                .isGreaterThanOrEqualTo(stackTraceCollector.getThreadInfoNanos());
+
+        // when
+        StackTraceCollectorStats stats = new StackTraceCollectorStats(stackTraceCollector);
+        // then
+        assertThat(stats.getTotalMillis())
+                .isEqualTo(stackTraceCollector.getTotalNanos() / 1000000.0);
+        assertThat(stats.getSampledThreadCount()).isEqualTo(captureCount.get());
+    }
+
+    // a single active transaction whose main thread is the test thread
+    private static TransactionRegistry createTransactionRegistry(final AtomicInteger captureCount) {
+        ThreadContextImpl threadContext = mock(ThreadContextImpl.class);
+        when(threadContext.isActive()).thenReturn(true);
+        when(threadContext.getThreadId()).thenReturn(Thread.currentThread().getId());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                captureCount.getAndIncrement();
+                return null;
+            }
+        }).when(threadContext).captureStackTrace(any(ThreadInfo.class), anyInt());
+        Transaction transaction = mock(Transaction.class);
+        when(transaction.getMainThreadContext()).thenReturn(threadContext);
+        when(transaction.getActiveAuxThreadContexts())
+                .thenReturn(ImmutableList.<ThreadContextImpl>of());
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getTransactions())
+                .thenReturn(ImmutableList.<Transaction>of(transaction));
+        return transactionRegistry;
+    }
+
+    private static ConfigService createConfigService(int profilingIntervalMillis) {
+        ConfigService configService = mock(ConfigService.class);
+        when(configService.getTransactionConfig()).thenReturn(ImmutableTransactionConfig.builder()
+                .profilingIntervalMillis(profilingIntervalMillis)
+                .build());
+        when(configService.getAdvancedConfig())
+                .thenReturn(ImmutableAdvancedConfig.builder().build());
+        return configService;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TimerImplPoolTest {
+
+    private static final TimerNameImpl ROOT = ImmutableTimerNameImpl.of("root", false);
+    private static final TimerNameImpl CHILD = ImmutableTimerNameImpl.of("child", false);
+
+    private ThreadContextImpl threadContext;
+    private TimerImplPool pool;
+
+    @Before
+    public void beforeEachTest() {
+        threadContext = mock(ThreadContextImpl.class);
+        pool = new TimerImplPool();
+    }
+
+    @Test
+    public void shouldReturnNullWhenEmpty() {
+        assertThat(pool.acquire()).isNull();
+    }
+
+    @Test
+    public void shouldAcquireTimersReleasedByAnotherThread() throws Exception {
+        // given
+        final TimerImpl rootTimer = createCompletedRootTimer();
+        // when
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                rootTimer.recycle();
+            }
+        });
+        thread.start();
+        thread.join();
+        // then
+        assertThat(pool.acquire()).isSameAs(rootTimer);
+        assertThat(pool.acquire()).isNotNull();
+        assertThat(pool.acquire()).isNull();
+    }
+
+    @Test
+    public void shouldDrainLocalTimersBeforeReleasedTimers() {
+        // given
+        TimerImpl rootTimer1 = createCompletedRootTimer();
+        TimerImpl rootTimer2 = createCompletedRootTimer();
+        rootTimer1.recycle();
+        // when
+        TimerImpl acquired1 = pool.acquire();
+        rootTimer2.recycle();
+        TimerImpl acquired2 = pool.acquire();
+        TimerImpl acquired3 = pool.acquire();
+        TimerImpl acquired4 = pool.acquire();
+        // then
+        assertThat(acquired1).isSameAs(rootTimer1);
+        // the child of rootTimer1 is still on the local free list
+        assertThat(acquired2).isNotSameAs(rootTimer2);
+        assertThat(acquired3).isSameAs(rootTimer2);
+        assertThat(acquired4).isNotNull();
+        assertThat(pool.acquire()).isNull();
+    }
+
+    private TimerImpl createCompletedRootTimer() {
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT, pool);
+        rootTimer.start(0);
+        rootTimer.startNestedTimer(CHILD, 10).end(20);
+        rootTimer.end(30);
+        return rootTimer;
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.impl;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.model.TimerNameImpl;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class TimerImplTest {
+
+    private static final TimerNameImpl ROOT = ImmutableTimerNameImpl.of("root", false);
+    private static final TimerNameImpl CHILD = ImmutableTimerNameImpl.of("child", false);
+    private static final TimerNameImpl OTHER_ROOT = ImmutableTimerNameImpl.of("other root", false);
+
+    private ThreadContextImpl threadContext;
+    private TimerImplPool pool;
+
+    @Before
+    public void beforeEachTest() {
+        threadContext = mock(ThreadContextImpl.class);
+        pool = new TimerImplPool();
+    }
+
+    @Test
+    public void shouldRecycleTimersAfterTransactionCompletion() {
+        // given
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT, pool);
+        rootTimer.start(0);
+        TimerImpl childTimer = rootTimer.startNestedTimer(CHILD, 10);
+        childTimer.end(20);
+        rootTimer.end(30);
+        // when
+        rootTimer.recycle();
+        // then
+        assertThat(pool.acquire()).isSameAs(rootTimer);
+        assertThat(pool.acquire()).isSameAs(childTimer);
+        assertThat(pool.acquire()).isNull();
+    }
+
+    @Test
+    public void shouldNotRecycleTimersWithoutPool() {
+        // given
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT, null);
+        rootTimer.start(0);
+        rootTimer.startNestedTimer(CHILD, 10).end(20);
+        rootTimer.end(30);
+        // when
+        rootTimer.recycle();
+        // then
+        assertThat(pool.acquire()).isNull();
+        assertThat(rootTimer.getTotalNanos()).isEqualTo(30);
+        assertThat(rootTimer.toProto().getChildTimerCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldReuseRecycledTimersWithCleanState() {
+        // given
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT, pool);
+        rootTimer.start(0);
+        TimerImpl childTimer = rootTimer.startNestedTimer(CHILD, 10);
+        childTimer.end(20);
+        rootTimer.end(30);
+        rootTimer.recycle();
+        // when
+        TimerImpl reusedRootTimer = TimerImpl.createRootTimer(threadContext, OTHER_ROOT, pool);
+        reusedRootTimer.start(100);
+        // then
+        assertThat(reusedRootTimer).isSameAs(rootTimer);
+        Trace.Timer timer = reusedRootTimer.toProto();
+        assertThat(timer.getName()).isEqualTo("other root");
+        assertThat(timer.getActive()).isTrue();
+        assertThat(timer.getChildTimerCount()).isZero();
+
+        // when
+        reusedRootTimer.end(150);
+        // then
+        assertThat(reusedRootTimer.getTotalNanos()).isEqualTo(50);
+        assertThat(reusedRootTimer.getCount()).isEqualTo(1);
+        assertThat(reusedRootTimer.toProto().getChildTimerCount()).isZero();
+    }
+
+    @Test
+    public void shouldReuseRecycledNestedTimersWithCleanState() {
+        // given
+        TimerImpl rootTimer = TimerImpl.createRootTimer(threadContext, ROOT, pool);
+        rootTimer.start(0);
+        TimerImpl childTimer = rootTimer.startNestedTimer(CHILD, 10);
+        childTimer.end(20);
+        rootTimer.end(30);
+        rootTimer.recycle();
+        // when
+        TimerImpl reusedRootTimer = TimerImpl.createRootTimer(threadContext, ROOT, pool);
+        reusedRootTimer.start(100);
+        TimerImpl reusedChildTimer = reusedRootTimer.startNestedTimer(CHILD, 110);
+        reusedChildTimer.end(115);
+        reusedRootTimer.end(120);
+        // then
+        assertThat(reusedChildTimer).isSameAs(childTimer);
+        Trace.Timer timer = reusedRootTimer.toProto();
+        assertThat(timer.getTotalNanos()).isEqualTo(20);
+        assertThat(timer.getCount()).isEqualTo(1);
+        assertThat(timer.getChildTimerCount()).isEqualTo(1);
+        Trace.Timer childTimerProto = timer.getChildTimer(0);
+        assertThat(childTimerProto.getName()).isEqualTo("child");
+        assertThat(childTimerProto.getTotalNanos()).isEqualTo(5);
+        assertThat(childTimerProto.getCount()).isEqualTo(1);
+        assertThat(childTimerProto.getChildTimerCount()).isZero();
+    }
+}
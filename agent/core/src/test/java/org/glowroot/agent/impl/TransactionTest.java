@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,9 +15,17 @@
  */
 package org.glowroot.agent.impl;
 
+import com.google.common.base.Ticker;
 import org.junit.Test;
 
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.Transaction.CompletionCallback;
+import org.glowroot.agent.model.ImmutableTimerNameImpl;
+import org.glowroot.agent.plugin.api.MessageSupplier;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal.Holder;
+
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
 
 public class TransactionTest {
 
@@ -59,4 +67,50 @@ public class TransactionTest {
         // then
         assertThat(lowerSixBytes).isEqualTo("9ab0affd1a83");
     }
+
+    @Test
+    public void shouldRecycleTimersWhenNotPinned() {
+        // given
+        Transaction transaction = createTransaction();
+        // when
+        boolean recycled = transaction.recycleTimersUnlessPinned();
+        // then
+        assertThat(recycled).isTrue();
+        // a reader that reaches the transaction after recycling must not walk its timers
+        assertThat(transaction.pinTimers()).isFalse();
+    }
+
+    @Test
+    public void shouldNotRecycleTimersWhilePinned() {
+        // given
+        Transaction transaction = createTransaction();
+        assertThat(transaction.pinTimers()).isTrue();
+        // when
+        boolean recycled = transaction.recycleTimersUnlessPinned();
+        // then
+        assertThat(recycled).isFalse();
+        // the reader (and any later reader) can still walk the timers
+        assertThat(transaction.pinTimers()).isTrue();
+    }
+
+    @Test
+    public void shouldOnlyRecycleTimersOnce() {
+        // given
+        Transaction transaction = createTransaction();
+        // when
+        boolean recycled1 = transaction.recycleTimersUnlessPinned();
+        boolean recycled2 = transaction.recycleTimersUnlessPinned();
+        // then
+        assertThat(recycled1).isTrue();
+        assertThat(recycled2).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Transaction createTransaction() {
+        return new Transaction(0, 0, "type", "name", mock(MessageSupplier.class),
+                ImmutableTimerNameImpl.of("root", false), false, 100, 100, 100, null,
+                mock(CompletionCallback.class), mock(Ticker.class), mock(TransactionRegistry.class),
+                mock(TransactionServiceImpl.class), mock(ConfigService.class),
+                mock(UserProfileScheduler.class), mock(Holder.class));
+    }
 }
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryDataTest {
+
+    @Test
+    public void shouldRecordDurations() {
+        // given
+        QueryData queryData = new QueryData("SQL", "select", null, true);
+        // when
+        queryData.start(0, 1);
+        queryData.end(100);
+        queryData.start(200, 5);
+        queryData.end(250);
+        // then
+        assertThat(queryData.getTotalDurationNanos()).isEqualTo(150);
+        assertThat(queryData.getExecutionCount()).isEqualTo(6);
+        assertThat(queryData.getRoundTripCount()).isEqualTo(2);
+        assertThat(queryData.getRecordedDurationCount()).isEqualTo(2);
+        assertThat(queryData.getRecordedDurationNanos()).startsWith(100, 50);
+    }
+
+    @Test
+    public void shouldAddExtendedDurationToMostRecentExecution() {
+        // given
+        QueryData queryData = new QueryData("SQL", "select", null, true);
+        // when
+        queryData.start(0, 1);
+        queryData.end(100);
+        // e.g. iterating over the result set
+        queryData.extend(150);
+        queryData.end(170);
+        // then
+        assertThat(queryData.getTotalDurationNanos()).isEqualTo(120);
+        assertThat(queryData.getRecordedDurationCount()).isEqualTo(1);
+        assertThat(queryData.getRecordedDurationNanos()[0]).isEqualTo(120);
+    }
+
+    @Test
+    public void shouldRecordAtMost64Durations() {
+        // given
+        QueryData queryData = new QueryData("SQL", "select", null, true);
+        // when
+        for (int i = 0; i < 100; i++) {
+            queryData.start(i * 10, 1);
+            queryData.end(i * 10 + 5);
+        }
+        // then
+        assertThat(queryData.getRoundTripCount()).isEqualTo(100);
+        assertThat(queryData.getRecordedDurationCount()).isEqualTo(64);
+        assertThat(queryData.getRecordedDurationNanos()).hasSize(64);
+    }
+
+    @Test
+    public void shouldNotRecordDurationsWhenDisabled() {
+        // given
+        QueryData queryData = new QueryData("SQL", "select", null, false);
+        // when
+        queryData.start(0, 1);
+        queryData.end(100);
+        // then
+        assertThat(queryData.getTotalDurationNanos()).isEqualTo(100);
+        assertThat(queryData.getRecordedDurationCount()).isEqualTo(0);
+        assertThat(queryData.getRecordedDurationNanos()).isNull();
+    }
+}
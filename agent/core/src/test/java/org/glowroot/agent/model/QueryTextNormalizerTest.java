@@ -0,0 +1,72 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.model;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import org.glowroot.agent.model.QueryCollector.SharedQueryTextCollector;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueryTextNormalizerTest {
+
+    @Test
+    public void shouldCollapseInLists() {
+        assertThat(QueryTextNormalizer.collapseInLists("select * from t where id in (?, ?, ?)"))
+                .isEqualTo("select * from t where id in (...)");
+        assertThat(QueryTextNormalizer.collapseInLists("select * from t where a IN(1,-2.5)"
+                + " and b in ('x', 'y''z') and c in (:p1, :p2)"))
+                        .isEqualTo("select * from t where a IN(...) and b in (...)"
+                                + " and c in (...)");
+    }
+
+    @Test
+    public void shouldNotCollapseOtherLists() {
+        assertThat(QueryTextNormalizer.collapseInLists("select * from t where id in (select id"
+                + " from u)")).isEqualTo("select * from t where id in (select id from u)");
+        assertThat(QueryTextNormalizer.collapseInLists("select 'in (1, 2)' from t"))
+                .isEqualTo("select 'in (1, 2)' from t");
+        assertThat(QueryTextNormalizer.collapseInLists("select join_in (1) from t"))
+                .isEqualTo("select join_in (1) from t");
+        assertThat(QueryTextNormalizer.collapseInLists("select * from t where id in ("))
+                .isEqualTo("select * from t where id in (");
+    }
+
+    @Test
+    public void shouldAggregateNormalizedQueries() {
+        // given
+        QueryCollector queries = new QueryCollector(100, 2, true);
+        queries.mergeQuery("SQL", "select * from t where id in (?)", 1, 1, true, 1);
+        queries.mergeQuery("SQL", "select * from t where id in (?, ?)", 2, 1, true, 2);
+        queries.mergeQuery("SQL", "select * from t where id in (?, ?, ?)", 3, 1, false, 0);
+        // when
+        SharedQueryTextCollector sharedQueryTextCollector = new SharedQueryTextCollector();
+        List<Aggregate.QueriesByType> queriesByTypeList =
+                queries.toAggregateProto(sharedQueryTextCollector);
+        // then
+        assertThat(queriesByTypeList).hasSize(1);
+        List<Aggregate.Query> queryList = queriesByTypeList.get(0).getQueryList();
+        assertThat(queryList).hasSize(1);
+        assertThat(queryList.get(0).getTotalDurationNanos()).isEqualTo(6);
+        assertThat(queryList.get(0).getExecutionCount()).isEqualTo(3);
+        assertThat(queryList.get(0).getTotalRows().getValue()).isEqualTo(3);
+        assertThat(sharedQueryTextCollector.getAndClearLastestSharedQueryTexts())
+                .containsExactly("select * from t where id in (...)");
+    }
+}
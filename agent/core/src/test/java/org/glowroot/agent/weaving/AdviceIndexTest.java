@@ -0,0 +1,126 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Resources;
+import org.junit.Before;
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BasicAnnotationBasedAdvice;
+import org.glowroot.agent.weaving.SomeAspect.SuperTypeRestrictionAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.SuperBasicMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AdviceIndexTest {
+
+    private static final String SOME_CLASS_DESC =
+            "Lorg/glowroot/agent/weaving/SomeAspect$SomeClass;";
+
+    private Advice basicAdvice;
+    private Advice basicAnnotationBasedAdvice;
+    private Advice superTypeRestrictionAdvice;
+    private List<Advice> advisors;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        basicAdvice = new AdviceBuilder(BasicAdvice.class).build();
+        basicAnnotationBasedAdvice = new AdviceBuilder(BasicAnnotationBasedAdvice.class).build();
+        superTypeRestrictionAdvice = new AdviceBuilder(SuperTypeRestrictionAdvice.class).build();
+        advisors = ImmutableList.of(basicAdvice, basicAnnotationBasedAdvice,
+                superTypeRestrictionAdvice);
+    }
+
+    @Test
+    public void shouldReturnCandidatesByClassName() {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors);
+        String className = "org.glowroot.agent.weaving.targets.Misc";
+        // when
+        List<Advice> candidateAdvisors = adviceIndex.getCandidateAdvisors(className,
+                ImmutableList.<String>of(), ImmutableSet.of(className));
+        // then
+        // class name patterns are not indexed
+        assertThat(candidateAdvisors).containsExactly(basicAdvice, superTypeRestrictionAdvice);
+    }
+
+    @Test
+    public void shouldReturnCandidatesByClassAnnotation() {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors);
+        // when
+        List<Advice> candidateAdvisors = adviceIndex.getCandidateAdvisors("a.B",
+                ImmutableList.of(SOME_CLASS_DESC), ImmutableSet.of("a.B"));
+        // then
+        assertThat(candidateAdvisors).containsExactly(basicAnnotationBasedAdvice,
+                superTypeRestrictionAdvice);
+    }
+
+    @Test
+    public void shouldNotReturnIndexedAdvisorsForOtherClasses() {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(ImmutableList.of(basicAdvice,
+                basicAnnotationBasedAdvice));
+        // when
+        List<Advice> candidateAdvisors = adviceIndex.getCandidateAdvisors("a.B",
+                ImmutableList.<String>of(), ImmutableSet.of("a.B", "a.C"));
+        // then
+        assertThat(candidateAdvisors).isEmpty();
+    }
+
+    @Test
+    public void shouldFindClassAnnotationInConstantPool() throws Exception {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors);
+        // when
+        boolean mayMatch = adviceIndex.mayMatchClassAnnotation(getClassReader(BasicMisc.class));
+        // then
+        assertThat(mayMatch).isTrue();
+    }
+
+    @Test
+    public void shouldNotFindClassAnnotationInConstantPool() throws Exception {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(advisors);
+        // when
+        boolean mayMatch =
+                adviceIndex.mayMatchClassAnnotation(getClassReader(SuperBasicMisc.class));
+        // then
+        assertThat(mayMatch).isFalse();
+    }
+
+    @Test
+    public void shouldNotScanConstantPoolWithoutClassAnnotationPointcuts() throws Exception {
+        // given
+        AdviceIndex adviceIndex = AdviceIndex.of(ImmutableList.of(basicAdvice));
+        // when
+        boolean mayMatch = adviceIndex.mayMatchClassAnnotation(getClassReader(BasicMisc.class));
+        // then
+        assertThat(mayMatch).isFalse();
+    }
+
+    private static ClassReader getClassReader(Class<?> clazz) throws Exception {
+        String path = ClassNames.toInternalName(clazz.getName()) + ".class";
+        return new ClassReader(Resources.toByteArray(Resources.getResource(path)));
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.targets.BasicMisc;
+import org.glowroot.agent.weaving.targets.SuperBasicMisc;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AnalyzedWorldTest {
+
+    private AnalyzedWorld analyzedWorld;
+    private File jarFile;
+    private URLClassLoader loader;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        analyzedWorld = new AnalyzedWorld(Suppliers.<List<Advice>>ofInstance(
+                ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build())),
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        jarFile = File.createTempFile("glowroot-test-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (Class<?> clazz : ImmutableList.of(BasicMisc.class, SuperBasicMisc.class)) {
+                String path = ClassNames.toInternalName(clazz.getName()) + ".class";
+                out.putNextEntry(new JarEntry(path));
+                out.write(Resources.toByteArray(Resources.getResource(path)));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        // null parent so that the classes are analyzed from the jar file
+        loader = new URLClassLoader(new URL[] {jarFile.toURI().toURL()}, null);
+    }
+
+    @After
+    public void afterEachTest() {
+        jarFile.delete();
+    }
+
+    @Test
+    public void shouldAnalyzeClassOnceForConcurrentThreads() throws Exception {
+        // given
+        int threadCount = 8;
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        List<Future<AnalyzedClass>> futures = Lists.newArrayList();
+        // when
+        for (int i = 0; i < threadCount; i++) {
+            futures.add(executor.submit(new Callable<AnalyzedClass>() {
+                @Override
+                public AnalyzedClass call() throws Exception {
+                    barrier.await();
+                    return analyzedWorld.getAnalyzedClass(BasicMisc.class.getName(), loader);
+                }
+            }));
+        }
+        // then
+        AnalyzedClass analyzedClass = futures.get(0).get();
+        for (Future<AnalyzedClass> future : futures) {
+            assertThat(future.get()).isSameAs(analyzedClass);
+        }
+        assertThat(analyzedClass.superName()).isEqualTo(SuperBasicMisc.class.getName());
+        executor.shutdown();
+    }
+
+    @Test
+    public void shouldPrewarmOnlyClassesThatMayMatchAdvice() throws Exception {
+        // given
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // when
+        analyzedWorld.prewarm(ImmutableList.of(jarFile), loader, executor);
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+        // then
+        // BasicMisc implements Misc, which BasicAdvice applies to
+        AnalyzedClass analyzedClass =
+                analyzedWorld.getAlreadyAnalyzedClass(BasicMisc.class.getName(), loader);
+        assertThat(analyzedClass).isNotNull();
+        assertThat(analyzedClass.superName()).isEqualTo(SuperBasicMisc.class.getName());
+    }
+
+    @Test
+    public void shouldNotPrewarmClassesThatCannotMatchAdvice() throws Exception {
+        // given
+        analyzedWorld = new AnalyzedWorld(Suppliers.<List<Advice>>ofInstance(
+                ImmutableList.<Advice>of()), ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        // when
+        analyzedWorld.prewarm(ImmutableList.of(jarFile), loader, executor);
+        executor.shutdown();
+        executor.awaitTermination(10, SECONDS);
+        // then
+        assertThat(analyzedWorld.getAlreadyAnalyzedClass(BasicMisc.class.getName(), loader))
+                .isNull();
+        assertThat(analyzedWorld.getAlreadyAnalyzedClass(SuperBasicMisc.class.getName(), loader))
+                .isNull();
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.weaving;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.agent.config.ConfigService;
+import org.glowroot.agent.impl.ThreadContextImpl;
+import org.glowroot.agent.impl.TimerNameCache;
+import org.glowroot.agent.impl.TransactionRegistry;
+import org.glowroot.agent.plugin.api.util.FastThreadLocal;
+import org.glowroot.agent.weaving.SomeAspect.BasicAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindMethodMetaAdvice;
+import org.glowroot.agent.weaving.SomeAspect.BindReceiverAdvice;
+import org.glowroot.agent.weaving.WeavingCache.CachedWeaving;
+import org.glowroot.agent.weaving.targets.Misc;
+import org.glowroot.agent.weaving.targets.OnlyThrowingMisc;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class WeavingCacheTest {
+
+    private File file;
+    private List<Advice> advisors;
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        file = File.createTempFile("glowroot-test-", ".weaving-cache.bin");
+        // the cache creates the file itself
+        file.delete();
+        advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build(),
+                new AdviceBuilder(BindReceiverAdvice.class).build());
+    }
+
+    @After
+    public void afterEachTest() {
+        file.delete();
+        new File(file.getPath() + ".prior").delete();
+    }
+
+    @Test
+    public void shouldReadEntryWrittenByPriorJvm() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        byte[] classBytes = new byte[] {1, 2, 3};
+        String key = weavingCache.getKey(classBytes, "a/B", advisors, null);
+        AnalyzedClass analyzedClass = createAnalyzedClass();
+        byte[] wovenBytes = new byte[] {4, 5, 6};
+        weavingCache.put(key, analyzedClass, wovenBytes);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache("0.9.1");
+        String nextKey = weavingCache.getKey(classBytes, "a/B", advisors, null);
+        CachedWeaving cachedWeaving = weavingCache.get(nextKey, advisors);
+        // then
+        assertThat(nextKey).isEqualTo(key);
+        assertThat(cachedWeaving).isNotNull();
+        assertThat(cachedWeaving.getAnalyzedClass()).isEqualTo(analyzedClass);
+        assertThat(cachedWeaving.getWovenBytes()).isEqualTo(wovenBytes);
+        // entries are only used once
+        assertThat(weavingCache.get(nextKey, advisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldReadEntryThatDidNotNeedWeaving() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        String key = weavingCache.getKey(new byte[] {1, 2, 3}, "a/B", advisors, null);
+        weavingCache.put(key, createAnalyzedClass(), null);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache("0.9.1");
+        CachedWeaving cachedWeaving = weavingCache.get(key, advisors);
+        // then
+        assertThat(cachedWeaving).isNotNull();
+        assertThat(cachedWeaving.getWovenBytes()).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldUseDifferentKeyWhenInputsChange() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        WeavingCache otherVersionWeavingCache = createWeavingCache("0.9.2");
+        byte[] classBytes = new byte[] {1, 2, 3};
+        // when
+        String key = weavingCache.getKey(classBytes, "a/B", advisors, null);
+        // then
+        assertThat(weavingCache.getKey(new byte[] {1, 2, 4}, "a/B", advisors, null))
+                .isNotEqualTo(key);
+        assertThat(weavingCache.getKey(classBytes, "a/B", advisors.subList(0, 1), null))
+                .isNotEqualTo(key);
+        assertThat(otherVersionWeavingCache.getKey(classBytes, "a/B", advisors, null))
+                .isNotEqualTo(key);
+        weavingCache.close();
+        otherVersionWeavingCache.close();
+    }
+
+    @Test
+    public void shouldNotCacheClassesFromClassDirectories() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        File dir = file.getParentFile();
+        URLClassLoader loader = new URLClassLoader(new URL[] {dir.toURI().toURL()}, null);
+        // when
+        String key = weavingCache.getKey(new byte[] {1, 2, 3}, "a/B", advisors, loader);
+        // then
+        assertThat(key).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldIgnorePartiallyWrittenEntry() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        String key1 = weavingCache.getKey(new byte[] {1}, "a/B", advisors, null);
+        String key2 = weavingCache.getKey(new byte[] {2}, "a/B", advisors, null);
+        weavingCache.put(key1, createAnalyzedClass(), new byte[] {1});
+        weavingCache.put(key2, createAnalyzedClass(), new byte[] {2});
+        weavingCache.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+        // when
+        weavingCache = createWeavingCache("0.9.1");
+        CachedWeaving cachedWeaving1 = weavingCache.get(key1, advisors);
+        CachedWeaving cachedWeaving2 = weavingCache.get(key2, advisors);
+        String key3 = weavingCache.getKey(new byte[] {3}, "a/B", advisors, null);
+        weavingCache.put(key3, createAnalyzedClass(), new byte[] {3});
+        weavingCache.close();
+        weavingCache = createWeavingCache("0.9.1");
+        // then
+        assertThat(cachedWeaving1).isNotNull();
+        assertThat(cachedWeaving2).isNull();
+        assertThat(weavingCache.get(key1, advisors)).isNotNull();
+        assertThat(weavingCache.get(key3, advisors)).isNotNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldDropEntryNotUsedByPriorJvm() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        String key1 = weavingCache.getKey(new byte[] {1}, "a/B", advisors, null);
+        String key2 = weavingCache.getKey(new byte[] {2}, "a/B", advisors, null);
+        weavingCache.put(key1, createAnalyzedClass(), new byte[] {1});
+        weavingCache.put(key2, createAnalyzedClass(), new byte[] {2});
+        weavingCache.close();
+        weavingCache = createWeavingCache("0.9.1");
+        weavingCache.get(key1, advisors);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache("0.9.1");
+        // then
+        assertThat(weavingCache.get(key1, advisors)).isNotNull();
+        assertThat(weavingCache.get(key2, advisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldStopAppendingOnceFull() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1", 1024);
+        String key1 = weavingCache.getKey(new byte[] {1}, "a/B", advisors, null);
+        String key2 = weavingCache.getKey(new byte[] {2}, "a/B", advisors, null);
+        weavingCache.put(key1, createAnalyzedClass(), new byte[] {1});
+        weavingCache.put(key2, createAnalyzedClass(), new byte[1024]);
+        weavingCache.close();
+        // when
+        weavingCache = createWeavingCache("0.9.1", 1024);
+        // then
+        assertThat(file.length()).isLessThanOrEqualTo(1024);
+        assertThat(weavingCache.get(key1, advisors)).isNotNull();
+        assertThat(weavingCache.get(key2, advisors)).isNull();
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldNotAppendDuplicateEntry() throws Exception {
+        // given
+        WeavingCache weavingCache = createWeavingCache("0.9.1");
+        String key = weavingCache.getKey(new byte[] {1}, "a/B", advisors, null);
+        weavingCache.put(key, createAnalyzedClass(), new byte[] {1});
+        long length = file.length();
+        // when
+        weavingCache.put(key, createAnalyzedClass(), new byte[] {1});
+        // then
+        assertThat(file.length()).isEqualTo(length);
+        weavingCache.close();
+    }
+
+    @Test
+    public void shouldReuseWovenClassAcrossJvms() throws Exception {
+        // given
+        List<Advice> advisors = ImmutableList.of(new AdviceBuilder(BasicAdvice.class).build());
+        File jarFile = createTargetsJarFile();
+        try {
+            WeavingCache weavingCache = createWeavingCache("0.9.1");
+            byte[] wovenBytes = weave(advisors, weavingCache, jarFile);
+            weavingCache.close();
+            // when
+            weavingCache = createWeavingCache("0.9.1");
+            CachedWeaving cachedWeaving = weavingCache.get(getKey(advisors, weavingCache, jarFile),
+                    advisors);
+            weavingCache.close();
+            // then
+            assertThat(wovenBytes).isNotNull();
+            assertThat(cachedWeaving).isNotNull();
+            assertThat(cachedWeaving.getWovenBytes()).isEqualTo(wovenBytes);
+        } finally {
+            jarFile.delete();
+        }
+    }
+
+    @Test
+    public void shouldNotReuseWovenClassWithMetaHolder() throws Exception {
+        // given
+        List<Advice> advisors =
+                ImmutableList.of(new AdviceBuilder(BindMethodMetaAdvice.class).build());
+        File jarFile = createTargetsJarFile();
+        try {
+            WeavingCache weavingCache = createWeavingCache("0.9.1");
+            byte[] wovenBytes = weave(advisors, weavingCache, jarFile);
+            weavingCache.close();
+            // when
+            weavingCache = createWeavingCache("0.9.1");
+            CachedWeaving cachedWeaving = weavingCache.get(getKey(advisors, weavingCache, jarFile),
+                    advisors);
+            byte[] nextWovenBytes = weave(advisors, weavingCache, jarFile);
+            weavingCache.close();
+            // then
+            assertThat(wovenBytes).isNotNull();
+            assertThat(cachedWeaving).isNull();
+            assertThat(nextWovenBytes).isNotNull();
+            // the class was woven again, generating (and defining) a new meta holder, instead of
+            // reusing woven bytes that reference a meta holder which no longer exists
+            assertThat(nextWovenBytes).isNotEqualTo(wovenBytes);
+        } finally {
+            jarFile.delete();
+        }
+    }
+
+    private static byte[] weave(List<Advice> advisors, WeavingCache weavingCache, File jarFile)
+            throws Exception {
+        Supplier<List<Advice>> advisorsSupplier = Suppliers.ofInstance(advisors);
+        AnalyzedWorld analyzedWorld = new AnalyzedWorld(advisorsSupplier,
+                ImmutableList.<ShimType>of(), ImmutableList.<MixinType>of());
+        TransactionRegistry transactionRegistry = mock(TransactionRegistry.class);
+        when(transactionRegistry.getCurrentThreadContextHolder())
+                .thenReturn(new FastThreadLocal<ThreadContextImpl>().getHolder());
+        Weaver weaver = new Weaver(advisorsSupplier, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), analyzedWorld, weavingCache, transactionRegistry,
+                new TimerNameCache(), mock(ConfigService.class));
+        return weaver.weave(getClassBytes(OnlyThrowingMisc.class),
+                ClassNames.toInternalName(OnlyThrowingMisc.class.getName()), null,
+                createLoader(jarFile));
+    }
+
+    private static String getKey(List<Advice> advisors, WeavingCache weavingCache, File jarFile)
+            throws Exception {
+        return weavingCache.getKey(getClassBytes(OnlyThrowingMisc.class),
+                ClassNames.toInternalName(OnlyThrowingMisc.class.getName()), advisors,
+                createLoader(jarFile));
+    }
+
+    // new class loader each time (as in a new jvm), but with the same class path so that it has
+    // the same fingerprint
+    private static ClassLoader createLoader(File jarFile) throws Exception {
+        return new URLClassLoader(new URL[] {jarFile.toURI().toURL()}, null);
+    }
+
+    // jar files (unlike class directories) can be fingerprinted
+    private static File createTargetsJarFile() throws Exception {
+        File jarFile = File.createTempFile("glowroot-test-", ".jar");
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jarFile));
+        try {
+            for (Class<?> clazz : ImmutableList.of(Misc.class, OnlyThrowingMisc.class)) {
+                out.putNextEntry(new JarEntry(getResourceName(clazz)));
+                out.write(getClassBytes(clazz));
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return jarFile;
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        return Resources.toByteArray(Resources.getResource(getResourceName(clazz)));
+    }
+
+    private static String getResourceName(Class<?> clazz) {
+        return ClassNames.toInternalName(clazz.getName()) + ".class";
+    }
+
+    private WeavingCache createWeavingCache(String glowrootVersion) {
+        return WeavingCache.create(file, glowrootVersion, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of());
+    }
+
+    private WeavingCache createWeavingCache(String glowrootVersion, long maxFileSize) {
+        return WeavingCache.create(file, glowrootVersion, ImmutableList.<ShimType>of(),
+                ImmutableList.<MixinType>of(), maxFileSize);
+    }
+
+    private AnalyzedClass createAnalyzedClass() {
+        return ImmutableAnalyzedClass.builder()
+                .modifiers(1)
+                .name("a.B")
+                .superName("java.lang.Object")
+                .addInterfaceNames("a.C")
+                .addAnalyzedMethods(ImmutableAnalyzedMethod.builder()
+                        .name("execute")
+                        .addParameterTypes("java.lang.String")
+                        .returnType("void")
+                        .modifiers(1)
+                        .signature("(Ljava/util/List<Ljava/lang/String;>;)V")
+                        .addExceptions("java.io.IOException")
+                        .addAdvisors(advisors.get(0))
+                        .addSubTypeRestrictedAdvisors(advisors.get(1))
+                        .build())
+                .addPublicFinalMethods(ImmutablePublicFinalMethod.builder()
+                        .name("finalMethod")
+                        .build())
+                .build();
+    }
+}
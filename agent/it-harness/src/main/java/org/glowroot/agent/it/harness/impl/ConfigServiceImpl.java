@@ -247,6 +247,12 @@ class ConfigServiceImpl implements ConfigService {
                     .setName("SystemCpuLoad"));
         }
         defaultGaugeConfigs.add(operatingSystemMBean.build());
+        defaultGaugeConfigs.add(GaugeConfig.newBuilder()
+                .setMbeanObjectName("org.glowroot:type=StackTraceCollector")
+                .addMbeanAttribute(MBeanAttribute.newBuilder()
+                        .setName("TotalMillis")
+                        .setCounter(true))
+                .build());
         return ImmutableList.copyOf(defaultGaugeConfigs);
     }
 
@@ -15,14 +15,11 @@
  */
 package org.glowroot.agent.plugin.jdbc;
 
-import java.util.Collection;
-
 import javax.annotation.Nullable;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Queues;
 import com.google.common.hash.HashCode;
 
+import org.glowroot.agent.plugin.jdbc.message.BatchedBindParameters;
 import org.glowroot.agent.plugin.jdbc.message.BindParameterList;
 
 // used to capture and mirror the state of prepared statements since the underlying
@@ -31,6 +28,9 @@ class PreparedStatementMirror extends StatementMirror {
 
     private static final int CAPTURED_BATCH_SIZE_LIMIT = 1000;
 
+    // same as the 1mb memory limit of the rendered batch message
+    private static final int CAPTURED_BATCH_BYTE_LIMIT = 1024 * 1024;
+
     private static final int PARAMETERS_INITIAL_CAPACITY = 4;
 
     private final String sql;
@@ -40,7 +40,9 @@ class PreparedStatementMirror extends StatementMirror {
     private boolean parametersShared;
     // ok for this field to be non-volatile since it is only temporary storage for a single thread
     // while that thread is setting parameter values into the prepared statement and executing it
-    private @Nullable Collection<BindParameterList> batchedParameters;
+    //
+    // the encoder (and its buffer) is re-used across executions of the prepared statement
+    private @Nullable BatchedBindParameters.Encoder batchedParameters;
     private int batchSize;
 
     PreparedStatementMirror(String sql) {
@@ -51,20 +53,21 @@ class PreparedStatementMirror extends StatementMirror {
 
     void addBatch() {
         // synchronization isn't an issue here as this method is called only by the monitored thread
-        if (batchedParameters == null) {
-            batchedParameters = Queues.newConcurrentLinkedQueue();
-        }
         if (batchSize++ < CAPTURED_BATCH_SIZE_LIMIT) {
+            if (batchedParameters == null) {
+                batchedParameters = new BatchedBindParameters.Encoder(CAPTURED_BATCH_BYTE_LIMIT);
+            }
+            // the parameters are encoded (and large values truncated) here so that they don't need
+            // to be retained, and so that the parameter list can continue to be re-used
             batchedParameters.add(parameters);
-            parametersShared = true;
         }
     }
 
-    Collection<BindParameterList> getBatchedParameters() {
+    BatchedBindParameters getBatchedParameters() {
         if (batchedParameters == null) {
-            return ImmutableList.of();
+            return BatchedBindParameters.empty();
         } else {
-            return batchedParameters;
+            return batchedParameters.toBatchedBindParameters();
         }
     }
 
@@ -113,7 +116,9 @@ class PreparedStatementMirror extends StatementMirror {
         } else {
             parameters.clear();
         }
-        batchedParameters = null;
+        if (batchedParameters != null) {
+            batchedParameters.clear();
+        }
         batchSize = 0;
     }
 
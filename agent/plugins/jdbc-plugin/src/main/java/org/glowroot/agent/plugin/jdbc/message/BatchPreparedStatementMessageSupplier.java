@@ -15,8 +15,6 @@
  */
 package org.glowroot.agent.plugin.jdbc.message;
 
-import java.util.Collection;
-
 import org.glowroot.agent.plugin.api.QueryMessage;
 import org.glowroot.agent.plugin.api.QueryMessageSupplier;
 
@@ -28,10 +26,10 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
     private static final int MESSAGE_CHAR_LIMIT =
             Integer.getInteger("glowroot.message.char.limit", 512 * 1024);
 
-    private final Collection<BindParameterList> batchedParameters;
+    private final BatchedBindParameters batchedParameters;
     private final int batchSize;
 
-    public BatchPreparedStatementMessageSupplier(Collection<BindParameterList> batchedParameters,
+    public BatchPreparedStatementMessageSupplier(BatchedBindParameters batchedParameters,
             int batchSize) {
         this.batchedParameters = batchedParameters;
         this.batchSize = batchSize;
@@ -39,7 +37,6 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
 
     @Override
     public QueryMessage get() {
-        // not using size() since capturedBatchSize is ConcurrentLinkedQueue
         int capturedBatchSize = 0;
         String suffix;
         if (batchedParameters.isEmpty()) {
@@ -47,8 +44,10 @@ public class BatchPreparedStatementMessageSupplier extends QueryMessageSupplier
         } else {
             StringBuilder sb = new StringBuilder();
             boolean exceededMessageCharLimit = false;
-            for (BindParameterList oneParameters : batchedParameters) {
-                PreparedStatementMessageSupplier.appendParameters(sb, oneParameters);
+            // bind parameters are only rendered here, e.g. when the trace is stored
+            BatchedBindParameters.Reader reader = batchedParameters.reader();
+            while (reader.hasNext()) {
+                reader.appendNext(sb);
                 capturedBatchSize++;
                 if (sb.length() > MESSAGE_CHAR_LIMIT) {
                     sb.setLength(MESSAGE_CHAR_LIMIT);
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+// compact encoding of the bind parameters of batched prepared statement executions
+//
+// bulk loaders can add thousands of batches to a prepared statement before executing it, so
+// instead of retaining each batch's bind parameter objects, each batch is encoded into a single
+// byte buffer as it is added, with a type tag per parameter, and the parameters are only rendered
+// as strings if and when the query message is needed (e.g. when the trace is stored)
+public class BatchedBindParameters {
+
+    // large values are truncated at capture time, which also bounds the number of characters that
+    // need to be retained per parameter
+    static final int VALUE_CHAR_LIMIT = 10000;
+
+    private static final int NULL = 0;
+    private static final int STRING = 1;
+    private static final int TRUNCATED_STRING = 2;
+    private static final int OTHER = 3;
+    private static final int TRUNCATED_OTHER = 4;
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+    private static final int LONG = 7;
+    private static final int FLOAT = 8;
+    private static final int DOUBLE = 9;
+    private static final int BIG_DECIMAL = 10;
+    private static final int SQL_DATE = 11;
+    private static final int SQL_TIME = 12;
+    private static final int SQL_TIMESTAMP = 13;
+
+    private static final BatchedBindParameters EMPTY =
+            new BatchedBindParameters(new byte[0], 0);
+
+    private final byte[] bytes;
+    private final int batchCount;
+
+    private BatchedBindParameters(byte[] bytes, int batchCount) {
+        this.bytes = bytes;
+        this.batchCount = batchCount;
+    }
+
+    public static BatchedBindParameters empty() {
+        return EMPTY;
+    }
+
+    public boolean isEmpty() {
+        return batchCount == 0;
+    }
+
+    Reader reader() {
+        return new Reader();
+    }
+
+    // this is used by the monitored thread only, and is re-used for each execution of the prepared
+    // statement
+    public static class Encoder {
+
+        private static final int INITIAL_CAPACITY = 256;
+
+        // don't retain large buffers on (possibly cached) prepared statements once the batch has
+        // been executed, since connection pools can cache many prepared statements per connection,
+        // so this is kept small enough that re-use only avoids re-allocation for small batches
+        private static final int MAX_RETAINED_CAPACITY = 4 * 1024;
+
+        private final int byteLimit;
+
+        private byte[] bytes = new byte[INITIAL_CAPACITY];
+        private int length;
+        private int batchCount;
+
+        public Encoder(int byteLimit) {
+            this.byteLimit = byteLimit;
+        }
+
+        // returns false if the batch was not captured because the byte limit was already reached
+        public boolean add(BindParameterList parameters) {
+            if (length >= byteLimit) {
+                return false;
+            }
+            int size = parameters.size();
+            writeVarint(size);
+            for (int i = 0; i < size; i++) {
+                write(parameters.get(i));
+            }
+            batchCount++;
+            return true;
+        }
+
+        // the returned instance is not affected by subsequent changes to this encoder
+        public BatchedBindParameters toBatchedBindParameters() {
+            if (batchCount == 0) {
+                return EMPTY;
+            }
+            return new BatchedBindParameters(Arrays.copyOf(bytes, length), batchCount);
+        }
+
+        public void clear() {
+            if (bytes.length > MAX_RETAINED_CAPACITY) {
+                bytes = new byte[INITIAL_CAPACITY];
+            }
+            length = 0;
+            batchCount = 0;
+        }
+
+        private void write(@Nullable Object parameter) {
+            if (parameter == null) {
+                writeByte(NULL);
+            } else if (parameter instanceof String) {
+                writeChars((String) parameter, STRING, TRUNCATED_STRING);
+            } else if (parameter instanceof Boolean) {
+                writeByte((Boolean) parameter ? TRUE : FALSE);
+            } else if (parameter instanceof Integer || parameter instanceof Long
+                    || parameter instanceof Short || parameter instanceof Byte) {
+                writeByte(LONG);
+                writeSignedVarint(((Number) parameter).longValue());
+            } else if (parameter instanceof Float) {
+                writeByte(FLOAT);
+                writeVarint(Float.floatToIntBits((Float) parameter) & 0xFFFFFFFFL);
+            } else if (parameter instanceof Double) {
+                writeByte(DOUBLE);
+                writeVarint(Double.doubleToLongBits((Double) parameter));
+            } else if (parameter.getClass() == BigDecimal.class) {
+                BigDecimal bigDecimal = (BigDecimal) parameter;
+                writeByte(BIG_DECIMAL);
+                writeSignedVarint(bigDecimal.scale());
+                byte[] unscaledValue = bigDecimal.unscaledValue().toByteArray();
+                writeVarint(unscaledValue.length);
+                writeBytes(unscaledValue);
+            } else if (parameter.getClass() == java.sql.Date.class) {
+                writeByte(SQL_DATE);
+                writeSignedVarint(((java.sql.Date) parameter).getTime());
+            } else if (parameter.getClass() == Time.class) {
+                writeByte(SQL_TIME);
+                writeSignedVarint(((Time) parameter).getTime());
+            } else if (parameter.getClass() == Timestamp.class) {
+                Timestamp timestamp = (Timestamp) parameter;
+                writeByte(SQL_TIMESTAMP);
+                writeSignedVarint(timestamp.getTime());
+                writeVarint(timestamp.getNanos());
+            } else {
+                // this includes ByteArrayParameterValue and StreamingParameterValue whose string
+                // representations are already compact
+                writeChars(String.valueOf(parameter), OTHER, TRUNCATED_OTHER);
+            }
+        }
+
+        private void writeChars(String str, int tag, int truncatedTag) {
+            int charCount = str.length();
+            if (charCount > VALUE_CHAR_LIMIT) {
+                writeByte(truncatedTag);
+                charCount = VALUE_CHAR_LIMIT;
+            } else {
+                writeByte(tag);
+            }
+            writeVarint(charCount);
+            for (int i = 0; i < charCount; i++) {
+                writeVarint(str.charAt(i));
+            }
+        }
+
+        private void writeSignedVarint(long value) {
+            // zig-zag encoding so that small negative values are also encoded in few bytes
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            writeByte((int) value);
+        }
+
+        private void writeBytes(byte[] b) {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        private void writeByte(int b) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) b;
+        }
+
+        private void ensureCapacity(int extra) {
+            int minCapacity = length + extra;
+            if (minCapacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(minCapacity, bytes.length * 2));
+            }
+        }
+    }
+
+    class Reader {
+
+        private int offset;
+        private int remainingBatchCount = batchCount;
+
+        boolean hasNext() {
+            return remainingBatchCount > 0;
+        }
+
+        // output is the same as PreparedStatementMessageSupplier.appendParameters()
+        void appendNext(StringBuilder sb) {
+            remainingBatchCount--;
+            int size = (int) readVarint();
+            sb.append(" [");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                appendParameter(sb);
+            }
+            sb.append("]");
+        }
+
+        private void appendParameter(StringBuilder sb) {
+            int tag = bytes[offset++];
+            switch (tag) {
+                case NULL:
+                    sb.append("NULL");
+                    break;
+                case STRING:
+                case TRUNCATED_STRING:
+                    sb.append("\'");
+                    appendChars(sb);
+                    sb.append("\'");
+                    appendTruncatedIfNeeded(sb, tag == TRUNCATED_STRING);
+                    break;
+                case OTHER:
+                case TRUNCATED_OTHER:
+                    appendChars(sb);
+                    appendTruncatedIfNeeded(sb, tag == TRUNCATED_OTHER);
+                    break;
+                case TRUE:
+                    sb.append(true);
+                    break;
+                case FALSE:
+                    sb.append(false);
+                    break;
+                case LONG:
+                    sb.append(readSignedVarint());
+                    break;
+                case FLOAT:
+                    sb.append(Float.intBitsToFloat((int) readVarint()));
+                    break;
+                case DOUBLE:
+                    sb.append(Double.longBitsToDouble(readVarint()));
+                    break;
+                case BIG_DECIMAL:
+                    int scale = (int) readSignedVarint();
+                    byte[] unscaledValue = new byte[(int) readVarint()];
+                    System.arraycopy(bytes, offset, unscaledValue, 0, unscaledValue.length);
+                    offset += unscaledValue.length;
+                    sb.append(new BigDecimal(new BigInteger(unscaledValue), scale));
+                    break;
+                case SQL_DATE:
+                    sb.append(new java.sql.Date(readSignedVarint()));
+                    break;
+                case SQL_TIME:
+                    sb.append(new Time(readSignedVarint()));
+                    break;
+                case SQL_TIMESTAMP:
+                    Timestamp timestamp = new Timestamp(readSignedVarint());
+                    timestamp.setNanos((int) readVarint());
+                    sb.append(timestamp);
+                    break;
+                default:
+                    throw new IllegalStateException("Unexpected tag: " + tag);
+            }
+        }
+
+        private void appendChars(StringBuilder sb) {
+            int charCount = (int) readVarint();
+            for (int i = 0; i < charCount; i++) {
+                sb.append((char) readVarint());
+            }
+        }
+
+        private long readSignedVarint() {
+            long value = readVarint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        private long readVarint() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = bytes[offset++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        private void appendTruncatedIfNeeded(StringBuilder sb, boolean truncated) {
+            if (truncated) {
+                sb.append(" [truncated to ");
+                sb.append(VALUE_CHAR_LIMIT);
+                sb.append(" characters]");
+            }
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2015 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -65,6 +65,11 @@ public class BindParameterList implements Iterable</*@Nullable*/ Object> {
         }
     }
 
+    @Nullable
+    Object get(int i) {
+        return parameters[i];
+    }
+
     public int size() {
         return size;
     }
@@ -0,0 +1,183 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.agent.plugin.jdbc.message;
+
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
+
+import com.google.common.base.Strings;
+import org.junit.Test;
+
+import org.glowroot.agent.plugin.api.internal.ReadableQueryMessage;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class BatchedBindParametersTest {
+
+    @Test
+    public void shouldRoundTripNullAndBooleans() {
+        assertThat(roundTrip(null, true, false)).isEqualTo(" [NULL, true, false]");
+    }
+
+    @Test
+    public void shouldRoundTripLongs() {
+        assertThat(roundTrip(0, -1, (short) -300, (byte) 127, Integer.MIN_VALUE, Long.MIN_VALUE,
+                Long.MAX_VALUE)).isEqualTo(" [0, -1, -300, 127, -2147483648, -9223372036854775808,"
+                        + " 9223372036854775807]");
+    }
+
+    @Test
+    public void shouldRoundTripFloatsAndDoubles() {
+        assertThat(roundTrip(-1.5f, Float.MIN_VALUE, Float.NaN, -0.0, Double.MAX_VALUE,
+                Double.NEGATIVE_INFINITY)).isEqualTo(" [-1.5, 1.4E-45, NaN, -0.0,"
+                        + " 1.7976931348623157E308, -Infinity]");
+    }
+
+    @Test
+    public void shouldRoundTripBigDecimals() {
+        assertThat(roundTrip(new BigDecimal("-123.4500"), new BigDecimal("1E+3"),
+                new BigDecimal("123456789012345678901234567890.1")))
+                        .isEqualTo(" [-123.4500, 1E+3, 123456789012345678901234567890.1]");
+    }
+
+    @Test
+    public void shouldRoundTripDatesAndTimes() {
+        java.sql.Date date = new java.sql.Date(1234567890123L);
+        Time time = new Time(-1234567L);
+        Timestamp timestamp = new Timestamp(1234567890123L);
+        timestamp.setNanos(123456789);
+        assertThat(roundTrip(date, time, timestamp))
+                .isEqualTo(" [" + date + ", " + time + ", " + timestamp + "]");
+    }
+
+    @Test
+    public void shouldRoundTripNonBmpCharacters() {
+        String str = "a\uD83D\uDE00b\u00E9\uFFFF";
+        assertThat(roundTrip(str)).isEqualTo(" ['" + str + "']");
+    }
+
+    @Test
+    public void shouldRoundTripOtherTypes() {
+        Object other = new Object() {
+            @Override
+            public String toString() {
+                return "other \u00E9";
+            }
+        };
+        assertThat(roundTrip(other, "")).isEqualTo(" [other \u00E9, '']");
+    }
+
+    @Test
+    public void shouldTruncateLargeValues() {
+        String large = Strings.repeat("x", BatchedBindParameters.VALUE_CHAR_LIMIT + 1);
+        String limit = Strings.repeat("y", BatchedBindParameters.VALUE_CHAR_LIMIT);
+        final String largeOther = Strings.repeat("z", BatchedBindParameters.VALUE_CHAR_LIMIT + 1);
+        Object other = new Object() {
+            @Override
+            public String toString() {
+                return largeOther;
+            }
+        };
+        String truncated = " [truncated to " + BatchedBindParameters.VALUE_CHAR_LIMIT
+                + " characters]";
+        assertThat(roundTrip(large, limit, other)).isEqualTo(" ['"
+                + large.substring(0, BatchedBindParameters.VALUE_CHAR_LIMIT) + "'" + truncated
+                + ", '" + limit + "', "
+                + largeOther.substring(0, BatchedBindParameters.VALUE_CHAR_LIMIT) + truncated
+                + "]");
+    }
+
+    @Test
+    public void shouldRoundTripMultipleBatches() {
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(1024);
+        encoder.add(createList("a", 1));
+        encoder.add(createList());
+        encoder.add(createList(null, -2.5));
+        assertThat(render(encoder.toBatchedBindParameters()))
+                .isEqualTo(" ['a', 1] [] [NULL, -2.5]");
+    }
+
+    @Test
+    public void shouldNotBeAffectedBySubsequentEncoderChanges() {
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(1024);
+        encoder.add(createList("a"));
+        BatchedBindParameters batchedParameters = encoder.toBatchedBindParameters();
+        encoder.clear();
+        encoder.add(createList("b"));
+        assertThat(render(batchedParameters)).isEqualTo(" ['a']");
+        assertThat(render(encoder.toBatchedBindParameters())).isEqualTo(" ['b']");
+    }
+
+    @Test
+    public void shouldBeEmptyWhenNoBatches() {
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(1024);
+        assertThat(encoder.toBatchedBindParameters().isEmpty()).isTrue();
+        encoder.add(createList("a"));
+        encoder.clear();
+        assertThat(encoder.toBatchedBindParameters().isEmpty()).isTrue();
+    }
+
+    @Test
+    public void shouldStopCapturingAtByteLimit() {
+        // the batch that crosses the byte limit is still captured in full
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(10);
+        assertThat(encoder.add(createList("abcdefghijklmnopqrst"))).isTrue();
+        assertThat(encoder.add(createList("b"))).isFalse();
+        assertThat(encoder.add(createList("c"))).isFalse();
+
+        ReadableQueryMessage message = (ReadableQueryMessage) new
+                BatchPreparedStatementMessageSupplier(encoder.toBatchedBindParameters(), 3).get();
+
+        assertThat(message.getPrefix()).isEqualTo("jdbc execution: 3 x ");
+        assertThat(message.getSuffix()).isEqualTo(" ['abcdefghijklmnopqrst'] ...");
+    }
+
+    @Test
+    public void shouldNotAppendEllipsisWhenAllBatchesCaptured() {
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(1024);
+        encoder.add(createList("a"));
+        encoder.add(createList("b"));
+
+        ReadableQueryMessage message = (ReadableQueryMessage) new
+                BatchPreparedStatementMessageSupplier(encoder.toBatchedBindParameters(), 2).get();
+
+        assertThat(message.getSuffix()).isEqualTo(" ['a'] ['b']");
+    }
+
+    private static String roundTrip(/*@Nullable*/ Object... parameters) {
+        BatchedBindParameters.Encoder encoder = new BatchedBindParameters.Encoder(1024 * 1024);
+        assertThat(encoder.add(createList(parameters))).isTrue();
+        return render(encoder.toBatchedBindParameters());
+    }
+
+    private static String render(BatchedBindParameters batchedParameters) {
+        StringBuilder sb = new StringBuilder();
+        BatchedBindParameters.Reader reader = batchedParameters.reader();
+        while (reader.hasNext()) {
+            reader.appendNext(sb);
+        }
+        return sb.toString();
+    }
+
+    private static BindParameterList createList(/*@Nullable*/ Object... parameters) {
+        BindParameterList list = new BindParameterList(parameters.length);
+        for (int i = 0; i < parameters.length; i++) {
+            list.set(i, parameters[i]);
+        }
+        return list;
+    }
+}
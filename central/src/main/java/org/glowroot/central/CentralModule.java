@@ -20,6 +20,7 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
+import java.lang.management.ManagementFactory;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -27,6 +28,8 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletConfig;
 
 import com.datastax.driver.core.Cluster;
@@ -77,6 +80,7 @@ import org.glowroot.central.repo.TraceDao;
 import org.glowroot.central.repo.TransactionTypeDao;
 import org.glowroot.central.repo.TriggeredAlertDao;
 import org.glowroot.central.repo.UserDao;
+import org.glowroot.central.util.BatchingWriter;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.live.LiveAggregateRepository.LiveAggregateRepositoryNop;
@@ -97,6 +101,11 @@ import static java.util.concurrent.TimeUnit.MINUTES;
 
 class CentralModule {
 
+    private static final String BATCHING_WRITER_OBJECT_NAME =
+            "org.glowroot.central:type=CassandraBatchingWriter";
+    private static final String AGGREGATE_READ_CACHE_OBJECT_NAME =
+            "org.glowroot.central:type=AggregateReadCache";
+
     // need to wait to init logger until after establishing centralDir
     private static volatile @MonotonicNonNull Logger startupLogger;
 
@@ -186,8 +195,13 @@ class CentralModule {
             TransactionTypeDao transactionTypeDao =
                     new TransactionTypeDao(session, configRepository, clusterManager);
             FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
+            BatchingWriter batchingWriter = new BatchingWriter(session,
+                    centralConfig.cassandraMaxConcurrentWritesPerHost());
+            registerMBean(batchingWriter, BATCHING_WRITER_OBJECT_NAME);
             AggregateDao aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
-                    fullQueryTextDao, configRepository, clock);
+                    fullQueryTextDao, configRepository, batchingWriter, clusterManager,
+                    centralConfig.rollupProfileTruncateBranchPercentage(), clock);
+            registerMBean(aggregateDao.getReadCache(), AGGREGATE_READ_CACHE_OBJECT_NAME);
             TraceAttributeNameDao traceAttributeNameDao =
                     new TraceAttributeNameDao(session, configRepository, clusterManager);
             TraceDao traceDao = new TraceDao(session, agentDao, transactionTypeDao,
@@ -221,8 +235,8 @@ class CentralModule {
                 }
             });
             rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
-                    syntheticResultDao, heartbeatDao, configRepository, alertingService,
-                    downstreamService, clock);
+                    syntheticResultDao, traceDao, heartbeatDao, configRepository, alertingService,
+                    downstreamService, clusterManager, centralConfig.rollupThreads(), clock);
             syntheticMonitorService = new SyntheticMonitorService(agentDao, configRepository,
                     triggeredAlertDao, alertingService, syntheticResultDao, ticker, clock);
 
@@ -316,6 +330,8 @@ class CentralModule {
             grpcServer.close();
             rollupService.close();
             syntheticMonitorService.close();
+            unregisterMBean(BATCHING_WRITER_OBJECT_NAME);
+            unregisterMBean(AGGREGATE_READ_CACHE_OBJECT_NAME);
             session.close();
             cluster.close();
             clusterManager.close();
@@ -438,6 +454,22 @@ class CentralModule {
         if (!Strings.isNullOrEmpty(cassandraPassword)) {
             builder.cassandraPassword(cassandraPassword);
         }
+        String cassandraMaxConcurrentWritesPerHostText =
+                props.getProperty("cassandra.maxConcurrentWritesPerHost");
+        if (!Strings.isNullOrEmpty(cassandraMaxConcurrentWritesPerHostText)) {
+            builder.cassandraMaxConcurrentWritesPerHost(
+                    Integer.parseInt(cassandraMaxConcurrentWritesPerHostText));
+        }
+        String rollupThreadsText = props.getProperty("rollup.threads");
+        if (!Strings.isNullOrEmpty(rollupThreadsText)) {
+            builder.rollupThreads(Integer.parseInt(rollupThreadsText));
+        }
+        String rollupProfileTruncateBranchPercentageText =
+                props.getProperty("rollup.profileTruncateBranchPercentage");
+        if (!Strings.isNullOrEmpty(rollupProfileTruncateBranchPercentageText)) {
+            builder.rollupProfileTruncateBranchPercentage(
+                    Double.parseDouble(rollupProfileTruncateBranchPercentageText));
+        }
         String grpcBindAddress = props.getProperty("grpc.bindAddress");
         if (!Strings.isNullOrEmpty(grpcBindAddress)) {
             builder.grpcBindAddress(grpcBindAddress);
@@ -526,6 +558,26 @@ class CentralModule {
         throw lastException;
     }
 
+    // exposes the aggregate write queue depth and latency, and the aggregate read cache hit rate,
+    // so they can be captured as gauges
+    private static void registerMBean(Object mbean, String name) throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (mbeanServer.isRegistered(objectName)) {
+            // this can happen when central is re-deployed inside the same servlet container
+            mbeanServer.unregisterMBean(objectName);
+        }
+        mbeanServer.registerMBean(mbean, objectName);
+    }
+
+    private static void unregisterMBean(String name) throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName(name);
+        if (mbeanServer.isRegistered(objectName)) {
+            mbeanServer.unregisterMBean(objectName);
+        }
+    }
+
     private static File getCentralDir() throws IOException {
         String centralDirPath = System.getProperty("glowroot.central.dir");
         if (Strings.isNullOrEmpty(centralDirPath)) {
@@ -621,6 +673,22 @@ class CentralModule {
             return "";
         }
 
+        @Value.Default
+        int cassandraMaxConcurrentWritesPerHost() {
+            return 256;
+        }
+
+        @Value.Default
+        int rollupThreads() {
+            return 4;
+        }
+
+        @Value.Default
+        double rollupProfileTruncateBranchPercentage() {
+            // this is well below the default truncation used when viewing profiles (0.1%)
+            return 0.01;
+        }
+
         @Value.Default
         String grpcBindAddress() {
             return "0.0.0.0";
@@ -23,10 +23,13 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import io.grpc.Status;
 import io.grpc.internal.ServerImpl;
 import io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.StreamObserver;
@@ -70,6 +73,7 @@ import org.glowroot.wire.api.model.CollectorServiceOuterClass.OldTraceMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.OverallAggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamCounts;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamHeader;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamIndexedEntry;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamMessage;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.TransactionAggregate;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
@@ -86,6 +90,9 @@ class GrpcServer {
     // log startup messages using logger name "org.glowroot"
     private static final Logger startupLogger = LoggerFactory.getLogger("org.glowroot");
 
+    // number of entries from an incremental trace stream that are buffered before storing them
+    private static final int INCREMENTAL_TRACE_CHUNK_SIZE = 1000;
+
     private final AgentDao agentDao;
     private final ConfigDao configDao;
     private final EnvironmentDao environmentDao;
@@ -305,6 +312,12 @@ class GrpcServer {
                     return;
                 }
             }
+            Map<String, Aggregate> overallAggregates = Maps.newHashMap();
+            for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+                overallAggregates.put(aggregatesByType.getTransactionType(),
+                        aggregatesByType.getOverallAggregate());
+            }
+            alertingService.updateTransactionWindows(agentId, captureTime, overallAggregates);
             String agentDisplay;
             try {
                 agentDisplay = agentDao.readAgentRollupDisplay(agentId);
@@ -350,6 +363,7 @@ class GrpcServer {
                 responseObserver.onError(t);
                 return;
             }
+            alertingService.updateGaugeWindows(agentId, request.getGaugeValuesList());
             try {
                 heartbeatDao.store(agentId);
             } catch (Throwable t) {
@@ -384,6 +398,11 @@ class GrpcServer {
                 private List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
                 private @MonotonicNonNull Trace trace;
                 private List<Trace.Entry> entries = Lists.newArrayList();
+                // incremental streams are stored in chunks as they arrive
+                private List<TraceStreamIndexedEntry> indexedEntries = Lists.newArrayList();
+                private int sharedQueryTextStoredCount;
+                private int indexedEntryStoredCount;
+                private @Nullable Throwable incrementalStoreError;
                 private @MonotonicNonNull Profile mainThreadProfile;
                 private @MonotonicNonNull Profile auxThreadProfile;
                 // TODO report checker framework issue that occurs with normal annotation placement
@@ -418,12 +437,45 @@ class GrpcServer {
                         case STREAM_COUNTS:
                             streamCounts = value.getStreamCounts();
                             break;
+                        case INDEXED_ENTRY:
+                            indexedEntries.add(value.getIndexedEntry());
+                            if (indexedEntries.size() >= INCREMENTAL_TRACE_CHUNK_SIZE) {
+                                storeIncrementalChunk();
+                            }
+                            break;
                         default:
                             throw new RuntimeException(
                                     "Unexpected message: " + value.getMessageCase());
                     }
                 }
 
+                private void storeIncrementalChunk() {
+                    checkNotNull(streamHeader);
+                    if (incrementalStoreError != null) {
+                        // the error is reported back to the agent in onCompleted()
+                        sharedQueryTexts.clear();
+                        indexedEntries.clear();
+                        return;
+                    }
+                    try {
+                        traceDao.storeIncrementalChunk(streamHeader.getAgentId(),
+                                streamHeader.getTraceId(), streamHeader.getCaptureTime(),
+                                streamHeader.getSharedQueryTextStartIndex()
+                                        + sharedQueryTextStoredCount,
+                                sharedQueryTexts, indexedEntries);
+                    } catch (Throwable t) {
+                        logger.error("{} - {}", getDisplayForLogging(streamHeader.getAgentId()),
+                                t.getMessage(), t);
+                        incrementalStoreError = t;
+                    }
+                    sharedQueryTextStoredCount += sharedQueryTexts.size();
+                    indexedEntryStoredCount += indexedEntries.size();
+                    // shared query texts always precede the entries that reference them, so all
+                    // of the entries in the chunk have their shared query texts stored with them
+                    sharedQueryTexts = Lists.newArrayList();
+                    indexedEntries = Lists.newArrayList();
+                }
+
                 @Override
                 public void onError(Throwable t) {
                     if (streamHeader == null) {
@@ -439,6 +491,10 @@ class GrpcServer {
                 @Override
                 public void onCompleted() {
                     checkNotNull(streamHeader);
+                    if (streamHeader.getIncremental()) {
+                        onCompletedIncremental();
+                        return;
+                    }
                     if (trace == null) {
                         checkNotNull(streamCounts);
                         // this is for 0.9.13 and later agents
@@ -478,6 +534,42 @@ class GrpcServer {
                     responseObserver.onCompleted();
                 }
 
+                @RequiresNonNull("streamHeader")
+                private void onCompletedIncremental() {
+                    storeIncrementalChunk();
+                    if (incrementalStoreError != null) {
+                        responseObserver.onError(incrementalStoreError);
+                        return;
+                    }
+                    checkNotNull(streamCounts);
+                    if (!isEverythingReceived()) {
+                        // unlike above, this must not be acknowledged as success, since the agent
+                        // would then never re-send the entries that were not received
+                        responseObserver.onError(Status.DATA_LOSS
+                                .withDescription("did not receive everything, likely due to gRPC"
+                                        + " maxMessageSize limit exceeded")
+                                .asRuntimeException());
+                        return;
+                    }
+                    try {
+                        if (!traceDao.storeIncrementalHeader(streamHeader.getAgentId(),
+                                streamHeader.getTraceId(), streamHeader.getUpdate(),
+                                checkNotNull(header), mainThreadProfile, auxThreadProfile)) {
+                            logger.debug("{} - ignoring partial trace that arrived after the"
+                                    + " completed trace: {}",
+                                    getDisplayForLogging(streamHeader.getAgentId()),
+                                    streamHeader.getTraceId());
+                        }
+                    } catch (Throwable t) {
+                        logger.error("{} - {}", getDisplayForLogging(streamHeader.getAgentId()),
+                                t.getMessage(), t);
+                        responseObserver.onError(t);
+                        return;
+                    }
+                    responseObserver.onNext(EmptyMessage.getDefaultInstance());
+                    responseObserver.onCompleted();
+                }
+
                 @RequiresNonNull({"streamHeader", "streamCounts"})
                 private boolean isEverythingReceived() {
                     // validate that all data was received, may not receive everything due to gRPC
@@ -488,22 +580,28 @@ class GrpcServer {
                                 getDisplayForLogging(streamHeader.getAgentId()));
                         return false;
                     }
-                    if (sharedQueryTexts.size() < streamCounts.getSharedQueryTextCount()) {
+                    // incremental streams have already stored (and released) everything
+                    // received prior to the last chunk
+                    int sharedQueryTextCount =
+                            sharedQueryTextStoredCount + sharedQueryTexts.size();
+                    int entryCount =
+                            indexedEntryStoredCount + indexedEntries.size() + entries.size();
+                    if (sharedQueryTextCount < streamCounts.getSharedQueryTextCount()) {
                         logger.error("{} - expected {} shared query texts, but only received {},"
                                 + " likely due to gRPC maxMessageSize limit exceeded for some of"
                                 + " them", getDisplayForLogging(streamHeader.getAgentId()),
-                                streamCounts.getSharedQueryTextCount(), sharedQueryTexts.size());
+                                streamCounts.getSharedQueryTextCount(), sharedQueryTextCount);
                         return false;
                     }
-                    if (entries.size() < streamCounts.getEntryCount()) {
+                    if (entryCount < streamCounts.getEntryCount()) {
                         logger.error("{} - expected {} entries, but only received {},"
                                 + " likely due to gRPC maxMessageSize limit exceeded for some of"
                                 + " them", getDisplayForLogging(streamHeader.getAgentId()),
-                                streamCounts.getEntryCount(), entries.size());
+                                streamCounts.getEntryCount(), entryCount);
                         return false;
                     }
-                    checkState(sharedQueryTexts.size() == streamCounts.getSharedQueryTextCount());
-                    checkState(entries.size() == streamCounts.getEntryCount());
+                    checkState(sharedQueryTextCount == streamCounts.getSharedQueryTextCount());
+                    checkState(entryCount == streamCounts.getEntryCount());
                     return true;
                 }
             };
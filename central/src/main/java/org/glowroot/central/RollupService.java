@@ -16,6 +16,9 @@
 package org.glowroot.central;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -23,6 +26,8 @@ import javax.annotation.Nullable;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +39,8 @@ import org.glowroot.central.repo.ConfigRepositoryImpl;
 import org.glowroot.central.repo.GaugeValueDao;
 import org.glowroot.central.repo.HeartbeatDao;
 import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.common.repo.AgentRepository.AgentRollup;
 import org.glowroot.common.repo.util.AlertingService;
 import org.glowroot.common.util.Clock;
@@ -51,31 +58,41 @@ class RollupService implements Runnable {
     private final AggregateDao aggregateDao;
     private final GaugeValueDao gaugeValueDao;
     private final SyntheticResultDao syntheticResultDao;
+    private final TraceDao traceDao;
     private final HeartbeatDao heartbeatDao;
     private final ConfigRepositoryImpl configRepository;
     private final AlertingService alertingService;
     private final DownstreamServiceImpl downstreamService;
+    private final ClusterManager clusterManager;
     private final Clock clock;
 
     private final ExecutorService executor;
+    private final ExecutorService workerExecutor;
 
     private final Stopwatch stopwatch = Stopwatch.createStarted();
 
     private volatile boolean closed;
 
     RollupService(AgentDao agentDao, AggregateDao aggregateDao, GaugeValueDao gaugeValueDao,
-            SyntheticResultDao syntheticResultDao, HeartbeatDao heartbeatDao,
+            SyntheticResultDao syntheticResultDao, TraceDao traceDao, HeartbeatDao heartbeatDao,
             ConfigRepositoryImpl configRepository, AlertingService alertingService,
-            DownstreamServiceImpl downstreamService, Clock clock) {
+            DownstreamServiceImpl downstreamService, ClusterManager clusterManager, int threads,
+            Clock clock) {
         this.agentDao = agentDao;
         this.aggregateDao = aggregateDao;
         this.gaugeValueDao = gaugeValueDao;
         this.syntheticResultDao = syntheticResultDao;
+        this.traceDao = traceDao;
         this.heartbeatDao = heartbeatDao;
         this.configRepository = configRepository;
         this.alertingService = alertingService;
         this.downstreamService = downstreamService;
+        this.clusterManager = clusterManager;
         this.clock = clock;
+        workerExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Glowroot-Rollup-Worker-%d")
+                .build());
         executor = Executors.newSingleThreadExecutor();
         executor.execute(castInitialized(this));
     }
@@ -98,48 +115,113 @@ class RollupService implements Runnable {
         closed = true;
         // shutdownNow() is needed here to send interrupt to RollupService thread
         executor.shutdownNow();
+        // shutdownNow() is also needed here to interrupt any in-progress rollups
+        workerExecutor.shutdownNow();
         if (!executor.awaitTermination(10, SECONDS)) {
             throw new IllegalStateException("Could not terminate executor");
         }
+        if (!workerExecutor.awaitTermination(10, SECONDS)) {
+            throw new IllegalStateException("Could not terminate executor");
+        }
     }
 
     @Instrumentation.Transaction(transactionType = "Background",
             transactionName = "Outer rollup loop", traceHeadline = "Outer rollup loop",
             timer = "outer rollup loop")
-    private void runInternal() throws Exception {
+    @VisibleForTesting
+    void runInternal() throws Exception {
         Glowroot.setTransactionOuter();
+        List<CompletableFuture<Boolean>> futures = Lists.newArrayList();
         for (AgentRollup agentRollup : agentDao.readAgentRollups()) {
-            rollupAggregates(agentRollup, null);
-            rollupGauges(agentRollup, null);
-            rollupSyntheticMonitors(agentRollup);
-            // checking for deleted alerts doesn't depend on rollup
-            consumeAgentRollups(agentRollup, this::checkForDeletedAlerts);
-            // checking transaction and gauge alerts after rollup since their calculation can depend
-            // on rollups depending on time period length
-            //
-            // these alerts are also checked right after receiving the respective data
-            // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in
-            // case no data has been received from agent recently
-            consumeAgentRollups(agentRollup, this::checkTransactionAlerts);
-            consumeAgentRollups(agentRollup, this::checkGaugeAlerts);
-            // checking heartbeat alerts doesn't depend on rollups, just here for convenience
-            if (stopwatch.elapsed(MINUTES) >= 4) {
-                // give agents plenty of time to re-connect after central start-up
-                // needs to be at least enough time for grpc max reconnect backoff
-                // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
-                // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
-                consumeAgentRollups(agentRollup, this::checkHeartbeatAlerts);
+            // each top-level agent rollup is owned by a single central node, so that the rollup
+            // of a parent is always performed by the same node that rolled up its children
+            if (clusterManager.isLocallyOwned(agentRollup.id())) {
+                futures.add(rollup(agentRollup, null));
             }
-            // updating agent configs doesn't depend on rollups, just here for convenience
-            consumeAgentRollups(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
+        }
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof CompletionException && cause.getCause() != null) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof InterruptedException) {
+                // shutdown requested
+                throw (InterruptedException) cause;
+            }
+            throw e;
         }
     }
 
-    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
-            throws InterruptedException {
+    // agent rollups that are not ancestors/descendants of each other are rolled up in parallel,
+    // while still rolling up all children before their parent
+    //
+    // the returned future's value is whether the gauge rollup succeeded
+    private CompletableFuture<Boolean> rollup(AgentRollup agentRollup,
+            @Nullable String parentAgentRollupId) {
+        List<CompletableFuture<Boolean>> childFutures = Lists.newArrayList();
         for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupAggregates(childAgentRollup, agentRollup.id());
+            childFutures.add(rollup(childAgentRollup, agentRollup.id()));
         }
+        return CompletableFuture
+                .allOf(childFutures.toArray(new CompletableFuture<?>[0]))
+                .thenApplyAsync(ignored -> {
+                    boolean childGaugesSuccess = true;
+                    for (CompletableFuture<Boolean> childFuture : childFutures) {
+                        childGaugesSuccess = childGaugesSuccess && childFuture.join();
+                    }
+                    try {
+                        return rollupOne(agentRollup, parentAgentRollupId, childGaugesSuccess);
+                    } catch (InterruptedException e) {
+                        // shutdown requested
+                        throw new CompletionException(e);
+                    }
+                }, workerExecutor);
+    }
+
+    // returns true if the gauge rollup succeeded
+    //
+    // this runs on the worker threads, so it is its own transaction (the outer rollup loop
+    // transaction only captures the time spent waiting for the workers)
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup agent", traceHeadline = "Rollup agent: {{0.id}}",
+            timer = "rollup agent")
+    private boolean rollupOne(AgentRollup agentRollup, @Nullable String parentAgentRollupId,
+            boolean childGaugesSuccess) throws InterruptedException {
+        rollupAggregates(agentRollup, parentAgentRollupId);
+        // important to not roll up parent gauges if exception occurs while rolling up a child,
+        // since gauge values initial roll up from children is done on the 1-min aggregates of the
+        // children
+        boolean gaugesSuccess =
+                childGaugesSuccess && rollupGauges(agentRollup, parentAgentRollupId);
+        rollupSyntheticMonitors(agentRollup);
+        rollupErrorMessages(agentRollup);
+        // checking for deleted alerts doesn't depend on rollup
+        consumeAgentRollup(agentRollup, this::checkForDeletedAlerts);
+        // checking transaction and gauge alerts after rollup since their calculation can depend
+        // on rollups depending on time period length
+        //
+        // these alerts are also checked right after receiving the respective data
+        // (transaction/gauge/heartbeat) from agent, but need to also check once a minute in case
+        // no data has been received from agent recently
+        consumeAgentRollup(agentRollup, this::checkTransactionAlerts);
+        consumeAgentRollup(agentRollup, this::checkGaugeAlerts);
+        // checking heartbeat alerts doesn't depend on rollups, just here for convenience
+        if (stopwatch.elapsed(MINUTES) >= 4) {
+            // give agents plenty of time to re-connect after central start-up
+            // needs to be at least enough time for grpc max reconnect backoff
+            // which is 2 minutes +/- 20% jitter (see io.grpc.internal.ExponentialBackoffPolicy)
+            // but better to give a bit extra (4 minutes above) to avoid false heartbeat alert
+            consumeAgentRollup(agentRollup, this::checkHeartbeatAlerts);
+        }
+        // updating agent configs doesn't depend on rollups, just here for convenience
+        consumeAgentRollup(agentRollup, this::updateAgentConfigIfConnectedAndNeeded);
+        return gaugesSuccess;
+    }
+
+    private void rollupAggregates(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
+            throws InterruptedException {
         try {
             aggregateDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -154,19 +236,6 @@ class RollupService implements Runnable {
     // returns true on success, false on failure
     private boolean rollupGauges(AgentRollup agentRollup, @Nullable String parentAgentRollupId)
             throws InterruptedException {
-        // important to roll up children first, since gauge values initial roll up from children is
-        // done on the 1-min aggregates of the children
-        boolean success = true;
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            boolean childSuccess = rollupGauges(childAgentRollup, agentRollup.id());
-            success = success && childSuccess;
-        }
-        if (!success) {
-            // also important to not roll up parent if exception occurs while rolling up a child,
-            // since gauge values initial roll up from children is done on the 1-min aggregates of
-            // the children
-            return false;
-        }
         try {
             gaugeValueDao.rollup(agentRollup.id(), parentAgentRollupId,
                     agentRollup.children().isEmpty());
@@ -180,10 +249,7 @@ class RollupService implements Runnable {
         }
     }
 
-    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            rollupSyntheticMonitors(childAgentRollup);
-        }
+    private void rollupSyntheticMonitors(AgentRollup agentRollup) throws InterruptedException {
         try {
             syntheticResultDao.rollup(agentRollup.id());
         } catch (InterruptedException e) {
@@ -194,12 +260,27 @@ class RollupService implements Runnable {
         }
     }
 
-    private void consumeAgentRollups(AgentRollup agentRollup,
-            AgentRollupConsumer agentRollupConsumer) throws Exception {
-        for (AgentRollup childAgentRollup : agentRollup.children()) {
-            consumeAgentRollups(childAgentRollup, agentRollupConsumer);
+    private void rollupErrorMessages(AgentRollup agentRollup) throws InterruptedException {
+        try {
+            traceDao.rollupErrorMessages(agentRollup.id());
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
+        }
+    }
+
+    private void consumeAgentRollup(AgentRollup agentRollup,
+            AgentRollupConsumer agentRollupConsumer) throws InterruptedException {
+        try {
+            agentRollupConsumer.accept(agentRollup);
+        } catch (InterruptedException e) {
+            // shutdown requested
+            throw e;
+        } catch (Exception e) {
+            logger.error("{} - {}", agentRollup.id(), e.getMessage(), e);
         }
-        agentRollupConsumer.accept(agentRollup);
     }
 
     private void checkForDeletedAlerts(AgentRollup agentRollup) throws Exception {
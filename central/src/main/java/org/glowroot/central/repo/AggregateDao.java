@@ -46,6 +46,8 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
@@ -54,6 +56,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.util.BatchingWriter;
+import org.glowroot.central.util.BatchingWriter.Batch;
+import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -170,6 +175,10 @@ public class AggregateDao implements AggregateRepository {
             .addColumns(ImmutableColumn.of("total_duration_nanos", "double"))
             .addColumns(ImmutableColumn.of("execution_count", "bigint"))
             .addColumns(ImmutableColumn.of("total_rows", "bigint"))
+            // number of transactions that executed the query many times (possible N+1 pattern)
+            .addColumns(ImmutableColumn.of("repeated_transaction_count", "bigint"))
+            // null when per-query histograms are not enabled on the agent
+            .addColumns(ImmutableColumn.of("duration_nanos_histogram", "blob"))
             .addClusterKey("query_type")
             .addClusterKey("truncated_query_text")
             .addClusterKey("full_query_text_sha1") // need this for uniqueness
@@ -208,8 +217,15 @@ public class AggregateDao implements AggregateRepository {
     private final TransactionTypeDao transactionTypeDao;
     private final FullQueryTextDao fullQueryTextDao;
     private final ConfigRepository configRepository;
+    private final BatchingWriter batchingWriter;
+    // branches with fewer samples than this percentage of the total are truncated when profiles are
+    // rolled up to the final rollup level, which bounds the size of the rolled up profiles that are
+    // read for the longest time ranges
+    private final double profileRollupTruncateBranchPercentage;
     private final Clock clock;
 
+    private final AggregateReadCache readCache;
+
     // list index is rollupLevel
     private final Map<Table, List<PreparedStatement>> insertOverallPS;
     private final Map<Table, List<PreparedStatement>> insertTransactionPS;
@@ -236,15 +252,22 @@ public class AggregateDao implements AggregateRepository {
     private final ImmutableList<Table> allTables;
 
     public AggregateDao(Session session, AgentDao agentDao, TransactionTypeDao transactionTypeDao,
-            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository, Clock clock)
-            throws Exception {
+            FullQueryTextDao fullQueryTextDao, ConfigRepository configRepository,
+            BatchingWriter batchingWriter, ClusterManager clusterManager,
+            double profileRollupTruncateBranchPercentage, Clock clock) throws Exception {
         this.session = session;
         this.agentDao = agentDao;
         this.transactionTypeDao = transactionTypeDao;
         this.fullQueryTextDao = fullQueryTextDao;
         this.configRepository = configRepository;
+        this.batchingWriter = batchingWriter;
+        this.profileRollupTruncateBranchPercentage = profileRollupTruncateBranchPercentage;
         this.clock = clock;
 
+        readCache = new AggregateReadCache(clusterManager, configRepository, clock,
+                this::readOverviewAggregatesInternal, this::readPercentileAggregatesInternal,
+                this::readThroughputAggregatesInternal);
+
         int count = configRepository.getRollupConfigs().size();
         List<Integer> rollupExpirationHours =
                 configRepository.getStorageConfig().rollupExpirationHours();
@@ -434,28 +457,31 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        // statements are grouped by partition into unlogged batches, e.g. the query and service
+        // call rows of an aggregate, and the transaction summary rows of a transaction type
+        Batch batch = batchingWriter.newBatch();
         for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
             String transactionType = aggregatesByType.getTransactionType();
             Aggregate overallAggregate = aggregatesByType.getOverallAggregate();
-            futures.addAll(storeOverallAggregate(agentId, transactionType, captureTime,
-                    overallAggregate, sharedQueryTexts, adjustedTTL));
+            storeOverallAggregate(batch, agentId, transactionType, captureTime, overallAggregate,
+                    sharedQueryTexts, adjustedTTL);
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionAggregate(agentId, transactionType,
+                storeTransactionAggregate(batch, agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL));
+                        transactionAggregate.getAggregate(), sharedQueryTexts, adjustedTTL);
             }
             // wait for success before proceeding in order to ensure cannot end up with
             // "no overview table records found" during a transactionName rollup, since
             // transactionName rollups are based on finding transactionName in summary table
-            MoreFutures.waitForAll(futures);
-            futures.clear();
+            MoreFutures.waitForAll(batch.execute());
             for (OldTransactionAggregate transactionAggregate : aggregatesByType
                     .getTransactionAggregateList()) {
-                futures.addAll(storeTransactionSummary(agentId, transactionType,
+                storeTransactionSummary(batch, agentId, transactionType,
                         transactionAggregate.getTransactionName(), captureTime,
-                        transactionAggregate.getAggregate(), adjustedTTL));
+                        transactionAggregate.getAggregate(), adjustedTTL);
             }
+            futures.addAll(batch.execute());
             futures.addAll(transactionTypeDao.store(agentRollupIds, transactionType));
         }
         futures.add(agentDao.updateLastCaptureTime(agentId, captureTime));
@@ -463,6 +489,16 @@ public class AggregateDao implements AggregateRepository {
         MoreFutures.waitForAll(futures);
         futures.clear();
 
+        for (OldAggregatesByType aggregatesByType : aggregatesByTypeList) {
+            String transactionType = aggregatesByType.getTransactionType();
+            readCache.invalidate(agentId, transactionType, null, 0, captureTime);
+            for (OldTransactionAggregate transactionAggregate : aggregatesByType
+                    .getTransactionAggregateList()) {
+                readCache.invalidate(agentId, transactionType,
+                        transactionAggregate.getTransactionName(), 0, captureTime);
+            }
+        }
+
         List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
         // TODO report checker framework issue that occurs without this suppression
         @SuppressWarnings("assignment.type.incompatible")
@@ -577,6 +613,29 @@ public class AggregateDao implements AggregateRepository {
     // query.from() is INCLUSIVE
     @Override
     public List<OverviewAggregate> readOverviewAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readCache.readOverviewAggregates(agentRollupId, query);
+    }
+
+    // query.from() is INCLUSIVE
+    @Override
+    public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readCache.readPercentileAggregates(agentRollupId, query);
+    }
+
+    // query.from() is INCLUSIVE
+    @Override
+    public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return readCache.readThroughputAggregates(agentRollupId, query);
+    }
+
+    public AggregateReadCache getReadCache() {
+        return readCache;
+    }
+
+    private List<OverviewAggregate> readOverviewAggregatesInternal(String agentRollupId,
             TransactionQuery query) throws IOException {
         ResultSet results = executeQuery(agentRollupId, query, overviewTable);
         List<OverviewAggregate> overviewAggregates = Lists.newArrayList();
@@ -625,9 +684,7 @@ public class AggregateDao implements AggregateRepository {
         return overviewAggregates;
     }
 
-    // query.from() is INCLUSIVE
-    @Override
-    public List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+    private List<PercentileAggregate> readPercentileAggregatesInternal(String agentRollupId,
             TransactionQuery query) throws InvalidProtocolBufferException {
         ResultSet results = executeQuery(agentRollupId, query, histogramTable);
         List<PercentileAggregate> percentileAggregates = Lists.newArrayList();
@@ -649,10 +706,8 @@ public class AggregateDao implements AggregateRepository {
         return percentileAggregates;
     }
 
-    // query.from() is INCLUSIVE
-    @Override
-    public List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
-            TransactionQuery query) throws IOException {
+    private List<ThroughputAggregate> readThroughputAggregatesInternal(String agentRollupId,
+            TransactionQuery query) {
         ResultSet results = executeQuery(agentRollupId, query, throughputTable);
         List<ThroughputAggregate> throughputAggregates = Lists.newArrayList();
         for (Row row : results) {
@@ -689,8 +744,11 @@ public class AggregateDao implements AggregateRepository {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
+            long repeatedTransactionCount = row.getLong(i++);
+            LazyHistogram durationNanosHistogram = readQueryHistogram(row, i++);
             collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
+                    executionCount, hasTotalRows, totalRows, repeatedTransactionCount,
+                    durationNanosHistogram);
             collector.updateLastCaptureTime(captureTime);
         }
     }
@@ -965,6 +1023,7 @@ public class AggregateDao implements AggregateRepository {
         futures.addAll(rollupServiceCalls(rollup, query));
         futures.addAll(rollupThreadProfile(rollup, query, mainThreadProfileTable));
         futures.addAll(rollupThreadProfile(rollup, query, auxThreadProfileTable));
+        invalidateReadCacheAfter(futures, rollup, query);
         return futures;
     }
 
@@ -983,9 +1042,20 @@ public class AggregateDao implements AggregateRepository {
                 mainThreadProfileTable));
         futures.addAll(rollupThreadProfileFromChildren(rollup, query, childAgentRollups,
                 auxThreadProfileTable));
+        invalidateReadCacheAfter(futures, rollup, query);
         return futures;
     }
 
+    // invalidating after the writes complete ensures that a concurrent read cannot re-cache the
+    // prior values
+    private void invalidateReadCacheAfter(List<ResultSetFuture> futures, RollupParams rollup,
+            TransactionQuery query) {
+        Futures.successfulAsList(futures).addListener(
+                () -> readCache.invalidate(rollup.agentRollupId(), query.transactionType(),
+                        query.transactionName(), rollup.rollupLevel(), query.to()),
+                MoreExecutors.directExecutor());
+    }
+
     private List<ResultSetFuture> rollupOverallSummary(RollupParams rollup,
             TransactionQuery query) {
         ResultSet results = executeQueryForRollup(rollup.agentRollupId(), query, summaryTable);
@@ -1422,8 +1492,11 @@ public class AggregateDao implements AggregateRepository {
             long executionCount = row.getLong(i++);
             boolean hasTotalRows = !row.isNull(i);
             long totalRows = row.getLong(i++);
+            long repeatedTransactionCount = row.getLong(i++);
+            LazyHistogram durationNanosHistogram = readQueryHistogram(row, i++);
             collector.mergeQuery(queryType, truncatedText, fullTextSha1, totalDurationNanos,
-                    executionCount, hasTotalRows, totalRows);
+                    executionCount, hasTotalRows, totalRows, repeatedTransactionCount,
+                    durationNanosHistogram);
         }
         return insertQueries(collector.getSortedQueries(), rollup.rollupLevel(),
                 rollup.agentRollupId(), query.transactionType(), query.transactionName(),
@@ -1461,8 +1534,14 @@ public class AggregateDao implements AggregateRepository {
             collector.mergeServiceCall(serviceCallType, serviceCallText, totalDurationNanos,
                     executionCount);
         }
-        return insertServiceCalls(collector.toProto(), rollup.rollupLevel(), rollup.agentRollupId(),
-                query.transactionType(), query.transactionName(), query.to(), rollup.adjustedTTL());
+        // rollups are not written through the batching writer, see store()
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : bindServiceCalls(collector.toProto(),
+                rollup.rollupLevel(), rollup.agentRollupId(), query.transactionType(),
+                query.transactionName(), query.to(), rollup.adjustedTTL())) {
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
     }
 
     private List<ResultSetFuture> rollupThreadProfile(RollupParams rollup, TransactionQuery query,
@@ -1492,6 +1571,19 @@ public class AggregateDao implements AggregateRepository {
             ByteBuffer bytes = checkNotNull(row.getBytes(0));
             profile.merge(Profile.parseFrom(ByteString.copyFrom(bytes)));
         }
+        int finalRollupLevel = configRepository.getRollupConfigs().size() - 1;
+        if (profileRollupTruncateBranchPercentage != 0
+                && rollup.rollupLevel() == finalRollupLevel) {
+            // truncation is only applied at the final rollup level, since truncating at each level
+            // would compound, with branches pruned at a lower level losing their share of the
+            // samples at every level above it
+            //
+            // truncated samples remain counted in their (retained) parent node, so total sample
+            // counts are not affected
+            int minSamples = (int) Math.ceil(
+                    profile.getSampleCount() * profileRollupTruncateBranchPercentage / 100);
+            profile.truncateBranches(minSamples);
+        }
         BoundStatement boundStatement;
         if (query.transactionName() == null) {
             boundStatement = getInsertOverallPS(table, rollup.rollupLevel()).bind();
@@ -1533,13 +1625,12 @@ public class AggregateDao implements AggregateRepository {
         return rows;
     }
 
-    private List<ResultSetFuture> storeOverallAggregate(String agentRollupId,
+    private void storeOverallAggregate(Batch batch, String agentRollupId,
             String transactionType, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws Exception {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertOverallPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1548,7 +1639,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertOverallPS(errorSummaryTable, rollupLevel).bind();
@@ -1559,7 +1651,8 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType);
         }
 
         boundStatement = getInsertOverallPS(overviewTable, rollupLevel).bind();
@@ -1568,7 +1661,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionType);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType);
 
         boundStatement = getInsertOverallPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1579,7 +1673,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType);
 
         boundStatement = getInsertOverallPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1588,7 +1683,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1599,7 +1695,8 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1610,22 +1707,21 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType);
         }
-        futures.addAll(insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts,
-                rollupLevel, agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, null, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(batch, aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
+                agentRollupId, transactionType, null, captureTime, adjustedTTL);
+        insertServiceCalls(batch, aggregate.getServiceCallsByTypeList(), rollupLevel,
+                agentRollupId, transactionType, null, captureTime, adjustedTTL);
     }
 
-    private List<ResultSetFuture> storeTransactionAggregate(String agentRollupId,
+    private void storeTransactionAggregate(Batch batch, String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int adjustedTTL) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(overviewTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1633,7 +1729,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setString(i++, transactionName);
         boundStatement.setTimestamp(i++, new Date(captureTime));
         bindAggregate(boundStatement, aggregate, i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType, transactionName);
 
         boundStatement = getInsertTransactionPS(histogramTable, rollupLevel).bind();
         i = 0;
@@ -1645,7 +1742,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setBytes(i++, toByteBuffer(aggregate.getDurationNanosHistogram()));
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType, transactionName);
 
         boundStatement = getInsertTransactionPS(throughputTable, rollupLevel).bind();
         i = 0;
@@ -1655,7 +1753,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setTimestamp(i++, new Date(captureTime));
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType, transactionName);
 
         if (aggregate.hasMainThreadProfile()) {
             Profile profile = aggregate.getMainThreadProfile();
@@ -1667,7 +1766,8 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType, transactionName);
         }
         if (aggregate.hasAuxThreadProfile()) {
             Profile profile = aggregate.getAuxThreadProfile();
@@ -1679,23 +1779,21 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setTimestamp(i++, new Date(captureTime));
             boundStatement.setBytes(i++, toByteBuffer(profile));
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType, transactionName);
         }
-        futures.addAll(
-                insertQueries(aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
-                        agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        futures.addAll(insertServiceCalls(aggregate.getServiceCallsByTypeList(), rollupLevel,
-                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL));
-        return futures;
+        insertQueries(batch, aggregate.getQueriesByTypeList(), sharedQueryTexts, rollupLevel,
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL);
+        insertServiceCalls(batch, aggregate.getServiceCallsByTypeList(), rollupLevel,
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL);
     }
 
-    private List<ResultSetFuture> storeTransactionSummary(String agentRollupId,
+    private void storeTransactionSummary(Batch batch, String agentRollupId,
             String transactionType, String transactionName, long captureTime, Aggregate aggregate,
             int adjustedTTL) throws IOException {
 
         final int rollupLevel = 0;
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
         BoundStatement boundStatement = getInsertTransactionPS(summaryTable, rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -1705,7 +1803,8 @@ public class AggregateDao implements AggregateRepository {
         boundStatement.setDouble(i++, aggregate.getTotalDurationNanos());
         boundStatement.setLong(i++, aggregate.getTransactionCount());
         boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
+        batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                transactionType);
 
         if (aggregate.getErrorCount() > 0) {
             boundStatement = getInsertTransactionPS(errorSummaryTable, rollupLevel).bind();
@@ -1717,16 +1816,15 @@ public class AggregateDao implements AggregateRepository {
             boundStatement.setLong(i++, aggregate.getErrorCount());
             boundStatement.setLong(i++, aggregate.getTransactionCount());
             boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType);
         }
-        return futures;
     }
 
-    private List<ResultSetFuture> insertQueries(List<Aggregate.QueriesByType> queriesByTypeList,
+    private void insertQueries(Batch batch, List<Aggregate.QueriesByType> queriesByTypeList,
             List<Aggregate.SharedQueryText> sharedQueryTexts, int rollupLevel, String agentRollupId,
             String transactionType, @Nullable String transactionName, long captureTime,
             int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
         for (Aggregate.QueriesByType queriesByType : queriesByTypeList) {
             for (Aggregate.Query query : queriesByType.getQueryList()) {
                 Aggregate.SharedQueryText sharedQueryText =
@@ -1761,11 +1859,17 @@ public class AggregateDao implements AggregateRepository {
                 } else {
                     boundStatement.setToNull(i++);
                 }
+                boundStatement.setLong(i++, query.getRepeatedTransactionCount());
+                if (query.hasDurationNanosHistogram()) {
+                    boundStatement.setBytes(i++, toByteBuffer(query.getDurationNanosHistogram()));
+                } else {
+                    boundStatement.setToNull(i++);
+                }
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                addToBatch(batch, boundStatement, agentRollupId, transactionType,
+                        transactionName);
             }
         }
-        return futures;
     }
 
     private List<ResultSetFuture> insertQueries(Map<String, List<MutableQuery>> map,
@@ -1773,6 +1877,7 @@ public class AggregateDao implements AggregateRepository {
             @Nullable String transactionName, long captureTime, int adjustedTTL,
             boolean rollupFromChildren) throws Exception {
         List<ResultSetFuture> futures = Lists.newArrayList();
+        ScratchBuffer scratchBuffer = new ScratchBuffer();
         for (Entry<String, List<MutableQuery>> entry : map.entrySet()) {
             for (MutableQuery query : entry.getValue()) {
                 BoundStatement boundStatement;
@@ -1800,6 +1905,14 @@ public class AggregateDao implements AggregateRepository {
                 } else {
                     boundStatement.setToNull(i++);
                 }
+                boundStatement.setLong(i++, query.getRepeatedTransactionCount());
+                LazyHistogram durationNanosHistogram = query.getDurationNanosHistogram();
+                if (durationNanosHistogram == null) {
+                    boundStatement.setToNull(i++);
+                } else {
+                    boundStatement.setBytes(i++,
+                            toByteBuffer(durationNanosHistogram.toProto(scratchBuffer)));
+                }
                 boundStatement.setInt(i++, adjustedTTL);
                 futures.add(session.executeAsync(boundStatement));
                 if (rollupFromChildren && fullTextSha1 != null) {
@@ -1810,11 +1923,21 @@ public class AggregateDao implements AggregateRepository {
         return futures;
     }
 
-    private List<ResultSetFuture> insertServiceCalls(
+    private void insertServiceCalls(Batch batch,
             List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
             String agentRollupId, String transactionType, @Nullable String transactionName,
             long captureTime, int adjustedTTL) {
-        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (BoundStatement boundStatement : bindServiceCalls(serviceCallsByTypeList, rollupLevel,
+                agentRollupId, transactionType, transactionName, captureTime, adjustedTTL)) {
+            addToBatch(batch, boundStatement, agentRollupId, transactionType, transactionName);
+        }
+    }
+
+    private List<BoundStatement> bindServiceCalls(
+            List<Aggregate.ServiceCallsByType> serviceCallsByTypeList, int rollupLevel,
+            String agentRollupId, String transactionType, @Nullable String transactionName,
+            long captureTime, int adjustedTTL) {
+        List<BoundStatement> boundStatements = Lists.newArrayList();
         for (Aggregate.ServiceCallsByType serviceCallsByType : serviceCallsByTypeList) {
             for (Aggregate.ServiceCall serviceCall : serviceCallsByType.getServiceCallList()) {
                 BoundStatement boundStatement;
@@ -1835,10 +1958,21 @@ public class AggregateDao implements AggregateRepository {
                 boundStatement.setDouble(i++, serviceCall.getTotalDurationNanos());
                 boundStatement.setLong(i++, serviceCall.getExecutionCount());
                 boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
+                boundStatements.add(boundStatement);
             }
         }
-        return futures;
+        return boundStatements;
+    }
+
+    private static void addToBatch(Batch batch, BoundStatement boundStatement,
+            String agentRollupId, String transactionType, @Nullable String transactionName) {
+        if (transactionName == null) {
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType);
+        } else {
+            batch.add(boundStatement, boundStatement.preparedStatement(), agentRollupId,
+                    transactionType, transactionName);
+        }
     }
 
     private PreparedStatement getInsertOverallPS(Table table, int rollupLevel) {
@@ -2407,6 +2541,15 @@ public class AggregateDao implements AggregateRepository {
         }
     }
 
+    private static @Nullable LazyHistogram readQueryHistogram(Row row, int index)
+            throws InvalidProtocolBufferException {
+        ByteBuffer bytes = row.getBytes(index);
+        if (bytes == null) {
+            return null;
+        }
+        return new LazyHistogram(Aggregate.Histogram.parseFrom(ByteString.copyFrom(bytes)));
+    }
+
     private static ByteBuffer toByteBuffer(AbstractMessage message) {
         return ByteBuffer.wrap(message.toByteString().toByteArray());
     }
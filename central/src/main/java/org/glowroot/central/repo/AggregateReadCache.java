@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.immutables.serial.Serial;
+import org.immutables.value.Value;
+
+import org.glowroot.central.util.Cache;
+import org.glowroot.central.util.Cache.CacheLoader;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+// caches overview, percentile and throughput aggregate reads in fixed size chunks of consecutive
+// intervals, but only once all of the intervals in a chunk are old enough that no more writes are
+// expected (by the agents or by the rollups), so that the same chunks can be served to every
+// dashboard refresh without re-reading them from cassandra
+//
+// the current (not yet finalized) intervals, and the partial chunks at either end of the query
+// range, are always read directly, as are chunks that are too large to cache (see MAX_CHUNK_BYTES)
+public class AggregateReadCache implements AggregateReadCacheMBean {
+
+    @VisibleForTesting
+    static final int INTERVALS_PER_CHUNK = 30;
+
+    // the number of aggregates in a chunk is bounded, but not their size (e.g. overview aggregates
+    // with large timer trees), so chunks whose aggregates have a serialized size larger than this
+    // are not cached, which (together with MAX_CHUNKS_PER_CACHE) bounds the serialized size of the
+    // aggregates held by each cache to 64 MB
+    @VisibleForTesting
+    static final int MAX_CHUNK_BYTES = 64 * 1024;
+
+    private static final int MAX_CHUNKS_PER_CACHE = 1024;
+
+    // rough per aggregate overhead for the fields that are not protobuf messages
+    private static final int AGGREGATE_FIXED_BYTES = 32;
+
+    // rollups for an interval are performed up to one interval (of that rollup level) after the
+    // end of the interval, plus the time it takes the rollup service to get to it
+    private static final long FINALIZATION_DELAY_MILLIS = MINUTES.toMillis(5);
+
+    // allows for clock differences between central nodes when deciding whether another node could
+    // have already cached a chunk
+    private static final long MAX_CLOCK_SKEW_MILLIS = MINUTES.toMillis(1);
+
+    private final ConfigRepository configRepository;
+    private final Clock clock;
+
+    // absent values are chunks that are too large to cache
+    private final Cache<ChunkKey, Optional<List<OverviewAggregate>>> overviewCache;
+    private final Cache<ChunkKey, Optional<List<PercentileAggregate>>> percentileCache;
+    private final Cache<ChunkKey, Optional<List<ThroughputAggregate>>> throughputCache;
+
+    private final AggregateReader<OverviewAggregate> overviewReader;
+    private final AggregateReader<PercentileAggregate> percentileReader;
+    private final AggregateReader<ThroughputAggregate> throughputReader;
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    AggregateReadCache(ClusterManager clusterManager, ConfigRepository configRepository,
+            Clock clock, AggregateReader<OverviewAggregate> overviewReader,
+            AggregateReader<PercentileAggregate> percentileReader,
+            AggregateReader<ThroughputAggregate> throughputReader) {
+        this.configRepository = configRepository;
+        this.clock = clock;
+        this.overviewReader = overviewReader;
+        this.percentileReader = percentileReader;
+        this.throughputReader = throughputReader;
+        overviewCache = clusterManager.createCache("overviewAggregateCache",
+                new ChunkCacheLoader<>(overviewReader, AggregateReadCache::getOverviewSize),
+                MAX_CHUNKS_PER_CACHE);
+        percentileCache = clusterManager.createCache("percentileAggregateCache",
+                new ChunkCacheLoader<>(percentileReader, AggregateReadCache::getPercentileSize),
+                MAX_CHUNKS_PER_CACHE);
+        throughputCache = clusterManager.createCache("throughputAggregateCache",
+                new ChunkCacheLoader<>(throughputReader, aggregate -> AGGREGATE_FIXED_BYTES),
+                MAX_CHUNKS_PER_CACHE);
+    }
+
+    @Override
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @Override
+    public long getHitCount() {
+        return requestCount.get() - missCount.get();
+    }
+
+    @Override
+    public double getHitPercentage() {
+        long requests = requestCount.get();
+        if (requests == 0) {
+            return 0;
+        }
+        return 100 * (requests - missCount.get()) / (double) requests;
+    }
+
+    // query.from() is INCLUSIVE
+    List<OverviewAggregate> readOverviewAggregates(String agentRollupId, TransactionQuery query)
+            throws Exception {
+        return read(agentRollupId, query, overviewCache, overviewReader);
+    }
+
+    // query.from() is INCLUSIVE
+    List<PercentileAggregate> readPercentileAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, percentileCache, percentileReader);
+    }
+
+    // query.from() is INCLUSIVE
+    List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) throws Exception {
+        return read(agentRollupId, query, throughputCache, throughputReader);
+    }
+
+    // called after writing (or re-writing) the aggregates for the given capture time, which only
+    // needs to invalidate anything in the (unusual) case of a write that arrives after the interval
+    // was considered finalized, e.g. an agent that was disconnected and is catching up
+    void invalidate(String agentRollupId, String transactionType, @Nullable String transactionName,
+            int rollupLevel, long captureTime) {
+        long chunkMillis = getChunkMillis(rollupLevel);
+        long chunkCaptureTime = Utils.getRollupCaptureTime(captureTime, chunkMillis);
+        if (chunkCaptureTime > getFinalizedCutoff(rollupLevel) + MAX_CLOCK_SKEW_MILLIS) {
+            return;
+        }
+        ChunkKey key = ImmutableChunkKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(transactionType)
+                .transactionName(Strings.nullToEmpty(transactionName))
+                .rollupLevel(rollupLevel)
+                .captureTime(chunkCaptureTime)
+                .build();
+        overviewCache.invalidate(key);
+        percentileCache.invalidate(key);
+        throughputCache.invalidate(key);
+    }
+
+    private <T> List<T> read(String agentRollupId, TransactionQuery query,
+            Cache<ChunkKey, Optional<List<T>>> cache, AggregateReader<T> reader)
+            throws Exception {
+        long chunkMillis = getChunkMillis(query.rollupLevel());
+        long cutoff = Math.min(query.to(), getFinalizedCutoff(query.rollupLevel()));
+        // chunks cover capture times (chunkCaptureTime - chunkMillis, chunkCaptureTime]
+        long firstChunkFrom = Utils.getRollupCaptureTime(query.from() - 1, chunkMillis);
+        long lastChunkCaptureTime = (cutoff / chunkMillis) * chunkMillis;
+        if (lastChunkCaptureTime <= firstChunkFrom) {
+            return reader.read(agentRollupId, query);
+        }
+        List<T> aggregates = Lists.newArrayList();
+        if (query.from() <= firstChunkFrom) {
+            aggregates.addAll(reader.read(agentRollupId,
+                    ImmutableTransactionQuery.copyOf(query).withTo(firstChunkFrom)));
+        }
+        ImmutableChunkKey.Builder key = ImmutableChunkKey.builder()
+                .agentRollupId(agentRollupId)
+                .transactionType(query.transactionType())
+                .transactionName(Strings.nullToEmpty(query.transactionName()))
+                .rollupLevel(query.rollupLevel());
+        for (long chunkCaptureTime = firstChunkFrom + chunkMillis;
+                chunkCaptureTime <= lastChunkCaptureTime; chunkCaptureTime += chunkMillis) {
+            requestCount.getAndIncrement();
+            ChunkKey chunkKey = key.captureTime(chunkCaptureTime).build();
+            Optional<List<T>> chunk = cache.get(chunkKey);
+            if (chunk.isPresent()) {
+                aggregates.addAll(chunk.get());
+            } else {
+                // too large to cache, these are expected to be rare, so it is not worth avoiding
+                // the extra read when the chunk was just loaded
+                missCount.getAndIncrement();
+                aggregates.addAll(reader.read(agentRollupId, getChunkQuery(chunkKey)));
+            }
+        }
+        if (lastChunkCaptureTime < query.to()) {
+            aggregates.addAll(reader.read(agentRollupId,
+                    ImmutableTransactionQuery.copyOf(query).withFrom(lastChunkCaptureTime + 1)));
+        }
+        return aggregates;
+    }
+
+    private TransactionQuery getChunkQuery(ChunkKey key) {
+        long chunkMillis = getChunkMillis(key.rollupLevel());
+        return ImmutableTransactionQuery.builder()
+                .transactionType(key.transactionType())
+                .transactionName(Strings.emptyToNull(key.transactionName()))
+                .from(key.captureTime() - chunkMillis + 1)
+                .to(key.captureTime())
+                .rollupLevel(key.rollupLevel())
+                .build();
+    }
+
+    private long getChunkMillis(int rollupLevel) {
+        return configRepository.getRollupConfigs().get(rollupLevel).intervalMillis()
+                * INTERVALS_PER_CHUNK;
+    }
+
+    private long getFinalizedCutoff(int rollupLevel) {
+        long intervalMillis = configRepository.getRollupConfigs().get(rollupLevel).intervalMillis();
+        return clock.currentTimeMillis() - intervalMillis - FINALIZATION_DELAY_MILLIS;
+    }
+
+    interface AggregateReader<T> {
+        // query.from() is INCLUSIVE
+        List<T> read(String agentRollupId, TransactionQuery query) throws Exception;
+    }
+
+    @Value.Immutable
+    @Serial.Structural
+    interface ChunkKey extends Serializable {
+        String agentRollupId();
+        String transactionType();
+        String transactionName(); // empty string for the overall aggregates
+        int rollupLevel();
+        long captureTime(); // the capture time at the end of the chunk
+    }
+
+    private static int getOverviewSize(OverviewAggregate aggregate) {
+        int size = AGGREGATE_FIXED_BYTES;
+        for (Aggregate.Timer timer : aggregate.mainThreadRootTimers()) {
+            size += timer.getSerializedSize();
+        }
+        for (Aggregate.Timer timer : aggregate.auxThreadRootTimers()) {
+            size += timer.getSerializedSize();
+        }
+        for (Aggregate.Timer timer : aggregate.asyncTimers()) {
+            size += timer.getSerializedSize();
+        }
+        Aggregate.ThreadStats mainThreadStats = aggregate.mainThreadStats();
+        if (mainThreadStats != null) {
+            size += mainThreadStats.getSerializedSize();
+        }
+        Aggregate.ThreadStats auxThreadStats = aggregate.auxThreadStats();
+        if (auxThreadStats != null) {
+            size += auxThreadStats.getSerializedSize();
+        }
+        return size;
+    }
+
+    private static int getPercentileSize(PercentileAggregate aggregate) {
+        return AGGREGATE_FIXED_BYTES + aggregate.durationNanosHistogram().getSerializedSize();
+    }
+
+    private class ChunkCacheLoader<T> implements CacheLoader<ChunkKey, Optional<List<T>>> {
+
+        private final AggregateReader<T> reader;
+        private final ToIntFunction<T> serializedSize;
+
+        private ChunkCacheLoader(AggregateReader<T> reader, ToIntFunction<T> serializedSize) {
+            this.reader = reader;
+            this.serializedSize = serializedSize;
+        }
+
+        @Override
+        public Optional<List<T>> load(ChunkKey key) throws Exception {
+            List<T> aggregates = reader.read(key.agentRollupId(), getChunkQuery(key));
+            long chunkBytes = 0;
+            for (T aggregate : aggregates) {
+                chunkBytes += serializedSize.applyAsInt(aggregate);
+                if (chunkBytes > MAX_CHUNK_BYTES) {
+                    // the miss is counted by the caller, which then reads the chunk directly
+                    return Optional.absent();
+                }
+            }
+            missCount.getAndIncrement();
+            return Optional.<List<T>>of(ImmutableList.copyOf(aggregates));
+        }
+    }
+}
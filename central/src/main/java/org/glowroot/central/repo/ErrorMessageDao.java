@@ -0,0 +1,425 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+import org.immutables.value.Value;
+
+import org.glowroot.agent.api.Instrumentation;
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Sessions;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.repo.Utils;
+import org.glowroot.common.util.Clock;
+import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static java.util.concurrent.TimeUnit.HOURS;
+
+// error message counts per rollup interval, so that the error messages page does not need to read
+// every error trace in the time range
+//
+// unlike aggregates, each rollup level is computed directly from the trace_tt/tn_error_message
+// rows (which are already stored under every agent rollup id), so there is no rollup from children
+// and no chaining from one rollup level to the next
+//
+// the 1-minute rollup level is not maintained, since the time ranges that use it are short enough
+// to read directly from the trace_tt/tn_error_message tables
+class ErrorMessageDao {
+
+    private static final String LCS = "compaction = { 'class' : 'LeveledCompactionStrategy' }";
+
+    private final Session session;
+    private final ConfigRepository configRepository;
+    private final Clock clock;
+
+    private final PreparedStatement readOverallErrorMessage;
+    private final PreparedStatement readTransactionErrorMessage;
+
+    // index is rollupLevel - 1
+    private final ImmutableList<PreparedStatement> insertOverallCountPS;
+    private final ImmutableList<PreparedStatement> insertTransactionCountPS;
+    private final ImmutableList<PreparedStatement> readOverallCountPS;
+    private final ImmutableList<PreparedStatement> readTransactionCountPS;
+
+    private final ImmutableList<PreparedStatement> insertNeedsRollupPS;
+    private final ImmutableList<PreparedStatement> readNeedsRollupPS;
+    private final ImmutableList<PreparedStatement> readNeedsRollupForRangePS;
+    private final ImmutableList<PreparedStatement> deleteNeedsRollupPS;
+
+    ErrorMessageDao(Session session, ConfigRepository configRepository, Clock clock)
+            throws Exception {
+        this.session = session;
+        this.configRepository = configRepository;
+        this.clock = clock;
+
+        // these tables are created by TraceDao
+        readOverallErrorMessage = session.prepare("select error_message from"
+                + " trace_tt_error_message where agent_rollup = ? and transaction_type = ?"
+                + " and capture_time > ? and capture_time <= ?");
+        readTransactionErrorMessage = session.prepare("select error_message from"
+                + " trace_tn_error_message where agent_rollup = ? and transaction_type = ?"
+                + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
+
+        int count = configRepository.getRollupConfigs().size();
+        List<Integer> rollupExpirationHours =
+                configRepository.getStorageConfig().rollupExpirationHours();
+
+        List<PreparedStatement> insertOverallCountPS = Lists.newArrayList();
+        List<PreparedStatement> insertTransactionCountPS = Lists.newArrayList();
+        List<PreparedStatement> readOverallCountPS = Lists.newArrayList();
+        List<PreparedStatement> readTransactionCountPS = Lists.newArrayList();
+        List<PreparedStatement> insertNeedsRollupPS = Lists.newArrayList();
+        List<PreparedStatement> readNeedsRollupPS = Lists.newArrayList();
+        List<PreparedStatement> readNeedsRollupForRangePS = Lists.newArrayList();
+        List<PreparedStatement> deleteNeedsRollupPS = Lists.newArrayList();
+        for (int i = 1; i < count; i++) {
+            // "aggregate_" prefix is so that these tables are retained the same as the aggregate
+            // tables at the same rollup level (instead of the same as traces)
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " aggregate_tt_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, capture_time timestamp, error_message varchar,"
+                    + " count bigint, primary key ((agent_rollup, transaction_type), capture_time,"
+                    + " error_message))", rollupExpirationHours.get(i));
+            Sessions.createTableWithTWCS(session, "create table if not exists"
+                    + " aggregate_tn_error_message_rollup_" + i + " (agent_rollup varchar,"
+                    + " transaction_type varchar, transaction_name varchar,"
+                    + " capture_time timestamp, error_message varchar, count bigint, primary key"
+                    + " ((agent_rollup, transaction_type, transaction_name), capture_time,"
+                    + " error_message))", rollupExpirationHours.get(i));
+            insertOverallCountPS.add(session.prepare("insert into"
+                    + " aggregate_tt_error_message_rollup_" + i + " (agent_rollup,"
+                    + " transaction_type, capture_time, error_message, count) values"
+                    + " (?, ?, ?, ?, ?) using ttl ?"));
+            insertTransactionCountPS.add(session.prepare("insert into"
+                    + " aggregate_tn_error_message_rollup_" + i + " (agent_rollup,"
+                    + " transaction_type, transaction_name, capture_time, error_message, count)"
+                    + " values (?, ?, ?, ?, ?, ?) using ttl ?"));
+            readOverallCountPS.add(session.prepare("select capture_time, error_message, count"
+                    + " from aggregate_tt_error_message_rollup_" + i + " where agent_rollup = ?"
+                    + " and transaction_type = ? and capture_time > ? and capture_time <= ?"));
+            readTransactionCountPS.add(session.prepare("select capture_time, error_message, count"
+                    + " from aggregate_tn_error_message_rollup_" + i + " where agent_rollup = ?"
+                    + " and transaction_type = ? and transaction_name = ? and capture_time > ?"
+                    + " and capture_time <= ?"));
+
+            createNeedsRollupTableIfNotExists(session, i);
+            insertNeedsRollupPS.add(prepareInsertNeedsRollup(session, i));
+            readNeedsRollupPS.add(session.prepare("select capture_time, transaction_type,"
+                    + " transaction_name, writetime(marker) from error_message_needs_rollup_" + i
+                    + " where agent_rollup = ?"));
+            readNeedsRollupForRangePS.add(session.prepare("select capture_time, transaction_type,"
+                    + " transaction_name from error_message_needs_rollup_" + i
+                    + " where agent_rollup = ? and capture_time > ? and capture_time <= ?"));
+            deleteNeedsRollupPS.add(session.prepare("delete from error_message_needs_rollup_" + i
+                    + " using timestamp ? where agent_rollup = ? and capture_time = ?"
+                    + " and transaction_type = ? and transaction_name = ?"));
+        }
+        this.insertOverallCountPS = ImmutableList.copyOf(insertOverallCountPS);
+        this.insertTransactionCountPS = ImmutableList.copyOf(insertTransactionCountPS);
+        this.readOverallCountPS = ImmutableList.copyOf(readOverallCountPS);
+        this.readTransactionCountPS = ImmutableList.copyOf(readTransactionCountPS);
+        this.insertNeedsRollupPS = ImmutableList.copyOf(insertNeedsRollupPS);
+        this.readNeedsRollupPS = ImmutableList.copyOf(readNeedsRollupPS);
+        this.readNeedsRollupForRangePS = ImmutableList.copyOf(readNeedsRollupForRangePS);
+        this.deleteNeedsRollupPS = ImmutableList.copyOf(deleteNeedsRollupPS);
+    }
+
+    // this is also used by SchemaUpgrade to mark the intervals of error messages that were stored
+    // prior to the error message rollup tables as needing rollup
+    static void createNeedsRollupTableIfNotExists(Session session, int rollupLevel) {
+        // same as the other "needs rollup" tables, see comment in GaugeValueDao
+        long needsRollupGcGraceSeconds = HOURS.toSeconds(3);
+        // there is no uniqueness column (unlike the other "needs rollup" tables), so that repeated
+        // inserts for the same interval collapse into a single row, and the row is deleted using
+        // the write time that was read, so that it is not deleted if it has been re-inserted since
+        // then (the marker column only exists to provide the write time)
+        session.execute("create table if not exists error_message_needs_rollup_" + rollupLevel
+                + " (agent_rollup varchar, capture_time timestamp, transaction_type varchar,"
+                + " transaction_name varchar, marker boolean, primary key (agent_rollup,"
+                + " capture_time, transaction_type, transaction_name)) with gc_grace_seconds = "
+                + needsRollupGcGraceSeconds + " and " + LCS);
+    }
+
+    static PreparedStatement prepareInsertNeedsRollup(Session session, int rollupLevel) {
+        return session.prepare("insert into error_message_needs_rollup_" + rollupLevel
+                + " (agent_rollup, capture_time, transaction_type, transaction_name, marker)"
+                + " values (?, ?, ?, ?, true) using ttl ?");
+    }
+
+    // returns -1 if the resolution does not match a maintained rollup level
+    int getRollupLevel(long resolutionMillis) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            if (rollupConfigs.get(i).intervalMillis() == resolutionMillis) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // these are written concurrently with the corresponding trace_tt/tn_error_message rows, which
+    // is ok since an interval is not rolled up until a minute after it ends (see rollup() below),
+    // by which time the concurrent error message writes have completed (or failed, in which case
+    // the whole trace store fails)
+    List<ResultSetFuture> insertNeedsRollup(List<String> agentRollupIds, Trace.Header header,
+            int adjustedTTL) {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            long captureTime = Utils.getRollupCaptureTime(header.getCaptureTime(),
+                    rollupConfigs.get(i).intervalMillis());
+            for (String agentRollupId : agentRollupIds) {
+                BoundStatement boundStatement = insertNeedsRollupPS.get(i - 1).bind();
+                int j = 0;
+                boundStatement.setString(j++, agentRollupId);
+                boundStatement.setTimestamp(j++, new Date(captureTime));
+                boundStatement.setString(j++, header.getTransactionType());
+                boundStatement.setString(j++, header.getTransactionName());
+                boundStatement.setInt(j++, adjustedTTL);
+                futures.add(session.executeAsync(boundStatement));
+            }
+        }
+        return futures;
+    }
+
+    @Instrumentation.Transaction(transactionType = "Background",
+            transactionName = "Rollup error messages",
+            traceHeadline = "Rollup error messages: {{0}}", timer = "rollup error messages")
+    void rollup(String agentRollupId) throws Exception {
+        List<RollupConfig> rollupConfigs = configRepository.getRollupConfigs();
+        List<Integer> rollupExpirationHours =
+                configRepository.getStorageConfig().rollupExpirationHours();
+        for (int rollupLevel = 1; rollupLevel < rollupConfigs.size(); rollupLevel++) {
+            int ttl = Ints.saturatedCast(HOURS.toSeconds(rollupExpirationHours.get(rollupLevel)));
+            rollup(agentRollupId, rollupLevel, rollupConfigs.get(rollupLevel).intervalMillis(),
+                    ttl);
+        }
+    }
+
+    // rolled up counts are only returned for the intervals that have no pending rollup, the
+    // capture times of the intervals that have a pending rollup are returned separately so that
+    // they can be read from the trace_tt/tn_error_message tables instead
+    //
+    // from is non-inclusive
+    RolledUpErrorMessages readRolledUp(String agentRollupId, TraceQuery query, int rollupLevel,
+            long from, long to) {
+        String transactionName = query.transactionName();
+        BoundStatement boundStatement = readNeedsRollupForRangePS.get(rollupLevel - 1).bind();
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        Set<Long> pendingCaptureTimes = Sets.newHashSet();
+        for (Row row : session.execute(boundStatement)) {
+            i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            String transactionType = checkNotNull(row.getString(i++));
+            if (!transactionType.equals(query.transactionType())) {
+                continue;
+            }
+            if (transactionName == null
+                    || transactionName.equals(checkNotNull(row.getString(i++)))) {
+                pendingCaptureTimes.add(captureTime);
+            }
+        }
+        if (transactionName == null) {
+            boundStatement = readOverallCountPS.get(rollupLevel - 1).bind();
+        } else {
+            boundStatement = readTransactionCountPS.get(rollupLevel - 1).bind();
+        }
+        i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, query.transactionType());
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        List<ErrorMessageIntervalCount> counts = Lists.newArrayList();
+        for (Row row : session.execute(boundStatement)) {
+            i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (pendingCaptureTimes.contains(captureTime)) {
+                continue;
+            }
+            String errorMessage = checkNotNull(row.getString(i++));
+            counts.add(ImmutableErrorMessageIntervalCount.of(captureTime, errorMessage,
+                    row.getLong(i++)));
+        }
+        return ImmutableRolledUpErrorMessages.of(counts, pendingCaptureTimes);
+    }
+
+    @OnlyUsedByTests
+    void truncateAll() {
+        for (int i = 1; i < configRepository.getRollupConfigs().size(); i++) {
+            session.execute("truncate aggregate_tt_error_message_rollup_" + i);
+            session.execute("truncate aggregate_tn_error_message_rollup_" + i);
+            session.execute("truncate error_message_needs_rollup_" + i);
+        }
+    }
+
+    private void rollup(String agentRollupId, int rollupLevel, long rollupIntervalMillis, int ttl)
+            throws Exception {
+        BoundStatement boundStatement = readNeedsRollupPS.get(rollupLevel - 1).bind();
+        boundStatement.setString(0, agentRollupId);
+        ResultSet results = session.execute(boundStatement);
+        // error traces are sent by the agent as soon as they complete, but give them a minute to
+        // arrive before rolling up the interval (any that arrive later re-insert the "needs rollup"
+        // row, causing the interval to be rolled up again)
+        long maxCaptureTime = clock.currentTimeMillis()
+                - configRepository.getRollupConfigs().get(0).intervalMillis();
+        Map<Long, Set<String>> overallNeedsRollup = Maps.newHashMap();
+        List<ErrorMessageNeedsRollup> needsRollupList = Lists.newArrayList();
+        for (Row row : results) {
+            int i = 0;
+            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+            if (captureTime > maxCaptureTime) {
+                // rows are ordered by capture time
+                break;
+            }
+            String transactionType = checkNotNull(row.getString(i++));
+            String transactionName = checkNotNull(row.getString(i++));
+            long writeTime = row.getLong(i++);
+            overallNeedsRollup.computeIfAbsent(captureTime, k -> Sets.newHashSet())
+                    .add(transactionType);
+            needsRollupList.add(ImmutableErrorMessageNeedsRollup.of(captureTime, transactionType,
+                    transactionName, writeTime));
+        }
+        if (needsRollupList.isEmpty()) {
+            return;
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Map.Entry<Long, Set<String>> entry : overallNeedsRollup.entrySet()) {
+            long captureTime = entry.getKey();
+            int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+            for (String transactionType : entry.getValue()) {
+                futures.addAll(rollupOne(agentRollupId, rollupLevel, transactionType, null,
+                        captureTime - rollupIntervalMillis, captureTime, adjustedTTL));
+            }
+        }
+        for (ErrorMessageNeedsRollup needsRollup : needsRollupList) {
+            long captureTime = needsRollup.captureTime();
+            int adjustedTTL = AggregateDao.getAdjustedTTL(ttl, captureTime, clock);
+            futures.addAll(rollupOne(agentRollupId, rollupLevel, needsRollup.transactionType(),
+                    needsRollup.transactionName(), captureTime - rollupIntervalMillis,
+                    captureTime, adjustedTTL));
+        }
+        // wait for above async work to ensure rollup complete before proceeding
+        MoreFutures.waitForAll(futures);
+        futures.clear();
+        for (ErrorMessageNeedsRollup needsRollup : needsRollupList) {
+            boundStatement = deleteNeedsRollupPS.get(rollupLevel - 1).bind();
+            int i = 0;
+            boundStatement.setLong(i++, needsRollup.writeTime());
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setTimestamp(i++, new Date(needsRollup.captureTime()));
+            boundStatement.setString(i++, needsRollup.transactionType());
+            boundStatement.setString(i++, needsRollup.transactionName());
+            futures.add(session.executeAsync(boundStatement));
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    // from is non-inclusive
+    private List<ResultSetFuture> rollupOne(String agentRollupId, int rollupLevel,
+            String transactionType, @Nullable String transactionName, long from, long to,
+            int adjustedTTL) {
+        BoundStatement boundStatement;
+        if (transactionName == null) {
+            boundStatement = readOverallErrorMessage.bind();
+        } else {
+            boundStatement = readTransactionErrorMessage.bind();
+        }
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, transactionType);
+        if (transactionName != null) {
+            boundStatement.setString(i++, transactionName);
+        }
+        boundStatement.setTimestamp(i++, new Date(from));
+        boundStatement.setTimestamp(i++, new Date(to));
+        Map<String, Long> messageCounts = Maps.newHashMap();
+        for (Row row : session.execute(boundStatement)) {
+            messageCounts.merge(checkNotNull(row.getString(0)), 1L, Long::sum);
+        }
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Map.Entry<String, Long> entry : messageCounts.entrySet()) {
+            if (transactionName == null) {
+                boundStatement = insertOverallCountPS.get(rollupLevel - 1).bind();
+            } else {
+                boundStatement = insertTransactionCountPS.get(rollupLevel - 1).bind();
+            }
+            i = 0;
+            boundStatement.setString(i++, agentRollupId);
+            boundStatement.setString(i++, transactionType);
+            if (transactionName != null) {
+                boundStatement.setString(i++, transactionName);
+            }
+            boundStatement.setTimestamp(i++, new Date(to));
+            boundStatement.setString(i++, entry.getKey());
+            boundStatement.setLong(i++, entry.getValue());
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface RolledUpErrorMessages {
+        List<ErrorMessageIntervalCount> counts();
+        Set<Long> pendingCaptureTimes();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ErrorMessageIntervalCount {
+        long captureTime();
+        String errorMessage();
+        long count();
+    }
+
+    @Value.Immutable
+    @Styles.AllParameters
+    interface ErrorMessageNeedsRollup {
+        long captureTime();
+        String transactionType();
+        String transactionName();
+        long writeTime();
+    }
+}
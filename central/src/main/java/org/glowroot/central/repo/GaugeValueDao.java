@@ -15,6 +15,7 @@
  */
 package org.glowroot.central.repo;
 
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -39,6 +40,7 @@ import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.AsyncFunction;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -49,6 +51,7 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.DummyResultSet;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
+import org.glowroot.common.model.MutableGaugeValue;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -56,7 +59,9 @@ import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.Gauges;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.OnlyUsedByTests;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
@@ -106,25 +111,36 @@ public class GaugeValueDao implements GaugeValueRepository {
         List<PreparedStatement> readValueForRollupPS = Lists.newArrayList();
         for (int i = 0; i <= count; i++) {
             // name already has "[counter]" suffix when it is a counter
+            //
+            // min, max and sketch are only populated in the rolled up tables (they are null in
+            // gauge_value_rollup_0), and are kept in the same table as the weighted average so that
+            // each rollup is still a single pass over the rows of the prior level
             Sessions.createTableWithTWCS(session, "create table if not exists gauge_value_rollup_"
                     + i + " (agent_rollup varchar, gauge_name varchar, capture_time timestamp,"
-                    + " value double, weight bigint, primary key ((agent_rollup, gauge_name),"
-                    + " capture_time))", rollupExpirationHours.get(i));
-            insertValuePS.add(session.prepare("insert into gauge_value_rollup_" + i
-                    + " (agent_rollup, gauge_name, capture_time, value, weight)"
-                    + " values (?, ?, ?, ?, ?) using ttl ?"));
-            readValuePS.add(session.prepare("select capture_time, value, weight from"
-                    + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
+                    + " value double, weight bigint, min double, max double, sketch blob,"
+                    + " primary key ((agent_rollup, gauge_name), capture_time))",
+                    rollupExpirationHours.get(i));
+            if (i == 0) {
+                insertValuePS.add(session.prepare("insert into gauge_value_rollup_" + i
+                        + " (agent_rollup, gauge_name, capture_time, value, weight)"
+                        + " values (?, ?, ?, ?, ?) using ttl ?"));
+            } else {
+                insertValuePS.add(session.prepare("insert into gauge_value_rollup_" + i
+                        + " (agent_rollup, gauge_name, capture_time, value, weight, min, max,"
+                        + " sketch) values (?, ?, ?, ?, ?, ?, ?, ?) using ttl ?"));
+            }
+            readValuePS.add(session.prepare("select capture_time, value, weight, min, max, sketch"
+                    + " from gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
                     + " and capture_time >= ? and capture_time <= ?"));
-            readValueForRollupPS.add(session.prepare("select value, weight from gauge_value_rollup_"
-                    + i + " where agent_rollup = ? and gauge_name = ? and capture_time > ?"
-                    + " and capture_time <= ?"));
+            readValueForRollupPS.add(session.prepare("select value, weight, min, max, sketch from"
+                    + " gauge_value_rollup_" + i + " where agent_rollup = ? and gauge_name = ?"
+                    + " and capture_time > ? and capture_time <= ?"));
         }
         this.insertValuePS = ImmutableList.copyOf(insertValuePS);
         this.readValuePS = ImmutableList.copyOf(readValuePS);
         this.readValueForRollupPS = ImmutableList.copyOf(readValueForRollupPS);
-        this.readValueForRollupFromChildPS = session.prepare("select value, weight from"
-                + " gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ?"
+        this.readValueForRollupFromChildPS = session.prepare("select value, weight, min, max,"
+                + " sketch from gauge_value_rollup_1 where agent_rollup = ? and gauge_name = ?"
                 + " and capture_time = ?");
 
         // since rollup operations are idempotent, any records resurrected after gc_grace_seconds
@@ -233,7 +249,7 @@ public class GaugeValueDao implements GaugeValueRepository {
     // from is INCLUSIVE
     @Override
     public List<GaugeValue> readGaugeValues(String agentRollupId, String gaugeName, long from,
-            long to, int rollupLevel) {
+            long to, int rollupLevel) throws Exception {
         BoundStatement boundStatement = readValuePS.get(rollupLevel).bind();
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
@@ -244,11 +260,23 @@ public class GaugeValueDao implements GaugeValueRepository {
         List<GaugeValue> gaugeValues = Lists.newArrayList();
         for (Row row : results) {
             i = 0;
-            gaugeValues.add(GaugeValue.newBuilder()
+            GaugeValue.Builder builder = GaugeValue.newBuilder()
                     .setCaptureTime(checkNotNull(row.getTimestamp(i++)).getTime())
                     .setValue(row.getDouble(i++))
-                    .setWeight(row.getLong(i++))
-                    .build());
+                    .setWeight(row.getLong(i++));
+            if (!row.isNull(i)) {
+                builder.setMin(OptionalDouble.newBuilder().setValue(row.getDouble(i)));
+            }
+            i++;
+            if (!row.isNull(i)) {
+                builder.setMax(OptionalDouble.newBuilder().setValue(row.getDouble(i)));
+            }
+            i++;
+            ByteBuffer bytes = row.getBytes(i++);
+            if (bytes != null) {
+                builder.setSketch(Aggregate.Sketch.parseFrom(ByteString.copyFrom(bytes)));
+            }
+            gaugeValues.add(builder.build());
         }
         return gaugeValues;
     }
@@ -466,14 +494,20 @@ public class GaugeValueDao implements GaugeValueRepository {
     }
 
     private ListenableFuture<ResultSet> rollupOneFromRows(int rollupLevel, String agentRollupId,
-            String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) {
-        double totalWeightedValue = 0;
-        long totalWeight = 0;
+            String gaugeName, long to, int adjustedTTL, Iterable<Row> rows) throws Exception {
+        MutableGaugeValue rollup = new MutableGaugeValue();
         for (Row row : rows) {
             double value = row.getDouble(0);
             long weight = row.getLong(1);
-            totalWeightedValue += value * weight;
-            totalWeight += weight;
+            ByteBuffer sketchBytes = row.getBytes(4);
+            if (sketchBytes == null) {
+                // rolling up from gauge_value_rollup_0 (or from a row that was rolled up prior to
+                // schema version 24)
+                rollup.addValue(value, weight);
+            } else {
+                rollup.merge(value, weight, row.getDouble(2), row.getDouble(3),
+                        Aggregate.Sketch.parseFrom(ByteString.copyFrom(sketchBytes)));
+            }
         }
         BoundStatement boundStatement = insertValuePS.get(rollupLevel).bind();
         int i = 0;
@@ -482,9 +516,12 @@ public class GaugeValueDao implements GaugeValueRepository {
         boundStatement.setTimestamp(i++, new Date(to));
         // individual gauge value weights cannot be zero, and rows is non-empty
         // (see callers of this method), so totalWeight is guaranteed non-zero
-        checkState(totalWeight != 0);
-        boundStatement.setDouble(i++, totalWeightedValue / totalWeight);
-        boundStatement.setLong(i++, totalWeight);
+        checkState(rollup.getWeight() != 0);
+        boundStatement.setDouble(i++, rollup.getValue());
+        boundStatement.setLong(i++, rollup.getWeight());
+        boundStatement.setDouble(i++, rollup.getMin());
+        boundStatement.setDouble(i++, rollup.getMax());
+        boundStatement.setBytes(i++, ByteBuffer.wrap(rollup.getSketch().toByteArray()));
         boundStatement.setInt(i++, adjustedTTL);
         return session.executeAsync(boundStatement);
     }
@@ -19,6 +19,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
@@ -32,6 +34,7 @@ import com.datastax.driver.core.BoundStatement;
 import com.datastax.driver.core.KeyspaceMetadata;
 import com.datastax.driver.core.PreparedStatement;
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.core.TableMetadata;
@@ -41,6 +44,7 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
@@ -52,10 +56,15 @@ import com.google.protobuf.InvalidProtocolBufferException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.glowroot.central.util.MoreFutures;
+import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.CentralStorageConfig;
 import org.glowroot.common.config.ConfigDefaults;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.config.ImmutableCentralWebConfig;
 import org.glowroot.common.config.PermissionParser;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.common.util.PropertiesFiles;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
@@ -77,7 +86,7 @@ public class SchemaUpgrade {
 
     private static final ObjectMapper mapper = ObjectMappers.create();
 
-    private static final int CURR_SCHEMA_VERSION = 22;
+    private static final int CURR_SCHEMA_VERSION = 27;
 
     private static final String WITH_LCS =
             "with compaction = { 'class' : 'LeveledCompactionStrategy' }";
@@ -203,6 +212,26 @@ public class SchemaUpgrade {
             removeInvalidAgentRollupRows();
             updateSchemaVersion(22);
         }
+        if (initialSchemaVersion < 23) {
+            moveSlowPointsToDurationBucketedTables();
+            updateSchemaVersion(23);
+        }
+        if (initialSchemaVersion < 24) {
+            addGaugeValueMinMaxSketchColumns();
+            updateSchemaVersion(24);
+        }
+        if (initialSchemaVersion < 25) {
+            addQueryRepeatedCountAndHistogramColumns();
+            updateSchemaVersion(25);
+        }
+        if (initialSchemaVersion < 26) {
+            addErrorMessageNeedsRollupForExistingErrorMessages();
+            updateSchemaVersion(26);
+        }
+        if (initialSchemaVersion < 27) {
+            addTraceEntryColumnarEntriesColumn();
+            updateSchemaVersion(27);
+        }
 
         // when adding new schema upgrade, make sure to update CURR_SCHEMA_VERSION above
         startupLogger.info("upgraded cassandra schema to version {}", CURR_SCHEMA_VERSION);
@@ -757,6 +786,169 @@ public class SchemaUpgrade {
         }
     }
 
+    private void moveSlowPointsToDurationBucketedTables() throws Exception {
+        // the ttl on the new tables is updated (along with the other trace tables) once the storage
+        // config is available, see updateToMoreRecentCassandraOptions()
+        int expirationHours =
+                ImmutableCentralStorageConfig.builder().build().traceExpirationHours();
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, duration_bucket int, capture_time timestamp,"
+                + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
+                + " error boolean, headline varchar, user varchar, attributes blob, primary key"
+                + " ((agent_rollup, transaction_type, duration_bucket), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, duration_bucket int,"
+                + " capture_time timestamp, agent_id varchar, trace_id varchar,"
+                + " duration_nanos bigint, partial boolean, error boolean, headline varchar,"
+                + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
+                + " transaction_name, duration_bucket), capture_time, agent_id, trace_id))",
+                expirationHours);
+        moveSlowPoints("trace_tt_slow_point", "trace_tt_slow_point_by_duration",
+                "agent_rollup, transaction_type");
+        moveSlowPoints("trace_tn_slow_point", "trace_tn_slow_point_by_duration",
+                "agent_rollup, transaction_type, transaction_name");
+    }
+
+    private void moveSlowPoints(String fromTableName, String toTableName, String partitionColumns)
+            throws Exception {
+        if (!tableExists(fromTableName)) {
+            // previously failed mid-upgrade prior to updating schema version
+            return;
+        }
+        int partitionColumnCount = partitionColumns.split(",").length;
+        String otherColumns = "capture_time, agent_id, trace_id, duration_nanos, partial, error,"
+                + " headline, user, attributes";
+        int otherColumnCount = otherColumns.split(",").length;
+        ResultSet results = session.execute("select " + partitionColumns + ", " + otherColumns
+                + ", ttl(duration_nanos) from " + fromTableName);
+        PreparedStatement insertPS = session.prepare("insert into " + toTableName + " ("
+                + partitionColumns + ", duration_bucket, " + otherColumns + ") values ("
+                + Strings.repeat("?, ", partitionColumnCount + otherColumnCount)
+                + "?) using ttl ?");
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        for (Row row : results) {
+            BoundStatement boundStatement = insertPS.bind();
+            int i = 0;
+            for (int j = 0; j < partitionColumnCount; j++) {
+                boundStatement.setString(i++, row.getString(j));
+            }
+            // capture_time is the first of the other columns, and duration_nanos is the fourth
+            long durationNanos = row.getLong(partitionColumnCount + 3);
+            boundStatement.setInt(i++, TraceDao.getDurationBucket(durationNanos));
+            for (int j = partitionColumnCount; j < partitionColumnCount + otherColumnCount; j++) {
+                boundStatement.setBytesUnsafe(i++, row.getBytesUnsafe(j));
+            }
+            // null ttl means the row was stored without expiration (ttl 0)
+            boundStatement.setInt(i++, row.getInt(partitionColumnCount + otherColumnCount));
+            futures.add(session.executeAsync(boundStatement));
+            if (futures.size() == 1000) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        dropTable(fromTableName);
+    }
+
+    private void addTraceEntryColumnarEntriesColumn() {
+        if (!tableExists("trace_entry")) {
+            // trace_entry is created by TraceDao after the schema upgrade
+            return;
+        }
+        addColumnIfNotExists("trace_entry", "columnar_entries", "blob");
+    }
+
+    private void addGaugeValueMinMaxSketchColumns() {
+        for (TableMetadata table : keyspace.getTables()) {
+            String tableName = table.getName();
+            if (tableName.startsWith("gauge_value_rollup_")) {
+                addColumnIfNotExists(tableName, "min", "double");
+                addColumnIfNotExists(tableName, "max", "double");
+                addColumnIfNotExists(tableName, "sketch", "blob");
+            }
+        }
+    }
+
+    private void addQueryRepeatedCountAndHistogramColumns() {
+        for (TableMetadata table : keyspace.getTables()) {
+            String tableName = table.getName();
+            if (tableName.startsWith("aggregate_tt_query_rollup_")
+                    || tableName.startsWith("aggregate_tn_query_rollup_")) {
+                addColumnIfNotExists(tableName, "repeated_transaction_count", "bigint");
+                addColumnIfNotExists(tableName, "duration_nanos_histogram", "blob");
+            }
+        }
+    }
+
+    // closed intervals are read from the error message rollup tables unless they are marked as
+    // needing rollup, so the intervals of the error messages that were stored before the rollup
+    // tables existed are marked as needing rollup (the next rollup then populates them)
+    private void addErrorMessageNeedsRollupForExistingErrorMessages() throws Exception {
+        if (!tableExists("trace_tn_error_message")) {
+            // the error message tables are created by TraceDao after the schema upgrade
+            return;
+        }
+        List<RollupConfig> rollupConfigs = RollupConfig.buildRollupConfigs();
+        List<PreparedStatement> insertNeedsRollupPS = Lists.newArrayList();
+        for (int i = 1; i < rollupConfigs.size(); i++) {
+            ErrorMessageDao.createNeedsRollupTableIfNotExists(session, i);
+            insertNeedsRollupPS.add(ErrorMessageDao.prepareInsertNeedsRollup(session, i));
+        }
+        // the driver pages through the results
+        ResultSet results = session.execute("select agent_rollup, transaction_type,"
+                + " transaction_name, capture_time, ttl(error_message) from trace_tn_error_message");
+        // rows are ordered by capture time within each partition, so only the first row of each
+        // interval needs to be marked
+        long[] lastRollupCaptureTimes = new long[rollupConfigs.size()];
+        String lastPartitionKey = "";
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        long rowCount = 0;
+        for (Row row : results) {
+            String agentRollupId = checkNotNull(row.getString(0));
+            String transactionType = checkNotNull(row.getString(1));
+            String transactionName = checkNotNull(row.getString(2));
+            long captureTime = checkNotNull(row.getTimestamp(3)).getTime();
+            // null ttl means the row was stored without expiration (ttl 0)
+            int ttl = row.getInt(4);
+            String partitionKey = agentRollupId + '\0' + transactionType + '\0' + transactionName;
+            if (!partitionKey.equals(lastPartitionKey)) {
+                Arrays.fill(lastRollupCaptureTimes, 0);
+                lastPartitionKey = partitionKey;
+            }
+            for (int i = 1; i < rollupConfigs.size(); i++) {
+                long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime,
+                        rollupConfigs.get(i).intervalMillis());
+                if (rollupCaptureTime == lastRollupCaptureTimes[i]) {
+                    continue;
+                }
+                lastRollupCaptureTimes[i] = rollupCaptureTime;
+                BoundStatement boundStatement = insertNeedsRollupPS.get(i - 1).bind();
+                int j = 0;
+                boundStatement.setString(j++, agentRollupId);
+                boundStatement.setTimestamp(j++, new Date(rollupCaptureTime));
+                boundStatement.setString(j++, transactionType);
+                boundStatement.setString(j++, transactionName);
+                boundStatement.setInt(j++, ttl);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            if (futures.size() >= 1000) {
+                MoreFutures.waitForAll(futures);
+                futures.clear();
+            }
+            logProgress("marking error message intervals as needing rollup", ++rowCount);
+        }
+        MoreFutures.waitForAll(futures);
+    }
+
+    private static void logProgress(String operation, long rowCount) {
+        if (rowCount % 100000 == 0) {
+            startupLogger.info("{}, {} rows processed so far...", operation, rowCount);
+        }
+    }
+
     private void addColumnIfNotExists(String tableName, String columnName, String cqlType) {
         if (!columnExists(tableName, columnName)) {
             session.execute("alter table " + tableName + " add " + columnName + " " + cqlType);
@@ -20,10 +20,8 @@ import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 import java.util.stream.Collectors;
 
 import javax.annotation.Nullable;
@@ -34,17 +32,19 @@ import com.datastax.driver.core.ResultSet;
 import com.datastax.driver.core.ResultSetFuture;
 import com.datastax.driver.core.Row;
 import com.datastax.driver.core.Session;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Charsets;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Sets;
 import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import com.google.protobuf.ByteString;
 import com.google.protobuf.InvalidProtocolBufferException;
 import org.immutables.value.Value;
 
+import org.glowroot.central.repo.ErrorMessageDao.ErrorMessageIntervalCount;
+import org.glowroot.central.repo.ErrorMessageDao.RolledUpErrorMessages;
 import org.glowroot.central.util.Messages;
 import org.glowroot.central.util.MoreFutures;
 import org.glowroot.central.util.Sessions;
@@ -55,16 +55,19 @@ import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.Existence;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
+import org.glowroot.common.model.ColumnarTraceEntries;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ImmutableErrorMessageCount;
 import org.glowroot.common.repo.ImmutableErrorMessagePoint;
 import org.glowroot.common.repo.ImmutableErrorMessageResult;
 import org.glowroot.common.repo.ImmutableHeaderPlus;
+import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.common.util.Clock;
 import org.glowroot.common.util.Styles;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamIndexedEntry;
 import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto;
 import org.glowroot.wire.api.model.Proto.StackTraceElement;
@@ -75,6 +78,12 @@ import static java.util.concurrent.TimeUnit.HOURS;
 
 public class TraceDao implements TraceRepository {
 
+    // durations are non-negative longs, so the highest power of 2 is 2^62, see getDurationBucket()
+    private static final int MAX_DURATION_BUCKET = 1 + 62 * 4 + 3;
+
+    // number of duration buckets that are read in parallel when reading slow points
+    private static final int DURATION_BUCKETS_PER_READ = 16;
+
     private final Session session;
     private final AgentDao agentDao;
     private final TransactionTypeDao transactionTypeDao;
@@ -83,6 +92,8 @@ public class TraceDao implements TraceRepository {
     private final ConfigRepository configRepository;
     private final Clock clock;
 
+    private final ErrorMessageDao errorMessageDao;
+
     private final PreparedStatement insertCheck;
 
     private final PreparedStatement insertOverallSlowPoint;
@@ -102,6 +113,7 @@ public class TraceDao implements TraceRepository {
 
     private final PreparedStatement insertHeader;
     private final PreparedStatement insertEntry;
+    private final PreparedStatement insertColumnarEntries;
     private final PreparedStatement insertSharedQueryText;
     private final PreparedStatement insertMainThreadProfile;
     private final PreparedStatement insertAuxThreadProfile;
@@ -145,19 +157,25 @@ public class TraceDao implements TraceRepository {
                 + " (agent_rollup varchar, agent_id varchar, trace_id varchar, primary key"
                 + " ((agent_rollup, agent_id), trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_slow_point"
-                + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
+        // duration_bucket is part of the partition key so that the slowest points can be read
+        // first (starting from the highest bucket), without having to read all of the points in
+        // the time range, see getDurationBucket()
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tt_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, duration_bucket int, capture_time timestamp,"
                 + " agent_id varchar, trace_id varchar, duration_nanos bigint, partial boolean,"
                 + " error boolean, headline varchar, user varchar, attributes blob, primary key"
-                + " ((agent_rollup, transaction_type), capture_time, agent_id, trace_id))",
-                expirationHours);
+                + " ((agent_rollup, transaction_type, duration_bucket), capture_time, agent_id,"
+                + " trace_id))", expirationHours);
 
-        Sessions.createTableWithTWCS(session, "create table if not exists trace_tn_slow_point"
-                + " (agent_rollup varchar, transaction_type varchar, transaction_name varchar,"
+        Sessions.createTableWithTWCS(session, "create table if not exists"
+                + " trace_tn_slow_point_by_duration (agent_rollup varchar,"
+                + " transaction_type varchar, transaction_name varchar, duration_bucket int,"
                 + " capture_time timestamp, agent_id varchar, trace_id varchar,"
                 + " duration_nanos bigint, partial boolean, error boolean, headline varchar,"
                 + " user varchar, attributes blob, primary key ((agent_rollup, transaction_type,"
-                + " transaction_name), capture_time, agent_id, trace_id))", expirationHours);
+                + " transaction_name, duration_bucket), capture_time, agent_id, trace_id))",
+                expirationHours);
 
         Sessions.createTableWithTWCS(session, "create table if not exists trace_tt_error_point"
                 + " (agent_rollup varchar, transaction_type varchar, capture_time timestamp,"
@@ -190,13 +208,22 @@ public class TraceDao implements TraceRepository {
                 + " (agent_id varchar, trace_id varchar, header blob, primary key (agent_id,"
                 + " trace_id))", expirationHours);
 
+        // entries of (non-incremental) traces are stored one page (of up to
+        // ColumnarTraceEntries.PAGE_SIZE entries) per row in columnar_entries, at negative indexes
+        // starting from Integer.MIN_VALUE (see getColumnarEntriesIndex()), so that a large trace is
+        // not stored in a single (multi-MB) cell, and so that both formats are read by one query
+        //
+        // entries of incremental traces (since they are upserted at the agent supplied indexes as
+        // they arrive), and of traces stored by prior versions, are stored one entry per row
+        //
         // index_ is just to provide uniqueness
         Sessions.createTableWithTWCS(session, "create table if not exists trace_entry"
                 + " (agent_id varchar, trace_id varchar, index_ int, depth int,"
                 + " start_offset_nanos bigint, duration_nanos bigint, active boolean,"
                 + " message varchar, shared_query_text_index int, query_message_prefix varchar,"
                 + " query_message_suffix varchar, detail blob, location_stack_trace blob,"
-                + " error blob, primary key (agent_id, trace_id, index_))", expirationHours);
+                + " error blob, columnar_entries blob, primary key (agent_id, trace_id,"
+                + " index_))", expirationHours);
 
         // index_ is just to provide uniqueness
         Sessions.createTableWithTWCS(session, "create table if not exists trace_shared_query_text"
@@ -241,16 +268,16 @@ public class TraceDao implements TraceRepository {
         insertCheck = session.prepare("insert into trace_check (agent_rollup, agent_id, trace_id)"
                 + " values (?, ?, ?) using ttl ?");
 
-        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point (agent_rollup,"
-                + " transaction_type, capture_time, agent_id, trace_id, duration_nanos, partial,"
-                + " error, headline, user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
-                + " using ttl ?");
-
-        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point"
-                + " (agent_rollup, transaction_type, transaction_name, capture_time, agent_id,"
+        insertOverallSlowPoint = session.prepare("insert into trace_tt_slow_point_by_duration"
+                + " (agent_rollup, transaction_type, duration_bucket, capture_time, agent_id,"
                 + " trace_id, duration_nanos, partial, error, headline, user, attributes) values"
                 + " (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertTransactionSlowPoint = session.prepare("insert into trace_tn_slow_point_by_duration"
+                + " (agent_rollup, transaction_type, transaction_name, duration_bucket,"
+                + " capture_time, agent_id, trace_id, duration_nanos, partial, error, headline,"
+                + " user, attributes) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
+
         insertOverallSlowCount = session.prepare("insert into trace_tt_slow_count (agent_rollup,"
                 + " transaction_type, capture_time, agent_id, trace_id) values (?, ?, ?, ?, ?)"
                 + " using ttl ?");
@@ -293,6 +320,9 @@ public class TraceDao implements TraceRepository {
                 + " query_message_prefix, query_message_suffix, detail, location_stack_trace,"
                 + " error) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) using ttl ?");
 
+        insertColumnarEntries = session.prepare("insert into trace_entry (agent_id, trace_id,"
+                + " index_, columnar_entries) values (?, ?, ?, ?) using ttl ?");
+
         insertSharedQueryText = session.prepare("insert into trace_shared_query_text (agent_id,"
                 + " trace_id, index_, truncated_text, truncated_end_text, full_text_sha1) values"
                 + " (?, ?, ?, ?, ?, ?) using ttl ?");
@@ -308,13 +338,15 @@ public class TraceDao implements TraceRepository {
 
         readOverallSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
-                + " from trace_tt_slow_point where agent_rollup = ? and transaction_type = ?"
-                + " and capture_time > ? and capture_time <= ?");
+                + " from trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and duration_bucket = ? and capture_time > ?"
+                + " and capture_time <= ?");
 
         readTransactionSlowPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error, headline, user, attributes"
-                + " from trace_tn_slow_point where agent_rollup = ? and transaction_type = ?"
-                + " and transaction_name = ? and capture_time > ? and capture_time <= ?");
+                + " from trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and duration_bucket = ?"
+                + " and capture_time > ? and capture_time <= ?");
 
         readOverallErrorPoint = session.prepare("select agent_id, trace_id, capture_time,"
                 + " duration_nanos, partial, error_message, headline, user, attributes"
@@ -339,8 +371,8 @@ public class TraceDao implements TraceRepository {
 
         readEntries = session.prepare("select depth, start_offset_nanos, duration_nanos,"
                 + " active, message, shared_query_text_index, query_message_prefix,"
-                + " query_message_suffix, detail, location_stack_trace, error from trace_entry"
-                + " where agent_id = ? and trace_id = ?");
+                + " query_message_suffix, detail, location_stack_trace, error, columnar_entries"
+                + " from trace_entry where agent_id = ? and trace_id = ?");
 
         readSharedQueryTexts = session.prepare("select truncated_text, truncated_end_text,"
                 + " full_text_sha1 from trace_shared_query_text where agent_id = ?"
@@ -352,12 +384,14 @@ public class TraceDao implements TraceRepository {
         readAuxThreadProfile = session.prepare("select profile from trace_aux_thread_profile"
                 + " where agent_id = ? and trace_id = ?");
 
-        deletePartialOverallSlowPoint = session.prepare("delete from trace_tt_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and capture_time = ?"
+        deletePartialOverallSlowPoint = session.prepare("delete from"
+                + " trace_tt_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and duration_bucket = ? and capture_time = ?"
                 + " and agent_id = ? and trace_id = ?");
 
-        deletePartialTransactionSlowPoint = session.prepare("delete from trace_tn_slow_point"
-                + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
+        deletePartialTransactionSlowPoint = session.prepare("delete from"
+                + " trace_tn_slow_point_by_duration where agent_rollup = ?"
+                + " and transaction_type = ? and transaction_name = ? and duration_bucket = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
 
         deletePartialOverallSlowCount = session.prepare("delete from trace_tt_slow_count"
@@ -367,253 +401,141 @@ public class TraceDao implements TraceRepository {
         deletePartialTransactionSlowCount = session.prepare("delete from trace_tn_slow_count"
                 + " where agent_rollup = ? and transaction_type = ? and transaction_name = ?"
                 + " and capture_time = ? and agent_id = ? and trace_id = ?");
+
+        errorMessageDao = new ErrorMessageDao(session, configRepository, clock);
     }
 
     public void store(String agentId, Trace trace) throws Exception {
         String traceId = trace.getId();
-        Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
         Trace.Header header = trace.getHeader();
 
         List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
 
-        List<ResultSetFuture> futures = Lists.newArrayList();
-
-        List<Trace.SharedQueryText> sharedQueryTexts = Lists.newArrayList();
-        for (Trace.SharedQueryText sharedQueryText : trace.getSharedQueryTextList()) {
-            String fullTextSha1 = sharedQueryText.getFullTextSha1();
-            if (fullTextSha1.isEmpty()) {
-                String fullText = sharedQueryText.getFullText();
-                if (fullText.length() > 2 * StorageConfig.TRACE_QUERY_TEXT_TRUNCATE) {
-                    fullTextSha1 = Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
-                    futures.addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
-                    for (int i = 1; i < agentRollupIds.size(); i++) {
-                        futures.addAll(
-                                fullQueryTextDao.updateCheckTTL(agentRollupIds.get(i),
-                                        fullTextSha1));
-                    }
-                    sharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
-                            .setTruncatedText(
-                                    fullText.substring(0, StorageConfig.TRACE_QUERY_TEXT_TRUNCATE))
-                            .setTruncatedEndText(fullText.substring(
-                                    fullText.length() - StorageConfig.TRACE_QUERY_TEXT_TRUNCATE,
-                                    fullText.length()))
-                            .setFullTextSha1(fullTextSha1)
-                            .build());
-                } else {
-                    sharedQueryTexts.add(sharedQueryText);
-                }
-            } else {
-                futures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
-                for (int i = 1; i < agentRollupIds.size(); i++) {
-                    futures.addAll(
-                            fullQueryTextDao.updateCheckTTL(agentRollupIds.get(i), fullTextSha1));
-                }
-                sharedQueryTexts.add(sharedQueryText);
-            }
-        }
-
-        // wait for success before proceeding in order to ensure cannot end up with orphaned
-        // fullTextSha1
-        MoreFutures.waitForAll(futures);
-        futures.clear();
+        List<Trace.SharedQueryText> sharedQueryTexts =
+                storeFullQueryTexts(agentId, agentRollupIds, trace.getSharedQueryTextList());
 
+        List<ResultSetFuture> futures = Lists.newArrayList();
         int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
-        for (String agentRollupId : agentRollupIds) {
-
-            if (!agentRollupId.equals(agentId)) {
-                BoundStatement boundStatement = insertCheck.bind();
-                int i = 0;
-                boundStatement.setString(i++, agentRollupId);
-                boundStatement.setString(i++, agentId);
-                boundStatement.setString(i++, traceId);
-                boundStatement.setInt(i++, adjustedTTL);
-                futures.add(session.executeAsync(boundStatement));
-            }
-
-            if (header.getSlow()) {
-                BoundStatement boundStatement = insertOverallSlowPoint.bind();
-                bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertTransactionSlowPoint.bind();
-                bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertOverallSlowCount.bind();
-                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertTransactionSlowCount.bind();
-                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
-                futures.add(session.executeAsync(boundStatement));
-
-                if (priorHeader != null) {
-                    boundStatement = deletePartialOverallSlowPoint.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialTransactionSlowPoint.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialOverallSlowCount.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
-                    futures.add(session.executeAsync(boundStatement));
-
-                    boundStatement = deletePartialTransactionSlowCount.bind();
-                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
-                    futures.add(session.executeAsync(boundStatement));
-                }
-            }
-            // seems unnecessary to insert error info for partial traces
-            // and this avoids having to clean up partial trace data when trace is complete
-            if (header.hasError() && !header.getPartial()) {
-                BoundStatement boundStatement = insertOverallErrorMessage.bind();
-                bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
-                        adjustedTTL, true);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertTransactionErrorMessage.bind();
-                bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
-                        adjustedTTL, false);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertOverallErrorPoint.bind();
-                bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
-                futures.add(session.executeAsync(boundStatement));
-
-                boundStatement = insertTransactionErrorPoint.bind();
-                bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
-                futures.add(session.executeAsync(boundStatement));
+        Trace.Header priorHeader = trace.getUpdate() ? readHeader(agentId, traceId) : null;
+        storeHeader(agentId, traceId, priorHeader, header, agentRollupIds, adjustedTTL, futures);
 
-                boundStatement = insertOverallErrorCount.bind();
-                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        true);
-                futures.add(session.executeAsync(boundStatement));
+        storeColumnarEntries(agentId, traceId, trace.getEntryList(), adjustedTTL, futures);
+        storeSharedQueryTexts(agentId, traceId, 0, sharedQueryTexts, adjustedTTL, futures);
 
-                boundStatement = insertTransactionErrorCount.bind();
-                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
-                        false);
-                futures.add(session.executeAsync(boundStatement));
-            }
-            for (Trace.Attribute attributeName : header.getAttributeList()) {
-                traceAttributeNameDao.store(agentRollupId,
-                        header.getTransactionType(), attributeName.getName(), futures);
-            }
+        if (trace.hasMainThreadProfile()) {
+            futures.add(storeThreadProfile(insertMainThreadProfile, agentId, traceId,
+                    trace.getMainThreadProfile(), adjustedTTL));
         }
-
-        BoundStatement boundStatement = insertHeader.bind();
-        int i = 0;
-        boundStatement.setString(i++, agentId);
-        boundStatement.setString(i++, traceId);
-        boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
-        boundStatement.setInt(i++, adjustedTTL);
-        futures.add(session.executeAsync(boundStatement));
-
-        int index = 0;
-        for (Trace.Entry entry : trace.getEntryList()) {
-            boundStatement = insertEntry.bind();
-            i = 0;
-            boundStatement.setString(i++, agentId);
-            boundStatement.setString(i++, traceId);
-            boundStatement.setInt(i++, index++);
-            boundStatement.setInt(i++, entry.getDepth());
-            boundStatement.setLong(i++, entry.getStartOffsetNanos());
-            boundStatement.setLong(i++, entry.getDurationNanos());
-            boundStatement.setBool(i++, entry.getActive());
-            if (entry.hasQueryEntryMessage()) {
-                boundStatement.setToNull(i++);
-                boundStatement.setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex());
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()));
-                boundStatement.setString(i++,
-                        Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
-            } else {
-                // message is empty for trace entries added using addErrorEntry()
-                boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()));
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-            }
-            List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
-            if (detailEntries.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
-            }
-            List<StackTraceElement> location = entry.getLocationStackTraceElementList();
-            if (location.isEmpty()) {
-                boundStatement.setToNull(i++);
-            } else {
-                boundStatement.setBytes(i++, Messages.toByteBuffer(location));
-            }
-            if (entry.hasError()) {
-                boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
-            } else {
-                boundStatement.setToNull(i++);
-            }
-            boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+        if (trace.hasAuxThreadProfile()) {
+            futures.add(storeThreadProfile(insertAuxThreadProfile, agentId, traceId,
+                    trace.getAuxThreadProfile(), adjustedTTL));
         }
+        futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
+        storeErrorMessageNeedsRollup(header, agentRollupIds, adjustedTTL, futures);
+        MoreFutures.waitForAll(futures);
+    }
 
-        index = 0;
-        for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
-            boundStatement = insertSharedQueryText.bind();
-            i = 0;
-            boundStatement.setString(i++, agentId);
-            boundStatement.setString(i++, traceId);
-            boundStatement.setInt(i++, index++);
-            String fullText = sharedQueryText.getFullText();
-            if (fullText.isEmpty()) {
-                boundStatement.setString(i++, sharedQueryText.getTruncatedText());
-                boundStatement.setString(i++, sharedQueryText.getTruncatedEndText());
-                boundStatement.setString(i++, sharedQueryText.getFullTextSha1());
-            } else {
-                boundStatement.setString(i++, fullText);
-                boundStatement.setToNull(i++);
-                boundStatement.setToNull(i++);
-            }
-            boundStatement.setInt(i++, adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+    // incremental trace streams only contain the entries and shared query texts that were added or
+    // changed since the last stream that was successfully sent for the same trace, and these are
+    // stored in chunks as they arrive (instead of being buffered into a single Trace), by upserting
+    // the entries at the agent supplied indexes
+    public void storeIncrementalChunk(String agentId, String traceId, long captureTime,
+            int sharedQueryTextStartIndex, List<Trace.SharedQueryText> sharedQueryTexts,
+            List<TraceStreamIndexedEntry> entries) throws Exception {
+        List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
+        List<Trace.SharedQueryText> processedSharedQueryTexts =
+                storeFullQueryTexts(agentId, agentRollupIds, sharedQueryTexts);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), captureTime, clock);
+        storeSharedQueryTexts(agentId, traceId, sharedQueryTextStartIndex,
+                processedSharedQueryTexts, adjustedTTL, futures);
+        for (TraceStreamIndexedEntry entry : entries) {
+            futures.add(storeEntry(agentId, traceId, entry.getIndex(), entry.getEntry(),
+                    adjustedTTL));
         }
+        MoreFutures.waitForAll(futures);
+    }
 
-        if (trace.hasMainThreadProfile()) {
-            boundStatement = insertMainThreadProfile.bind();
-            bindThreadProfile(boundStatement, agentId, traceId, trace.getMainThreadProfile(),
-                    adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+    // the thread profiles are only sent on incremental trace streams when they have changed
+    //
+    // returns false if the header was not stored because it is a partial header that arrived after
+    // the completed header was already stored (e.g. a slow partial send that raced with the send of
+    // the completed trace), since storing it would make the completed trace look in-flight again
+    public boolean storeIncrementalHeader(String agentId, String traceId, boolean update,
+            Trace.Header header, @Nullable Profile mainThreadProfile,
+            @Nullable Profile auxThreadProfile) throws Exception {
+        Trace.Header priorHeader = update ? readHeader(agentId, traceId) : null;
+        if (header.getPartial() && priorHeader != null && !priorHeader.getPartial()) {
+            return false;
         }
-
-        if (trace.hasAuxThreadProfile()) {
-            boundStatement = insertAuxThreadProfile.bind();
-            bindThreadProfile(boundStatement, agentId, traceId, trace.getAuxThreadProfile(),
-                    adjustedTTL);
-            futures.add(session.executeAsync(boundStatement));
+        List<String> agentRollupIds = agentDao.readAgentRollupIds(agentId);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        int adjustedTTL = AggregateDao.getAdjustedTTL(getTTL(), header.getCaptureTime(), clock);
+        storeHeader(agentId, traceId, priorHeader, header, agentRollupIds, adjustedTTL, futures);
+        if (mainThreadProfile != null) {
+            futures.add(storeThreadProfile(insertMainThreadProfile, agentId, traceId,
+                    mainThreadProfile, adjustedTTL));
+        }
+        if (auxThreadProfile != null) {
+            futures.add(storeThreadProfile(insertAuxThreadProfile, agentId, traceId,
+                    auxThreadProfile, adjustedTTL));
         }
         futures.addAll(transactionTypeDao.store(agentRollupIds, header.getTransactionType()));
+        storeErrorMessageNeedsRollup(header, agentRollupIds, adjustedTTL, futures);
         MoreFutures.waitForAll(futures);
+        return true;
     }
 
+    // reads the duration buckets from slowest to fastest (DURATION_BUCKETS_PER_READ buckets at a
+    // time, in parallel), and stops after the buckets in which the limit is reached, since points
+    // from lower buckets cannot displace any of the collected points
     @Override
     public Result<TracePoint> readSlowPoints(String agentRollupId, TraceQuery query,
             TracePointFilter filter, int limit) throws IOException {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionSlowPoint.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
+        boolean overall = query.transactionName() == null;
+        TracePointCollector collector = new TracePointCollector(limit);
+        int durationBucket = MAX_DURATION_BUCKET;
+        while (durationBucket >= 0 && !collector.isFull()) {
+            List<ResultSetFuture> futures =
+                    readSlowPointBuckets(agentRollupId, query, overall, durationBucket, null);
+            for (ResultSetFuture future : futures) {
+                processPoints(future.getUninterruptibly(), filter, false, collector);
+            }
+            durationBucket -= futures.size();
         }
-        ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, false);
+        // the collector sets moreAvailable when it drops a (matching) point from the buckets read
+        // above, otherwise the remaining buckets are read until the first point that matches the
+        // filter, using a small fetch size since only one matching point is needed
+        while (durationBucket >= 0 && !collector.isMoreAvailable()) {
+            List<ResultSetFuture> futures =
+                    readSlowPointBuckets(agentRollupId, query, overall, durationBucket, 100);
+            for (ResultSetFuture future : futures) {
+                if (anyMatch(future.getUninterruptibly(), filter, false)) {
+                    collector.setMoreAvailable();
+                    break;
+                }
+            }
+            durationBucket -= futures.size();
+        }
+        return collector.getResult();
+    }
+
+    private List<ResultSetFuture> readSlowPointBuckets(String agentRollupId, TraceQuery query,
+            boolean overall, int highestDurationBucket, @Nullable Integer fetchSize) {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        int lowestDurationBucket =
+                Math.max(highestDurationBucket - DURATION_BUCKETS_PER_READ + 1, 0);
+        for (int durationBucket = highestDurationBucket;
+                durationBucket >= lowestDurationBucket; durationBucket--) {
+            BoundStatement boundStatement = overall ? readOverallSlowPoint.bind()
+                    : readTransactionSlowPoint.bind();
+            bindTraceQuery(boundStatement, agentRollupId, query, overall, durationBucket);
+            if (fetchSize != null) {
+                boundStatement.setFetchSize(fetchSize);
+            }
+            futures.add(session.executeAsync(boundStatement));
+        }
+        return futures;
     }
 
     @Override
@@ -629,7 +551,9 @@ public class TraceDao implements TraceRepository {
             bindTraceQuery(boundStatement, agentRollupId, query, false);
         }
         ResultSet results = session.execute(boundStatement);
-        return processPoints(results, filter, limit, true);
+        TracePointCollector collector = new TracePointCollector(limit);
+        processPoints(results, filter, true, collector);
+        return collector.getResult();
     }
 
     @Override
@@ -677,28 +601,40 @@ public class TraceDao implements TraceRepository {
     @Override
     public ErrorMessageResult readErrorMessages(String agentRollupId, TraceQuery query,
             ErrorMessageFilter filter, long resolutionMillis, int limit) throws Exception {
-        BoundStatement boundStatement;
-        String transactionName = query.transactionName();
-        if (transactionName == null) {
-            boundStatement = readOverallErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, true);
-        } else {
-            boundStatement = readTransactionErrorMessage.bind();
-            bindTraceQuery(boundStatement, agentRollupId, query, false);
-        }
-        ResultSet results = session.execute(boundStatement);
-        // rows are already in order by captureTime, so saving sort step by using linked hash map
-        Map<Long, MutableLong> pointCounts = Maps.newLinkedHashMap();
+        Map<Long, MutableLong> pointCounts = Maps.newHashMap();
         Map<String, MutableLong> messageCounts = Maps.newHashMap();
-        for (Row row : results) {
-            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
-            String errorMessage = checkNotNull(row.getString(1));
-            if (!matches(filter, errorMessage)) {
-                continue;
+        int rollupLevel = errorMessageDao.getRollupLevel(resolutionMillis);
+        // the rolled up counts can only be used for the intervals that are fully inside the query
+        long rolledUpFrom = Utils.getRollupCaptureTime(query.from(), resolutionMillis);
+        long rolledUpTo = Utils.getRollupCaptureTime(query.to(), resolutionMillis);
+        if (rolledUpTo > query.to()) {
+            rolledUpTo -= resolutionMillis;
+        }
+        if (rollupLevel == -1 || rolledUpTo <= rolledUpFrom) {
+            readErrorMessages(agentRollupId, query, query.from(), query.to(), filter,
+                    resolutionMillis, pointCounts, messageCounts);
+        } else {
+            readErrorMessages(agentRollupId, query, query.from(), rolledUpFrom, filter,
+                    resolutionMillis, pointCounts, messageCounts);
+            RolledUpErrorMessages rolledUp = errorMessageDao.readRolledUp(agentRollupId, query,
+                    rollupLevel, rolledUpFrom, rolledUpTo);
+            // the filter only needs to be applied once per distinct message per interval here,
+            // instead of once per error trace
+            for (ErrorMessageIntervalCount count : rolledUp.counts()) {
+                if (!matches(filter, count.errorMessage())) {
+                    continue;
+                }
+                pointCounts.computeIfAbsent(count.captureTime(), k -> new MutableLong())
+                        .add(count.count());
+                messageCounts.computeIfAbsent(count.errorMessage(), k -> new MutableLong())
+                        .add(count.count());
             }
-            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
-            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
-            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+            for (long pendingCaptureTime : rolledUp.pendingCaptureTimes()) {
+                readErrorMessages(agentRollupId, query, pendingCaptureTime - resolutionMillis,
+                        pendingCaptureTime, filter, resolutionMillis, pointCounts, messageCounts);
+            }
+            readErrorMessages(agentRollupId, query, rolledUpTo, query.to(), filter,
+                    resolutionMillis, pointCounts, messageCounts);
         }
         List<ErrorMessagePoint> points = pointCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessagePoint.of(e.getKey(), e.getValue().value))
@@ -708,7 +644,8 @@ public class TraceDao implements TraceRepository {
                 .collect(Collectors.<ErrorMessagePoint>toList());
         List<ErrorMessageCount> counts = messageCounts.entrySet().stream()
                 .map(e -> ImmutableErrorMessageCount.of(e.getKey(), e.getValue().value))
-                // points above are already ordered by cassandra, but need to reverse sort counts
+                // points are merged from several reads above so are sorted explicitly, and counts
+                // are reverse sorted
                 .sorted(Comparator.comparing(ErrorMessageCount::count).reversed())
                 // explicit type on this line is needed for Checker Framework
                 // see https://github.com/typetools/checker-framework/issues/531
@@ -727,6 +664,10 @@ public class TraceDao implements TraceRepository {
         }
     }
 
+    public void rollupErrorMessages(String agentRollupId) throws Exception {
+        errorMessageDao.rollup(agentRollupId);
+    }
+
     @Override
     public @Nullable HeaderPlus readHeaderPlus(String agentRollupId, String agentId, String traceId)
             throws InvalidProtocolBufferException {
@@ -850,9 +791,23 @@ public class TraceDao implements TraceRepository {
         boundStatement.setString(0, agentId);
         boundStatement.setString(1, traceId);
         ResultSet results = session.execute(boundStatement);
+        List<Trace.Entry> columnarEntries = Lists.newArrayList();
         List<Trace.Entry> entries = Lists.newArrayList();
         while (!results.isExhausted()) {
             Row row = results.one();
+            ByteBuffer columnarBytes = row.getBytes(11);
+            if (columnarBytes != null) {
+                // the pages are at the lowest indexes, so they are read first and in order
+                byte[] bytes = new byte[columnarBytes.remaining()];
+                columnarBytes.get(bytes);
+                columnarEntries.addAll(ColumnarTraceEntries.decode(bytes));
+                continue;
+            }
+            if (!columnarEntries.isEmpty()) {
+                // the completed trace was stored in pages after partial incremental traces were
+                // stored one entry per row, in which case the pages hold all of the entries
+                break;
+            }
             int i = 0;
             Trace.Entry.Builder entry = Trace.Entry.newBuilder()
                     .setDepth(row.getInt(i++))
@@ -890,6 +845,9 @@ public class TraceDao implements TraceRepository {
             }
             entries.add(entry.build());
         }
+        if (!columnarEntries.isEmpty()) {
+            return columnarEntries;
+        }
         return entries;
     }
 
@@ -919,6 +877,294 @@ public class TraceDao implements TraceRepository {
         return sharedQueryTexts;
     }
 
+    // wait for success before returning in order to ensure cannot end up with orphaned
+    // fullTextSha1
+    private List<Trace.SharedQueryText> storeFullQueryTexts(String agentId,
+            List<String> agentRollupIds, List<Trace.SharedQueryText> sharedQueryTexts)
+            throws Exception {
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        List<Trace.SharedQueryText> processedSharedQueryTexts = Lists.newArrayList();
+        for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            String fullTextSha1 = sharedQueryText.getFullTextSha1();
+            if (fullTextSha1.isEmpty()) {
+                String fullText = sharedQueryText.getFullText();
+                if (fullText.length() > 2 * StorageConfig.TRACE_QUERY_TEXT_TRUNCATE) {
+                    fullTextSha1 = Hashing.sha1().hashString(fullText, Charsets.UTF_8).toString();
+                    futures.addAll(fullQueryTextDao.store(agentId, fullTextSha1, fullText));
+                    for (int i = 1; i < agentRollupIds.size(); i++) {
+                        futures.addAll(
+                                fullQueryTextDao.updateCheckTTL(agentRollupIds.get(i),
+                                        fullTextSha1));
+                    }
+                    processedSharedQueryTexts.add(Trace.SharedQueryText.newBuilder()
+                            .setTruncatedText(
+                                    fullText.substring(0, StorageConfig.TRACE_QUERY_TEXT_TRUNCATE))
+                            .setTruncatedEndText(fullText.substring(
+                                    fullText.length() - StorageConfig.TRACE_QUERY_TEXT_TRUNCATE,
+                                    fullText.length()))
+                            .setFullTextSha1(fullTextSha1)
+                            .build());
+                } else {
+                    processedSharedQueryTexts.add(sharedQueryText);
+                }
+            } else {
+                futures.addAll(fullQueryTextDao.updateTTL(agentId, fullTextSha1));
+                for (int i = 1; i < agentRollupIds.size(); i++) {
+                    futures.addAll(
+                            fullQueryTextDao.updateCheckTTL(agentRollupIds.get(i), fullTextSha1));
+                }
+                processedSharedQueryTexts.add(sharedQueryText);
+            }
+        }
+        MoreFutures.waitForAll(futures);
+        return processedSharedQueryTexts;
+    }
+
+    private void storeErrorMessageNeedsRollup(Trace.Header header, List<String> agentRollupIds,
+            int adjustedTTL, List<ResultSetFuture> futures) {
+        // same condition as for storing the error message, see storeHeader()
+        if (header.hasError() && !header.getPartial()) {
+            futures.addAll(errorMessageDao.insertNeedsRollup(agentRollupIds, header, adjustedTTL));
+        }
+    }
+
+    // from is non-inclusive
+    private void readErrorMessages(String agentRollupId, TraceQuery query, long from, long to,
+            ErrorMessageFilter filter, long resolutionMillis, Map<Long, MutableLong> pointCounts,
+            Map<String, MutableLong> messageCounts) {
+        if (to <= from) {
+            return;
+        }
+        TraceQuery rangeQuery = ImmutableTraceQuery.builder()
+                .copyFrom(query)
+                .from(from)
+                .to(to)
+                .build();
+        BoundStatement boundStatement;
+        if (query.transactionName() == null) {
+            boundStatement = readOverallErrorMessage.bind();
+            bindTraceQuery(boundStatement, agentRollupId, rangeQuery, true);
+        } else {
+            boundStatement = readTransactionErrorMessage.bind();
+            bindTraceQuery(boundStatement, agentRollupId, rangeQuery, false);
+        }
+        ResultSet results = session.execute(boundStatement);
+        for (Row row : results) {
+            long captureTime = checkNotNull(row.getTimestamp(0)).getTime();
+            String errorMessage = checkNotNull(row.getString(1));
+            if (!matches(filter, errorMessage)) {
+                continue;
+            }
+            long rollupCaptureTime = Utils.getRollupCaptureTime(captureTime, resolutionMillis);
+            pointCounts.computeIfAbsent(rollupCaptureTime, k -> new MutableLong()).increment();
+            messageCounts.computeIfAbsent(errorMessage, k -> new MutableLong()).increment();
+        }
+    }
+
+    private void storeHeader(String agentId, String traceId, @Nullable Trace.Header priorHeader,
+            Trace.Header header, List<String> agentRollupIds, int adjustedTTL,
+            List<ResultSetFuture> futures) throws Exception {
+        for (String agentRollupId : agentRollupIds) {
+
+            if (!agentRollupId.equals(agentId)) {
+                BoundStatement boundStatement = insertCheck.bind();
+                int i = 0;
+                boundStatement.setString(i++, agentRollupId);
+                boundStatement.setString(i++, agentId);
+                boundStatement.setString(i++, traceId);
+                boundStatement.setInt(i++, adjustedTTL);
+                futures.add(session.executeAsync(boundStatement));
+            }
+
+            if (header.getSlow()) {
+                BoundStatement boundStatement = insertOverallSlowPoint.bind();
+                bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionSlowPoint.bind();
+                bindSlowPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        false);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertOverallSlowCount.bind();
+                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionSlowCount.bind();
+                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        false);
+                futures.add(session.executeAsync(boundStatement));
+
+                if (priorHeader != null) {
+                    boundStatement = deletePartialOverallSlowPoint.bind();
+                    bindSlowPointKey(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            true);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialTransactionSlowPoint.bind();
+                    bindSlowPointKey(boundStatement, agentRollupId, agentId, traceId, priorHeader,
+                            false);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialOverallSlowCount.bind();
+                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, true);
+                    futures.add(session.executeAsync(boundStatement));
+
+                    boundStatement = deletePartialTransactionSlowCount.bind();
+                    bind(boundStatement, agentRollupId, agentId, traceId, priorHeader, false);
+                    futures.add(session.executeAsync(boundStatement));
+                }
+            }
+            // seems unnecessary to insert error info for partial traces
+            // and this avoids having to clean up partial trace data when trace is complete
+            if (header.hasError() && !header.getPartial()) {
+                BoundStatement boundStatement = insertOverallErrorMessage.bind();
+                bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionErrorMessage.bind();
+                bindErrorMessage(boundStatement, agentRollupId, agentId, traceId, header,
+                        adjustedTTL, false);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertOverallErrorPoint.bind();
+                bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionErrorPoint.bind();
+                bindErrorPoint(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        false);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertOverallErrorCount.bind();
+                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        true);
+                futures.add(session.executeAsync(boundStatement));
+
+                boundStatement = insertTransactionErrorCount.bind();
+                bindCount(boundStatement, agentRollupId, agentId, traceId, header, adjustedTTL,
+                        false);
+                futures.add(session.executeAsync(boundStatement));
+            }
+            for (Trace.Attribute attributeName : header.getAttributeList()) {
+                traceAttributeNameDao.store(agentRollupId,
+                        header.getTransactionType(), attributeName.getName(), futures);
+            }
+        }
+
+        BoundStatement boundStatement = insertHeader.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setBytes(i++, ByteBuffer.wrap(header.toByteArray()));
+        boundStatement.setInt(i++, adjustedTTL);
+        futures.add(session.executeAsync(boundStatement));
+    }
+
+    private void storeColumnarEntries(String agentId, String traceId, List<Trace.Entry> entries,
+            int adjustedTTL, List<ResultSetFuture> futures) throws IOException {
+        List<List<Trace.Entry>> pages = Lists.partition(entries, ColumnarTraceEntries.PAGE_SIZE);
+        for (int pageIndex = 0; pageIndex < pages.size(); pageIndex++) {
+            BoundStatement boundStatement = insertColumnarEntries.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, getColumnarEntriesIndex(pageIndex));
+            boundStatement.setBytes(i++,
+                    ByteBuffer.wrap(ColumnarTraceEntries.encode(pages.get(pageIndex))));
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+    }
+
+    // the pages are stored below all of the per-entry indexes (which are non-negative), and in
+    // ascending order, so that they are read first and in order
+    private static int getColumnarEntriesIndex(int pageIndex) {
+        return Integer.MIN_VALUE + pageIndex;
+    }
+
+    private ResultSetFuture storeEntry(String agentId, String traceId, int index,
+            Trace.Entry entry, int adjustedTTL) throws Exception {
+        BoundStatement boundStatement = insertEntry.bind();
+        int i = 0;
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        boundStatement.setInt(i++, index);
+        boundStatement.setInt(i++, entry.getDepth());
+        boundStatement.setLong(i++, entry.getStartOffsetNanos());
+        boundStatement.setLong(i++, entry.getDurationNanos());
+        boundStatement.setBool(i++, entry.getActive());
+        if (entry.hasQueryEntryMessage()) {
+            boundStatement.setToNull(i++);
+            boundStatement.setInt(i++, entry.getQueryEntryMessage().getSharedQueryTextIndex());
+            boundStatement.setString(i++,
+                    Strings.emptyToNull(entry.getQueryEntryMessage().getPrefix()));
+            boundStatement.setString(i++,
+                    Strings.emptyToNull(entry.getQueryEntryMessage().getSuffix()));
+        } else {
+            // message is empty for trace entries added using addErrorEntry()
+            boundStatement.setString(i++, Strings.emptyToNull(entry.getMessage()));
+            boundStatement.setToNull(i++);
+            boundStatement.setToNull(i++);
+            boundStatement.setToNull(i++);
+        }
+        List<Trace.DetailEntry> detailEntries = entry.getDetailEntryList();
+        if (detailEntries.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(detailEntries));
+        }
+        List<StackTraceElement> location = entry.getLocationStackTraceElementList();
+        if (location.isEmpty()) {
+            boundStatement.setToNull(i++);
+        } else {
+            boundStatement.setBytes(i++, Messages.toByteBuffer(location));
+        }
+        if (entry.hasError()) {
+            boundStatement.setBytes(i++, ByteBuffer.wrap(entry.getError().toByteArray()));
+        } else {
+            boundStatement.setToNull(i++);
+        }
+        boundStatement.setInt(i++, adjustedTTL);
+        return session.executeAsync(boundStatement);
+    }
+
+    private void storeSharedQueryTexts(String agentId, String traceId, int startIndex,
+            List<Trace.SharedQueryText> sharedQueryTexts, int adjustedTTL,
+            List<ResultSetFuture> futures) {
+        int index = startIndex;
+        for (Trace.SharedQueryText sharedQueryText : sharedQueryTexts) {
+            BoundStatement boundStatement = insertSharedQueryText.bind();
+            int i = 0;
+            boundStatement.setString(i++, agentId);
+            boundStatement.setString(i++, traceId);
+            boundStatement.setInt(i++, index++);
+            String fullText = sharedQueryText.getFullText();
+            if (fullText.isEmpty()) {
+                boundStatement.setString(i++, sharedQueryText.getTruncatedText());
+                boundStatement.setString(i++, sharedQueryText.getTruncatedEndText());
+                boundStatement.setString(i++, sharedQueryText.getFullTextSha1());
+            } else {
+                boundStatement.setString(i++, fullText);
+                boundStatement.setToNull(i++);
+                boundStatement.setToNull(i++);
+            }
+            boundStatement.setInt(i++, adjustedTTL);
+            futures.add(session.executeAsync(boundStatement));
+        }
+    }
+
+    private ResultSetFuture storeThreadProfile(PreparedStatement insertThreadProfile,
+            String agentId, String traceId, Profile profile, int adjustedTTL) {
+        BoundStatement boundStatement = insertThreadProfile.bind();
+        bindThreadProfile(boundStatement, agentId, traceId, profile, adjustedTTL);
+        return session.executeAsync(boundStatement);
+    }
+
     private int getTTL() throws Exception {
         return Ints.saturatedCast(
                 HOURS.toSeconds(configRepository.getStorageConfig().traceExpirationHours()));
@@ -927,7 +1173,7 @@ public class TraceDao implements TraceRepository {
     private static void bindSlowPoint(BoundStatement boundStatement, String agentRollupId,
             String agentId, String traceId, Trace.Header header, int adjustedTTL, boolean overall)
             throws IOException {
-        int i = bind(boundStatement, agentRollupId, agentId, traceId, header, overall);
+        int i = bindSlowPointKey(boundStatement, agentRollupId, agentId, traceId, header, overall);
         boundStatement.setLong(i++, header.getDurationNanos());
         boundStatement.setBool(i++, header.getPartial());
         boundStatement.setBool(i++, header.hasError());
@@ -987,6 +1233,21 @@ public class TraceDao implements TraceRepository {
         return i;
     }
 
+    private static int bindSlowPointKey(BoundStatement boundStatement, String agentRollupId,
+            String agentId, String traceId, Trace.Header header, boolean overall) {
+        int i = 0;
+        boundStatement.setString(i++, agentRollupId);
+        boundStatement.setString(i++, header.getTransactionType());
+        if (!overall) {
+            boundStatement.setString(i++, header.getTransactionName());
+        }
+        boundStatement.setInt(i++, getDurationBucket(header.getDurationNanos()));
+        boundStatement.setTimestamp(i++, new Date(header.getCaptureTime()));
+        boundStatement.setString(i++, agentId);
+        boundStatement.setString(i++, traceId);
+        return i;
+    }
+
     private static void bindThreadProfile(BoundStatement boundStatement, String agentId,
             String traceId, Profile profile, int adjustedTTL) {
         int i = 0;
@@ -998,6 +1259,11 @@ public class TraceDao implements TraceRepository {
 
     private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
             TraceQuery query, boolean overall) {
+        bindTraceQuery(boundStatement, agentRollupId, query, overall, null);
+    }
+
+    private static void bindTraceQuery(BoundStatement boundStatement, String agentRollupId,
+            TraceQuery query, boolean overall, @Nullable Integer durationBucket) {
         int i = 0;
         boundStatement.setString(i++, agentRollupId);
         boundStatement.setString(i++, query.transactionType());
@@ -1005,69 +1271,91 @@ public class TraceDao implements TraceRepository {
         if (!overall) {
             boundStatement.setString(i++, transactionName);
         }
+        if (durationBucket != null) {
+            boundStatement.setInt(i++, durationBucket);
+        }
         boundStatement.setTimestamp(i++, new Date(query.from()));
         boundStatement.setTimestamp(i++, new Date(query.to()));
     }
 
-    private static Result<TracePoint> processPoints(ResultSet results, TracePointFilter filter,
-            int limit, boolean errorPoints) throws IOException {
-        List<TracePoint> tracePoints = Lists.newArrayList();
+    // each power of 2 (in nanoseconds) is split into 4 buckets using the 2 bits that follow the
+    // highest bit, so that a single bucket does not hold all of the slow points of a transaction
+    // type (durations in a bucket differ by at most 25% instead of by up to 2x), and bucket 0 only
+    // contains zero durations
+    @VisibleForTesting
+    static int getDurationBucket(long durationNanos) {
+        if (durationNanos <= 0) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(durationNanos);
+        int subBucket;
+        if (exponent >= 2) {
+            subBucket = (int) (durationNanos >>> (exponent - 2)) & 3;
+        } else {
+            subBucket = (int) (durationNanos << (2 - exponent)) & 3;
+        }
+        return 1 + exponent * 4 + subBucket;
+    }
+
+    private static void processPoints(ResultSet results, TracePointFilter filter,
+            boolean errorPoints, TracePointCollector collector) throws IOException {
         for (Row row : results) {
-            int i = 0;
-            String agentId = checkNotNull(row.getString(i++));
-            String traceId = checkNotNull(row.getString(i++));
-            long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
-            long durationNanos = row.getLong(i++);
-            boolean partial = row.getBool(i++);
-            boolean error = errorPoints ? true : row.getBool(i++);
-            // error points are defined by having an error message, so safe to checkNotNull
-            String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
-            // headline is null for data inserted prior to 0.9.7
-            String headline = Strings.nullToEmpty(row.getString(i++));
-            String user = Strings.nullToEmpty(row.getString(i++));
+            TracePoint point = toTracePoint(row, filter, errorPoints);
+            if (point != null) {
+                collector.add(point);
+            }
+        }
+    }
+
+    private static boolean anyMatch(ResultSet results, TracePointFilter filter,
+            boolean errorPoints) throws IOException {
+        for (Row row : results) {
+            if (toTracePoint(row, filter, errorPoints) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // returns null if the point does not match the filter
+    private static @Nullable TracePoint toTracePoint(Row row, TracePointFilter filter,
+            boolean errorPoints) throws IOException {
+        int i = 0;
+        String agentId = checkNotNull(row.getString(i++));
+        String traceId = checkNotNull(row.getString(i++));
+        long captureTime = checkNotNull(row.getTimestamp(i++)).getTime();
+        long durationNanos = row.getLong(i++);
+        boolean partial = row.getBool(i++);
+        boolean error = errorPoints ? true : row.getBool(i++);
+        // error points are defined by having an error message, so safe to checkNotNull
+        String errorMessage = errorPoints ? checkNotNull(row.getString(i++)) : "";
+        // headline is null for data inserted prior to 0.9.7
+        String headline = Strings.nullToEmpty(row.getString(i++));
+        String user = Strings.nullToEmpty(row.getString(i++));
+        if (!filter.matchesHeadline(headline)
+                || !filter.matchesError(errorMessage)
+                || !filter.matchesUser(user)) {
+            return null;
+        }
+        // only pay for deserializing the attributes when filtering on them
+        if (filter.hasAttributeFilter()) {
             ByteBuffer attributeBytes = row.getBytes(i++);
             List<Trace.Attribute> attrs =
                     Messages.parseDelimitedFrom(attributeBytes, Trace.Attribute.parser());
             Map<String, List<String>> attributes = attrs.stream().collect(
                     Collectors.toMap(Trace.Attribute::getName, Trace.Attribute::getValueList));
-            if (filter.matchesHeadline(headline)
-                    && filter.matchesError(errorMessage)
-                    && filter.matchesUser(user)
-                    && filter.matchesAttributes(attributes)) {
-                tracePoints.add(ImmutableTracePoint.builder()
-                        .agentId(agentId)
-                        .traceId(traceId)
-                        .captureTime(captureTime)
-                        .durationNanos(durationNanos)
-                        .partial(partial)
-                        .error(error)
-                        .build());
-            }
-        }
-        // remove duplicates (partially stored traces) since there is (small) window between updated
-        // insert (with new capture time) and the delete of prior insert (with prior capture time)
-        Set<TraceKey> traceKeys = Sets.newHashSet();
-        ListIterator<TracePoint> i = tracePoints.listIterator(tracePoints.size());
-        while (i.hasPrevious()) {
-            TracePoint trace = i.previous();
-            TraceKey traceKey = ImmutableTraceKey.of(trace.agentId(), trace.traceId());
-            if (!traceKeys.add(traceKey)) {
-                i.remove();
+            if (!filter.matchesAttributes(attributes)) {
+                return null;
             }
         }
-        // apply limit and re-sort if needed
-        if (tracePoints.size() > limit) {
-            tracePoints = tracePoints.stream()
-                    .sorted(Comparator.comparingLong(TracePoint::durationNanos).reversed())
-                    .limit(limit)
-                    .sorted(Comparator.comparingLong(TracePoint::captureTime))
-                    // explicit type on this line is needed for Checker Framework
-                    // see https://github.com/typetools/checker-framework/issues/531
-                    .collect(Collectors.<TracePoint>toList());
-            return new Result<>(tracePoints, true);
-        } else {
-            return new Result<>(tracePoints, false);
-        }
+        return ImmutableTracePoint.builder()
+                .agentId(agentId)
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(partial)
+                .error(error)
+                .build();
     }
 
     private static boolean matches(ErrorMessageFilter filter, String errorMessage) {
@@ -1097,5 +1385,8 @@ public class TraceDao implements TraceRepository {
         private void increment() {
             value++;
         }
+        private void add(long delta) {
+            value += delta;
+        }
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.central.repo.TraceDao.TraceKey;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+
+// retains the slowest (limit) trace points seen so far, using a bounded min-heap so that memory is
+// proportional to the limit instead of to the number of rows read
+class TracePointCollector {
+
+    private final int limit;
+
+    // ordered by duration so that the fastest retained point is at the head
+    private final PriorityQueue<TracePoint> heap;
+    private final Map<TraceKey, TracePoint> retained = Maps.newHashMap();
+
+    private boolean moreAvailable;
+
+    TracePointCollector(int limit) {
+        this.limit = limit;
+        heap = new PriorityQueue<>(Math.max(limit, 1),
+                Comparator.comparingLong(TracePoint::durationNanos));
+    }
+
+    void add(TracePoint point) {
+        TraceKey traceKey = ImmutableTraceKey.of(point.agentId(), point.traceId());
+        TracePoint existing = retained.get(traceKey);
+        if (existing != null) {
+            // duplicate (partially stored trace) since there is (small) window between updated
+            // insert (with new capture time) and the delete of prior insert (with prior capture
+            // time), in which case the most recent capture is kept
+            if (point.captureTime() <= existing.captureTime()) {
+                return;
+            }
+            heap.remove(existing);
+            retained.remove(traceKey);
+        }
+        if (heap.size() < limit) {
+            heap.add(point);
+            retained.put(traceKey, point);
+            return;
+        }
+        moreAvailable = true;
+        TracePoint fastest = heap.peek();
+        if (fastest != null && point.durationNanos() > fastest.durationNanos()) {
+            heap.poll();
+            retained.remove(ImmutableTraceKey.of(fastest.agentId(), fastest.traceId()));
+            heap.add(point);
+            retained.put(traceKey, point);
+        }
+    }
+
+    boolean isFull() {
+        return heap.size() >= limit;
+    }
+
+    boolean isMoreAvailable() {
+        return moreAvailable;
+    }
+
+    void setMoreAvailable() {
+        moreAvailable = true;
+    }
+
+    Result<TracePoint> getResult() {
+        List<TracePoint> tracePoints = Lists.newArrayList(heap);
+        tracePoints.sort(Comparator.comparingLong(TracePoint::captureTime));
+        return new Result<>(tracePoints, moreAvailable);
+    }
+}
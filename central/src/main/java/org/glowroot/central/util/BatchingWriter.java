@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Configuration;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.Statement;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+// groups writes to the same partition into unlogged batches (which cassandra applies as a single
+// mutation), and bounds the number of in-flight writes per cassandra host, which is needed since
+// all agents flush their aggregates right after each minute marker
+public class BatchingWriter implements BatchingWriterMBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(BatchingWriter.class);
+
+    // cassandra logs a warning for batches over 5kb (batch_size_warn_threshold_in_kb), so this is
+    // kept small since it is only the round trips that are being saved
+    @VisibleForTesting
+    static final int MAX_STATEMENTS_PER_BATCH = 20;
+
+    // used when the replica for a statement cannot be determined
+    private static final Object UNKNOWN_HOST = new Object();
+
+    private final Session session;
+    private final int maxConcurrentWritesPerHost;
+    private final Ticker ticker;
+
+    private final ConcurrentMap<Object, Semaphore> hostSemaphores = Maps.newConcurrentMap();
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger inFlightRequests = new AtomicInteger();
+    private final AtomicLong completedRequests = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+
+    public BatchingWriter(Session session, int maxConcurrentWritesPerHost) {
+        this(session, maxConcurrentWritesPerHost, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    BatchingWriter(Session session, int maxConcurrentWritesPerHost, Ticker ticker) {
+        this.session = session;
+        this.maxConcurrentWritesPerHost = maxConcurrentWritesPerHost;
+        this.ticker = ticker;
+    }
+
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    @Override
+    public long getCompletedRequests() {
+        return completedRequests.get();
+    }
+
+    @Override
+    public long getTotalLatencyMillis() {
+        return NANOSECONDS.toMillis(totalLatencyNanos.get());
+    }
+
+    private List<ResultSetFuture> execute(List<Statement> statements) throws InterruptedException {
+        int remaining = statements.size();
+        queueDepth.addAndGet(remaining);
+        List<ResultSetFuture> futures = Lists.newArrayList();
+        try {
+            for (Statement statement : statements) {
+                Semaphore semaphore = getHostSemaphore(statement);
+                // blocking here provides back pressure to the (grpc) thread that is storing the
+                // data, instead of queueing unbounded requests in the driver
+                semaphore.acquire();
+                queueDepth.decrementAndGet();
+                remaining--;
+                futures.add(executeAsync(statement, semaphore));
+            }
+        } finally {
+            // statements that were never submitted due to interruption or a driver exception
+            queueDepth.addAndGet(-remaining);
+        }
+        return futures;
+    }
+
+    private ResultSetFuture executeAsync(Statement statement, final Semaphore semaphore) {
+        inFlightRequests.incrementAndGet();
+        final long startTick = ticker.read();
+        ResultSetFuture future;
+        try {
+            future = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            inFlightRequests.decrementAndGet();
+            semaphore.release();
+            throw e;
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                totalLatencyNanos.addAndGet(ticker.read() - startTick);
+                completedRequests.incrementAndGet();
+                inFlightRequests.decrementAndGet();
+                semaphore.release();
+            }
+        }, MoreExecutors.directExecutor());
+        return future;
+    }
+
+    private Semaphore getHostSemaphore(Statement statement) {
+        Object host = getReplica(statement);
+        Semaphore semaphore = hostSemaphores.get(host);
+        if (semaphore == null) {
+            semaphore = new Semaphore(maxConcurrentWritesPerHost);
+            Semaphore existing = hostSemaphores.putIfAbsent(host, semaphore);
+            if (existing != null) {
+                semaphore = existing;
+            }
+        }
+        return semaphore;
+    }
+
+    private Object getReplica(Statement statement) {
+        String keyspace = statement.getKeyspace();
+        if (keyspace == null) {
+            keyspace = session.getLoggedKeyspace();
+        }
+        if (keyspace == null) {
+            return UNKNOWN_HOST;
+        }
+        Cluster cluster = session.getCluster();
+        try {
+            Configuration configuration = cluster.getConfiguration();
+            ByteBuffer routingKey = statement.getRoutingKey(
+                    configuration.getProtocolOptions().getProtocolVersion(),
+                    configuration.getCodecRegistry());
+            if (routingKey == null) {
+                return UNKNOWN_HOST;
+            }
+            Set<Host> replicas = cluster.getMetadata().getReplicas(keyspace, routingKey);
+            if (replicas.isEmpty()) {
+                return UNKNOWN_HOST;
+            }
+            return replicas.iterator().next();
+        } catch (RuntimeException e) {
+            logger.debug(e.getMessage(), e);
+            return UNKNOWN_HOST;
+        }
+    }
+
+    public class Batch {
+
+        // keys are the prepared statement (or query string) plus partition key values
+        private final ListMultimap<List<Object>, Statement> statements =
+                ArrayListMultimap.create();
+
+        private Batch() {}
+
+        // partitionKey must be the values of the partition key columns of the table that the
+        // statement writes to, and statement must be the same prepared statement (or query string)
+        // for all statements that are added with the same partition key
+        public void add(Statement statement, Object statementKey, Object... partitionKey) {
+            List<Object> key = Lists.newArrayList();
+            key.add(statementKey);
+            key.addAll(Arrays.asList(partitionKey));
+            statements.put(key, statement);
+        }
+
+        public boolean isEmpty() {
+            return statements.isEmpty();
+        }
+
+        public List<ResultSetFuture> execute() throws InterruptedException {
+            List<Statement> toExecute = Lists.newArrayList();
+            for (List<Object> key : statements.keySet()) {
+                List<Statement> partitionStatements = statements.get(key);
+                if (partitionStatements.size() == 1) {
+                    toExecute.add(partitionStatements.get(0));
+                    continue;
+                }
+                for (List<Statement> chunk : Lists.partition(partitionStatements,
+                        MAX_STATEMENTS_PER_BATCH)) {
+                    if (chunk.size() == 1) {
+                        toExecute.add(chunk.get(0));
+                    } else {
+                        BatchStatement batchStatement =
+                                new BatchStatement(BatchStatement.Type.UNLOGGED);
+                        batchStatement.addAll(chunk);
+                        toExecute.add(batchStatement);
+                    }
+                }
+            }
+            statements.clear();
+            return BatchingWriter.this.execute(toExecute);
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.glowroot.central.util;
 
 import java.io.File;
 import java.io.Serializable;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Queue;
@@ -27,9 +28,12 @@ import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Queues;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import org.infinispan.configuration.cache.CacheMode;
 import org.infinispan.configuration.cache.ConfigurationBuilder;
 import org.infinispan.configuration.global.GlobalConfiguration;
@@ -45,6 +49,7 @@ import org.slf4j.LoggerFactory;
 import org.glowroot.central.util.Cache.CacheLoader;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 public abstract class ClusterManager {
@@ -74,12 +79,20 @@ public abstract class ClusterManager {
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
             String cacheName, CacheLoader<K, V> loader);
 
+    // the least recently used entries are evicted (locally) once the cache exceeds maxEntries
+    public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
+            String cacheName, CacheLoader<K, V> loader, int maxEntries);
+
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
             String mapName);
 
     public abstract <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
             String cacheName);
 
+    // partitions keys across the current members of the cluster (using consistent hashing), so that
+    // work that only needs to be performed once per cluster can be spread across the central nodes
+    public abstract boolean isLocallyOwned(String key);
+
     public abstract void close();
 
     private static class ClusterManagerImpl extends ClusterManager {
@@ -107,6 +120,18 @@ public abstract class ClusterManager {
             return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
+                String cacheName, CacheLoader<K, V> loader, int maxEntries) {
+            ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+            configurationBuilder.clustering()
+                    .cacheMode(CacheMode.INVALIDATION_ASYNC);
+            configurationBuilder.memory()
+                    .size(maxEntries);
+            cacheManager.defineConfiguration(cacheName, configurationBuilder.build());
+            return new CacheImpl<K, V>(cacheManager.getCache(cacheName), loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Serializable> ConcurrentMap<K, V> createReplicatedMap(
                 String mapName) {
@@ -127,6 +152,23 @@ public abstract class ClusterManager {
             return new DistributedExecutionMapImpl<K, V>(cacheManager.getCache(cacheName));
         }
 
+        @Override
+        public boolean isLocallyOwned(String key) {
+            // the member list (view) is ordered the same on all nodes
+            List<Address> members = cacheManager.getMembers();
+            Address localAddress = cacheManager.getAddress();
+            if (members == null || localAddress == null) {
+                // not (yet) connected to the cluster
+                return true;
+            }
+            int localIndex = members.indexOf(localAddress);
+            if (localIndex == -1) {
+                return true;
+            }
+            HashCode hashCode = Hashing.murmur3_128().hashString(key, UTF_8);
+            return Hashing.consistentHash(hashCode, members.size()) == localIndex;
+        }
+
         @Override
         public void close() {
             cacheManager.stop();
@@ -184,6 +226,14 @@ public abstract class ClusterManager {
             return new NonClusterCacheImpl<K, V>(Maps.newConcurrentMap(), loader);
         }
 
+        @Override
+        public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> Cache<K, V> createCache(
+                String cacheName, CacheLoader<K, V> loader, int maxEntries) {
+            ConcurrentMap<K, V> cache =
+                    CacheBuilder.newBuilder().maximumSize(maxEntries).<K, V>build().asMap();
+            return new NonClusterCacheImpl<K, V>(cache, loader);
+        }
+
         @Override
         public <K extends /*@NonNull*/ Serializable, V extends /*@NonNull*/ Object> DistributedExecutionMap<K, V> createDistributedExecutionMap(
                 String cacheName) {
@@ -196,6 +246,11 @@ public abstract class ClusterManager {
             return Maps.newConcurrentMap();
         }
 
+        @Override
+        public boolean isLocallyOwned(String key) {
+            return true;
+        }
+
         @Override
         public void close() {}
     }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2016 the original author or authors.
+ * Copyright 2016-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -15,12 +15,66 @@
  */
 package org.glowroot.central;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 
+import org.glowroot.central.repo.AgentDao;
+import org.glowroot.central.repo.AggregateDao;
+import org.glowroot.central.repo.ConfigRepositoryImpl;
+import org.glowroot.central.repo.GaugeValueDao;
+import org.glowroot.central.repo.HeartbeatDao;
+import org.glowroot.central.repo.SyntheticResultDao;
+import org.glowroot.central.repo.TraceDao;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.repo.AgentRepository.AgentRollup;
+import org.glowroot.common.repo.ImmutableAgentRollup;
+import org.glowroot.common.repo.util.AlertingService;
+import org.glowroot.common.util.Clock;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class RollupServiceTest {
 
+    private AgentDao agentDao;
+    private AggregateDao aggregateDao;
+    private GaugeValueDao gaugeValueDao;
+    private ClusterManager clusterManager;
+    private RollupService rollupService;
+
+    @Before
+    public void beforeEach() {
+        agentDao = mock(AgentDao.class);
+        aggregateDao = mock(AggregateDao.class);
+        gaugeValueDao = mock(GaugeValueDao.class);
+        clusterManager = mock(ClusterManager.class);
+        when(clusterManager.isLocallyOwned(anyString())).thenReturn(true);
+        rollupService = new RollupService(agentDao, aggregateDao, gaugeValueDao,
+                mock(SyntheticResultDao.class), mock(TraceDao.class), mock(HeartbeatDao.class),
+                mock(ConfigRepositoryImpl.class), mock(AlertingService.class),
+                mock(DownstreamServiceImpl.class), clusterManager, 2, Clock.systemClock());
+    }
+
+    @After
+    public void afterEach() throws Exception {
+        rollupService.close();
+    }
+
     @Test
     public void test() {
         assertThat(RollupService.millisUntilNextRollup(15000)).isEqualTo(55000);
@@ -28,4 +82,66 @@ public class RollupServiceTest {
         assertThat(RollupService.millisUntilNextRollup(45000)).isEqualTo(25000);
         assertThat(RollupService.millisUntilNextRollup(60000)).isEqualTo(10000);
     }
+
+    @Test
+    public void shouldRollupAgentsInParallel() throws Exception {
+        // given
+        when(agentDao.readAgentRollups())
+                .thenReturn(ImmutableList.of(agent("a"), agent("b")));
+        // each rollup waits for the other one to start, which only completes if they run in
+        // parallel
+        CountDownLatch latch = new CountDownLatch(2);
+        AtomicInteger parallelCount = new AtomicInteger();
+        doAnswer(invocation -> {
+            latch.countDown();
+            if (latch.await(10, SECONDS)) {
+                parallelCount.incrementAndGet();
+            }
+            return null;
+        }).when(aggregateDao).rollup(anyString(), isNull(), eq(true));
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        assertThat(parallelCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void shouldIsolateErrorsBetweenAgents() throws Exception {
+        // given
+        when(agentDao.readAgentRollups())
+                .thenReturn(ImmutableList.of(agent("a"), agent("b")));
+        doThrow(new RuntimeException("a failed")).when(aggregateDao).rollup("a", null, true);
+        doThrow(new RuntimeException("a failed")).when(gaugeValueDao).rollup("a", null, true);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        verify(aggregateDao).rollup("b", null, true);
+        verify(gaugeValueDao).rollup("b", null, true);
+    }
+
+    @Test
+    public void shouldNotRollupParentGaugesWhenChildGaugesFail() throws Exception {
+        // given
+        AgentRollup parent = ImmutableAgentRollup.of("p", "p", false, null,
+                ImmutableList.<AgentRollup>of(agent("a"), agent("b")));
+        when(agentDao.readAgentRollups()).thenReturn(ImmutableList.of(parent));
+        doThrow(new RuntimeException("a failed")).when(gaugeValueDao).rollup("a", "p", true);
+
+        // when
+        rollupService.runInternal();
+
+        // then
+        verify(gaugeValueDao).rollup("b", "p", true);
+        verify(aggregateDao).rollup("p", null, false);
+        verify(gaugeValueDao, never()).rollup("p", null, false);
+    }
+
+    private static AgentRollup agent(String id) {
+        List<AgentRollup> children = ImmutableList.of();
+        return ImmutableAgentRollup.of(id, id, true, null, children);
+    }
 }
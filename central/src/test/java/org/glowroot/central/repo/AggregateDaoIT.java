@@ -28,6 +28,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import org.glowroot.central.util.BatchingWriter;
 import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.CentralStorageConfig;
@@ -40,11 +41,13 @@ import org.glowroot.common.live.LiveAggregateRepository.OverviewAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
 import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.model.MutableProfile;
 import org.glowroot.common.model.MutableQuery;
 import org.glowroot.common.model.OverallErrorSummaryCollector;
 import org.glowroot.common.model.OverallErrorSummaryCollector.OverallErrorSummary;
 import org.glowroot.common.model.OverallSummaryCollector;
 import org.glowroot.common.model.OverallSummaryCollector.OverallSummary;
+import org.glowroot.common.model.ProfileCollector;
 import org.glowroot.common.model.QueryCollector;
 import org.glowroot.common.model.Result;
 import org.glowroot.common.model.TransactionErrorSummaryCollector;
@@ -54,12 +57,14 @@ import org.glowroot.common.model.TransactionSummaryCollector;
 import org.glowroot.common.model.TransactionSummaryCollector.SummarySortOrder;
 import org.glowroot.common.model.TransactionSummaryCollector.TransactionSummary;
 import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
 import org.glowroot.common.util.Clock;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AdvancedConfig;
 import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldAggregatesByType;
 import org.glowroot.wire.api.model.AggregateOuterClass.OldTransactionAggregate;
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
 import org.glowroot.wire.api.model.Proto.OptionalInt64;
 
@@ -80,6 +85,7 @@ public class AggregateDaoIT {
     private static AgentDao agentDao;
     private static ConfigDao configDao;
     private static AggregateDao aggregateDao;
+    private static AggregateDao truncatingAggregateDao;
 
     @BeforeClass
     public static void setUp() throws Exception {
@@ -108,7 +114,11 @@ public class AggregateDaoIT {
                 new TransactionTypeDao(session, configRepository, clusterManager);
         FullQueryTextDao fullQueryTextDao = new FullQueryTextDao(session, configRepository);
         aggregateDao = new AggregateDao(session, agentDao, transactionTypeDao, fullQueryTextDao,
-                configRepository, Clock.systemClock());
+                configRepository, new BatchingWriter(session, 256), clusterManager, 0,
+                Clock.systemClock());
+        truncatingAggregateDao = new AggregateDao(session, agentDao, transactionTypeDao,
+                fullQueryTextDao, configRepository, new BatchingWriter(session, 256),
+                clusterManager, 1, Clock.systemClock());
     }
 
     @AfterClass
@@ -225,6 +235,10 @@ public class AggregateDaoIT {
         assertThat(query.hasTotalRows()).isTrue();
         assertThat(query.getTotalRows()).isEqualTo(10);
         assertThat(query.getExecutionCount()).isEqualTo(4);
+        assertThat(query.getRepeatedTransactionCount()).isEqualTo(2);
+        assertThat(query.getDurationNanosHistogram()).isNotNull();
+        assertThat(query.getDurationNanosHistogram().getValueAtPercentile(100))
+                .isBetween(1980000L, 2020000L);
 
         // rollup
         aggregateDao.rollup("one", null, true);
@@ -298,6 +312,10 @@ public class AggregateDaoIT {
         assertThat(query.hasTotalRows()).isTrue();
         assertThat(query.getTotalRows()).isEqualTo(10);
         assertThat(query.getExecutionCount()).isEqualTo(4);
+        assertThat(query.getRepeatedTransactionCount()).isEqualTo(2);
+        assertThat(query.getDurationNanosHistogram()).isNotNull();
+        assertThat(query.getDurationNanosHistogram().getValueAtPercentile(100))
+                .isBetween(1980000L, 2020000L);
     }
 
     @Test
@@ -655,6 +673,87 @@ public class AggregateDaoIT {
         assertThat(query.getExecutionCount()).isEqualTo(4);
     }
 
+    @Test
+    public void shouldTruncateBranchesOnProfileRollup() throws Exception {
+
+        agentDao.store("one", null);
+        configDao.store("one", null, AgentConfig.newBuilder()
+                .setAdvancedConfig(DEFAULT_ADVANCED_CONFIG)
+                .build());
+
+        truncatingAggregateDao.truncateAll();
+        List<Aggregate.SharedQueryText> sharedQueryText = ImmutableList
+                .of(Aggregate.SharedQueryText.newBuilder().setFullText("select 1").build());
+        truncatingAggregateDao.store("one", 60000, createDataWithProfile(), sharedQueryText);
+        truncatingAggregateDao.store("one", 120000, createDataWithProfile(), sharedQueryText);
+
+        // check non-rolled up data
+        TransactionQuery query = ImmutableTransactionQuery.builder()
+                .transactionType("tt1")
+                .from(0)
+                .to(300000)
+                .rollupLevel(0)
+                .build();
+        ProfileCollector collector = new ProfileCollector();
+        truncatingAggregateDao.mergeMainThreadProfilesInto("one", query, collector);
+        assertThat(getMethodSampleCounts(collector.getProfile()))
+                .containsExactly("main:202", "hot:200", "cold:2");
+
+        // rollup
+        truncatingAggregateDao.rollup("one", null, true);
+
+        // check rolled-up data after rollup
+        // truncation is not applied below the final rollup level, so it doesn't compound
+        query = ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .rollupLevel(1)
+                .build();
+        collector = new ProfileCollector();
+        truncatingAggregateDao.mergeMainThreadProfilesInto("one", query, collector);
+        assertThat(getMethodSampleCounts(collector.getProfile()))
+                .containsExactly("main:202", "hot:200", "cold:2");
+
+        query = ImmutableTransactionQuery.builder()
+                .copyFrom(query)
+                .rollupLevel(RollupConfig.buildRollupConfigs().size() - 1)
+                .build();
+        collector = new ProfileCollector();
+        truncatingAggregateDao.mergeMainThreadProfilesInto("one", query, collector);
+        // 1% of 202 samples rounds up to 3 samples, so the "cold" branch with 2 samples is pruned,
+        // while its samples remain counted in its parent
+        assertThat(getMethodSampleCounts(collector.getProfile()))
+                .containsExactly("main:202", "hot:200");
+    }
+
+    private static List<String> getMethodSampleCounts(MutableProfile mutableProfile) {
+        Profile profile = mutableProfile.toProto();
+        List<String> methodSampleCounts = Lists.newArrayList();
+        for (Profile.ProfileNode node : profile.getNodeList()) {
+            methodSampleCounts.add(profile.getMethodName(node.getMethodNameIndex()) + ":"
+                    + node.getSampleCount());
+        }
+        return methodSampleCounts;
+    }
+
+    private static List<OldAggregatesByType> createDataWithProfile() {
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 100; i++) {
+            profile.merge(createStackTrace("hot"), Thread.State.RUNNABLE);
+        }
+        profile.merge(createStackTrace("cold"), Thread.State.RUNNABLE);
+        return ImmutableList.of(OldAggregatesByType.newBuilder()
+                .setTransactionType("tt1")
+                .setOverallAggregate(createOverallAggregate().toBuilder()
+                        .setMainThreadProfile(profile.toProto()))
+                .build());
+    }
+
+    private static List<StackTraceElement> createStackTrace(String leafMethodName) {
+        return ImmutableList.of(
+                new StackTraceElement("org.example.Leaf", leafMethodName, "Leaf.java", 1),
+                new StackTraceElement("org.example.Main", "main", "Main.java", 1));
+    }
+
     private static List<OldAggregatesByType> createData() {
         List<OldAggregatesByType> aggregatesByType = Lists.newArrayList();
         aggregatesByType.add(OldAggregatesByType.newBuilder()
@@ -695,7 +794,11 @@ public class AggregateDaoIT {
                                 .setSharedQueryTextIndex(0)
                                 .setTotalDurationNanos(7)
                                 .setTotalRows(OptionalInt64.newBuilder().setValue(5))
-                                .setExecutionCount(2)))
+                                .setExecutionCount(2)
+                                .setRepeatedTransactionCount(1)
+                                .setDurationNanosHistogram(Aggregate.Histogram.newBuilder()
+                                        .addOrderedRawValue(1000000)
+                                        .addOrderedRawValue(2000000))))
                 .build();
     }
 
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.List;
+
+import com.google.common.collect.Lists;
+import com.google.protobuf.ByteString;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.common.live.ImmutablePercentileAggregate;
+import org.glowroot.common.live.ImmutableThroughputAggregate;
+import org.glowroot.common.live.ImmutableTransactionQuery;
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.ThroughputAggregate;
+import org.glowroot.common.live.LiveAggregateRepository.TransactionQuery;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AggregateReadCacheTest {
+
+    private static final long NOW = 24 * 3600000;
+
+    private List<TransactionQuery> directReads;
+    private AggregateReadCache readCache;
+
+    @Before
+    public void beforeEachTest() {
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        Clock clock = mock(Clock.class);
+        when(clock.currentTimeMillis()).thenReturn(NOW);
+        directReads = Lists.newArrayList();
+        readCache = new AggregateReadCache(ClusterManager.create(), configRepository, clock,
+                (agentRollupId, query) -> {
+                    throw new AssertionError();
+                }, this::readLargePercentileAggregates, this::readThroughputAggregates);
+    }
+
+    @Test
+    public void shouldReadSameAggregatesAsDirectRead() throws Exception {
+        // given
+        TransactionQuery query = query(90000, NOW);
+        // when
+        List<ThroughputAggregate> aggregates = readCache.readThroughputAggregates("one", query);
+        // then
+        assertThat(aggregates).isEqualTo(readThroughputAggregates("one", query));
+        assertThat(readCache.getRequestCount()).isEqualTo(46);
+        assertThat(readCache.getHitCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldHitOnSecondRead() throws Exception {
+        // given
+        TransactionQuery query = query(1, NOW);
+        readCache.readThroughputAggregates("one", query);
+        directReads.clear();
+        // when
+        List<ThroughputAggregate> aggregates = readCache.readThroughputAggregates("one", query);
+        // then
+        assertThat(aggregates).hasSize(1440);
+        assertThat(readCache.getHitCount()).isEqualTo(readCache.getRequestCount() / 2);
+        // only the intervals that are not yet finalized are read again
+        assertThat(directReads).hasSize(1);
+        assertThat(directReads.get(0).from()).isEqualTo(NOW - 1800000 + 1);
+    }
+
+    @Test
+    public void shouldNotCacheRecentIntervals() throws Exception {
+        // when
+        readCache.readThroughputAggregates("one", query(NOW - 1800000, NOW));
+        // then
+        assertThat(readCache.getRequestCount()).isEqualTo(0);
+        assertThat(directReads).hasSize(1);
+    }
+
+    @Test
+    public void shouldInvalidateLateWrite() throws Exception {
+        // given
+        TransactionQuery query = query(1, NOW);
+        readCache.readThroughputAggregates("one", query);
+        // when
+        readCache.invalidate("one", "Web", null, 0, 120000);
+        readCache.invalidate("one", "Web", null, 0, NOW - 60000);
+        readCache.readThroughputAggregates("one", query);
+        // then
+        assertThat(readCache.getRequestCount() - readCache.getHitCount())
+                .isEqualTo(readCache.getRequestCount() / 2 + 1);
+    }
+
+    @Test
+    public void shouldNotCacheLargeChunks() throws Exception {
+        // given
+        TransactionQuery query = query(1, NOW);
+        readCache.readPercentileAggregates("one", query);
+        directReads.clear();
+        // when
+        List<PercentileAggregate> aggregates = readCache.readPercentileAggregates("one", query);
+        // then
+        assertThat(aggregates).hasSize(1440);
+        assertThat(readCache.getHitCount()).isEqualTo(0);
+        // every chunk is read directly again
+        assertThat(directReads).hasSize((int) readCache.getRequestCount() / 2 + 1);
+    }
+
+    private List<PercentileAggregate> readLargePercentileAggregates(String agentRollupId,
+            TransactionQuery query) {
+        directReads.add(query);
+        // large enough that a chunk of these exceeds the max chunk size
+        Aggregate.Histogram histogram = Aggregate.Histogram.newBuilder()
+                .setEncodedBytes(ByteString.copyFrom(new byte[AggregateReadCache.MAX_CHUNK_BYTES
+                        / AggregateReadCache.INTERVALS_PER_CHUNK]))
+                .build();
+        List<PercentileAggregate> aggregates = Lists.newArrayList();
+        long captureTime = (long) Math.ceil(query.from() / 60000.0) * 60000;
+        for (; captureTime <= query.to(); captureTime += 60000) {
+            aggregates.add(ImmutablePercentileAggregate.builder()
+                    .captureTime(captureTime)
+                    .totalDurationNanos(1000000)
+                    .transactionCount(1)
+                    .durationNanosHistogram(histogram)
+                    .build());
+        }
+        return aggregates;
+    }
+
+    private List<ThroughputAggregate> readThroughputAggregates(String agentRollupId,
+            TransactionQuery query) {
+        directReads.add(query);
+        List<ThroughputAggregate> aggregates = Lists.newArrayList();
+        long captureTime = (long) Math.ceil(query.from() / 60000.0) * 60000;
+        for (; captureTime <= query.to(); captureTime += 60000) {
+            aggregates.add(ImmutableThroughputAggregate.builder()
+                    .captureTime(captureTime)
+                    .transactionCount(captureTime / 60000)
+                    .build());
+        }
+        return aggregates;
+    }
+
+    private static TransactionQuery query(long from, long to) {
+        return ImmutableTransactionQuery.builder()
+                .transactionType("Web")
+                .from(from)
+                .to(to)
+                .rollupLevel(0)
+                .build();
+    }
+}
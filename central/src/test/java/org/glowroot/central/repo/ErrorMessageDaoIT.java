@@ -0,0 +1,273 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import java.util.UUID;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.glowroot.central.repo.ErrorMessageDao.RolledUpErrorMessages;
+import org.glowroot.central.util.ClusterManager;
+import org.glowroot.central.util.Sessions;
+import org.glowroot.common.config.ImmutableCentralStorageConfig;
+import org.glowroot.common.repo.ConfigRepository;
+import org.glowroot.common.repo.ConfigRepository.RollupConfig;
+import org.glowroot.common.repo.ImmutableErrorMessageCount;
+import org.glowroot.common.repo.ImmutableErrorMessageFilter;
+import org.glowroot.common.repo.ImmutableErrorMessagePoint;
+import org.glowroot.common.repo.ImmutableTraceQuery;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageFilter;
+import org.glowroot.common.repo.TraceRepository.ErrorMessageResult;
+import org.glowroot.common.repo.TraceRepository.TraceQuery;
+import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ErrorMessageDaoIT {
+
+    private static final String AGENT_ID = "xyz";
+    private static final String TRANSACTION_TYPE = "error message test";
+    private static final String TRANSACTION_NAME = "error message test name";
+
+    // the first rollup level above the raw error messages
+    private static final long RESOLUTION_MILLIS = 300000;
+
+    private static Cluster cluster;
+    private static Session session;
+    private static ClusterManager clusterManager;
+    private static Clock clock;
+    private static TraceDao traceDao;
+    private static ErrorMessageDao errorMessageDao;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        SharedSetupRunListener.startCassandra();
+        cluster = Clusters.newCluster();
+        session = cluster.newSession();
+        Sessions.createKeyspaceIfNotExists(session, "glowroot_unit_tests");
+        session.execute("use glowroot_unit_tests");
+
+        clusterManager = ClusterManager.create();
+        ConfigRepository configRepository = mock(ConfigRepository.class);
+        when(configRepository.getStorageConfig())
+                .thenReturn(ImmutableCentralStorageConfig.builder().build());
+        when(configRepository.getRollupConfigs()).thenReturn(RollupConfig.buildRollupConfigs());
+        clock = mock(Clock.class);
+        traceDao = new TraceDao(session, new AgentDao(session, clusterManager),
+                mock(TransactionTypeDao.class), mock(FullQueryTextDao.class),
+                mock(TraceAttributeNameDao.class), configRepository, clock);
+        // shares the tables with the error message dao that is internal to the trace dao, and is
+        // only used to check whether the reads are served from rolled up or from pending rows
+        errorMessageDao = new ErrorMessageDao(session, configRepository, clock);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        clusterManager.close();
+        session.close();
+        cluster.close();
+        SharedSetupRunListener.stopCassandra();
+    }
+
+    @Before
+    public void beforeEachTest() throws Exception {
+        errorMessageDao.truncateAll();
+        session.execute("truncate trace_tt_error_message");
+        session.execute("truncate trace_tn_error_message");
+        // one hour, which is well past the error trace capture times used below
+        when(clock.currentTimeMillis()).thenReturn(3600000L);
+    }
+
+    @Test
+    public void shouldReadFromRolledUpRows() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace(600000, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(600001, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(899999, "B"));
+        traceDao.rollupErrorMessages(AGENT_ID);
+
+        // when
+        RolledUpErrorMessages rolledUp =
+                errorMessageDao.readRolledUp(AGENT_ID, createQuery(300000, 900000), 1, 300000,
+                        900000);
+        ErrorMessageResult result = readErrorMessages(createQuery(300000, 900000));
+        ErrorMessageResult transactionResult =
+                readErrorMessages(createTransactionQuery(300000, 900000));
+
+        // then
+        assertThat(rolledUp.pendingCaptureTimes()).isEmpty();
+        assertThat(rolledUp.counts()).containsOnly(
+                ImmutableErrorMessageIntervalCount.of(600000, "A", 1),
+                ImmutableErrorMessageIntervalCount.of(900000, "A", 1),
+                ImmutableErrorMessageIntervalCount.of(900000, "B", 1));
+        assertResult(result);
+        assertResult(transactionResult);
+    }
+
+    @Test
+    public void shouldReadFromPendingRows() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace(600000, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(600001, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(899999, "B"));
+        // the intervals are too recent to be rolled up
+        when(clock.currentTimeMillis()).thenReturn(600000L);
+        traceDao.rollupErrorMessages(AGENT_ID);
+
+        // when
+        RolledUpErrorMessages rolledUp =
+                errorMessageDao.readRolledUp(AGENT_ID, createQuery(300000, 900000), 1, 300000,
+                        900000);
+        ErrorMessageResult result = readErrorMessages(createQuery(300000, 900000));
+        ErrorMessageResult transactionResult =
+                readErrorMessages(createTransactionQuery(300000, 900000));
+
+        // then
+        assertThat(rolledUp.pendingCaptureTimes()).containsOnly(600000L, 900000L);
+        assertThat(rolledUp.counts()).isEmpty();
+        assertResult(result);
+        assertResult(transactionResult);
+    }
+
+    @Test
+    public void shouldReadSpanningRolledUpAndPendingRows() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace(600000, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(899999, "A"));
+        traceDao.rollupErrorMessages(AGENT_ID);
+        // late arriving error trace for an interval that has already been rolled up
+        traceDao.store(AGENT_ID, createErrorTrace(300001, "B"));
+        // error trace for an interval that has not been rolled up yet
+        traceDao.store(AGENT_ID, createErrorTrace(1200000, "B"));
+
+        // when
+        RolledUpErrorMessages rolledUpLate =
+                errorMessageDao.readRolledUp(AGENT_ID, createQuery(300000, 600000), 1, 300000,
+                        600000);
+        RolledUpErrorMessages rolledUp =
+                errorMessageDao.readRolledUp(AGENT_ID, createQuery(450000, 1200000), 1, 600000,
+                        1200000);
+        // the query starts in the middle of an interval, so the interval ending at 600000 is
+        // read from the raw rows, and the error trace captured exactly at 600000 must only be
+        // counted in that interval and not in the interval that starts there
+        ErrorMessageResult result = readErrorMessages(createQuery(450000, 1200000));
+        ErrorMessageResult lateResult = readErrorMessages(createQuery(300000, 600000));
+
+        // then
+        assertThat(rolledUpLate.pendingCaptureTimes()).containsOnly(600000L);
+        assertThat(rolledUpLate.counts()).isEmpty();
+        assertThat(rolledUp.pendingCaptureTimes()).containsOnly(1200000L);
+        assertThat(rolledUp.counts())
+                .containsOnly(ImmutableErrorMessageIntervalCount.of(900000, "A", 1));
+
+        assertThat(result.points()).containsExactly(
+                ImmutableErrorMessagePoint.of(600000, 1),
+                ImmutableErrorMessagePoint.of(900000, 1),
+                ImmutableErrorMessagePoint.of(1200000, 1));
+        assertThat(result.counts().records()).containsExactly(
+                ImmutableErrorMessageCount.of("A", 2),
+                ImmutableErrorMessageCount.of("B", 1));
+
+        assertThat(lateResult.points())
+                .containsExactly(ImmutableErrorMessagePoint.of(600000, 2));
+        assertThat(lateResult.counts().records()).containsOnly(
+                ImmutableErrorMessageCount.of("A", 1),
+                ImmutableErrorMessageCount.of("B", 1));
+    }
+
+    @Test
+    public void shouldReadFromRolledUpRowsWithFilter() throws Exception {
+        // given
+        traceDao.store(AGENT_ID, createErrorTrace(600000, "A"));
+        traceDao.store(AGENT_ID, createErrorTrace(899999, "B"));
+        traceDao.rollupErrorMessages(AGENT_ID);
+        ErrorMessageFilter filter = ImmutableErrorMessageFilter.builder()
+                .addExcludes("b")
+                .build();
+
+        // when
+        ErrorMessageResult result = traceDao.readErrorMessages(AGENT_ID,
+                createQuery(300000, 900000), filter, RESOLUTION_MILLIS, 10);
+
+        // then
+        assertThat(result.points()).containsExactly(ImmutableErrorMessagePoint.of(600000, 1));
+        assertThat(result.counts().records())
+                .containsExactly(ImmutableErrorMessageCount.of("A", 1));
+    }
+
+    private static void assertResult(ErrorMessageResult result) {
+        assertThat(result.points()).containsExactly(
+                ImmutableErrorMessagePoint.of(600000, 1),
+                ImmutableErrorMessagePoint.of(900000, 2));
+        assertThat(result.counts().records()).containsExactly(
+                ImmutableErrorMessageCount.of("A", 2),
+                ImmutableErrorMessageCount.of("B", 1));
+        assertThat(result.counts().moreAvailable()).isFalse();
+    }
+
+    private static ErrorMessageResult readErrorMessages(TraceQuery query) throws Exception {
+        return traceDao.readErrorMessages(AGENT_ID, query,
+                ImmutableErrorMessageFilter.builder().build(), RESOLUTION_MILLIS, 10);
+    }
+
+    private static TraceQuery createQuery(long from, long to) {
+        return ImmutableTraceQuery.builder()
+                .transactionType(TRANSACTION_TYPE)
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    private static TraceQuery createTransactionQuery(long from, long to) {
+        return ImmutableTraceQuery.builder()
+                .transactionType(TRANSACTION_TYPE)
+                .transactionName(TRANSACTION_NAME)
+                .from(from)
+                .to(to)
+                .build();
+    }
+
+    private static Trace createErrorTrace(long captureTime, String errorMessage) {
+        Trace.Header header = Trace.Header.newBuilder()
+                .setStartTime(captureTime - 10)
+                .setCaptureTime(captureTime)
+                .setDurationNanos(MILLISECONDS.toNanos(10))
+                .setTransactionType(TRANSACTION_TYPE)
+                .setTransactionName(TRANSACTION_NAME)
+                .setHeadline("test headline")
+                .setError(Trace.Error.newBuilder()
+                        .setMessage(errorMessage))
+                .setMainThreadRootTimer(Trace.Timer.newBuilder()
+                        .setName("the top")
+                        .setExtended(false)
+                        .setTotalNanos(123)
+                        .setCount(1))
+                .build();
+        return Trace.newBuilder()
+                .setId(UUID.randomUUID().toString())
+                .setHeader(header)
+                .build();
+    }
+}
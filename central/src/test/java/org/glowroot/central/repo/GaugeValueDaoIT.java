@@ -106,6 +106,9 @@ public class GaugeValueDaoIT {
         assertThat(gaugeValues).hasSize(1);
         assertThat(gaugeValues.get(0).getValue()).isEqualTo(500);
         assertThat(gaugeValues.get(0).getWeight()).isEqualTo(2);
+        assertThat(gaugeValues.get(0).getMin().getValue()).isEqualTo(500);
+        assertThat(gaugeValues.get(0).getMax().getValue()).isEqualTo(500);
+        assertThat(gaugeValues.get(0).hasSketch()).isTrue();
     }
 
     @Test
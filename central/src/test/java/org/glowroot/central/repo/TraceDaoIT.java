@@ -17,6 +17,7 @@ package org.glowroot.central.repo;
 
 import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.Session;
+import com.google.common.collect.ImmutableList;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -25,6 +26,7 @@ import org.glowroot.central.util.ClusterManager;
 import org.glowroot.central.util.Sessions;
 import org.glowroot.common.config.ImmutableCentralStorageConfig;
 import org.glowroot.common.live.ImmutableTracePointFilter;
+import org.glowroot.common.live.LiveTraceRepository.Entries;
 import org.glowroot.common.live.LiveTraceRepository.TracePoint;
 import org.glowroot.common.live.LiveTraceRepository.TracePointFilter;
 import org.glowroot.common.live.StringComparator;
@@ -33,6 +35,7 @@ import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.ImmutableTraceQuery;
 import org.glowroot.common.repo.TraceRepository.TraceQuery;
 import org.glowroot.common.util.Clock;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.TraceStreamIndexedEntry;
 import org.glowroot.wire.api.model.TraceOuterClass.Trace;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -216,4 +219,117 @@ public class TraceDaoIT {
         // then
         assertThat(queryResult.records()).isEmpty();
     }
+
+    @Test
+    public void shouldAppendIncrementalTrace() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        String traceId = trace.getId();
+        long captureTime = trace.getHeader().getCaptureTime();
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 0,
+                ImmutableList.of(Trace.SharedQueryText.newBuilder()
+                        .setFullText("select 1")
+                        .build()),
+                ImmutableList.of(createIndexedEntry(0, "a", false),
+                        createIndexedEntry(1, "b", true)));
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, false, trace.getHeader(), null, null);
+
+        // when
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 1,
+                ImmutableList.of(Trace.SharedQueryText.newBuilder()
+                        .setFullText("select 2")
+                        .build()),
+                ImmutableList.of(createIndexedEntry(1, "b", false),
+                        createIndexedEntry(2, "c", false)));
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, true, trace.getHeader(), null, null);
+
+        // then
+        Entries entries = traceDao.readEntries(AGENT_ROLLUP, AGENT_ID, traceId);
+        assertThat(entries.entries()).hasSize(3);
+        assertThat(entries.entries().get(0).getMessage()).isEqualTo("a");
+        assertThat(entries.entries().get(1).getMessage()).isEqualTo("b");
+        assertThat(entries.entries().get(1).getActive()).isFalse();
+        assertThat(entries.entries().get(2).getMessage()).isEqualTo("c");
+        assertThat(entries.sharedQueryTexts()).hasSize(2);
+        assertThat(entries.sharedQueryTexts().get(1).getFullText()).isEqualTo("select 2");
+    }
+
+    @Test
+    public void shouldHaveAllEntriesInCompletedIncrementalTrace() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        String traceId = trace.getId();
+        long captureTime = trace.getHeader().getCaptureTime();
+        Trace.Header partialHeader = trace.getHeader().toBuilder()
+                .setPartial(true)
+                .build();
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 0,
+                ImmutableList.<Trace.SharedQueryText>of(),
+                ImmutableList.of(createIndexedEntry(0, "a", true),
+                        createIndexedEntry(1, "b", true)));
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, false, partialHeader, null, null);
+        // stored, but not acknowledged to the agent, so the agent re-sends these entries on the
+        // next send along with the entries added since
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 0,
+                ImmutableList.<Trace.SharedQueryText>of(),
+                ImmutableList.of(createIndexedEntry(0, "a", true),
+                        createIndexedEntry(1, "b", false),
+                        createIndexedEntry(2, "c", true)));
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 0,
+                ImmutableList.<Trace.SharedQueryText>of(),
+                ImmutableList.of(createIndexedEntry(0, "a", true),
+                        createIndexedEntry(1, "b", false),
+                        createIndexedEntry(2, "c", false),
+                        createIndexedEntry(3, "d", true)));
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, true, partialHeader, null, null);
+
+        // when
+        traceDao.storeIncrementalChunk(AGENT_ID, traceId, captureTime, 0,
+                ImmutableList.<Trace.SharedQueryText>of(),
+                ImmutableList.of(createIndexedEntry(0, "a", false),
+                        createIndexedEntry(3, "d", false),
+                        createIndexedEntry(4, "e", false)));
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, true, trace.getHeader(), null, null);
+
+        // then
+        assertThat(traceDao.readHeaderPlus(AGENT_ROLLUP, AGENT_ID, traceId).header().getPartial())
+                .isFalse();
+        Entries entries = traceDao.readEntries(AGENT_ROLLUP, AGENT_ID, traceId);
+        assertThat(entries.entries()).hasSize(5);
+        for (int i = 0; i < 5; i++) {
+            assertThat(entries.entries().get(i).getMessage())
+                    .isEqualTo(String.valueOf((char) ('a' + i)));
+            assertThat(entries.entries().get(i).getActive()).isFalse();
+        }
+    }
+
+    @Test
+    public void shouldNotRevertCompletedIncrementalTraceToPartial() throws Exception {
+        // given
+        Trace trace = TraceTestData.createTrace();
+        String traceId = trace.getId();
+        Trace.Header completedHeader = trace.getHeader().toBuilder()
+                .setPartial(false)
+                .build();
+        traceDao.storeIncrementalHeader(AGENT_ID, traceId, false, completedHeader, null, null);
+
+        // when
+        boolean stored = traceDao.storeIncrementalHeader(AGENT_ID, traceId, true,
+                completedHeader.toBuilder().setPartial(true).build(), null, null);
+
+        // then
+        assertThat(stored).isFalse();
+        assertThat(traceDao.readHeaderPlus(AGENT_ROLLUP, AGENT_ID, traceId).header().getPartial())
+                .isFalse();
+    }
+
+    private static TraceStreamIndexedEntry createIndexedEntry(int index, String message,
+            boolean active) {
+        return TraceStreamIndexedEntry.newBuilder()
+                .setIndex(index)
+                .setEntry(Trace.Entry.newBuilder()
+                        .setMessage(message)
+                        .setActive(active))
+                .build();
+    }
 }
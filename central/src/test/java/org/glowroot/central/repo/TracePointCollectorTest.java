@@ -0,0 +1,106 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.repo;
+
+import org.junit.Test;
+
+import org.glowroot.common.live.ImmutableTracePoint;
+import org.glowroot.common.live.LiveTraceRepository.TracePoint;
+import org.glowroot.common.model.Result;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracePointCollectorTest {
+
+    @Test
+    public void shouldRetainSlowestPoints() {
+        // given
+        TracePointCollector collector = new TracePointCollector(3);
+        // when
+        collector.add(point("a", 1, 50));
+        collector.add(point("b", 2, 10));
+        collector.add(point("c", 3, 40));
+        collector.add(point("d", 4, 30));
+        collector.add(point("e", 5, 20));
+        Result<TracePoint> result = collector.getResult();
+        // then
+        assertThat(result.moreAvailable()).isTrue();
+        assertThat(result.records()).extracting("traceId").containsExactly("a", "c", "d");
+    }
+
+    @Test
+    public void shouldNotReportMoreAvailableWhenUnderLimit() {
+        // given
+        TracePointCollector collector = new TracePointCollector(3);
+        // when
+        collector.add(point("b", 2, 10));
+        collector.add(point("a", 1, 50));
+        Result<TracePoint> result = collector.getResult();
+        // then
+        assertThat(collector.isFull()).isFalse();
+        assertThat(result.moreAvailable()).isFalse();
+        assertThat(result.records()).extracting("traceId").containsExactly("a", "b");
+    }
+
+    @Test
+    public void shouldKeepMostRecentCaptureOfDuplicate() {
+        // given
+        TracePointCollector collector = new TracePointCollector(2);
+        // when
+        collector.add(point("a", 5, 50));
+        collector.add(point("b", 2, 10));
+        collector.add(point("a", 1, 20));
+        Result<TracePoint> result = collector.getResult();
+        // then
+        assertThat(result.moreAvailable()).isFalse();
+        assertThat(result.records()).extracting("traceId").containsExactly("b", "a");
+        assertThat(result.records().get(1).captureTime()).isEqualTo(5);
+    }
+
+    @Test
+    public void shouldBucketDurations() {
+        assertThat(TraceDao.getDurationBucket(0)).isEqualTo(0);
+        assertThat(TraceDao.getDurationBucket(1)).isEqualTo(1);
+        assertThat(TraceDao.getDurationBucket(2)).isEqualTo(5);
+        assertThat(TraceDao.getDurationBucket(3)).isEqualTo(7);
+        assertThat(TraceDao.getDurationBucket(4)).isEqualTo(9);
+        assertThat(TraceDao.getDurationBucket(7)).isEqualTo(12);
+        assertThat(TraceDao.getDurationBucket(8)).isEqualTo(13);
+        assertThat(TraceDao.getDurationBucket(Long.MAX_VALUE)).isEqualTo(252);
+    }
+
+    @Test
+    public void shouldSplitPowerOfTwoIntoFourBuckets() {
+        // 1 second to just under 2 seconds
+        long from = 1L << 30;
+        assertThat(TraceDao.getDurationBucket(from)).isEqualTo(121);
+        assertThat(TraceDao.getDurationBucket(from + from / 4)).isEqualTo(122);
+        assertThat(TraceDao.getDurationBucket(from + from / 2)).isEqualTo(123);
+        assertThat(TraceDao.getDurationBucket(2 * from - 1)).isEqualTo(124);
+        assertThat(TraceDao.getDurationBucket(2 * from)).isEqualTo(125);
+    }
+
+    private static TracePoint point(String traceId, long captureTime, long durationNanos) {
+        return ImmutableTracePoint.builder()
+                .agentId("xyz")
+                .traceId(traceId)
+                .captureTime(captureTime)
+                .durationNanos(durationNanos)
+                .partial(false)
+                .error(false)
+                .build();
+    }
+}
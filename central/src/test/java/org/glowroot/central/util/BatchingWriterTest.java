@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.central.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import org.glowroot.central.util.BatchingWriter.Batch;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchingWriterTest {
+
+    private Session session;
+    private List<Runnable> pendingListeners;
+    private Ticker ticker;
+
+    @Before
+    public void beforeEachTest() {
+        session = mock(Session.class);
+        pendingListeners = new CopyOnWriteArrayList<Runnable>();
+        when(session.executeAsync(any(Statement.class))).thenAnswer(new Answer<ResultSetFuture>() {
+            @Override
+            public ResultSetFuture answer(InvocationOnMock invocation) {
+                ResultSetFuture future = mock(ResultSetFuture.class);
+                doAnswer(new Answer<Void>() {
+                    @Override
+                    public Void answer(InvocationOnMock invocation) {
+                        pendingListeners.add((Runnable) invocation.getArguments()[0]);
+                        return null;
+                    }
+                }).when(future).addListener(any(Runnable.class), any(Executor.class));
+                return future;
+            }
+        });
+        ticker = mock(Ticker.class);
+    }
+
+    @Test
+    public void shouldGroupStatementsByPartition() throws Exception {
+        // given
+        BatchingWriter batchingWriter = new BatchingWriter(session, 100, ticker);
+        Batch batch = batchingWriter.newBatch();
+        for (int i = 0; i < 3; i++) {
+            batch.add(new SimpleStatement("insert a" + i), "a", "agent1", "Web");
+        }
+        batch.add(new SimpleStatement("insert b"), "a", "agent2", "Web");
+        batch.add(new SimpleStatement("insert c"), "c", "agent1", "Web");
+
+        // when
+        List<ResultSetFuture> futures = batch.execute();
+
+        // then
+        assertThat(futures).hasSize(3);
+        assertThat(batch.isEmpty()).isTrue();
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(3)).executeAsync(captor.capture());
+        int batchCount = 0;
+        for (Statement statement : captor.getAllValues()) {
+            if (statement instanceof BatchStatement) {
+                batchCount++;
+                assertThat(((BatchStatement) statement).size()).isEqualTo(3);
+            }
+        }
+        assertThat(batchCount).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldSplitLargePartitions() throws Exception {
+        // given
+        BatchingWriter batchingWriter = new BatchingWriter(session, 100, ticker);
+        Batch batch = batchingWriter.newBatch();
+        for (int i = 0; i < BatchingWriter.MAX_STATEMENTS_PER_BATCH * 2 + 1; i++) {
+            batch.add(new SimpleStatement("insert " + i), "a", "agent1");
+        }
+
+        // when
+        batch.execute();
+
+        // then
+        ArgumentCaptor<Statement> captor = ArgumentCaptor.forClass(Statement.class);
+        verify(session, times(3)).executeAsync(captor.capture());
+        List<Statement> statements = captor.getAllValues();
+        assertThat(((BatchStatement) statements.get(0)).size())
+                .isEqualTo(BatchingWriter.MAX_STATEMENTS_PER_BATCH);
+        assertThat(((BatchStatement) statements.get(1)).size())
+                .isEqualTo(BatchingWriter.MAX_STATEMENTS_PER_BATCH);
+        assertThat(statements.get(2)).isInstanceOf(SimpleStatement.class);
+    }
+
+    @Test
+    public void shouldTrackInFlightRequests() throws Exception {
+        // given
+        when(ticker.read()).thenReturn(0L, 5000000L, 0L, 7000000L);
+        BatchingWriter batchingWriter = new BatchingWriter(session, 100, ticker);
+        Batch batch = batchingWriter.newBatch();
+        batch.add(new SimpleStatement("insert a"), "a", "agent1");
+        batch.add(new SimpleStatement("insert b"), "b", "agent1");
+
+        // when
+        batch.execute();
+
+        // then
+        assertThat(batchingWriter.getQueueDepth()).isEqualTo(0);
+        assertThat(batchingWriter.getInFlightRequests()).isEqualTo(2);
+        assertThat(batchingWriter.getCompletedRequests()).isEqualTo(0);
+        for (Runnable listener : pendingListeners) {
+            listener.run();
+        }
+        assertThat(batchingWriter.getInFlightRequests()).isEqualTo(0);
+        assertThat(batchingWriter.getCompletedRequests()).isEqualTo(2);
+        assertThat(batchingWriter.getTotalLatencyMillis()).isEqualTo(12);
+    }
+
+    @Test
+    public void shouldReleaseQueueDepthWhenExecuteFails() throws Exception {
+        // given
+        when(session.executeAsync(any(Statement.class)))
+                .thenThrow(new IllegalStateException("Session closed"));
+        BatchingWriter batchingWriter = new BatchingWriter(session, 100, ticker);
+        Batch batch = batchingWriter.newBatch();
+        batch.add(new SimpleStatement("insert a"), "a", "agent1");
+        batch.add(new SimpleStatement("insert b"), "b", "agent1");
+        batch.add(new SimpleStatement("insert c"), "c", "agent1");
+
+        // when
+        IllegalStateException exception = null;
+        try {
+            batch.execute();
+        } catch (IllegalStateException e) {
+            exception = e;
+        }
+
+        // then
+        assertThat(exception).isNotNull();
+        assertThat(batchingWriter.getQueueDepth()).isEqualTo(0);
+        assertThat(batchingWriter.getInFlightRequests()).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldBlockWhenHostIsSaturated() throws Exception {
+        // given
+        BatchingWriter batchingWriter = new BatchingWriter(session, 1, ticker);
+        final Batch batch = batchingWriter.newBatch();
+        batch.add(new SimpleStatement("insert a"), "a", "agent1");
+        batch.add(new SimpleStatement("insert b"), "b", "agent1");
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    batch.execute();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        // when
+        thread.start();
+
+        // then
+        while (batchingWriter.getInFlightRequests() == 0) {
+            Thread.sleep(1);
+        }
+        // second statement should be waiting on the first
+        Thread.sleep(50);
+        assertThat(batchingWriter.getInFlightRequests()).isEqualTo(1);
+        assertThat(batchingWriter.getQueueDepth()).isEqualTo(1);
+        pendingListeners.get(0).run();
+        thread.join();
+        assertThat(batchingWriter.getQueueDepth()).isEqualTo(0);
+        assertThat(batchingWriter.getInFlightRequests()).isEqualTo(1);
+    }
+}
@@ -100,9 +100,13 @@ public interface LiveTraceRepository {
             return matchesUsingStringComparator(user, user(), userComparator());
         }
 
+        public boolean hasAttributeFilter() {
+            return !Strings.isNullOrEmpty(attributeName()) || (attributeValueComparator() != null
+                    && !Strings.isNullOrEmpty(attributeValue()));
+        }
+
         public boolean matchesAttributes(Map<String, ? extends Collection<String>> attributes) {
-            if (Strings.isNullOrEmpty(attributeName()) && (attributeValueComparator() == null
-                    || Strings.isNullOrEmpty(attributeValue()))) {
+            if (!hasAttributeFilter()) {
                 // no custom attribute filter
                 return true;
             }
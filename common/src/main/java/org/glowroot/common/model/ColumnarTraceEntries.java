@@ -0,0 +1,306 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+// storage format for trace entries
+//
+// traces with many entries are highly repetitive (e.g. tens of thousands of jdbc entries sharing a
+// handful of query texts at a handful of depths, with increasing start offsets), so instead of one
+// protobuf message per entry, the entries are split into pages, and within each page each field is
+// stored as its own column: depths, start offsets and durations are delta encoded, messages and
+// query prefixes/suffixes are dictionary encoded, and then each page is compressed
+public class ColumnarTraceEntries {
+
+    private static final int FORMAT_VERSION = 1;
+
+    public static final int PAGE_SIZE = 4096;
+
+    private static final int ACTIVE = 1;
+    private static final int QUERY = 1 << 1;
+    private static final int DETAIL = 1 << 2;
+    private static final int LOCATION = 1 << 3;
+    private static final int ERROR = 1 << 4;
+
+    private ColumnarTraceEntries() {}
+
+    public static byte[] encode(List<Trace.Entry> entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+        out.writeUInt32NoTag(FORMAT_VERSION);
+        out.writeUInt32NoTag(entries.size());
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int from = 0; from < entries.size(); from += PAGE_SIZE) {
+                List<Trace.Entry> pageEntries =
+                        entries.subList(from, Math.min(from + PAGE_SIZE, entries.size()));
+                byte[] page = encodePage(pageEntries);
+                out.writeUInt32NoTag(pageEntries.size());
+                out.writeUInt32NoTag(page.length);
+                out.writeByteArrayNoTag(compress(deflater, page));
+            }
+        } finally {
+            deflater.end();
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    public static List<Trace.Entry> decode(byte[] bytes) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(bytes);
+        in.setSizeLimit(Integer.MAX_VALUE);
+        int formatVersion = in.readUInt32();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unexpected trace entries format version: " + formatVersion);
+        }
+        int entryCount = in.readUInt32();
+        List<Trace.Entry> entries = Lists.newArrayListWithCapacity(entryCount);
+        Inflater inflater = new Inflater();
+        try {
+            while (entries.size() < entryCount) {
+                int pageEntryCount = in.readUInt32();
+                if (pageEntryCount == 0) {
+                    throw new IOException("Trace entries are truncated");
+                }
+                int uncompressedLength = in.readUInt32();
+                byte[] page = decompress(inflater, in.readByteArray(), uncompressedLength);
+                decodePage(page, pageEntryCount, entries);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return entries;
+    }
+
+    private static byte[] encodePage(List<Trace.Entry> entries) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        CodedOutputStream out = CodedOutputStream.newInstance(baos);
+        for (Trace.Entry entry : entries) {
+            out.writeRawByte(getFlags(entry));
+        }
+        int prevDepth = 0;
+        for (Trace.Entry entry : entries) {
+            out.writeSInt32NoTag(entry.getDepth() - prevDepth);
+            prevDepth = entry.getDepth();
+        }
+        long prevStartOffsetNanos = 0;
+        for (Trace.Entry entry : entries) {
+            out.writeSInt64NoTag(entry.getStartOffsetNanos() - prevStartOffsetNanos);
+            prevStartOffsetNanos = entry.getStartOffsetNanos();
+        }
+        long prevDurationNanos = 0;
+        for (Trace.Entry entry : entries) {
+            out.writeSInt64NoTag(entry.getDurationNanos() - prevDurationNanos);
+            prevDurationNanos = entry.getDurationNanos();
+        }
+        // the dictionary needs to be written before the indexes into it, so the indexes are
+        // written to a separate buffer first
+        Dictionary dictionary = new Dictionary();
+        ByteArrayOutputStream messageBaos = new ByteArrayOutputStream();
+        CodedOutputStream messageOut = CodedOutputStream.newInstance(messageBaos);
+        for (Trace.Entry entry : entries) {
+            if (entry.hasQueryEntryMessage()) {
+                Trace.QueryEntryMessage queryEntryMessage = entry.getQueryEntryMessage();
+                messageOut.writeUInt32NoTag(queryEntryMessage.getSharedQueryTextIndex());
+                messageOut.writeUInt32NoTag(dictionary.getIndex(queryEntryMessage.getPrefix()));
+                messageOut.writeUInt32NoTag(dictionary.getIndex(queryEntryMessage.getSuffix()));
+            } else {
+                messageOut.writeUInt32NoTag(dictionary.getIndex(entry.getMessage()));
+            }
+        }
+        messageOut.flush();
+        out.writeUInt32NoTag(dictionary.strings.size());
+        for (String string : dictionary.strings) {
+            out.writeStringNoTag(string);
+        }
+        out.writeRawBytes(messageBaos.toByteArray());
+        // the remaining fields are only present on some entries, and are kept as protobuf
+        for (Trace.Entry entry : entries) {
+            if (entry.getDetailEntryCount() > 0) {
+                out.writeUInt32NoTag(entry.getDetailEntryCount());
+                for (Trace.DetailEntry detailEntry : entry.getDetailEntryList()) {
+                    out.writeMessageNoTag(detailEntry);
+                }
+            }
+        }
+        for (Trace.Entry entry : entries) {
+            if (entry.getLocationStackTraceElementCount() > 0) {
+                out.writeUInt32NoTag(entry.getLocationStackTraceElementCount());
+                for (Proto.StackTraceElement element : entry
+                        .getLocationStackTraceElementList()) {
+                    out.writeMessageNoTag(element);
+                }
+            }
+        }
+        for (Trace.Entry entry : entries) {
+            if (entry.hasError()) {
+                out.writeMessageNoTag(entry.getError());
+            }
+        }
+        out.flush();
+        return baos.toByteArray();
+    }
+
+    private static void decodePage(byte[] page, int entryCount, List<Trace.Entry> entries)
+            throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(page);
+        in.setSizeLimit(Integer.MAX_VALUE);
+        int[] flags = new int[entryCount];
+        for (int i = 0; i < entryCount; i++) {
+            flags[i] = in.readRawByte();
+        }
+        Trace.Entry.Builder[] builders = new Trace.Entry.Builder[entryCount];
+        int depth = 0;
+        for (int i = 0; i < entryCount; i++) {
+            depth += in.readSInt32();
+            builders[i] = Trace.Entry.newBuilder()
+                    .setDepth(depth)
+                    .setActive((flags[i] & ACTIVE) != 0);
+        }
+        long startOffsetNanos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            startOffsetNanos += in.readSInt64();
+            builders[i].setStartOffsetNanos(startOffsetNanos);
+        }
+        long durationNanos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            durationNanos += in.readSInt64();
+            builders[i].setDurationNanos(durationNanos);
+        }
+        String[] dictionary = new String[in.readUInt32()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = in.readStringRequireUtf8();
+        }
+        for (int i = 0; i < entryCount; i++) {
+            if ((flags[i] & QUERY) != 0) {
+                builders[i].setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                        .setSharedQueryTextIndex(in.readUInt32())
+                        .setPrefix(dictionary[in.readUInt32()])
+                        .setSuffix(dictionary[in.readUInt32()]));
+            } else {
+                builders[i].setMessage(dictionary[in.readUInt32()]);
+            }
+        }
+        ExtensionRegistryLite extensionRegistry = ExtensionRegistryLite.getEmptyRegistry();
+        for (int i = 0; i < entryCount; i++) {
+            if ((flags[i] & DETAIL) != 0) {
+                int count = in.readUInt32();
+                for (int j = 0; j < count; j++) {
+                    builders[i].addDetailEntry(
+                            in.readMessage(Trace.DetailEntry.parser(), extensionRegistry));
+                }
+            }
+        }
+        for (int i = 0; i < entryCount; i++) {
+            if ((flags[i] & LOCATION) != 0) {
+                int count = in.readUInt32();
+                for (int j = 0; j < count; j++) {
+                    builders[i].addLocationStackTraceElement(
+                            in.readMessage(Proto.StackTraceElement.parser(), extensionRegistry));
+                }
+            }
+        }
+        for (int i = 0; i < entryCount; i++) {
+            if ((flags[i] & ERROR) != 0) {
+                builders[i].setError(in.readMessage(Trace.Error.parser(), extensionRegistry));
+            }
+            entries.add(builders[i].build());
+        }
+    }
+
+    private static byte getFlags(Trace.Entry entry) {
+        int flags = 0;
+        if (entry.getActive()) {
+            flags |= ACTIVE;
+        }
+        if (entry.hasQueryEntryMessage()) {
+            flags |= QUERY;
+        }
+        if (entry.getDetailEntryCount() > 0) {
+            flags |= DETAIL;
+        }
+        if (entry.getLocationStackTraceElementCount() > 0) {
+            flags |= LOCATION;
+        }
+        if (entry.hasError()) {
+            flags |= ERROR;
+        }
+        return (byte) flags;
+    }
+
+    private static byte[] compress(Deflater deflater, byte[] bytes) {
+        deflater.reset();
+        deflater.setInput(bytes);
+        deflater.finish();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+            int count = deflater.deflate(buffer);
+            baos.write(buffer, 0, count);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] decompress(Inflater inflater, byte[] bytes, int uncompressedLength)
+            throws DataFormatException {
+        inflater.reset();
+        inflater.setInput(bytes);
+        byte[] uncompressed = new byte[uncompressedLength];
+        int length = 0;
+        while (length < uncompressedLength) {
+            int count = inflater.inflate(uncompressed, length, uncompressedLength - length);
+            if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                throw new DataFormatException("Trace entries page is truncated");
+            }
+            length += count;
+        }
+        return uncompressed;
+    }
+
+    private static class Dictionary {
+
+        private final Map<String, Integer> indexes = Maps.newHashMap();
+        private final List<String> strings = Lists.newArrayList();
+
+        private int getIndex(String string) {
+            Integer index = indexes.get(string);
+            if (index == null) {
+                index = strings.size();
+                indexes.put(string, index);
+                strings.add(string);
+            }
+            return index;
+        }
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -20,9 +20,12 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.zip.DataFormatException;
 
+import javax.annotation.Nullable;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.protobuf.ByteString;
 import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
 import org.checkerframework.checker.nullness.qual.EnsuresNonNull;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
 
@@ -33,16 +36,49 @@ public class LazyHistogram {
     private static final int HISTOGRAM_SIGNIFICANT_DIGITS = 5;
     private static final int MAX_VALUES = 1024;
 
+    // used for the (possibly many) per-query histograms, which switch to a sketch much earlier
+    private static final int COMPACT_MAX_VALUES = 64;
+
+    // when enabled, values beyond MAX_VALUES are tracked using the much smaller SketchHistogram
+    // (1% relative accuracy) instead of HdrHistogram (5 significant digits)
+    //
+    // histograms of both kinds can always be merged together, but once a sketch is involved the
+    // result is a sketch
+    private static final boolean USE_SKETCH = Boolean.getBoolean("glowroot.histogram.sketch");
+
     private long[] values = new long[8];
     private int size;
     private boolean sorted;
 
-    private @MonotonicNonNull Histogram histogram;
+    // set back to null once converted to a sketch
+    private @Nullable Histogram histogram;
+    private @MonotonicNonNull SketchHistogram sketch;
 
-    public LazyHistogram() {}
+    private final boolean useSketch;
+    private final int maxValues;
+
+    public LazyHistogram() {
+        this(USE_SKETCH);
+    }
+
+    @VisibleForTesting
+    LazyHistogram(boolean useSketch) {
+        this(useSketch, MAX_VALUES);
+    }
+
+    private LazyHistogram(boolean useSketch, int maxValues) {
+        this.useSketch = useSketch;
+        this.maxValues = maxValues;
+    }
 
     // special constructor, histogram created this way cannot be further mutated
     public LazyHistogram(Aggregate.Histogram hist) {
+        useSketch = USE_SKETCH;
+        maxValues = MAX_VALUES;
+        if (hist.hasSketch()) {
+            sketch = new SketchHistogram(hist.getSketch());
+            return;
+        }
         ByteString encodedBytes = hist.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             List<Long> orderedRawValues = hist.getOrderedRawValueList();
@@ -56,9 +92,17 @@ public class LazyHistogram {
         }
     }
 
+    // for histograms where memory matters more than precision, e.g. per-query histograms, since
+    // there can be hundreds of them per transaction type
+    public static LazyHistogram createCompact() {
+        return new LazyHistogram(true, COMPACT_MAX_VALUES);
+    }
+
     public Aggregate.Histogram toProto(ScratchBuffer scratchBuffer) {
         Aggregate.Histogram.Builder builder = Aggregate.Histogram.newBuilder();
-        if (histogram == null) {
+        if (sketch != null) {
+            builder.setSketch(sketch.toProto());
+        } else if (histogram == null) {
             if (!sorted) {
                 // sort values before storing so don't have to sort each time later when calculating
                 // percentiles
@@ -79,24 +123,39 @@ public class LazyHistogram {
     }
 
     public void merge(Aggregate.Histogram toBeMergedHistogram) throws DataFormatException {
+        if (toBeMergedHistogram.hasSketch()) {
+            // merged directly, without decoding
+            getOrConvertToSketch().merge(toBeMergedHistogram.getSketch());
+            return;
+        }
         ByteString encodedBytes = toBeMergedHistogram.getEncodedBytes();
         if (encodedBytes.isEmpty()) {
             for (long rawValue : toBeMergedHistogram.getOrderedRawValueList()) {
                 add(rawValue);
             }
         } else {
+            Histogram toBeMerged =
+                    Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0);
+            if (sketch != null) {
+                addToSketch(toBeMerged, sketch);
+                return;
+            }
             if (histogram == null) {
                 convertValuesToHistogram();
             }
-            histogram.add(Histogram.decodeFromByteBuffer(encodedBytes.asReadOnlyByteBuffer(), 0));
+            histogram.add(toBeMerged);
         }
     }
 
     public void merge(LazyHistogram toBeMergedHistogram) {
-        if (toBeMergedHistogram.histogram == null) {
+        if (toBeMergedHistogram.sketch != null) {
+            getOrConvertToSketch().merge(toBeMergedHistogram.sketch);
+        } else if (toBeMergedHistogram.histogram == null) {
             for (int i = 0; i < toBeMergedHistogram.size; i++) {
                 add(toBeMergedHistogram.values[i]);
             }
+        } else if (sketch != null) {
+            addToSketch(toBeMergedHistogram.histogram, sketch);
         } else {
             if (histogram == null) {
                 convertValuesToHistogram();
@@ -106,6 +165,9 @@ public class LazyHistogram {
     }
 
     public long getValueAtPercentile(double percentile) {
+        if (sketch != null) {
+            return sketch.getValueAtPercentile(percentile);
+        }
         if (histogram == null) {
             if (size == 0) {
                 // this is consistent with HdrHistogram behavior
@@ -123,10 +185,11 @@ public class LazyHistogram {
         return histogram.getValueAtPercentile(percentile);
     }
 
-    @VisibleForTesting
     public void add(long value) {
         ensureCapacity(size + 1);
-        if (histogram != null) {
+        if (sketch != null) {
+            sketch.add(value);
+        } else if (histogram != null) {
             histogram.recordValue(value);
         } else {
             values[size++] = value;
@@ -134,12 +197,39 @@ public class LazyHistogram {
         }
     }
 
+    // records the same value count times, e.g. the average of executions that were not
+    // individually recorded
+    public void add(long value, long count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count == 1) {
+            add(value);
+            return;
+        }
+        ensureCapacity(size + (int) Math.min(count, Integer.MAX_VALUE - size));
+        if (sketch != null) {
+            sketch.add(value, count);
+        } else if (histogram != null) {
+            histogram.recordValueWithCount(value, count);
+        } else {
+            for (long i = 0; i < count; i++) {
+                values[size++] = value;
+            }
+            sorted = false;
+        }
+    }
+
     private void ensureCapacity(int capacity) {
-        if (histogram != null) {
+        if (histogram != null || sketch != null) {
             return;
         }
-        if (capacity > MAX_VALUES) {
-            convertValuesToHistogram();
+        if (capacity > maxValues) {
+            if (useSketch) {
+                getOrConvertToSketch();
+            } else {
+                convertValuesToHistogram();
+            }
             return;
         }
         if (capacity > values.length) {
@@ -161,6 +251,31 @@ public class LazyHistogram {
         values = new long[0];
     }
 
+    private SketchHistogram getOrConvertToSketch() {
+        if (sketch != null) {
+            return sketch;
+        }
+        SketchHistogram sketch = new SketchHistogram();
+        if (histogram == null) {
+            for (int i = 0; i < size; i++) {
+                sketch.add(values[i]);
+            }
+            values = new long[0];
+            size = 0;
+        } else {
+            addToSketch(histogram, sketch);
+            histogram = null;
+        }
+        this.sketch = sketch;
+        return sketch;
+    }
+
+    private static void addToSketch(Histogram histogram, SketchHistogram sketch) {
+        for (HistogramIterationValue value : histogram.recordedValues()) {
+            sketch.add(value.getValueIteratedTo(), value.getCountAtValueIteratedTo());
+        }
+    }
+
     private void sortValues() {
         Arrays.sort(values, 0, size);
         sorted = true;
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+// accumulates gauge values into a single rolled up gauge value in one pass, tracking the min, max
+// and a (mergeable) sketch of the underlying values alongside the weighted average
+public class MutableGaugeValue {
+
+    private double totalWeightedValue;
+    private long totalWeight;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private final SketchHistogram sketch = new SketchHistogram();
+
+    // adds a non-rolled up gauge value
+    public void addValue(double value, long weight) {
+        totalWeightedValue += value * weight;
+        totalWeight += weight;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        sketch.add(value);
+    }
+
+    // merges a rolled up gauge value
+    public void merge(double value, long weight, double min, double max, Aggregate.Sketch sketch) {
+        totalWeightedValue += value * weight;
+        totalWeight += weight;
+        this.min = Math.min(this.min, min);
+        this.max = Math.max(this.max, max);
+        this.sketch.merge(sketch);
+    }
+
+    public void merge(GaugeValue gaugeValue) {
+        if (gaugeValue.hasSketch()) {
+            merge(gaugeValue.getValue(), gaugeValue.getWeight(), gaugeValue.getMin().getValue(),
+                    gaugeValue.getMax().getValue(), gaugeValue.getSketch());
+        } else {
+            addValue(gaugeValue.getValue(), gaugeValue.getWeight());
+        }
+    }
+
+    public double getValue() {
+        return totalWeightedValue / totalWeight;
+    }
+
+    public long getWeight() {
+        return totalWeight;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getValueAtPercentile(double percentile) {
+        return sketch.getDoubleValueAtPercentile(percentile);
+    }
+
+    public Aggregate.Sketch getSketch() {
+        return sketch.toProto();
+    }
+}
@@ -30,6 +30,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -48,6 +50,14 @@ public class MutableProfile {
     private static final Logger logger = LoggerFactory.getLogger(MutableProfile.class);
     private static final ObjectMapper mapper = ObjectMappers.create();
 
+    // child nodes are indexed once a node has this many children, since the linear scan of child
+    // nodes during merge otherwise dominates when merging many profiles (e.g. a week of aggregates)
+    private static final int CHILD_NODE_TABLE_THRESHOLD = 8;
+
+    // the same frame names recur across all profiles, so sharing the string instances reduces the
+    // heap retained by many live profiles (weak references keep this bounded by the live profiles)
+    private static final Interner<String> frameNameInterner = Interners.newWeakInterner();
+
     // TODO use primitive maps, e.g. from GS collections
     private final Map<String, Integer> packageNameIndexes = Maps.newHashMap();
     private final Map<String, Integer> classNameIndexes = Maps.newHashMap();
@@ -59,7 +69,11 @@ public class MutableProfile {
     private final List<String> methodNames = Lists.newArrayList();
     private final List<String> fileNames = Lists.newArrayList();
 
-    private final List<ProfileNode> rootNodes = Lists.newArrayList();
+    // synthetic node whose children are the root nodes, so that root nodes are indexed the same
+    // way as other child nodes
+    private final ProfileNode syntheticRootNode =
+            new ProfileNode(-1, -1, -1, -1, -1, Profile.LeafThreadState.NONE);
+    private final List<ProfileNode> rootNodes = syntheticRootNode.childNodes;
 
     // retain original sample count for in case of filtered profile
     private long unfilteredSampleCount = -1;
@@ -72,14 +86,13 @@ public class MutableProfile {
 
     public void merge(Profile profile) {
         Merger merger = new Merger(profile);
-        merger.merge(profile.getNodeList(), rootNodes);
+        merger.merge(profile.getNodeList());
     }
 
     public void merge(List<StackTraceElement> stackTraceElements, Thread.State threadState) {
         PeekingIterator<StackTraceElement> i =
                 Iterators.peekingIterator(Lists.reverse(stackTraceElements).iterator());
-        ProfileNode lastMatchedNode = null;
-        List<ProfileNode> mergeIntoNodes = rootNodes;
+        ProfileNode parentNode = syntheticRootNode;
 
         boolean lookingForMatch = true;
         while (i.hasNext()) {
@@ -108,28 +121,23 @@ public class MutableProfile {
 
             ProfileNode node = null;
             if (lookingForMatch) {
-                for (ProfileNode childNode : mergeIntoNodes) {
-                    if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
-                            fileNameIndex, lineNumber, leafThreadState)) {
-                        node = childNode;
-                        break;
-                    }
-                }
+                node = parentNode.findChildNode(packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState);
             }
             if (node == null) {
                 lookingForMatch = false;
                 node = new ProfileNode(packageNameIndex, classNameIndex, methodNameIndex,
                         fileNameIndex, lineNumber, leafThreadState);
-                mergeIntoNodes.add(node);
+                parentNode.addChildNode(node);
             }
             node.sampleCount++;
-            lastMatchedNode = node;
-            mergeIntoNodes = lastMatchedNode.childNodes;
+            parentNode = node;
         }
     }
 
     public void filter(List<String> includes, List<String> excludes) {
         unfilteredSampleCount = getSampleCount();
+        syntheticRootNode.childNodeTable = null;
         for (String include : includes) {
             for (Iterator<ProfileNode> i = rootNodes.iterator(); i.hasNext();) {
                 ProfileNode rootNode = i.next();
@@ -159,6 +167,7 @@ public class MutableProfile {
         }
         ProfileNode node;
         while ((node = toBeVisited.poll()) != null) {
+            node.childNodeTable = null;
             for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
                 ProfileNode childNode = i.next();
                 if (childNode.sampleCount < minSamples) {
@@ -249,8 +258,9 @@ public class MutableProfile {
         Integer index = nameIndexes.get(name);
         if (index == null) {
             index = names.size();
-            names.add(name);
-            nameIndexes.put(name, index);
+            String internedName = frameNameInterner.intern(name);
+            names.add(internedName);
+            nameIndexes.put(internedName, index);
         }
         return index;
     }
@@ -290,6 +300,18 @@ public class MutableProfile {
                 && packageNameIndex == profileNode.packageNameIndex;
     }
 
+    private static int hash(int packageNameIndex, int classNameIndex, int methodNameIndex,
+            int fileNameIndex, int lineNumber, Profile.LeafThreadState leafThreadState) {
+        int hash = lineNumber;
+        hash = 31 * hash + fileNameIndex;
+        hash = 31 * hash + methodNameIndex;
+        hash = 31 * hash + classNameIndex;
+        hash = 31 * hash + packageNameIndex;
+        hash = 31 * hash + leafThreadState.ordinal();
+        // spread the higher bits since the table size is a power of 2
+        return hash ^ (hash >>> 16);
+    }
+
     private static int[] makeIndexMapping(List<String> toBeMergedNames,
             Map<String, Integer> existingIndexes, List<String> existingNames) {
         int[] indexMapping = new int[toBeMergedNames.size()];
@@ -298,8 +320,9 @@ public class MutableProfile {
             Integer existingIndex = existingIndexes.get(toBeMergedName);
             if (existingIndex == null) {
                 int newIndex = existingNames.size();
-                existingNames.add(toBeMergedName);
-                existingIndexes.put(toBeMergedName, newIndex);
+                String internedName = frameNameInterner.intern(toBeMergedName);
+                existingNames.add(internedName);
+                existingIndexes.put(internedName, newIndex);
                 indexMapping[i] = newIndex;
             } else {
                 indexMapping[i] = existingIndex;
@@ -316,10 +339,15 @@ public class MutableProfile {
         private final int fileNameIndex;
         private final int lineNumber;
         private final Profile.LeafThreadState leafThreadState;
+        private final int hash;
 
         private long sampleCount;
 
-        private List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+        private final List<ProfileNode> childNodes = Lists.newArrayListWithCapacity(2);
+
+        // open addressing hash table (with linear probing) over childNodes, this is only built
+        // once there are enough child nodes, and is discarded whenever child nodes are removed
+        private @Nullable ProfileNode /*@Nullable*/ [] childNodeTable;
 
         // these fields are only used for filtering
         private @Nullable String text;
@@ -335,6 +363,71 @@ public class MutableProfile {
             this.fileNameIndex = fileNameIndex;
             this.lineNumber = lineNumber;
             this.leafThreadState = leafThreadState;
+            hash = hash(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, leafThreadState);
+        }
+
+        private @Nullable ProfileNode findChildNode(int packageNameIndex, int classNameIndex,
+                int methodNameIndex, int fileNameIndex, int lineNumber,
+                Profile.LeafThreadState leafThreadState) {
+            if (childNodeTable == null) {
+                if (childNodes.size() < CHILD_NODE_TABLE_THRESHOLD) {
+                    for (ProfileNode childNode : childNodes) {
+                        if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
+                                fileNameIndex, lineNumber, leafThreadState)) {
+                            return childNode;
+                        }
+                    }
+                    return null;
+                }
+                childNodeTable = buildChildNodeTable();
+            }
+            int mask = childNodeTable.length - 1;
+            int i = hash(packageNameIndex, classNameIndex, methodNameIndex, fileNameIndex,
+                    lineNumber, leafThreadState) & mask;
+            while (true) {
+                ProfileNode childNode = childNodeTable[i];
+                if (childNode == null) {
+                    return null;
+                }
+                if (isMatch(childNode, packageNameIndex, classNameIndex, methodNameIndex,
+                        fileNameIndex, lineNumber, leafThreadState)) {
+                    return childNode;
+                }
+                i = (i + 1) & mask;
+            }
+        }
+
+        private void addChildNode(ProfileNode childNode) {
+            childNodes.add(childNode);
+            if (childNodeTable == null) {
+                return;
+            }
+            // keeping load factor at or below 0.5
+            if (childNodes.size() * 2 > childNodeTable.length) {
+                childNodeTable = buildChildNodeTable();
+            } else {
+                addToChildNodeTable(childNodeTable, childNode);
+            }
+        }
+
+        private ProfileNode /*@Nullable*/ [] buildChildNodeTable() {
+            int size = Integer.highestOneBit(childNodes.size() * 4 - 1);
+            ProfileNode /*@Nullable*/ [] table = new ProfileNode[size];
+            for (ProfileNode childNode : childNodes) {
+                addToChildNodeTable(table, childNode);
+            }
+            return table;
+        }
+
+        private void addToChildNodeTable(ProfileNode /*@Nullable*/ [] table,
+                ProfileNode childNode) {
+            int mask = table.length - 1;
+            int i = childNode.hash & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = childNode;
         }
 
         private String getText() {
@@ -368,7 +461,7 @@ public class MutableProfile {
         private final int[] methodNameIndexMapping;
         private final int[] fileNameIndexMapping;
 
-        private final Deque<List<ProfileNode>> destinationStack = Queues.newArrayDeque();
+        private final Deque<ProfileNode> destinationStack = Queues.newArrayDeque();
 
         private Merger(Profile toBeMergedProfile) {
             packageNameIndexMapping = makeIndexMapping(toBeMergedProfile.getPackageNameList(),
@@ -381,9 +474,8 @@ public class MutableProfile {
                     fileNameIndexes, fileNames);
         }
 
-        private void merge(List<Profile.ProfileNode> flatNodes,
-                List<ProfileNode> destinationRootNodes) {
-            destinationStack.push(destinationRootNodes);
+        private void merge(List<Profile.ProfileNode> flatNodes) {
+            destinationStack.push(syntheticRootNode);
             PeekingIterator<Profile.ProfileNode> i =
                     Iterators.peekingIterator(flatNodes.iterator());
             while (i.hasNext()) {
@@ -395,13 +487,13 @@ public class MutableProfile {
                 }
                 ProfileNode destinationNode = mergeOne(flatNode, destinationStack.getFirst());
                 if (i.hasNext() && i.peek().getDepth() > flatNode.getDepth()) {
-                    destinationStack.push(destinationNode.childNodes);
+                    destinationStack.push(destinationNode);
                 }
             }
         }
 
         private ProfileNode mergeOne(Profile.ProfileNode toBeMergedNode,
-                List<ProfileNode> destinationNodes) {
+                ProfileNode destinationParentNode) {
             int toBeMergedPackageNameIndex =
                     packageNameIndexMapping[toBeMergedNode.getPackageNameIndex()];
             int toBeMergedClassNameIndex =
@@ -411,19 +503,19 @@ public class MutableProfile {
             int toBeMergedFileNameIndex = fileNameIndexMapping[toBeMergedNode.getFileNameIndex()];
             int toBeMergedLineNumber = toBeMergedNode.getLineNumber();
             Profile.LeafThreadState toBeMergedLeafThreadState = toBeMergedNode.getLeafThreadState();
-            for (ProfileNode destinationNode : destinationNodes) {
-                if (isMatch(destinationNode, toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
-                        toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
-                        toBeMergedLeafThreadState)) {
-                    merge(toBeMergedNode, destinationNode);
-                    return destinationNode;
-                }
+            ProfileNode destinationNode = destinationParentNode.findChildNode(
+                    toBeMergedPackageNameIndex, toBeMergedClassNameIndex,
+                    toBeMergedMethodNameIndex, toBeMergedFileNameIndex, toBeMergedLineNumber,
+                    toBeMergedLeafThreadState);
+            if (destinationNode != null) {
+                merge(toBeMergedNode, destinationNode);
+                return destinationNode;
             }
             // no match found
-            ProfileNode destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
+            destinationNode = new ProfileNode(toBeMergedPackageNameIndex,
                     toBeMergedClassNameIndex, toBeMergedMethodNameIndex, toBeMergedFileNameIndex,
                     toBeMergedLineNumber, toBeMergedLeafThreadState);
-            destinationNodes.add(destinationNode);
+            destinationParentNode.addChildNode(destinationNode);
             merge(toBeMergedNode, destinationNode);
             return destinationNode;
         }
@@ -501,6 +593,7 @@ public class MutableProfile {
                 node.matched = true;
             }
             // node is a partial match, need to filter it out
+            node.childNodeTable = null;
             long filteredSampleCount = 0;
             for (Iterator<ProfileNode> i = node.childNodes.iterator(); i.hasNext();) {
                 ProfileNode childNode = i.next();
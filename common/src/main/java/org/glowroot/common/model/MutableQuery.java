@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -38,6 +38,13 @@ public class MutableQuery {
     private boolean hasTotalRows;
     private long totalRows;
 
+    // number of transactions that executed this query more than the repeated query threshold
+    // (e.g. N+1 queries)
+    private long repeatedTransactionCount;
+
+    // only tracked for the top queries (by total duration) when enabled on the agent
+    private @Nullable LazyHistogram durationNanosHistogram;
+
     MutableQuery(String truncatedText, @Nullable String fullTextSha1) {
         this.truncatedText = truncatedText;
         this.fullTextSha1 = fullTextSha1;
@@ -67,6 +74,14 @@ public class MutableQuery {
         return totalRows;
     }
 
+    public long getRepeatedTransactionCount() {
+        return repeatedTransactionCount;
+    }
+
+    public @Nullable LazyHistogram getDurationNanosHistogram() {
+        return durationNanosHistogram;
+    }
+
     void addToTotalDurationNanos(double totalDurationNanos) {
         this.totalDurationNanos += totalDurationNanos;
     }
@@ -81,4 +96,22 @@ public class MutableQuery {
             this.totalRows += totalRows;
         }
     }
+
+    void addToRepeatedTransactionCount(long repeatedTransactionCount) {
+        this.repeatedTransactionCount += repeatedTransactionCount;
+    }
+
+    void mergeDurationNanosHistogram(@Nullable LazyHistogram durationNanosHistogram) {
+        if (durationNanosHistogram == null) {
+            return;
+        }
+        if (this.durationNanosHistogram == null) {
+            this.durationNanosHistogram = LazyHistogram.createCompact();
+        }
+        this.durationNanosHistogram.merge(durationNanosHistogram);
+    }
+
+    void clearDurationNanosHistogram() {
+        durationNanosHistogram = null;
+    }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -26,6 +26,10 @@ import com.google.common.collect.Maps;
 
 public class QueryCollector {
 
+    // per-query histograms are only retained for the top queries of each query type, since the
+    // union of each interval's top queries can grow well beyond the number sent by the agent
+    private static final int HISTOGRAM_LIMIT_PER_QUERY_TYPE = 100;
+
     // first key is query type, second key is either full query text (if query text is relatively
     // short) or sha1 of full query text (if query text is long)
     private final Map<String, Map<String, MutableQuery>> queries = Maps.newHashMap();
@@ -54,24 +58,30 @@ public class QueryCollector {
             if (list.size() > limitPerQueryType) {
                 list = list.subList(0, limitPerQueryType);
             }
+            for (int i = HISTOGRAM_LIMIT_PER_QUERY_TYPE; i < list.size(); i++) {
+                list.get(i).clearDurationNanosHistogram();
+            }
             sortedQueries.put(entry.getKey(), list);
         }
         return sortedQueries;
     }
 
     public void mergeQuery(String queryType, String truncatedText, @Nullable String fullTextSha1,
-            double totalDurationNanos, long executionCount, boolean hasRows, long totalRows) {
+            double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
+            long repeatedTransactionCount, @Nullable LazyHistogram durationNanosHistogram) {
         Map<String, MutableQuery> queriesForType = queries.get(queryType);
         if (queriesForType == null) {
             queriesForType = Maps.newHashMap();
             queries.put(queryType, queriesForType);
         }
         mergeQuery(truncatedText, fullTextSha1, totalDurationNanos, executionCount,
-                hasRows, totalRows, queriesForType);
+                hasRows, totalRows, repeatedTransactionCount, durationNanosHistogram,
+                queriesForType);
     }
 
     private void mergeQuery(String truncatedText, @Nullable String fullTextSha1,
             double totalDurationNanos, long executionCount, boolean hasRows, long totalRows,
+            long repeatedTransactionCount, @Nullable LazyHistogram durationNanosHistogram,
             Map<String, MutableQuery> queriesForType) {
         String queryKey = MoreObjects.firstNonNull(fullTextSha1, truncatedText);
         MutableQuery aggregateQuery = queriesForType.get(queryKey);
@@ -82,5 +92,7 @@ public class QueryCollector {
         aggregateQuery.addToTotalDurationNanos(totalDurationNanos);
         aggregateQuery.addToExecutionCount(executionCount);
         aggregateQuery.addToTotalRows(hasRows, totalRows);
+        aggregateQuery.addToRepeatedTransactionCount(repeatedTransactionCount);
+        aggregateQuery.mergeDurationNanosHistogram(durationNanosHistogram);
     }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.util.List;
+
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+
+// compact log-bucketed histogram with fixed relative accuracy (in the style of DDSketch)
+//
+// bucket i counts the values in (gamma^(i-1), gamma^i], so the value reported for any bucket is
+// within RELATIVE_ACCURACY of every value counted in that bucket, and merging two sketches is just
+// adding up their bucket counts
+class SketchHistogram {
+
+    // this must match the gamma documented in Aggregate.proto
+    private static final double RELATIVE_ACCURACY = 0.01;
+    private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+
+    private long zeroCount;
+    // bucket index of counts[0]
+    private int firstBucketIndex;
+    private long[] counts = new long[0];
+    private long totalCount;
+
+    SketchHistogram() {}
+
+    SketchHistogram(Aggregate.Sketch sketch) {
+        merge(sketch);
+    }
+
+    void add(long value) {
+        add(value, 1);
+    }
+
+    void add(long value, long count) {
+        addValue(value, count);
+    }
+
+    // used for gauge values, which are not restricted to whole numbers
+    void add(double value) {
+        addValue(value, 1);
+    }
+
+    private void addValue(double value, long count) {
+        if (value <= 0) {
+            zeroCount += count;
+        } else {
+            int bucketIndex = getBucketIndex(value);
+            ensureBucket(bucketIndex);
+            counts[bucketIndex - firstBucketIndex] += count;
+        }
+        totalCount += count;
+    }
+
+    void merge(SketchHistogram sketch) {
+        zeroCount += sketch.zeroCount;
+        totalCount += sketch.zeroCount;
+        ensureBuckets(sketch.firstBucketIndex, sketch.counts.length);
+        for (int i = 0; i < sketch.counts.length; i++) {
+            addToBucket(sketch.firstBucketIndex + i, sketch.counts[i]);
+        }
+    }
+
+    void merge(Aggregate.Sketch sketch) {
+        zeroCount += sketch.getZeroCount();
+        totalCount += sketch.getZeroCount();
+        List<Long> bucketCounts = sketch.getBucketCountList();
+        int firstBucketIndex = sketch.getFirstBucketIndex();
+        ensureBuckets(firstBucketIndex, bucketCounts.size());
+        for (int i = 0; i < bucketCounts.size(); i++) {
+            addToBucket(firstBucketIndex + i, bucketCounts.get(i));
+        }
+    }
+
+    long getValueAtPercentile(double percentile) {
+        return Math.round(getDoubleValueAtPercentile(percentile));
+    }
+
+    double getDoubleValueAtPercentile(double percentile) {
+        if (totalCount == 0) {
+            // this is consistent with HdrHistogram behavior
+            return 0;
+        }
+        long rank = Math.max((long) Math.ceil(totalCount * percentile / 100), 1);
+        long cumulativeCount = zeroCount;
+        if (cumulativeCount >= rank) {
+            return 0;
+        }
+        for (int i = 0; i < counts.length; i++) {
+            cumulativeCount += counts[i];
+            if (cumulativeCount >= rank) {
+                return getBucketValue(firstBucketIndex + i);
+            }
+        }
+        return getBucketValue(firstBucketIndex + counts.length - 1);
+    }
+
+    Aggregate.Sketch toProto() {
+        Aggregate.Sketch.Builder builder = Aggregate.Sketch.newBuilder()
+                .setZeroCount(zeroCount)
+                .setFirstBucketIndex(firstBucketIndex);
+        for (long count : counts) {
+            builder.addBucketCount(count);
+        }
+        return builder.build();
+    }
+
+    private void addToBucket(int bucketIndex, long count) {
+        if (count == 0) {
+            return;
+        }
+        ensureBucket(bucketIndex);
+        counts[bucketIndex - firstBucketIndex] += count;
+        totalCount += count;
+    }
+
+    // grow once up front instead of once per bucket when merging
+    private void ensureBuckets(int firstBucketIndex, int bucketCount) {
+        if (bucketCount > 0) {
+            ensureBucket(firstBucketIndex);
+            ensureBucket(firstBucketIndex + bucketCount - 1);
+        }
+    }
+
+    private void ensureBucket(int bucketIndex) {
+        if (counts.length == 0) {
+            counts = new long[1];
+            firstBucketIndex = bucketIndex;
+            return;
+        }
+        if (bucketIndex < firstBucketIndex) {
+            int shift = firstBucketIndex - bucketIndex;
+            long[] temp = new long[counts.length + shift];
+            System.arraycopy(counts, 0, temp, shift, counts.length);
+            counts = temp;
+            firstBucketIndex = bucketIndex;
+        } else if (bucketIndex >= firstBucketIndex + counts.length) {
+            long[] temp = new long[bucketIndex - firstBucketIndex + 1];
+            System.arraycopy(counts, 0, temp, 0, counts.length);
+            counts = temp;
+        }
+    }
+
+    private static int getBucketIndex(double value) {
+        return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+    }
+
+    // the value with equal relative distance to both bucket boundaries
+    private static double getBucketValue(int bucketIndex) {
+        return 2 * Math.pow(GAMMA, bucketIndex) / (GAMMA + 1);
+    }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright 2015-2016 the original author or authors.
+ * Copyright 2015-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -235,12 +235,14 @@ public class MutableAggregate {
 
     public void mergeQuery(String queryType, String truncatedQueryText,
             @Nullable String fullQueryTextSha1, double totalDurationNanos, long executionCount,
-            boolean hasTotalRows, long totalRows) {
+            boolean hasTotalRows, long totalRows, long repeatedTransactionCount,
+            @Nullable LazyHistogram durationNanosHistogram) {
         if (queries == null) {
             queries = new QueryCollector(maxAggregateQueriesPerType);
         }
         queries.mergeQuery(queryType, truncatedQueryText, fullQueryTextSha1, totalDurationNanos,
-                executionCount, hasTotalRows, totalRows);
+                executionCount, hasTotalRows, totalRows, repeatedTransactionCount,
+                durationNanosHistogram);
     }
 
     public void mergeServiceCalls(List<Aggregate.ServiceCallsByType> toBeMergedServiceCalls)
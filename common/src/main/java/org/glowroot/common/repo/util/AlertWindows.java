@@ -0,0 +1,420 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.repo.util;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.glowroot.common.live.LiveAggregateRepository.PercentileAggregate;
+import org.glowroot.common.model.LazyHistogram;
+import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+// per alert sliding window state, updated as aggregates and gauge values are received from an
+// agent, so that checking the alert does not need to re-read the full time period from the
+// repository
+//
+// a window is only used once it is known to contain all of the data for the time period being
+// checked, otherwise (e.g. after restart, after an alert is created, or after the agent has been
+// sending its data to a different central node) the check falls back to reading from the
+// repository, and the rows that are read are used to seed the window
+//
+// data can arrive out of capture time order (e.g. an agent re-sending data after a failed
+// send), so entries are kept ordered by capture time, and data for a capture time that is already
+// in the window is treated as a duplicate
+class AlertWindows {
+
+    // agents send aggregates once a minute (even when there are none), and gauge values more
+    // frequently than that, so a longer gap means that some data may have been missed
+    private static final long MAX_UPDATE_LAG_MILLIS = MINUTES.toMillis(2);
+
+    // entries are only created once data is received for the agent rollup, since otherwise (e.g.
+    // for agent rollups that are not agents) the windows would never be updated
+    private final ConcurrentMap<String, AgentWindows> agentWindows = Maps.newConcurrentMap();
+
+    // overallAggregates is keyed by transaction type
+    void updateTransactionWindows(String agentRollupId, long captureTime,
+            Map<String, Aggregate> overallAggregates) {
+        for (Map.Entry<AlertConfig, TransactionWindow> entry : getAgentWindows(
+                agentRollupId).transactionWindows.entrySet()) {
+            Aggregate aggregate = overallAggregates.get(entry.getKey().getTransactionType());
+            entry.getValue().update(captureTime, aggregate);
+        }
+    }
+
+    void updateGaugeWindows(String agentRollupId, List<GaugeValue> gaugeValues) {
+        ConcurrentMap<AlertConfig, GaugeWindow> windows =
+                getAgentWindows(agentRollupId).gaugeWindows;
+        if (windows.isEmpty() || gaugeValues.isEmpty()) {
+            return;
+        }
+        long maxCaptureTime = 0;
+        ListMultimap<String, GaugeValue> gaugeValuesByName = ArrayListMultimap.create();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            gaugeValuesByName.put(gaugeValue.getGaugeName(), gaugeValue);
+            maxCaptureTime = Math.max(maxCaptureTime, gaugeValue.getCaptureTime());
+        }
+        for (Map.Entry<AlertConfig, GaugeWindow> entry : windows.entrySet()) {
+            entry.getValue().update(maxCaptureTime,
+                    gaugeValuesByName.get(entry.getKey().getGaugeName()));
+        }
+    }
+
+    // returns null if the window does not have all of the data for the time period, in which case
+    // the caller is expected to read the data from the repository and pass it to
+    // seedTransactionWindow()
+    @Nullable
+    TransactionTotals getTransactionTotals(String agentRollupId, AlertConfig alertCondition,
+            long startTime, long endTime) throws Exception {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        if (windows == null) {
+            return null;
+        }
+        TransactionWindow window = windows.transactionWindows.get(alertCondition);
+        if (window == null) {
+            windows.transactionWindows.putIfAbsent(alertCondition,
+                    new TransactionWindow(alertCondition));
+            return null;
+        }
+        return window.getTotals(startTime, endTime);
+    }
+
+    // returns null if the window does not have all of the data for the time period, in which case
+    // the caller is expected to read the data from the repository and pass it to seedGaugeWindow()
+    @Nullable
+    GaugeTotals getGaugeTotals(String agentRollupId, AlertConfig alertCondition, long startTime,
+            long endTime) {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        if (windows == null) {
+            return null;
+        }
+        GaugeWindow window = windows.gaugeWindows.get(alertCondition);
+        if (window == null) {
+            windows.gaugeWindows.putIfAbsent(alertCondition, new GaugeWindow(alertCondition));
+            return null;
+        }
+        return window.getTotals(startTime, endTime);
+    }
+
+    // percentileAggregates must be all of the rollup level 0 aggregates after startTime that were
+    // read from the repository after the preceding call to getTransactionTotals()
+    void seedTransactionWindow(String agentRollupId, AlertConfig alertCondition, long startTime,
+            List<PercentileAggregate> percentileAggregates) {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        TransactionWindow window =
+                windows == null ? null : windows.transactionWindows.get(alertCondition);
+        if (window == null) {
+            return;
+        }
+        List<TransactionEntry> entries = Lists.newArrayList();
+        for (PercentileAggregate aggregate : percentileAggregates) {
+            entries.add(new TransactionEntry(aggregate.captureTime(),
+                    aggregate.transactionCount(), aggregate.durationNanosHistogram()));
+        }
+        window.seed(startTime, entries);
+    }
+
+    // gaugeValues must be all of the rollup level 0 gauge values after startTime that were read
+    // from the repository after the preceding call to getGaugeTotals()
+    void seedGaugeWindow(String agentRollupId, AlertConfig alertCondition, long startTime,
+            List<GaugeValue> gaugeValues) {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        GaugeWindow window = windows == null ? null : windows.gaugeWindows.get(alertCondition);
+        if (window == null) {
+            return;
+        }
+        List<GaugeEntry> entries = Lists.newArrayList();
+        for (GaugeValue gaugeValue : gaugeValues) {
+            entries.add(new GaugeEntry(gaugeValue));
+        }
+        window.seed(startTime, entries);
+    }
+
+    void retainAll(String agentRollupId, Set<AlertConfig> alertConditions) {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        if (windows != null) {
+            windows.transactionWindows.keySet().retainAll(alertConditions);
+            windows.gaugeWindows.keySet().retainAll(alertConditions);
+        }
+    }
+
+    private AgentWindows getAgentWindows(String agentRollupId) {
+        AgentWindows windows = agentWindows.get(agentRollupId);
+        if (windows == null) {
+            windows = new AgentWindows();
+            AgentWindows existing = agentWindows.putIfAbsent(agentRollupId, windows);
+            if (existing != null) {
+                windows = existing;
+            }
+        }
+        return windows;
+    }
+
+    // keyed by alert condition
+    private static class AgentWindows {
+
+        private final ConcurrentMap<AlertConfig, TransactionWindow> transactionWindows =
+                Maps.newConcurrentMap();
+        private final ConcurrentMap<AlertConfig, GaugeWindow> gaugeWindows =
+                Maps.newConcurrentMap();
+    }
+
+    static class TransactionTotals {
+
+        private final long transactionCount;
+        private final LazyHistogram durationNanosHistogram;
+
+        private TransactionTotals(long transactionCount, LazyHistogram durationNanosHistogram) {
+            this.transactionCount = transactionCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+
+        long getTransactionCount() {
+            return transactionCount;
+        }
+
+        LazyHistogram getDurationNanosHistogram() {
+            return durationNanosHistogram;
+        }
+    }
+
+    static class GaugeTotals {
+
+        private final double totalWeightedValue;
+        private final long totalWeight;
+
+        private GaugeTotals(double totalWeightedValue, long totalWeight) {
+            this.totalWeightedValue = totalWeightedValue;
+            this.totalWeight = totalWeight;
+        }
+
+        double getTotalWeightedValue() {
+            return totalWeightedValue;
+        }
+
+        long getTotalWeight() {
+            return totalWeight;
+        }
+    }
+
+    // a window starts out (and returns to) being unseeded whenever it may be missing data, during
+    // which time it still collects the data that is received, so that nothing received while the
+    // caller is reading from the repository is lost when the window is then seeded
+    private abstract static class Window<E extends Entry> {
+
+        private final long timePeriodMillis;
+
+        // keyed by capture time
+        @GuardedBy("this")
+        final NavigableMap<Long, E> entries = Maps.newTreeMap();
+        // all entries with capture time after trackingSince have been added (only once seeded)
+        @GuardedBy("this")
+        private long trackingSince = Long.MAX_VALUE;
+        @GuardedBy("this")
+        long updatedThrough = Long.MIN_VALUE;
+        @GuardedBy("this")
+        private boolean seeded;
+
+        private Window(AlertConfig alertCondition) {
+            timePeriodMillis = SECONDS.toMillis(alertCondition.getTimePeriodSeconds());
+        }
+
+        void startUpdate(long captureTime) {
+            if (captureTime <= updatedThrough) {
+                // late (or duplicate) data, which is still added by addEntry()
+                return;
+            }
+            if (seeded && captureTime > updatedThrough + MAX_UPDATE_LAG_MILLIS) {
+                // some data may have been missed
+                reset();
+            }
+            updatedThrough = captureTime;
+            // this bounds the memory held by windows that are no longer being checked
+            removeEntriesThrough(getRetainedFrom());
+        }
+
+        void addEntry(E entry) {
+            long captureTime = entry.getCaptureTime();
+            if (captureTime <= getRetainedFrom() || entries.containsKey(captureTime)) {
+                return;
+            }
+            entries.put(captureTime, entry);
+        }
+
+        boolean hasAllEntries(long startTime, long endTime) {
+            if (!seeded || trackingSince > startTime
+                    || updatedThrough < endTime - MAX_UPDATE_LAG_MILLIS) {
+                reset();
+                return false;
+            }
+            removeEntriesThrough(startTime);
+            return true;
+        }
+
+        synchronized void seed(long startTime, List<E> seedEntries) {
+            if (seeded) {
+                // concurrent seed
+                return;
+            }
+            // entries that were received while the caller was reading from the repository are
+            // kept, and any duplicates of them in seedEntries are dropped
+            removeEntriesThrough(startTime);
+            for (E entry : seedEntries) {
+                long captureTime = entry.getCaptureTime();
+                if (captureTime > startTime && !entries.containsKey(captureTime)) {
+                    entries.put(captureTime, entry);
+                    updatedThrough = Math.max(updatedThrough, captureTime);
+                }
+            }
+            updatedThrough = Math.max(updatedThrough, startTime);
+            trackingSince = startTime;
+            seeded = true;
+        }
+
+        private void reset() {
+            entries.clear();
+            trackingSince = Long.MAX_VALUE;
+            updatedThrough = Long.MIN_VALUE;
+            seeded = false;
+        }
+
+        // returns the entries through the given capture time, in capture time order
+        Collection<E> getEntriesThrough(long captureTime) {
+            return entries.headMap(captureTime, true).values();
+        }
+
+        private long getRetainedFrom() {
+            if (updatedThrough == Long.MIN_VALUE) {
+                return Long.MIN_VALUE;
+            }
+            return updatedThrough - timePeriodMillis - MAX_UPDATE_LAG_MILLIS;
+        }
+
+        private void removeEntriesThrough(long captureTime) {
+            entries.headMap(captureTime, true).clear();
+        }
+    }
+
+    private static class TransactionWindow extends Window<TransactionEntry> {
+
+        private TransactionWindow(AlertConfig alertCondition) {
+            super(alertCondition);
+        }
+
+        private synchronized void update(long captureTime, @Nullable Aggregate aggregate) {
+            startUpdate(captureTime);
+            if (aggregate != null) {
+                addEntry(new TransactionEntry(captureTime, aggregate.getTransactionCount(),
+                        aggregate.getDurationNanosHistogram()));
+            }
+        }
+
+        private synchronized @Nullable TransactionTotals getTotals(long startTime, long endTime)
+                throws Exception {
+            if (!hasAllEntries(startTime, endTime)) {
+                return null;
+            }
+            long transactionCount = 0;
+            LazyHistogram durationNanosHistogram = new LazyHistogram();
+            for (TransactionEntry entry : getEntriesThrough(endTime)) {
+                transactionCount += entry.transactionCount;
+                durationNanosHistogram.merge(entry.durationNanosHistogram);
+            }
+            return new TransactionTotals(transactionCount, durationNanosHistogram);
+        }
+    }
+
+    private static class GaugeWindow extends Window<GaugeEntry> {
+
+        private GaugeWindow(AlertConfig alertCondition) {
+            super(alertCondition);
+        }
+
+        private synchronized void update(long maxCaptureTime, Collection<GaugeValue> gaugeValues) {
+            startUpdate(maxCaptureTime);
+            for (GaugeValue gaugeValue : gaugeValues) {
+                addEntry(new GaugeEntry(gaugeValue));
+            }
+        }
+
+        private synchronized @Nullable GaugeTotals getTotals(long startTime, long endTime) {
+            if (!hasAllEntries(startTime, endTime)) {
+                return null;
+            }
+            double totalWeightedValue = 0;
+            long totalWeight = 0;
+            for (GaugeEntry entry : getEntriesThrough(endTime)) {
+                totalWeightedValue += entry.weightedValue;
+                totalWeight += entry.weight;
+            }
+            return new GaugeTotals(totalWeightedValue, totalWeight);
+        }
+    }
+
+    private abstract static class Entry {
+
+        private final long captureTime;
+
+        private Entry(long captureTime) {
+            this.captureTime = captureTime;
+        }
+
+        long getCaptureTime() {
+            return captureTime;
+        }
+    }
+
+    private static class TransactionEntry extends Entry {
+
+        private final long transactionCount;
+        private final Aggregate.Histogram durationNanosHistogram;
+
+        private TransactionEntry(long captureTime, long transactionCount,
+                Aggregate.Histogram durationNanosHistogram) {
+            super(captureTime);
+            this.transactionCount = transactionCount;
+            this.durationNanosHistogram = durationNanosHistogram;
+        }
+    }
+
+    private static class GaugeEntry extends Entry {
+
+        private final double weightedValue;
+        private final long weight;
+
+        private GaugeEntry(GaugeValue gaugeValue) {
+            super(gaugeValue.getCaptureTime());
+            weightedValue = gaugeValue.getValue() * gaugeValue.getWeight();
+            weight = gaugeValue.getWeight();
+        }
+    }
+}
@@ -17,6 +17,7 @@ package org.glowroot.common.repo.util;
 
 import java.net.InetAddress;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
@@ -45,11 +46,13 @@ import org.glowroot.common.repo.GaugeValueRepository;
 import org.glowroot.common.repo.GaugeValueRepository.Gauge;
 import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
+import org.glowroot.common.repo.util.AlertWindows.GaugeTotals;
+import org.glowroot.common.repo.util.AlertWindows.TransactionTotals;
 import org.glowroot.common.util.Formatting;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 
-import static com.google.common.base.Preconditions.checkState;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
@@ -64,6 +67,8 @@ public class AlertingService {
     private final RollupLevelService rollupLevelService;
     private final MailService mailService;
 
+    private final AlertWindows alertWindows = new AlertWindows();
+
     // limit missing smtp host configuration warning to once per hour
     private final RateLimiter smtpHostWarningRateLimiter = RateLimiter.create(1.0 / 3600);
 
@@ -90,6 +95,21 @@ public class AlertingService {
                 triggeredAlertRepository.delete(agentRollupId, alertCondition);
             }
         }
+        alertWindows.retainAll(agentRollupId, alertConditions);
+    }
+
+    // called with the overall aggregates (keyed by transaction type) each time aggregates are
+    // received from an agent, so that subsequent transaction alert checks for the agent can be
+    // evaluated without reading from the repository
+    public void updateTransactionWindows(String agentRollupId, long captureTime,
+            Map<String, Aggregate> overallAggregates) {
+        alertWindows.updateTransactionWindows(agentRollupId, captureTime, overallAggregates);
+    }
+
+    // called each time gauge values are received from an agent, so that subsequent gauge alert
+    // checks for the agent can be evaluated without reading from the repository
+    public void updateGaugeWindows(String agentRollupId, List<GaugeValue> gaugeValues) {
+        alertWindows.updateGaugeWindows(agentRollupId, gaugeValues);
     }
 
     public void checkTransactionAlert(String agentRollupId, String agentRollupDisplay,
@@ -114,20 +134,35 @@ public class AlertingService {
 
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<PercentileAggregate> percentileAggregates =
-                aggregateRepository.readPercentileAggregates(agentRollupId,
-                        ImmutableTransactionQuery.builder()
-                                .transactionType(alertConfig.getTransactionType())
-                                .from(startTime + 1)
-                                .to(endTime)
-                                .rollupLevel(rollupLevel)
-                                .build());
+        AlertConfig alertCondition = toAlertCondition(alertConfig);
         long transactionCount = 0;
         LazyHistogram durationNanosHistogram = new LazyHistogram();
-        for (PercentileAggregate aggregate : percentileAggregates) {
-            transactionCount += aggregate.transactionCount();
-            durationNanosHistogram.merge(aggregate.durationNanosHistogram());
+        TransactionTotals totals = null;
+        if (rollupLevel == 0) {
+            totals = alertWindows.getTransactionTotals(agentRollupId, alertCondition, startTime,
+                    endTime);
+        }
+        if (totals == null) {
+            // startTime + 1 in order to not include the gauge value at startTime
+            List<PercentileAggregate> percentileAggregates =
+                    aggregateRepository.readPercentileAggregates(agentRollupId,
+                            ImmutableTransactionQuery.builder()
+                                    .transactionType(alertConfig.getTransactionType())
+                                    .from(startTime + 1)
+                                    .to(endTime)
+                                    .rollupLevel(rollupLevel)
+                                    .build());
+            if (rollupLevel == 0) {
+                alertWindows.seedTransactionWindow(agentRollupId, alertCondition, startTime,
+                        percentileAggregates);
+            }
+            for (PercentileAggregate aggregate : percentileAggregates) {
+                transactionCount += aggregate.transactionCount();
+                durationNanosHistogram.merge(aggregate.durationNanosHistogram());
+            }
+        } else {
+            transactionCount = totals.getTransactionCount();
+            durationNanosHistogram = totals.getDurationNanosHistogram();
         }
         if (transactionCount < minTransactionCount) {
             // don't clear existing triggered alert
@@ -157,21 +192,35 @@ public class AlertingService {
         double threshold = alertConfig.getGaugeThreshold().getValue();
         long startTime = endTime - SECONDS.toMillis(alertConfig.getTimePeriodSeconds());
         int rollupLevel = rollupLevelService.getRollupLevelForView(startTime, endTime);
-        // startTime + 1 in order to not include the gauge value at startTime
-        List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
-                alertConfig.getGaugeName(), startTime + 1, endTime, rollupLevel);
-        if (gaugeValues.isEmpty()) {
-            return;
-        }
+        AlertConfig alertCondition = toAlertCondition(alertConfig);
         double totalWeightedValue = 0;
         long totalWeight = 0;
-        for (GaugeValue gaugeValue : gaugeValues) {
-            totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
-            totalWeight += gaugeValue.getWeight();
+        GaugeTotals totals = null;
+        if (rollupLevel == 0) {
+            totals = alertWindows.getGaugeTotals(agentRollupId, alertCondition, startTime,
+                    endTime);
+        }
+        if (totals == null) {
+            // startTime + 1 in order to not include the gauge value at startTime
+            List<GaugeValue> gaugeValues = gaugeValueRepository.readGaugeValues(agentRollupId,
+                    alertConfig.getGaugeName(), startTime + 1, endTime, rollupLevel);
+            if (rollupLevel == 0) {
+                alertWindows.seedGaugeWindow(agentRollupId, alertCondition, startTime,
+                        gaugeValues);
+            }
+            for (GaugeValue gaugeValue : gaugeValues) {
+                totalWeightedValue += gaugeValue.getValue() * gaugeValue.getWeight();
+                totalWeight += gaugeValue.getWeight();
+            }
+        } else {
+            totalWeightedValue = totals.getTotalWeightedValue();
+            totalWeight = totals.getTotalWeight();
+        }
+        // individual gauge value weights cannot be zero, so totalWeight is only zero when there
+        // are no gauge values
+        if (totalWeight == 0) {
+            return;
         }
-        // individual gauge value weights cannot be zero, and gaugeValues is non-empty
-        // (see above conditional), so totalWeight is guaranteed non-zero
-        checkState(totalWeight != 0);
         double average = totalWeightedValue / totalWeight;
         boolean previouslyTriggered = triggeredAlertRepository.exists(agentRollupId, alertConfig);
         boolean currentlyTriggered = average >= threshold;
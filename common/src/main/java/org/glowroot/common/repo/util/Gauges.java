@@ -67,6 +67,8 @@ public class Gauges {
                 "bytes"));
         patterns.add(
                 new UnitPattern("org.glowroot:type=FileSystem,name=[^:]+:PercentFull", "percent"));
+        patterns.add(new UnitPattern(
+                "org.glowroot:type=StackTraceCollector:(Total|ThreadInfo)Millis", "milliseconds"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
                 + "keyspace=[^,]+,scope=[^,]+,name=LiveDiskSpaceUsed:Count", "bytes"));
         patterns.add(new UnitPattern("org.apache.cassandra.metrics:type=ColumnFamily,"
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.Proto;
+import org.glowroot.wire.api.model.TraceOuterClass.Trace;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ColumnarTraceEntriesTest {
+
+    @Test
+    public void shouldRoundTripEmpty() throws Exception {
+        // when
+        byte[] bytes = ColumnarTraceEntries.encode(ImmutableList.<Trace.Entry>of());
+        // then
+        assertThat(ColumnarTraceEntries.decode(bytes)).isEmpty();
+    }
+
+    @Test
+    public void shouldRoundTripAllFields() throws Exception {
+        // given
+        List<Trace.Entry> entries = ImmutableList.of(
+                Trace.Entry.newBuilder()
+                        .setDepth(0)
+                        .setStartOffsetNanos(100)
+                        .setDurationNanos(5000)
+                        .setMessage("abc")
+                        .addDetailEntry(Trace.DetailEntry.newBuilder()
+                                .setName("x")
+                                .addValue(Trace.DetailValue.newBuilder().setLong(123)))
+                        .build(),
+                Trace.Entry.newBuilder()
+                        .setDepth(1)
+                        .setStartOffsetNanos(200)
+                        .setDurationNanos(1000)
+                        .setActive(true)
+                        .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                                .setSharedQueryTextIndex(3)
+                                .setPrefix("jdbc query: ")
+                                .setSuffix(" => 1 row"))
+                        .addLocationStackTraceElement(Proto.StackTraceElement.newBuilder()
+                                .setClassName("a.B")
+                                .setMethodName("c")
+                                .setFileName("B.java")
+                                .setLineNumber(-2))
+                        .build(),
+                Trace.Entry.newBuilder()
+                        .setDepth(0)
+                        // start offsets and durations are not necessarily increasing
+                        .setStartOffsetNanos(150)
+                        .setDurationNanos(0)
+                        .setError(Trace.Error.newBuilder()
+                                .setMessage("boom"))
+                        .build());
+        // when
+        byte[] bytes = ColumnarTraceEntries.encode(entries);
+        // then
+        assertThat(ColumnarTraceEntries.decode(bytes)).isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldRoundTripMultiplePages() throws Exception {
+        // given
+        List<Trace.Entry> entries = createJdbcEntries(ColumnarTraceEntries.PAGE_SIZE * 2 + 1);
+        // when
+        byte[] bytes = ColumnarTraceEntries.encode(entries);
+        // then
+        assertThat(ColumnarTraceEntries.decode(bytes)).isEqualTo(entries);
+    }
+
+    @Test
+    public void shouldBeSmallerThanDelimitedEncoding() throws Exception {
+        // given
+        List<Trace.Entry> entries = createJdbcEntries(10000);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (Trace.Entry entry : entries) {
+            entry.writeDelimitedTo(baos);
+        }
+        // when
+        byte[] bytes = ColumnarTraceEntries.encode(entries);
+        // then
+        assertThat(bytes.length).isLessThan(baos.size() / 4);
+    }
+
+    private static List<Trace.Entry> createJdbcEntries(int count) {
+        List<Trace.Entry> entries = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            entries.add(Trace.Entry.newBuilder()
+                    .setDepth(1 + i % 2)
+                    .setStartOffsetNanos(i * 10000L)
+                    .setDurationNanos(5000 + i % 7)
+                    .setQueryEntryMessage(Trace.QueryEntryMessage.newBuilder()
+                            .setSharedQueryTextIndex(i % 5)
+                            .setPrefix("jdbc execution: ")
+                            .setSuffix(" => " + (i % 3) + " rows"))
+                    .build());
+        }
+        return entries;
+    }
+}
@@ -78,6 +78,59 @@ public class LazyHistogramTest {
         shouldDecodeOnTopOfExisting(100000000, 200000000);
     }
 
+    @Test
+    public void shouldTestSketchPercentiles() {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestSketchPercentiles(i);
+        }
+        shouldTestSketchPercentiles(10000000);
+        shouldTestSketchPercentiles(100000000);
+    }
+
+    @Test
+    public void shouldTestSketchEncodeDecode() throws Exception {
+        for (int i = 0; i < 2000000; i += 10000) {
+            shouldTestSketchEncodeDecode(i);
+        }
+        shouldTestSketchEncodeDecode(10000000);
+        shouldTestSketchEncodeDecode(100000000);
+    }
+
+    @Test
+    public void shouldMergeSketchWithHdrHistogram() throws Exception {
+        // given
+        LazyHistogram sketchHistogram = new LazyHistogram(true);
+        for (int i = 10000000; i > 5000000; i -= 1000) {
+            sketchHistogram.add(i);
+        }
+        LazyHistogram hdrHistogram = new LazyHistogram(false);
+        for (int i = 5000000; i > 0; i -= 1000) {
+            hdrHistogram.add(i);
+        }
+        // when
+        hdrHistogram.merge(sketchHistogram.toProto(new ScratchBuffer()));
+        // then
+        assertThat(hdrHistogram.toProto(new ScratchBuffer()).hasSketch()).isTrue();
+        assertPercentile(hdrHistogram, 10000000, 50);
+        assertPercentile(hdrHistogram, 10000000, 95);
+        assertPercentile(hdrHistogram, 10000000, 99);
+    }
+
+    @Test
+    public void shouldTestCompactWithCounts() {
+        // given
+        LazyHistogram histogram = LazyHistogram.createCompact();
+        // when
+        for (int i = 1; i <= 100; i++) {
+            histogram.add(i * 1000);
+        }
+        histogram.add(200000, 100);
+        // then
+        assertThat(histogram.toProto(new ScratchBuffer()).hasSketch()).isTrue();
+        assertThat(histogram.getValueAtPercentile(25)).isBetween(49500L, 50500L);
+        assertThat(histogram.getValueAtPercentile(99)).isBetween(198000L, 202000L);
+    }
+
     private void shouldTestPercentiles(int num) {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -93,6 +146,37 @@ public class LazyHistogramTest {
         assertPercentile(lazyHistogram, num, 99.99);
     }
 
+    private void shouldTestSketchPercentiles(int num) {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(true);
+        // when
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+    }
+
+    private void shouldTestSketchEncodeDecode(int num) throws Exception {
+        // given
+        LazyHistogram lazyHistogram = new LazyHistogram(true);
+        for (int i = num; i > 0; i -= 1000) {
+            lazyHistogram.add(i);
+        }
+        Aggregate.Histogram histogram = lazyHistogram.toProto(new ScratchBuffer());
+        lazyHistogram = new LazyHistogram(true);
+        // when
+        lazyHistogram.merge(histogram);
+        // then
+        assertPercentile(lazyHistogram, num, 50);
+        assertPercentile(lazyHistogram, num, 95);
+        assertPercentile(lazyHistogram, num, 99);
+        assertPercentile(lazyHistogram, num, 99.9);
+    }
+
     private void shouldTestEncodeDecode(int num) throws Exception {
         // given
         LazyHistogram lazyHistogram = new LazyHistogram();
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.common.model;
+
+import org.junit.Test;
+
+import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+public class MutableGaugeValueTest {
+
+    @Test
+    public void shouldRetainSpikeAcrossRollupLevels() {
+        // given
+        MutableGaugeValue first = new MutableGaugeValue();
+        for (int i = 0; i < 99; i++) {
+            first.addValue(10, 1);
+        }
+        first.addValue(1000, 1);
+        MutableGaugeValue second = new MutableGaugeValue();
+        for (int i = 0; i < 100; i++) {
+            second.addValue(0.5, 1);
+        }
+        // when
+        MutableGaugeValue rollup = new MutableGaugeValue();
+        rollup.merge(toProto(first));
+        rollup.merge(toProto(second));
+        // then
+        assertThat(rollup.getWeight()).isEqualTo(200);
+        assertThat(rollup.getValue()).isCloseTo(10.2, offset(0.001));
+        assertThat(rollup.getMin()).isEqualTo(0.5);
+        assertThat(rollup.getMax()).isEqualTo(1000);
+        assertThat(rollup.getValueAtPercentile(25)).isCloseTo(0.5, offset(0.01));
+        assertThat(rollup.getValueAtPercentile(75)).isCloseTo(10, offset(0.1));
+        assertThat(rollup.getValueAtPercentile(100)).isCloseTo(1000, offset(10.0));
+    }
+
+    @Test
+    public void shouldMergeNonRolledUpValue() {
+        // given
+        MutableGaugeValue rollup = new MutableGaugeValue();
+        // when
+        rollup.merge(GaugeValue.newBuilder()
+                .setValue(3)
+                .setWeight(2)
+                .build());
+        rollup.merge(GaugeValue.newBuilder()
+                .setValue(6)
+                .setWeight(1)
+                .build());
+        // then
+        assertThat(rollup.getValue()).isEqualTo(4);
+        assertThat(rollup.getMin()).isEqualTo(3);
+        assertThat(rollup.getMax()).isEqualTo(6);
+    }
+
+    @Test
+    public void shouldMergeRolledUpAndNonRolledUpValues() {
+        // given
+        MutableGaugeValue first = new MutableGaugeValue();
+        first.addValue(2, 1);
+        first.addValue(8, 1);
+        // when
+        MutableGaugeValue rollup = new MutableGaugeValue();
+        rollup.merge(toProto(first));
+        rollup.addValue(20, 2);
+        // then
+        assertThat(rollup.getValue()).isEqualTo(12.5);
+        assertThat(rollup.getWeight()).isEqualTo(4);
+        assertThat(rollup.getMin()).isEqualTo(2);
+        assertThat(rollup.getMax()).isEqualTo(20);
+        assertThat(rollup.getValueAtPercentile(50)).isCloseTo(8, offset(0.1));
+        assertThat(rollup.getValueAtPercentile(99)).isCloseTo(20, offset(0.2));
+    }
+
+    private static GaugeValue toProto(MutableGaugeValue gaugeValue) {
+        return GaugeValue.newBuilder()
+                .setValue(gaugeValue.getValue())
+                .setWeight(gaugeValue.getWeight())
+                .setMin(OptionalDouble.newBuilder().setValue(gaugeValue.getMin()))
+                .setMax(OptionalDouble.newBuilder().setValue(gaugeValue.getMax()))
+                .setSketch(gaugeValue.getSketch())
+                .build();
+    }
+}
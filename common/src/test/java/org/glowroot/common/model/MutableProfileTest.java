@@ -27,6 +27,8 @@ import com.google.common.collect.Lists;
 import com.google.common.io.CharStreams;
 import org.junit.Test;
 
+import org.glowroot.wire.api.model.ProfileOuterClass.Profile;
+
 import static org.assertj.core.api.Assertions.assertThat;
 
 public class MutableProfileTest {
@@ -164,6 +166,31 @@ public class MutableProfileTest {
                 + "}").replace(" ", ""));
     }
 
+    @Test
+    public void testMergingManyChildNodes() {
+        // given
+        MutableProfile profile = new MutableProfile();
+        for (int i = 0; i < 100; i++) {
+            List<StackTraceElement> stackTraceElements = Lists.newArrayList();
+            stackTraceElements.add(new StackTraceElement("aa.bb.cc.Def", "ghi", "Def.java", i));
+            stackTraceElements.add(new StackTraceElement("xx.yy.zz.Main", "main", "Main.java", i));
+            profile.merge(stackTraceElements, Thread.State.RUNNABLE);
+        }
+        // when
+        MutableProfile mergedProfile = new MutableProfile();
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.merge(profile.toProto());
+        mergedProfile.truncateBranches(1);
+        mergedProfile.merge(profile.toProto());
+        // then
+        Profile proto = mergedProfile.toProto();
+        assertThat(mergedProfile.getSampleCount()).isEqualTo(300);
+        assertThat(proto.getNodeCount()).isEqualTo(200);
+        for (Profile.ProfileNode node : proto.getNodeList()) {
+            assertThat(node.getSampleCount()).isEqualTo(3);
+        }
+    }
+
     // this is helpful when building tests
     @SuppressWarnings("unused")
     private static void prettyPrint(String json) throws IOException {
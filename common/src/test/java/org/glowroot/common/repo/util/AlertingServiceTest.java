@@ -21,6 +21,7 @@ import javax.crypto.SecretKey;
 import javax.mail.Message;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -41,6 +42,7 @@ import org.glowroot.common.repo.TriggeredAlertRepository;
 import org.glowroot.common.repo.Utils;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig;
 import org.glowroot.wire.api.model.AgentConfigOuterClass.AgentConfig.AlertConfig.AlertKind;
+import org.glowroot.wire.api.model.AggregateOuterClass.Aggregate;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
 import org.glowroot.wire.api.model.Proto.OptionalDouble;
 import org.glowroot.wire.api.model.Proto.OptionalInt32;
@@ -183,6 +185,73 @@ public class AlertingServiceTest {
         assertThat(mailService.getMessage()).isNull();
     }
 
+    @Test
+    public void shouldSendMailForTransactionAlertFromWindow() throws Exception {
+        // given
+        setupForTransaction(999000);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.updateTransactionWindows("", 120000,
+                ImmutableMap.<String, Aggregate>of());
+        alertingService.checkTransactionAlert("", "", TRANSACTION_ALERT_CONFIG, 120000);
+        // when
+        alertingService.updateTransactionWindows("", 180000,
+                ImmutableMap.of("tt", createAggregate(1000000)));
+        alertingService.checkTransactionAlert("", "", TRANSACTION_ALERT_CONFIG, 180000);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
+    @Test
+    public void shouldSendMailForGaugeAlertFromWindow() throws Exception {
+        // given
+        setupForGauge(499);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.updateGaugeWindows("", ImmutableList.<GaugeValue>of());
+        alertingService.checkGaugeAlert("", "", GAUGE_ALERT_CONFIG, 120000);
+        // when
+        alertingService.updateGaugeWindows("", ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_ALERT_CONFIG.getGaugeName())
+                .setCaptureTime(180000)
+                .setValue(500.1)
+                .setWeight(1)
+                .build()));
+        alertingService.checkGaugeAlert("", "", GAUGE_ALERT_CONFIG, 180000);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
+    @Test
+    public void shouldSendMailForGaugeAlertFromWindowWithOutOfOrderData() throws Exception {
+        // given
+        setupForGauge(499);
+        AlertingService alertingService = new AlertingService(configRepository,
+                triggeredAlertRepository, aggregateRepository, gaugeValueRepository,
+                rollupLevelService, mailService);
+        alertingService.updateGaugeWindows("", ImmutableList.<GaugeValue>of());
+        alertingService.checkGaugeAlert("", "", GAUGE_ALERT_CONFIG, 120000);
+        // when
+        alertingService.updateGaugeWindows("", ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_ALERT_CONFIG.getGaugeName())
+                .setCaptureTime(180000)
+                .setValue(400)
+                .setWeight(1)
+                .build()));
+        // arrives after the later gauge value above
+        alertingService.updateGaugeWindows("", ImmutableList.of(GaugeValue.newBuilder()
+                .setGaugeName(GAUGE_ALERT_CONFIG.getGaugeName())
+                .setCaptureTime(170000)
+                .setValue(1000)
+                .setWeight(1)
+                .build()));
+        alertingService.checkGaugeAlert("", "", GAUGE_ALERT_CONFIG, 180000);
+        // then
+        assertThat(mailService.getMessage()).isNotNull();
+    }
+
     @Test
     public void shouldReturnCorrectPercentileName() {
         shouldReturnCorrectPercentileName(0, "th");
@@ -239,6 +308,17 @@ public class AlertingServiceTest {
                 .thenReturn(ImmutableList.of(aggregate));
     }
 
+    private static Aggregate createAggregate(long... histogramValues) {
+        LazyHistogram lazyHistogram = new LazyHistogram();
+        for (long histogramValue : histogramValues) {
+            lazyHistogram.add(histogramValue);
+        }
+        return Aggregate.newBuilder()
+                .setTransactionCount(histogramValues.length)
+                .setDurationNanosHistogram(lazyHistogram.toProto(new ScratchBuffer()))
+                .build();
+    }
+
     private void setupForGauge(double value) throws Exception {
         GaugeValue gaugeValue = GaugeValue.newBuilder()
                 .setGaugeName("abc")
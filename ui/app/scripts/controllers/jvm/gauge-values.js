@@ -47,6 +47,9 @@ glowroot.controller('JvmGaugeValuesCtrl', [
     var chartState = charts.createState();
 
     var yvalMaps = {};
+    // percentiles are only present for rolled up gauge values, and are never scaled since they are only displayed in
+    // the tooltip
+    var percentileMaps = {};
 
     var gaugeScales = {};
     var emptyGaugeNames = {};
@@ -258,6 +261,7 @@ glowroot.controller('JvmGaugeValuesCtrl', [
       // reset gauge scales
       gaugeScales = {};
       yvalMaps = {};
+      percentileMaps = {};
       emptyGaugeNames = {};
 
       var groupingScale = {};
@@ -269,6 +273,9 @@ glowroot.controller('JvmGaugeValuesCtrl', [
       for (i = 0; i < data.length; i++) {
         dataSeries = data[i];
         updateYvalMap(dataSeries.name, dataSeries.data);
+        if (dataSeries.percentiles) {
+          updatePercentileMap(dataSeries.name, dataSeries.percentiles);
+        }
         if (dataSeries.data.length) {
           // set negative data to zero after putting real value into yval map
           setNegativeDataToZero(dataSeries);
@@ -295,6 +302,9 @@ glowroot.controller('JvmGaugeValuesCtrl', [
           }
           gaugeScales[dataSeries.name] = scale;
           scalePoints(dataSeries.data, scale);
+          if (dataSeries.band) {
+            scaleBandPoints(dataSeries.band, scale);
+          }
         }
       }
       updateThePlotData(data);
@@ -309,6 +319,15 @@ glowroot.controller('JvmGaugeValuesCtrl', [
           point[1] = 0;
         }
       }
+      if (dataSeries.band) {
+        for (i = 0; i < dataSeries.band.length; i++) {
+          point = dataSeries.band[i];
+          if (point) {
+            point[1] = Math.max(point[1], 0);
+            point[2] = Math.max(point[2], 0);
+          }
+        }
+      }
     }
 
     function updateYvalMap(label, points) {
@@ -324,6 +343,20 @@ glowroot.controller('JvmGaugeValuesCtrl', [
       yvalMaps[label] = map;
     }
 
+    // percentile points are [x, p50, p95, p99]
+    function updatePercentileMap(label, points) {
+      var map = {};
+      var i;
+      var point;
+      for (i = 0; i < points.length; i++) {
+        point = points[i];
+        if (point) {
+          map[point[0]] = point;
+        }
+      }
+      percentileMaps[label] = map;
+    }
+
     function getPointsScale(points) {
       var max = 0;
       for (var j = 0; j < points.length; j++) {
@@ -354,6 +387,20 @@ glowroot.controller('JvmGaugeValuesCtrl', [
       }
     }
 
+    // band points are [x, max, min]
+    function scaleBandPoints(points, scale) {
+      if (scale === 1) {
+        return;
+      }
+      for (var j = 0; j < points.length; j++) {
+        var point = points[j];
+        if (point) {
+          point[1] *= scale;
+          point[2] *= scale;
+        }
+      }
+    }
+
     function updateThePlotData(data) {
       var nodata = true;
       for (var i = 0; i < data.length; i++) {
@@ -553,7 +600,14 @@ glowroot.controller('JvmGaugeValuesCtrl', [
                 if (nonScaledValue === undefined) {
                   return 'no data';
                 }
-                return displaySixDigitsOfPrecision(nonScaledValue) + gaugeUnits[label];
+                var text = displaySixDigitsOfPrecision(nonScaledValue) + gaugeUnits[label];
+                var percentiles = percentileMaps[label] && percentileMaps[label][xval];
+                if (percentiles) {
+                  text += '<span style="font-weight: 400;"> (p50 ' + displaySixDigitsOfPrecision(percentiles[1])
+                      + ', p95 ' + displaySixDigitsOfPrecision(percentiles[2])
+                      + ', p99 ' + displaySixDigitsOfPrecision(percentiles[3]) + ')</span>';
+                }
+                return text;
               }, ' (average value over this interval)', true);
         }
       }
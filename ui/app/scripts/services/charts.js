@@ -277,6 +277,10 @@ glowroot.factory('charts', [
       if (autoRefresh) {
         query.autoRefresh = true;
       }
+      if (chartState.plot) {
+        // no point in sending back more than one point per pixel (the server downsamples to this budget)
+        query.maxPoints = Math.round(chartState.plot.width());
+      }
       if (addToQuery) {
         addToQuery(query);
       }
@@ -326,6 +330,26 @@ glowroot.factory('charts', [
               };
               plotData.push(plotDataItem);
             });
+            // min/max bands are added after all of the data series so that the series indexes used by the legend
+            // and tooltip are not affected
+            angular.forEach(data.dataSeries, function (dataSeries, index) {
+              if (dataSeries.band) {
+                plotData.push({
+                  data: dataSeries.band,
+                  color: chartState.keyedColorPool.get(labels[index]),
+                  band: true,
+                  lines: {
+                    show: true,
+                    lineWidth: 0,
+                    fill: 0.15
+                  },
+                  points: {
+                    show: false
+                  },
+                  shadowSize: 0
+                });
+              }
+            });
             if (plotData.length) {
               chartState.plot.setData(plotData);
             } else {
@@ -351,6 +375,9 @@ glowroot.factory('charts', [
       }
       var seriesIndex;
       for (seriesIndex = 0; seriesIndex < plotData.length; seriesIndex++) {
+        if (plotData[seriesIndex].band) {
+          continue;
+        }
         $scope.seriesLabels.push({
           color: plotData[seriesIndex].color,
           text: plotData[seriesIndex].label
@@ -401,6 +428,9 @@ glowroot.factory('charts', [
       var displayText;
       for (seriesIndex = 0; seriesIndex < plotData.length; seriesIndex++) {
         dataSeries = plotData[seriesIndex];
+        if (dataSeries.band) {
+          continue;
+        }
         if (nonStacked) {
           // dataIndex don't line up since non-stacked
           displayText = display(undefined, dataSeries.label);
@@ -1,5 +1,5 @@
 /*
- * Copyright 2014-2016 the original author or authors.
+ * Copyright 2014-2017 the original author or authors.
  *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
@@ -22,6 +22,9 @@ import javax.annotation.Nullable;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.google.common.collect.Lists;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
 class DataSeries {
 
     // null is used for 'Other' data series
@@ -31,6 +34,17 @@ class DataSeries {
     private final List<Number /*@Nullable*/[]> data = Lists.newArrayList();
     @JsonProperty
     private @Nullable Double overall;
+    // min/max band around the data, in flot's [x, y, bottom] format, only present for rolled up
+    // gauge values
+    //
+    // once present, the band always has the same size as the data (with null where a data point
+    // has no band), so that the band can be downsampled using the same indexes as the data
+    @JsonProperty
+    private @Nullable List<Number /*@Nullable*/[]> band;
+    // [x, p50, p95, p99] of the underlying values, only present for rolled up gauge values, and
+    // kept aligned with the data the same as the band
+    @JsonProperty
+    private @Nullable List<Number /*@Nullable*/[]> percentiles;
 
     DataSeries(@Nullable String name) {
         this.name = name;
@@ -43,13 +57,119 @@ class DataSeries {
 
     void add(long captureTime, double value) {
         data.add(new Number[] {captureTime, value});
+        if (band != null) {
+            band.add(null);
+        }
+        if (percentiles != null) {
+            percentiles.add(null);
+        }
+    }
+
+    // sets the band of the data point that was just added
+    void addBand(long captureTime, double max, double min) {
+        checkState(!data.isEmpty());
+        if (band == null) {
+            band = Lists.newArrayList();
+            for (int i = 0; i < data.size(); i++) {
+                band.add(null);
+            }
+        }
+        band.set(band.size() - 1, new Number[] {captureTime, max, min});
+    }
+
+    // sets the percentiles of the data point that was just added
+    void addPercentiles(long captureTime, double p50, double p95, double p99) {
+        checkState(!data.isEmpty());
+        if (percentiles == null) {
+            percentiles = Lists.newArrayList();
+            for (int i = 0; i < data.size(); i++) {
+                percentiles.add(null);
+            }
+        }
+        percentiles.set(percentiles.size() - 1, new Number[] {captureTime, p50, p95, p99});
+    }
+
+    List<Number /*@Nullable*/[]> getData() {
+        return data;
+    }
+
+    @Nullable
+    List<Number /*@Nullable*/[]> getBand() {
+        return band;
+    }
+
+    @Nullable
+    List<Number /*@Nullable*/[]> getPercentiles() {
+        return percentiles;
+    }
+
+    // see DataSeriesDownsampler for the format of the selection
+    void applySelection(List<int /*@Nullable*/[]> selection) {
+        List<Number /*@Nullable*/[]> selectedData = Lists.newArrayList();
+        // the band of each kept point covers the min/max of its whole bucket so that spikes are
+        // not lost
+        boolean applyToBand = band != null;
+        List<Number /*@Nullable*/[]> selectedBand = Lists.newArrayList();
+        // percentiles cannot be combined across the bucket, so the kept point keeps its own
+        boolean applyToPercentiles = percentiles != null;
+        List<Number /*@Nullable*/[]> selectedPercentiles = Lists.newArrayList();
+        for (int[] selected : selection) {
+            if (selected == null) {
+                selectedData.add(null);
+                if (applyToBand) {
+                    selectedBand.add(null);
+                }
+                if (applyToPercentiles) {
+                    selectedPercentiles.add(null);
+                }
+                continue;
+            }
+            Number[] point = checkNotNull(data.get(selected[0]));
+            selectedData.add(point);
+            if (applyToBand) {
+                selectedBand.add(getBand(point[0], selected[1], selected[2]));
+            }
+            if (applyToPercentiles) {
+                selectedPercentiles.add(checkNotNull(percentiles).get(selected[0]));
+            }
+        }
+        data.clear();
+        data.addAll(selectedData);
+        if (applyToBand) {
+            band = selectedBand;
+        }
+        if (applyToPercentiles) {
+            percentiles = selectedPercentiles;
+        }
     }
 
     void addNull() {
         data.add(null);
+        if (band != null) {
+            band.add(null);
+        }
+        if (percentiles != null) {
+            percentiles.add(null);
+        }
     }
 
     public void setOverall(double overall) {
         this.overall = overall;
     }
+
+    private Number /*@Nullable*/[] getBand(Number captureTime, int fromIndex, int toIndex) {
+        double max = Double.NEGATIVE_INFINITY;
+        double min = Double.POSITIVE_INFINITY;
+        for (int i = fromIndex; i < toIndex; i++) {
+            Number[] point = checkNotNull(band).get(i);
+            if (point != null) {
+                max = Math.max(max, point[1].doubleValue());
+                min = Math.min(min, point[2].doubleValue());
+            }
+        }
+        if (max == Double.NEGATIVE_INFINITY) {
+            return null;
+        }
+        return new Number[] {captureTime, max, min};
+    }
 }
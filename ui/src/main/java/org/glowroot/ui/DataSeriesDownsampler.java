@@ -0,0 +1,204 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import com.google.common.collect.Lists;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+// reduces the data series of a chart to a point budget (typically the pixel width of the chart)
+// using the largest-triangle-three-buckets algorithm, which keeps the points that contribute most
+// to the visual shape of each line, in particular its peaks and troughs
+//
+// when all of the data series share the same capture times (e.g. stacked charts), the same points
+// are kept in every data series so that they still line up, choosing the points that contribute
+// most across all of the data series (each normalized by its own range so that the data series
+// with the largest values does not dominate)
+class DataSeriesDownsampler {
+
+    private DataSeriesDownsampler() {}
+
+    static void downsample(List<DataSeries> dataSeriesList, @Nullable Integer maxPoints) {
+        if (maxPoints == null || maxPoints <= 0 || dataSeriesList.isEmpty()) {
+            return;
+        }
+        if (isAligned(dataSeriesList)) {
+            List<int /*@Nullable*/[]> selection = select(dataSeriesList, maxPoints);
+            if (selection != null) {
+                for (DataSeries dataSeries : dataSeriesList) {
+                    dataSeries.applySelection(selection);
+                }
+            }
+        } else {
+            for (DataSeries dataSeries : dataSeriesList) {
+                List<int /*@Nullable*/[]> selection =
+                        select(Lists.newArrayList(dataSeries), maxPoints);
+                if (selection != null) {
+                    dataSeries.applySelection(selection);
+                }
+            }
+        }
+    }
+
+    // each selected point is {index, bucketStartIndex, bucketEndIndex (exclusive)}, and null
+    // entries are gaps, returns null if no downsampling is needed
+    private static @Nullable List<int /*@Nullable*/[]> select(List<DataSeries> dataSeriesList,
+            int maxPoints) {
+        List<Number /*@Nullable*/[]> data = dataSeriesList.get(0).getData();
+        if (data.size() <= maxPoints) {
+            return null;
+        }
+        List<int[]> segments = Lists.newArrayList();
+        int nonNullCount = 0;
+        int segmentStart = -1;
+        for (int i = 0; i <= data.size(); i++) {
+            boolean isNull = i == data.size() || data.get(i) == null;
+            if (isNull && segmentStart != -1) {
+                segments.add(new int[] {segmentStart, i});
+                nonNullCount += i - segmentStart;
+                segmentStart = -1;
+            } else if (!isNull && segmentStart == -1) {
+                segmentStart = i;
+            }
+        }
+        double[] scales = new double[dataSeriesList.size()];
+        for (int i = 0; i < scales.length; i++) {
+            scales[i] = getScale(dataSeriesList.get(i).getData());
+        }
+        // gaps between segments use up part of the budget
+        int budget = Math.max(maxPoints - segments.size() + 1, 1);
+        List<int /*@Nullable*/[]> selection = Lists.newArrayList();
+        for (int[] segment : segments) {
+            if (!selection.isEmpty()) {
+                selection.add(null);
+            }
+            int length = segment[1] - segment[0];
+            int segmentBudget = (int) Math.max((long) budget * length / nonNullCount, 3);
+            selectSegment(dataSeriesList, scales, segment[0], segment[1], segmentBudget,
+                    selection);
+        }
+        return selection;
+    }
+
+    private static void selectSegment(List<DataSeries> dataSeriesList, double[] scales,
+            int start, int end, int budget, List<int /*@Nullable*/[]> selection) {
+        if (end - start <= budget) {
+            for (int i = start; i < end; i++) {
+                selection.add(new int[] {i, i, i + 1});
+            }
+            return;
+        }
+        // first and last points are always kept, and the points in between are divided into
+        // (budget - 2) buckets, from each of which a single point is kept
+        selection.add(new int[] {start, start, start + 1});
+        double bucketSize = (double) (end - start - 2) / (budget - 2);
+        int a = start;
+        for (int bucket = 0; bucket < budget - 2; bucket++) {
+            int bucketStart = start + 1 + (int) (bucket * bucketSize);
+            int bucketEnd = Math.min(start + 1 + (int) ((bucket + 1) * bucketSize), end - 1);
+            int nextBucketStart = bucketEnd;
+            int nextBucketEnd = Math.min(start + 1 + (int) ((bucket + 2) * bucketSize), end - 1);
+            if (nextBucketStart >= nextBucketEnd) {
+                // the last bucket, so the next "bucket" is just the last point
+                nextBucketStart = end - 1;
+                nextBucketEnd = end;
+            }
+            // triangles are formed by the prior kept point (a), the candidate point, and the
+            // average of the next bucket
+            double ax = getX(dataSeriesList, a);
+            double avgX = 0;
+            for (int i = nextBucketStart; i < nextBucketEnd; i++) {
+                avgX += getX(dataSeriesList, i);
+            }
+            avgX /= nextBucketEnd - nextBucketStart;
+            double[] ay = new double[dataSeriesList.size()];
+            double[] avgY = new double[dataSeriesList.size()];
+            for (int j = 0; j < dataSeriesList.size(); j++) {
+                List<Number /*@Nullable*/[]> data = dataSeriesList.get(j).getData();
+                ay[j] = getY(data, a);
+                for (int i = nextBucketStart; i < nextBucketEnd; i++) {
+                    avgY[j] += getY(data, i);
+                }
+                avgY[j] /= nextBucketEnd - nextBucketStart;
+            }
+            double maxArea = -1;
+            int maxAreaIndex = bucketStart;
+            for (int i = bucketStart; i < bucketEnd; i++) {
+                double x = getX(dataSeriesList, i);
+                double area = 0;
+                for (int j = 0; j < dataSeriesList.size(); j++) {
+                    double y = getY(dataSeriesList.get(j).getData(), i);
+                    area += scales[j] * Math.abs(
+                            (ax - avgX) * (y - ay[j]) - (ax - x) * (avgY[j] - ay[j]));
+                }
+                if (area > maxArea) {
+                    maxArea = area;
+                    maxAreaIndex = i;
+                }
+            }
+            selection.add(new int[] {maxAreaIndex, bucketStart, bucketEnd});
+            a = maxAreaIndex;
+        }
+        selection.add(new int[] {end - 1, end - 1, end});
+    }
+
+    private static boolean isAligned(List<DataSeries> dataSeriesList) {
+        List<Number /*@Nullable*/[]> first = dataSeriesList.get(0).getData();
+        for (int i = 1; i < dataSeriesList.size(); i++) {
+            List<Number /*@Nullable*/[]> data = dataSeriesList.get(i).getData();
+            if (data.size() != first.size()) {
+                return false;
+            }
+            for (int j = 0; j < data.size(); j++) {
+                Number[] point = data.get(j);
+                Number[] firstPoint = first.get(j);
+                if (point == null || firstPoint == null) {
+                    if (point != firstPoint) {
+                        return false;
+                    }
+                } else if (point[0].longValue() != firstPoint[0].longValue()) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static double getScale(List<Number /*@Nullable*/[]> data) {
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Number[] point : data) {
+            if (point != null) {
+                min = Math.min(min, point[1].doubleValue());
+                max = Math.max(max, point[1].doubleValue());
+            }
+        }
+        return max > min ? 1 / (max - min) : 1;
+    }
+
+    // only called for indexes inside of a segment, so the point is never null
+    private static double getX(List<DataSeries> dataSeriesList, int index) {
+        return checkNotNull(dataSeriesList.get(0).getData().get(index))[0].doubleValue();
+    }
+
+    private static double getY(List<Number /*@Nullable*/[]> data, int index) {
+        return checkNotNull(data.get(index))[1].doubleValue();
+    }
+}
@@ -19,6 +19,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
@@ -29,6 +31,7 @@ import com.google.common.collect.Ordering;
 import com.google.common.io.CharStreams;
 import org.immutables.value.Value;
 
+import org.glowroot.common.model.MutableGaugeValue;
 import org.glowroot.common.repo.AgentRepository;
 import org.glowroot.common.repo.ConfigRepository;
 import org.glowroot.common.repo.GaugeValueRepository;
@@ -37,6 +40,7 @@ import org.glowroot.common.repo.Utils;
 import org.glowroot.common.repo.util.RollupLevelService;
 import org.glowroot.common.util.ObjectMappers;
 import org.glowroot.wire.api.model.CollectorServiceOuterClass.GaugeValue;
+import org.glowroot.wire.api.model.Proto.OptionalDouble;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -92,6 +96,7 @@ class GaugeValueJsonService {
             dataSeriesList
                     .add(convertToDataSeriesWithGaps(entry.getKey(), entry.getValue(), gapMillis));
         }
+        DataSeriesDownsampler.downsample(dataSeriesList, request.maxPoints());
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         jg.writeStartObject();
@@ -179,40 +184,40 @@ class GaugeValueJsonService {
     static List<GaugeValue> rollUpGaugeValues(List<GaugeValue> orderedNonRolledUpGaugeValues,
             String gaugeName, Function<Long, Long> rollupCaptureTimeFn) {
         List<GaugeValue> rolledUpGaugeValues = Lists.newArrayList();
-        double currTotal = 0;
-        long currWeight = 0;
+        MutableGaugeValue curr = new MutableGaugeValue();
         long currRollupCaptureTime = Long.MIN_VALUE;
         for (GaugeValue nonRolledUpGaugeValue : orderedNonRolledUpGaugeValues) {
             long captureTime = nonRolledUpGaugeValue.getCaptureTime();
             long rollupCaptureTime = rollupCaptureTimeFn.apply(captureTime);
-            if (rollupCaptureTime != currRollupCaptureTime && currWeight > 0) {
-                rolledUpGaugeValues.add(GaugeValue.newBuilder()
-                        .setGaugeName(gaugeName)
-                        .setCaptureTime(currRollupCaptureTime)
-                        .setValue(currTotal / currWeight)
-                        .setWeight(currWeight)
-                        .build());
-                currTotal = 0;
-                currWeight = 0;
+            if (rollupCaptureTime != currRollupCaptureTime && curr.getWeight() > 0) {
+                rolledUpGaugeValues.add(toGaugeValue(curr, gaugeName, currRollupCaptureTime));
+                curr = new MutableGaugeValue();
             }
             currRollupCaptureTime = rollupCaptureTime;
-            currTotal += nonRolledUpGaugeValue.getValue() * nonRolledUpGaugeValue.getWeight();
-            currWeight += nonRolledUpGaugeValue.getWeight();
+            curr.merge(nonRolledUpGaugeValue);
         }
-        if (currWeight > 0) {
+        if (curr.getWeight() > 0) {
             // roll up final one
             long lastCaptureTime = orderedNonRolledUpGaugeValues
                     .get(orderedNonRolledUpGaugeValues.size() - 1).getCaptureTime();
-            rolledUpGaugeValues.add(GaugeValue.newBuilder()
-                    .setGaugeName(gaugeName)
-                    .setCaptureTime(lastCaptureTime)
-                    .setValue(currTotal / currWeight)
-                    .setWeight(currWeight)
-                    .build());
+            rolledUpGaugeValues.add(toGaugeValue(curr, gaugeName, lastCaptureTime));
         }
         return rolledUpGaugeValues;
     }
 
+    private static GaugeValue toGaugeValue(MutableGaugeValue rollup, String gaugeName,
+            long captureTime) {
+        return GaugeValue.newBuilder()
+                .setGaugeName(gaugeName)
+                .setCaptureTime(captureTime)
+                .setValue(rollup.getValue())
+                .setWeight(rollup.getWeight())
+                .setMin(OptionalDouble.newBuilder().setValue(rollup.getMin()))
+                .setMax(OptionalDouble.newBuilder().setValue(rollup.getMax()))
+                .setSketch(rollup.getSketch())
+                .build();
+    }
+
     private static DataSeries convertToDataSeriesWithGaps(String dataSeriesName,
             List<GaugeValue> gaugeValues, double gapMillis) {
         DataSeries dataSeries = new DataSeries(dataSeriesName);
@@ -223,6 +228,19 @@ class GaugeValueJsonService {
                 dataSeries.addNull();
             }
             dataSeries.add(gaugeValue.getCaptureTime(), gaugeValue.getValue());
+            if (gaugeValue.hasMin()) {
+                dataSeries.addBand(gaugeValue.getCaptureTime(), gaugeValue.getMax().getValue(),
+                        gaugeValue.getMin().getValue());
+            }
+            // the sketch counts values <= 0 as zero, so its percentiles are only meaningful for
+            // gauges that never go negative
+            if (gaugeValue.hasSketch() && gaugeValue.getMin().getValue() >= 0) {
+                MutableGaugeValue rollup = new MutableGaugeValue();
+                rollup.merge(gaugeValue);
+                dataSeries.addPercentiles(gaugeValue.getCaptureTime(),
+                        rollup.getValueAtPercentile(50), rollup.getValueAtPercentile(95),
+                        rollup.getValueAtPercentile(99));
+            }
             lastGaugeValue = gaugeValue;
         }
         return dataSeries;
@@ -234,6 +252,9 @@ class GaugeValueJsonService {
         long to();
         // singular because this is used in query string
         ImmutableList<String> gaugeName();
+        // point budget for each data series (typically the pixel width of the chart)
+        @Nullable
+        Integer maxPoints();
     }
 
     static class GaugeOrdering extends Ordering<Gauge> {
@@ -19,6 +19,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import javax.annotation.Nullable;
+
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Function;
@@ -88,6 +90,7 @@ class SyntheticResultJsonService {
             dataSeriesList.add(
                     convertToDataSeriesWithGaps(config.getDisplay(), entry.getValue(), gapMillis));
         }
+        DataSeriesDownsampler.downsample(dataSeriesList, request.maxPoints());
         StringBuilder sb = new StringBuilder();
         JsonGenerator jg = mapper.getFactory().createGenerator(CharStreams.asWriter(sb));
         jg.writeStartObject();
@@ -247,6 +250,9 @@ class SyntheticResultJsonService {
         long to();
         // singular because this is used in query string
         ImmutableList<String> syntheticMonitorId();
+        // point budget for each data series (typically the pixel width of the chart)
+        @Nullable
+        Integer maxPoints();
     }
 
     static class SyntheticMonitorOrdering extends Ordering<SyntheticMonitor> {
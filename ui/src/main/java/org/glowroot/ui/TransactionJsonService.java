@@ -94,6 +94,7 @@ class TransactionJsonService {
                 transactionCommonService.getOverviewAggregates(agentRollupId, query, autoRefresh);
         List<DataSeries> dataSeriesList =
                 getDataSeriesForTimerChart(request, overviewAggregates, liveCaptureTime);
+        DataSeriesDownsampler.downsample(dataSeriesList, request.maxPoints());
         Map<Long, Long> transactionCounts = getTransactionCounts(overviewAggregates);
         // TODO more precise aggregate when from/to not on rollup grid
         List<OverviewAggregate> overviewAggregatesForMerging = Lists.newArrayList();
@@ -127,6 +128,7 @@ class TransactionJsonService {
                 transactionCommonService.getPercentileAggregates(agentRollupId, query, autoRefresh);
         PercentileData percentileData = getDataSeriesForPercentileChart(request,
                 percentileAggregates, request.percentile(), liveCaptureTime);
+        DataSeriesDownsampler.downsample(percentileData.dataSeriesList(), request.maxPoints());
         Map<Long, Long> transactionCounts = getTransactionCounts2(percentileAggregates);
 
         StringBuilder sb = new StringBuilder();
@@ -150,6 +152,7 @@ class TransactionJsonService {
                 transactionCommonService.getThroughputAggregates(agentRollupId, query, autoRefresh);
         List<DataSeries> dataSeriesList =
                 getDataSeriesForThroughputChart(request, throughputAggregates, liveCaptureTime);
+        DataSeriesDownsampler.downsample(dataSeriesList, request.maxPoints());
         // TODO more precise aggregate when from/to not on rollup grid
         long transactionCount = 0;
         for (ThroughputAggregate throughputAggregate : throughputAggregates) {
@@ -180,14 +183,20 @@ class TransactionJsonService {
         List<Query> queryList = Lists.newArrayList();
         for (Entry<String, List<MutableQuery>> entry : queries.entrySet()) {
             for (MutableQuery loopQuery : entry.getValue()) {
-                queryList.add(ImmutableQuery.builder()
+                ImmutableQuery.Builder builder = ImmutableQuery.builder()
                         .queryType(entry.getKey())
                         .truncatedQueryText(loopQuery.getTruncatedText())
                         .fullQueryTextSha1(loopQuery.getFullTextSha1())
                         .totalDurationNanos(loopQuery.getTotalDurationNanos())
                         .executionCount(loopQuery.getExecutionCount())
                         .totalRows(loopQuery.hasTotalRows() ? loopQuery.getTotalRows() : null)
-                        .build());
+                        .repeatedTransactionCount(loopQuery.getRepeatedTransactionCount());
+                LazyHistogram durationNanosHistogram = loopQuery.getDurationNanosHistogram();
+                if (durationNanosHistogram != null) {
+                    builder.p95DurationNanos(durationNanosHistogram.getValueAtPercentile(95))
+                            .p99DurationNanos(durationNanosHistogram.getValueAtPercentile(99));
+                }
+                queryList.add(builder.build());
             }
         }
         if (queryList.isEmpty() && aggregateRepository.shouldHaveQueries(agentRollupId, query)) {
@@ -679,12 +688,20 @@ class TransactionJsonService {
     }
 
     @Value.Immutable
-    interface TransactionDataRequest extends RequestBase {}
+    interface TransactionDataRequest extends RequestBase {
+        // point budget for each data series (typically the pixel width of the chart), this is
+        // only sent for chart requests
+        @Nullable
+        Integer maxPoints();
+    }
 
     @Value.Immutable
     interface TransactionPercentileRequest extends RequestBase {
         // singular because this is used in query string
         ImmutableList<Double> percentile();
+        // point budget for each data series (typically the pixel width of the chart)
+        @Nullable
+        Integer maxPoints();
     }
 
     @Value.Immutable
@@ -722,6 +739,13 @@ class TransactionJsonService {
         long executionCount();
         @Nullable
         Long totalRows();
+        // number of transactions that executed the query many times (possible N+1 pattern)
+        long repeatedTransactionCount();
+        // only present when per-query histograms are enabled on the agent
+        @Nullable
+        Long p95DurationNanos();
+        @Nullable
+        Long p99DurationNanos();
     }
 
     @Value.Immutable
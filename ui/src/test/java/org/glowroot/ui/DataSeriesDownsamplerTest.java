@@ -0,0 +1,206 @@
+/*
+ * Copyright 2017 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.glowroot.ui;
+
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DataSeriesDownsamplerTest {
+
+    @Test
+    public void shouldKeepSpike() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 1000; i++) {
+            dataSeries.add(i * 1000L, i == 500 ? 100 : 1);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        // then
+        List<Number[]> data = dataSeries.getData();
+        assertThat(data).hasSize(50);
+        assertThat(data.get(0)[0]).isEqualTo(0L);
+        assertThat(data.get(49)[0]).isEqualTo(999000L);
+        assertThat(getMaxValue(data)).isEqualTo(100);
+    }
+
+    @Test
+    public void shouldNotDownsampleUnderBudget() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 10; i++) {
+            dataSeries.add(i * 1000L, i);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), null);
+        // then
+        assertThat(dataSeries.getData()).hasSize(10);
+    }
+
+    @Test
+    public void shouldKeepAlignedDataSeriesAligned() {
+        // given
+        DataSeries dataSeries1 = new DataSeries("one");
+        DataSeries dataSeries2 = new DataSeries("two");
+        for (int i = 0; i < 1000; i++) {
+            dataSeries1.add(i * 1000L, i % 7);
+            dataSeries2.add(i * 1000L, 1000 * (i % 13));
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries1, dataSeries2), 100);
+        // then
+        List<Number[]> data1 = dataSeries1.getData();
+        List<Number[]> data2 = dataSeries2.getData();
+        assertThat(data1).hasSize(100);
+        assertThat(data2).hasSize(100);
+        for (int i = 0; i < data1.size(); i++) {
+            assertThat(data1.get(i)[0]).isEqualTo(data2.get(i)[0]);
+        }
+    }
+
+    @Test
+    public void shouldPreserveGaps() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 500; i++) {
+            dataSeries.add(i * 1000L, i % 3);
+        }
+        dataSeries.addNull();
+        for (int i = 600; i < 1100; i++) {
+            dataSeries.add(i * 1000L, i % 3);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        // then
+        List<Number[]> data = dataSeries.getData();
+        assertThat(data.size()).isLessThanOrEqualTo(50);
+        assertThat(data).containsOnlyOnce((Number[]) null);
+        assertThat(data.get(0)[0]).isEqualTo(0L);
+        assertThat(data.get(data.size() - 1)[0]).isEqualTo(1099000L);
+    }
+
+    @Test
+    public void shouldRollUpBandAcrossBucket() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 1000; i++) {
+            dataSeries.add(i * 1000L, 1);
+            dataSeries.addBand(i * 1000L, i == 333 ? 50 : 2, 0);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        // then
+        assertThat(dataSeries.getData()).hasSize(50);
+        List<Number[]> band = dataSeries.getBand();
+        assertThat(band).hasSize(50);
+        assertThat(getMaxValue(band)).isEqualTo(50);
+    }
+
+    @Test
+    public void shouldKeepBandAlignedWhenBandStartsAfterGap() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 500; i++) {
+            dataSeries.add(i * 1000L, 1);
+        }
+        dataSeries.addNull();
+        for (int i = 600; i < 1100; i++) {
+            dataSeries.add(i * 1000L, 1);
+            dataSeries.addBand(i * 1000L, i == 800 ? 50 : 2, 0);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        // then
+        List<Number[]> data = dataSeries.getData();
+        List<Number[]> band = dataSeries.getBand();
+        assertThat(band).hasSize(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            Number[] point = data.get(i);
+            Number[] bandPoint = band.get(i);
+            if (point == null || point[0].longValue() < 500000) {
+                assertThat(bandPoint).isNull();
+            } else {
+                assertThat(bandPoint[0]).isEqualTo(point[0]);
+            }
+        }
+        assertThat(getMaxValue(band)).isEqualTo(50);
+    }
+
+    @Test
+    public void shouldKeepBandAlignedWhenNotAllPointsHaveBand() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        dataSeries.add(0, 1);
+        dataSeries.addBand(0, 2, 0);
+        dataSeries.add(1000, 1);
+        dataSeries.addNull();
+        dataSeries.add(3000, 1);
+        dataSeries.addBand(3000, 3, 0);
+        // then
+        List<Number[]> band = dataSeries.getBand();
+        assertThat(band).hasSize(4);
+        assertThat(band.get(0)[1]).isEqualTo(2.0);
+        assertThat(band.get(1)).isNull();
+        assertThat(band.get(2)).isNull();
+        assertThat(band.get(3)[1]).isEqualTo(3.0);
+    }
+
+    @Test
+    public void shouldKeepPercentilesOfSelectedPoints() {
+        // given
+        DataSeries dataSeries = new DataSeries("test");
+        for (int i = 0; i < 500; i++) {
+            dataSeries.add(i * 1000L, 1);
+        }
+        dataSeries.addNull();
+        for (int i = 600; i < 1100; i++) {
+            dataSeries.add(i * 1000L, i == 800 ? 50 : 1);
+            dataSeries.addPercentiles(i * 1000L, 1, 2, i);
+        }
+        // when
+        DataSeriesDownsampler.downsample(ImmutableList.of(dataSeries), 50);
+        // then
+        List<Number[]> data = dataSeries.getData();
+        List<Number[]> percentiles = dataSeries.getPercentiles();
+        assertThat(percentiles).hasSize(data.size());
+        for (int i = 0; i < data.size(); i++) {
+            Number[] point = data.get(i);
+            Number[] percentilesPoint = percentiles.get(i);
+            if (point == null || point[0].longValue() < 500000) {
+                assertThat(percentilesPoint).isNull();
+            } else {
+                assertThat(percentilesPoint[0]).isEqualTo(point[0]);
+                assertThat(percentilesPoint[3].doubleValue())
+                        .isEqualTo(point[0].longValue() / 1000.0);
+            }
+        }
+    }
+
+    private static double getMaxValue(List<Number[]> data) {
+        double max = 0;
+        for (Number[] point : data) {
+            if (point != null) {
+                max = Math.max(max, point[1].doubleValue());
+            }
+        }
+        return max;
+    }
+}